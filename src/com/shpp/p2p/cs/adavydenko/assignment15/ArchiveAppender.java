@@ -0,0 +1,310 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+
+/**
+ * Adds the bytes a file got since it was archived to the end of its archive
+ * (the "--append" option), e.g. the new lines of a log archived every hour.
+ * The bytes archived before are not read or encoded again, so the cost of
+ * appending depends on the new bytes only.
+ * <p>
+ * Only archives in the block format can grow: their blocks are independent,
+ * and a reader stops after the blocks holding as many bytes as the header
+ * says (see the ParFormat class). The new bytes become new blocks after the
+ * last one. In adaptive archives they get code tables of their own (or
+ * repeat the table of the previous new block); other Huffman archives reuse
+ * the code table of their header, so all new bytes shall have codes in it.
+ * <p>
+ * Before anything is appended, the file is compared with the archive: the
+ * original bytes of some archived blocks (the first one, the last one and a
+ * few blocks evenly spread between them) are read from the file and their
+ * CRC32C checksums are compared with the ones stored in the blocks. So a file
+ * that was replaced or rewritten in place is not baked into the archive,
+ * while only a few megabytes of the old bytes are read. A change in a block
+ * that is not checked still goes unnoticed.
+ * <p>
+ * The size of the original file in the header is rewritten only after the
+ * new blocks are on the disk. If the program stops before that, the archive
+ * still holds the old bytes only and the next append cuts off the unfinished
+ * blocks.
+ * <p>
+ * If there is a rate limit, the bytes read from the file and the new blocks
+ * written to the archive take their tokens of the throttle.
+ */
+public class ArchiveAppender {
+
+    /**
+     * The archive the bytes are added to.
+     */
+    private final String ARCHIVE;
+
+    /**
+     * The description of the archive.
+     */
+    private final ParFormat FORMAT;
+
+    /**
+     * The number of original bytes that are already in the archive.
+     */
+    protected final long ARCHIVED_SIZE;
+
+    /**
+     * The position right after the last block of the archive.
+     */
+    private final long BLOCKS_END;
+
+    /**
+     * The maximum number of archived blocks compared with the file.
+     */
+    private static final int CHECKED_BLOCKS = 8;
+
+    /**
+     * The position in the original file of every block compared with the file.
+     */
+    private final long[] CHECKED_OFFSETS;
+
+    /**
+     * The number of original bytes of every block compared with the file.
+     */
+    private final int[] CHECKED_LENGTHS;
+
+    /**
+     * The checksum of the original bytes of every block compared with the file.
+     */
+    private final int[] CHECKED_CHECKSUMS;
+
+    /**
+     * The codes of the whole archive if it is not adaptive, null otherwise.
+     */
+    private final CodeTable TABLE;
+
+    /**
+     * The limit of the disk bandwidth, null if there is no limit.
+     */
+    private final Throttle THROTTLE;
+
+    /**
+     * Reads the header of an archive and finds the end of its last block by
+     * skipping the payloads of all blocks.
+     *
+     * @param archive is the archive the bytes will be added to.
+     */
+    public ArchiveAppender(String archive) {
+        this(archive, null);
+    }
+
+    /**
+     * Does the same as the constructor above, but keeps the reading of the file
+     * and the writing of the new blocks within a rate limit.
+     *
+     * @param archive  is the archive the bytes will be added to.
+     * @param throttle is the limit of the disk bandwidth, null if there is no limit.
+     */
+    public ArchiveAppender(String archive, Throttle throttle) {
+        this.ARCHIVE = archive;
+        this.THROTTLE = throttle;
+        if (!ParFormat.isBlockArchive(new File(archive))) {
+            throw new ArchiveException("Can not append to " + archive + ": only archives in the block format "
+                    + "can grow. Archive the file again with --append or --adaptive");
+        }
+        try (FileInputStream fis = new FileInputStream(archive)) {
+            long[] position = {0};
+            DataInputStream in = new DataInputStream(new FilterInputStream(new BufferedInputStream(fis)) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0) {
+                        position[0]++;
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] bytes, int off, int len) throws IOException {
+                    int read = super.read(bytes, off, len);
+                    if (read > 0) {
+                        position[0] += read;
+                    }
+                    return read;
+                }
+
+                @Override
+                public long skip(long n) throws IOException {
+                    long skipped = super.skip(n);
+                    position[0] += skipped;
+                    return skipped;
+                }
+            });
+            BlockReader reader = new BlockReader(in);
+            this.FORMAT = reader.FORMAT;
+            if (FORMAT.hasFlag(ParFormat.FLAG_FSE)) {
+                throw new ArchiveException("Can not append to " + archive + ": archives of the FSE coder can not grow");
+            }
+            int[] rawLengths = new int[CHECKED_BLOCKS];
+            int[] checksums = new int[CHECKED_BLOCKS];
+            int blocks = 0;
+            int rawLength;
+            while ((rawLength = reader.skip()) > 0) {
+                if (blocks == rawLengths.length) {
+                    rawLengths = Arrays.copyOf(rawLengths, blocks * 2);
+                    checksums = Arrays.copyOf(checksums, blocks * 2);
+                }
+                rawLengths[blocks] = rawLength;
+                checksums[blocks++] = reader.getLastChecksum();
+            }
+            this.ARCHIVED_SIZE = FORMAT.ORIGINAL_SIZE;
+            this.BLOCKS_END = position[0];
+            int checked = Math.min(blocks, CHECKED_BLOCKS);
+            this.CHECKED_OFFSETS = new long[checked];
+            this.CHECKED_LENGTHS = new int[checked];
+            this.CHECKED_CHECKSUMS = new int[checked];
+            long offset = 0;
+            for (int block = 0, next = 0; next < checked; offset += rawLengths[block++]) {
+                if (block == chooseCheckedBlock(next, checked, blocks)) {
+                    CHECKED_OFFSETS[next] = offset;
+                    CHECKED_LENGTHS[next] = rawLengths[block];
+                    CHECKED_CHECKSUMS[next++] = checksums[block];
+                }
+            }
+            this.TABLE = FORMAT.hasFlag(ParFormat.FLAG_ADAPTIVE) ? null : reader.getCodeTable();
+        } catch (EOFException e) {
+            throw new ArchiveException("Can not append to " + archive + ": the archive is cut off", e);
+        } catch (IOException e) {
+            throw new ArchiveException("Can not read the archive " + archive, e);
+        }
+    }
+
+    /**
+     * Chooses the blocks compared with the file: the first one, the last one
+     * and the others evenly spread between them.
+     *
+     * @param index   is the number of the checked block (0 - checked - 1).
+     * @param checked is the number of checked blocks.
+     * @param blocks  is the number of blocks in the archive.
+     * @return the number of the block in the archive.
+     */
+    private static int chooseCheckedBlock(int index, int checked, int blocks) {
+        return checked == 1 ? 0 : (int) ((long) index * (blocks - 1) / (checked - 1));
+    }
+
+    /**
+     * Checks that the file is the archived one with bytes added to its end:
+     * it is not shorter than the archived bytes and the bytes of the checked
+     * blocks have not changed. If the archive has one code table for all
+     * blocks, also checks that every new byte has a code in it.
+     *
+     * @param inFile     is the file whose new bytes will be added.
+     * @param inFileSize is the size of the file in bytes.
+     */
+    protected void checkInput(String inFile, long inFileSize) {
+        if (inFileSize < ARCHIVED_SIZE) {
+            throw new ArchiveException("Can not append " + inFile + ": it is shorter than the " + ARCHIVED_SIZE
+                    + " bytes in " + ARCHIVE + ", so it is not the archived file with new bytes at the end");
+        }
+        try (FileInputStream fis = new FileInputStream(inFile)) {
+            for (int i = 0; i < CHECKED_OFFSETS.length && FORMAT.hasFlag(ParFormat.FLAG_CRC32C); i++) {
+                fis.getChannel().position(CHECKED_OFFSETS[i]);
+                byte[] block = fis.readNBytes(CHECKED_LENGTHS[i]);
+                if (THROTTLE != null) {
+                    THROTTLE.acquire(block.length);
+                }
+                if (block.length != CHECKED_LENGTHS[i]
+                        || ParFormat.checksum(block, CHECKED_LENGTHS[i]) != CHECKED_CHECKSUMS[i]) {
+                    throw new ArchiveException("Can not append " + inFile + ": its bytes at " + CHECKED_OFFSETS[i]
+                            + " differ from the ones in " + ARCHIVE
+                            + ", so it is not the archived file with new bytes at the end");
+                }
+            }
+            fis.getChannel().position(ARCHIVED_SIZE);
+            if (TABLE != null) {
+                InputStream in = THROTTLE == null ? fis : THROTTLE.limit(fis);
+                checkCodes(new BufferedInputStream(in), inFileSize - ARCHIVED_SIZE, inFile);
+            }
+        } catch (IOException e) {
+            throw new ArchiveException("Can not read the file " + inFile, e);
+        }
+    }
+
+    /**
+     * Checks that every new byte has a code in the table of the archive.
+     *
+     * @param in       is the stream reading the new bytes.
+     * @param newBytes is the number of new bytes.
+     * @param inFile   is the file whose new bytes will be added.
+     */
+    private void checkCodes(InputStream in, long newBytes, String inFile) throws IOException {
+        byte[] buffer = new byte[ParFormat.DEFAULT_BLOCK_SIZE];
+        while (newBytes > 0) {
+            int len = in.readNBytes(buffer, 0, (int) Math.min(buffer.length, newBytes));
+            if (len == 0) {
+                return;
+            }
+            for (int i = 0; i < len; i++) {
+                if (TABLE.getLength(buffer[i] & 0xFF) == 0) {
+                    throw new ArchiveException("Can not append " + inFile + ": the code table of " + ARCHIVE
+                            + " has no code for the new byte " + (buffer[i] & 0xFF)
+                            + ". Archive the file again with --append or --adaptive");
+                }
+            }
+            newBytes -= len;
+        }
+    }
+
+    /**
+     * Encodes the new bytes as blocks after the last block of the archive,
+     * forces them to the disk and then writes the new size of the original
+     * file to the header.
+     *
+     * @param in       is the stream reading the new bytes.
+     * @param newBytes is the number of new bytes. The stream is not read further.
+     * @return the number of bytes the archive grew by.
+     */
+    protected long append(InputStream in, long newBytes) throws IOException {
+        long[] read = {0};
+        InputStream newPart = new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                if (read[0] == newBytes) {
+                    return -1;
+                }
+                int b = super.read();
+                if (b >= 0) {
+                    read[0]++;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] bytes, int off, int len) throws IOException {
+                if (read[0] == newBytes) {
+                    return -1;
+                }
+                int count = super.read(bytes, off, (int) Math.min(len, newBytes - read[0]));
+                if (count > 0) {
+                    read[0] += count;
+                }
+                return count;
+            }
+        };
+        try (RandomAccessFile archive = new RandomAccessFile(ARCHIVE, "rw")) {
+            archive.setLength(BLOCKS_END); // Cuts off blocks left by an append that did not finish
+            archive.seek(BLOCKS_END);
+            OutputStream blocks = Channels.newOutputStream(archive.getChannel());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    THROTTLE == null ? blocks : THROTTLE.limit(blocks)));
+            BlockEncoder encoder = TABLE == null ? new BlockEncoder(FORMAT) : new BlockEncoder(FORMAT, TABLE, null);
+            encoder.encodeBlocks(newPart, out);
+            out.flush();
+            if (read[0] != newBytes) {
+                throw new ArchiveException("Can not append: the file got shorter while its new bytes were read");
+            }
+            archive.getFD().sync();
+            archive.seek(ParFormat.ORIGINAL_SIZE_OFFSET);
+            archive.writeLong(ARCHIVED_SIZE + newBytes);
+            archive.getFD().sync();
+            return archive.length() - BLOCKS_END;
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the archives made by earlier runs in a directory (the "--cache" option),
+ * so a file that did not change since then is not encoded again: its archive
+ * is taken from the cache by a hard link, or by a copy if the cache is on
+ * another disk.
+ * <p>
+ * An archive is found by the xxHash of the original bytes (see the XxHash64
+ * class, it is computed while the bytes are counted), the size of the file and
+ * the settings that change the archive. The name of every entry is made of
+ * them, so the cache needs no index and several runs may share it.
+ * <p>
+ * An entry is a private copy of the archive: the archive just written is
+ * copied to the cache, never linked, so changing it later does not touch the
+ * entry. Next to every entry lies a small sum file with the length and the
+ * xxHash of the archive. An archive taken from the cache is linked to the entry,
+ * so a program that writes such an archive in place (e.g. "&gt;&gt;", an editor or
+ * "rsync --inplace") changes the entry too. That is why an entry is checked
+ * against its sum file before every use: an entry that differs is forgotten
+ * and the file is archived again, and an entry without a sum file is never
+ * used. This program itself always unlinks an archive with more than one link
+ * (or copies it, when bytes are appended to it) before it writes the archive,
+ * see the detach method.
+ * <p>
+ * The cache forgets the archives used least recently when it grows bigger than
+ * its limit. Every use of an entry updates the modification time of its sum
+ * file, which is linked to nothing, so the archives of users keep their times.
+ */
+public class ArchiveCache {
+
+    /**
+     * The extension of the entries of the cache.
+     */
+    private static final String ENTRY_EXTENSION = ".par";
+
+    /**
+     * The extension of an entry that is being added to the cache.
+     */
+    private static final String TEMPORARY_EXTENSION = ".tmp";
+
+    /**
+     * The extension of the sum file of an entry: the length and the xxHash of the archive.
+     */
+    private static final String SUM_EXTENSION = ".sum";
+
+    /**
+     * The size of the buffer used to copy and hash entries in bytes.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The directory of the cache.
+     */
+    private final Path DIRECTORY;
+
+    /**
+     * The maximum number of bytes in all entries.
+     */
+    private final long MAX_BYTES;
+
+    /**
+     * The number of archives taken from the cache.
+     */
+    private long hits = 0;
+
+    /**
+     * The number of archives that had to be made.
+     */
+    private long misses = 0;
+
+    /**
+     * The number of entries forgotten to keep the cache within its limit.
+     */
+    private long evictions = 0;
+
+    /**
+     * Creates a cache. The directory is created if it does not exist.
+     *
+     * @param directory is the directory of the cache.
+     * @param maxBytes  is the maximum number of bytes in all entries.
+     */
+    public ArchiveCache(String directory, long maxBytes) {
+        this.DIRECTORY = Path.of(directory);
+        this.MAX_BYTES = maxBytes;
+        try {
+            Files.createDirectories(DIRECTORY);
+        } catch (IOException e) {
+            throw new ArchiveException("Can not create the cache directory " + directory, e);
+        }
+    }
+
+    /**
+     * Creates the key of an archive.
+     *
+     * @param contentHash is the xxHash of the original bytes.
+     * @param size        is the size of the original file in bytes.
+     * @param settings    describes the settings that change the archive.
+     * @return the key.
+     */
+    protected static String createKey(long contentHash, long size, String settings) {
+        return String.format(Locale.ROOT, "%016x-%d-%s", contentHash, size, settings);
+    }
+
+    /**
+     * Makes the outFile the archive kept under the key if there is one and it
+     * still has the length and the xxHash written to its sum file.
+     *
+     * @param key        is the key of the archive.
+     * @param outFile    is the archive to be written.
+     * @param auxMethods prints the messages of the job.
+     * @return true if the archive was taken from the cache.
+     */
+    protected synchronized boolean fetch(String key, String outFile, AuxiliaryMethods auxMethods) {
+        Path entry = DIRECTORY.resolve(key + ENTRY_EXTENSION);
+        Path sum = DIRECTORY.resolve(key + SUM_EXTENSION);
+        try {
+            if (Files.isRegularFile(entry) && Files.isRegularFile(sum)) {
+                if (!isIntact(entry, sum)) {
+                    auxMethods.printMessage("- The cache entry of " + outFile + " was changed outside the cache, "
+                            + "the file is archived again");
+                    Files.deleteIfExists(entry);
+                    Files.deleteIfExists(sum);
+                    misses++;
+                    return false;
+                }
+                Path out = Path.of(outFile);
+                Files.deleteIfExists(out);
+                linkOrCopy(entry, out);
+                Files.setLastModifiedTime(sum, FileTime.fromMillis(System.currentTimeMillis()));
+                hits++;
+                return true;
+            }
+        } catch (IOException e) { // Another run may have just forgotten the entry, so the file is archived again
+            auxMethods.printMessage("- Can not take " + outFile + " from the cache: " + e);
+        }
+        misses++;
+        return false;
+    }
+
+    /**
+     * Adds a copy of an archive that was just made to the cache, writes its sum
+     * file and forgets the least recently used entries if the cache became too
+     * big. Problems of the cache are printed and never fail the archiving.
+     *
+     * @param key        is the key of the archive.
+     * @param outFile    is the archive.
+     * @param auxMethods prints the messages of the job.
+     */
+    protected synchronized void store(String key, String outFile, AuxiliaryMethods auxMethods) {
+        Path entry = DIRECTORY.resolve(key + ENTRY_EXTENSION);
+        Path sum = DIRECTORY.resolve(key + SUM_EXTENSION);
+        String suffix = TEMPORARY_EXTENSION + Thread.currentThread().getId();
+        Path temporary = DIRECTORY.resolve(key + ENTRY_EXTENSION + suffix);
+        Path temporarySum = DIRECTORY.resolve(key + SUM_EXTENSION + suffix);
+        try {
+            XxHash64 hash = new XxHash64();
+            long length;
+            try (InputStream in = Files.newInputStream(Path.of(outFile));
+                 OutputStream out = Files.newOutputStream(temporary)) {
+                length = copy(in, out, hash);
+            }
+            Files.writeString(temporarySum, describeSum(length, hash.getValue()));
+            Files.move(temporary, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(temporarySum, sum, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            evict();
+        } catch (IOException e) {
+            auxMethods.printMessage("- Can not add " + outFile + " to the cache: " + e);
+        }
+    }
+
+    /**
+     * Describes the counters of the cache in one line.
+     *
+     * @return the description.
+     */
+    protected synchronized String describe() {
+        return "Archive cache " + DIRECTORY + ": " + hits + " hit(s), " + misses + " miss(es), "
+                + evictions + " eviction(s)";
+    }
+
+    /**
+     * Makes sure that writing a file does not change any other file linked to
+     * it (e.g. an entry of a cache): a file with more than one link is replaced
+     * by a copy of it or deleted. Does nothing on file systems without links.
+     *
+     * @param file        is the file that is going to be written.
+     * @param keepContent says whether the file shall be copied (true) or may be deleted (false).
+     */
+    protected static void detach(String file, boolean keepContent) {
+        Path path = Path.of(file);
+        try {
+            if (!Files.isRegularFile(path) || (Integer) Files.getAttribute(path, "unix:nlink") < 2) {
+                return;
+            }
+            if (keepContent) {
+                Path copy = Path.of(file + TEMPORARY_EXTENSION);
+                Files.copy(path, copy, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+                Files.move(copy, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } else {
+                Files.delete(path);
+            }
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            // The file system has no "unix" attributes
+        } catch (IOException e) {
+            throw new ArchiveException("Can not unlink " + file + " from the files linked to it", e);
+        }
+    }
+
+    /**
+     * Says whether an entry still has the length and the xxHash written to its sum file.
+     *
+     * @param entry is the entry.
+     * @param sum   is the sum file of the entry.
+     * @return true if the entry did not change since it was added to the cache.
+     */
+    private static boolean isIntact(Path entry, Path sum) throws IOException {
+        String expected = Files.readString(sum).trim();
+        XxHash64 hash = new XxHash64();
+        long length;
+        try (InputStream in = Files.newInputStream(entry)) {
+            length = copy(in, OutputStream.nullOutputStream(), hash);
+        }
+        return expected.equals(describeSum(length, hash.getValue()));
+    }
+
+    /**
+     * Copies all bytes of a stream to another one and hashes them.
+     *
+     * @param in   is the stream reading the bytes.
+     * @param out  is the stream writing the bytes.
+     * @param hash is the xxHash the bytes are added to.
+     * @return the number of bytes.
+     */
+    private static long copy(InputStream in, OutputStream out, XxHash64 hash) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long length = 0;
+        int len;
+        while ((len = in.read(buffer)) > 0) {
+            hash.update(buffer, 0, len);
+            out.write(buffer, 0, len);
+            length += len;
+        }
+        return length;
+    }
+
+    /**
+     * Creates the content of a sum file.
+     *
+     * @param length is the length of the archive in bytes.
+     * @param hash   is the xxHash of the archive.
+     * @return the content.
+     */
+    private static String describeSum(long length, long hash) {
+        return String.format(Locale.ROOT, "%d %016x", length, hash);
+    }
+
+    /**
+     * Creates a hard link to a file or copies it if a link can not be created.
+     *
+     * @param source is the existing file.
+     * @param target is the file to be created.
+     */
+    private static void linkOrCopy(Path source, Path target) throws IOException {
+        try {
+            Files.createLink(target, source);
+        } catch (UnsupportedOperationException | IOException e) { // Another disk or no links at all
+            Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Forgets the least recently used entries until the cache fits its limit.
+     * An entry was used last when its sum file was modified; an entry without
+     * a sum file is never used, so it is forgotten first.
+     */
+    private void evict() throws IOException {
+        List<Path> entries = new ArrayList<>();
+        long totalBytes = 0;
+        try (Stream<Path> paths = Files.list(DIRECTORY)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                if (path.toString().endsWith(ENTRY_EXTENSION)) {
+                    entries.add(path);
+                    totalBytes += path.toFile().length();
+                }
+            }
+        }
+        entries.sort(Comparator.comparingLong(entry -> getSumFile(entry).toFile().lastModified()));
+        for (int i = 0; i < entries.size() && totalBytes > MAX_BYTES; i++) {
+            long length = entries.get(i).toFile().length();
+            if (entries.get(i).toFile().delete()) {
+                Files.deleteIfExists(getSumFile(entries.get(i)));
+                totalBytes -= length;
+                evictions++;
+            }
+        }
+    }
+
+    /**
+     * Finds the sum file of an entry.
+     *
+     * @param entry is the entry.
+     * @return the sum file (it may not exist).
+     */
+    private static Path getSumFile(Path entry) {
+        String name = entry.getFileName().toString();
+        return entry.resolveSibling(name.substring(0, name.length() - ENTRY_EXTENSION.length()) + SUM_EXTENSION);
+    }
+}
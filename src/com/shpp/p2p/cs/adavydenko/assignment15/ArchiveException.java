@@ -0,0 +1,38 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+/**
+ * This exception is thrown by the archiver and the unarchiver when a file
+ * can not be processed (it does not exist, can not be read or written etc).
+ * <p>
+ * A single-file run catches it in the main class, prints the message and
+ * terminates the program. A batch run catches it for every separate file,
+ * remembers it as a failure of that particular file and goes on with the
+ * other files.
+ */
+public class ArchiveException extends RuntimeException {
+
+    /**
+     * The version of the serialized form of the exception.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Creates an exception with a message explaining what went wrong.
+     *
+     * @param message is the explanation of the problem.
+     */
+    public ArchiveException(String message) {
+        super(message);
+    }
+
+    /**
+     * Creates an exception with a message explaining what went wrong
+     * and the exception that caused the problem.
+     *
+     * @param message is the explanation of the problem.
+     * @param cause   is the original exception (mostly an IOException).
+     */
+    public ArchiveException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
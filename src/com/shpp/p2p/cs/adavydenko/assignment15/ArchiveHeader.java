@@ -0,0 +1,150 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+import java.util.Arrays;
+
+/**
+ * The header of an archive written by the Archiver:
+ * --- the size of the tree in bits (2 bytes)
+ * --- the number of meaningful bits in the last byte of the archive (1 byte)
+ * --- the tree structure (the number of bytes needed for the tree size in bits)
+ * --- all unique bytes (one for every 0 in the tree structure)
+ * <p>
+ * Unlike the Unarchiver, this class does not expect the header to be in the first
+ * buffer: it can say how many bytes the header has as soon as enough of its first
+ * bytes are known, so a decoder can collect the header from chunks of any size.
+ */
+public class ArchiveHeader {
+
+    /**
+     * The number of bytes before the tree structure: 2 bytes of the tree size
+     * and 1 byte with the number of meaningful bits in the last byte.
+     */
+    protected static final int FIXED_PART_LENGTH = 3;
+
+    /**
+     * The maximum number of nodes in a tree of 256 leaves.
+     */
+    private static final int MAX_TREE_SIZE = 2 * CodeTable.BYTE_ENCODE_CAPACITY - 1;
+
+    /**
+     * The maximum length of a header in bytes.
+     */
+    protected static final int MAX_LENGTH = FIXED_PART_LENGTH
+            + (MAX_TREE_SIZE + Byte.SIZE - 1) / Byte.SIZE + CodeTable.BYTE_ENCODE_CAPACITY;
+
+    /**
+     * The code tables built for the last archives, shared by all decoders.
+     */
+    protected static final DecodeTableCache<CodeTable> CODE_TABLES =
+            new DecodeTableCache<>("Code table cache", DecodeTableCache.DEFAULT_CAPACITY);
+
+    /**
+     * The size of the tree in bits (the number of nodes in the tree).
+     */
+    protected final int TREE_SIZE_IN_BITS;
+
+    /**
+     * The number of meaningful bits in the last byte of the archive.
+     */
+    protected final int MEANINGFUL_BITS_IN_LAST_BYTE;
+
+    /**
+     * The tree structure, one bit per array element.
+     */
+    protected final byte[] TREE_STRUCTURE_BITS;
+
+    /**
+     * All unique bytes in the order their leaves occur in the tree.
+     */
+    protected final byte[] UNIQUE_BYTES;
+
+    /**
+     * The length of the whole header in bytes. Encoded bytes start right after it.
+     */
+    protected final int LENGTH;
+
+    /**
+     * Parses a header.
+     *
+     * @param bytes are the first bytes of the archive. There shall be at least
+     *              as many of them as the getLengthIfKnown method says.
+     */
+    public ArchiveHeader(byte[] bytes) {
+        TREE_SIZE_IN_BITS = getTreeSizeInBits(bytes);
+        MEANINGFUL_BITS_IN_LAST_BYTE = bytes[2];
+        TREE_STRUCTURE_BITS = new byte[TREE_SIZE_IN_BITS];
+        int uniqueBytesCount = 0;
+        for (int i = 0; i < TREE_SIZE_IN_BITS; i++) {
+            int structureByte = bytes[FIXED_PART_LENGTH + i / Byte.SIZE];
+            TREE_STRUCTURE_BITS[i] = (byte) ((structureByte >> (Byte.SIZE - 1 - i % Byte.SIZE)) & 1);
+            if (TREE_STRUCTURE_BITS[i] == 0) {
+                uniqueBytesCount++;
+            }
+        }
+        int uniqueBytesStart = FIXED_PART_LENGTH + getTreeStructureLength(TREE_SIZE_IN_BITS);
+        UNIQUE_BYTES = new byte[uniqueBytesCount];
+        System.arraycopy(bytes, uniqueBytesStart, UNIQUE_BYTES, 0, uniqueBytesCount);
+        LENGTH = uniqueBytesStart + uniqueBytesCount;
+    }
+
+    /**
+     * Says how long the header is if enough of its first bytes are known.
+     *
+     * @param bytes     are the first bytes of the archive.
+     * @param available is the number of known bytes in the array.
+     * @return the length of the header in bytes or -1 if more bytes are needed to know it.
+     */
+    protected static int getLengthIfKnown(byte[] bytes, int available) {
+        if (available < FIXED_PART_LENGTH) {
+            return -1;
+        }
+        int treeSizeInBits = getTreeSizeInBits(bytes);
+        int treeStructureLength = getTreeStructureLength(treeSizeInBits);
+        if (available < FIXED_PART_LENGTH + treeStructureLength) {
+            return -1;
+        }
+        int uniqueBytesCount = 0;
+        for (int i = 0; i < treeSizeInBits; i++) {
+            if (((bytes[FIXED_PART_LENGTH + i / Byte.SIZE] >> (Byte.SIZE - 1 - i % Byte.SIZE)) & 1) == 0) {
+                uniqueBytesCount++;
+            }
+        }
+        return FIXED_PART_LENGTH + treeStructureLength + uniqueBytesCount;
+    }
+
+    /**
+     * Builds the table with the codes described by this header. A table built
+     * for an earlier archive with the same tree is taken from the CODE_TABLES cache.
+     *
+     * @return the table with the same codes the archiver used.
+     */
+    protected CodeTable toCodeTable() {
+        byte[] treeBytes = Arrays.copyOf(TREE_STRUCTURE_BITS, TREE_STRUCTURE_BITS.length + UNIQUE_BYTES.length);
+        System.arraycopy(UNIQUE_BYTES, 0, treeBytes, TREE_STRUCTURE_BITS.length, UNIQUE_BYTES.length);
+        return CODE_TABLES.get(treeBytes, () -> CodeTable.fromTreeStructure(TREE_STRUCTURE_BITS, UNIQUE_BYTES));
+    }
+
+    /**
+     * Reads the tree size from the first two bytes and checks it.
+     *
+     * @param bytes are the first bytes of the archive.
+     * @return the size of the tree in bits.
+     */
+    private static int getTreeSizeInBits(byte[] bytes) {
+        int treeSizeInBits = ((bytes[0] & 0xFF) << Byte.SIZE) | (bytes[1] & 0xFF);
+        if (treeSizeInBits < 1 || treeSizeInBits > MAX_TREE_SIZE) {
+            throw new ArchiveException("Not a par-archive: the tree size is " + treeSizeInBits + " bits");
+        }
+        return treeSizeInBits;
+    }
+
+    /**
+     * Counts the number of bytes the tree structure takes in the archive.
+     *
+     * @param treeSizeInBits is the size of the tree in bits.
+     * @return the number of bytes with the tree structure.
+     */
+    private static int getTreeStructureLength(int treeSizeInBits) {
+        return (treeSizeInBits + Byte.SIZE - 1) / Byte.SIZE;
+    }
+}
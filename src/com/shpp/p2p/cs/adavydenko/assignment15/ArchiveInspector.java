@@ -0,0 +1,235 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+import java.io.*;
+import java.util.StringJoiner;
+
+/**
+ * Prints what is known about archives from their headers alone (the "-i" flag):
+ * the format, the original and the compressed size, the number of unique bytes
+ * and how many of them got codes of every length. Only the header of an archive
+ * is read, so it takes the same time for an archive of any size.
+ * <p>
+ * An archive in the block format keeps the size of the original file in its
+ * header. An archive in the original format does not, so only the range the
+ * size lies in is printed: the number of bits in the bitstream divided by the
+ * longest and by the shortest code.
+ */
+public class ArchiveInspector {
+
+    /**
+     * The archives to be described.
+     */
+    private final String[] ARCHIVES;
+
+    /**
+     * An auxiliary class that performs functions common to all operations.
+     */
+    private final AuxiliaryMethods AUX_METHODS;
+
+    /**
+     * The total size of all described archives.
+     */
+    private long totalCompressed = 0;
+
+    /**
+     * The total size of the original files of all described archives (the
+     * smallest possible size for archives in the original format).
+     */
+    private long totalOriginal = 0;
+
+    /**
+     * Says whether the original size of every described archive is known exactly.
+     */
+    private boolean totalIsExact = true;
+
+    /**
+     * The description of the current archive. It is printed only if the whole
+     * header was read.
+     */
+    private final StringBuilder REPORT = new StringBuilder();
+
+    /**
+     * Creates an inspector.
+     *
+     * @param archives   are the archives to be described.
+     * @param auxMethods an auxiliary class that performs functions common to all operations.
+     */
+    public ArchiveInspector(String[] archives, AuxiliaryMethods auxMethods) {
+        this.ARCHIVES = archives;
+        this.AUX_METHODS = auxMethods;
+    }
+
+    /**
+     * Describes every archive and prints the totals. An archive that can not
+     * be read does not stop the others.
+     *
+     * @return the number of archives that could not be read.
+     */
+    protected int inspect() {
+        int failures = 0;
+        for (String archive : ARCHIVES) {
+            try {
+                inspectArchive(new File(archive));
+            } catch (ArchiveException | IOException e) {
+                System.out.println(archive + ": can not be read (" + e.getMessage() + ")");
+                failures++;
+            }
+        }
+        if (ARCHIVES.length > 1) {
+            System.out.println("Total: " + (ARCHIVES.length - failures) + " archive(s), "
+                    + AUX_METHODS.getFileSize(totalCompressed) + " compressed, "
+                    + (totalIsExact ? "" : "at least ") + AUX_METHODS.getFileSize(totalOriginal) + " original"
+                    + (failures > 0 ? ", " + failures + " failed" : ""));
+        }
+        return failures;
+    }
+
+    /**
+     * Reads the header of one archive and prints its description.
+     *
+     * @param archive is the archive.
+     */
+    private void inspectArchive(File archive) throws IOException {
+        if (!archive.isFile()) {
+            throw new ArchiveException("there is no such file");
+        }
+        long compressedSize = archive.length();
+        REPORT.setLength(0);
+        addLine(archive.getPath() + ":");
+        long originalSize = 0;
+        if (compressedSize == 0) {
+            addLine("- the archive of an empty file");
+        } else {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(archive)))) {
+                if (ParFormat.isBlockArchive(archive)) {
+                    originalSize = inspectBlockArchive(in, compressedSize);
+                } else {
+                    originalSize = inspectOriginalFormat(in, compressedSize);
+                }
+            }
+        }
+        System.out.print(REPORT);
+        totalCompressed += compressedSize;
+        totalOriginal += originalSize;
+    }
+
+    /**
+     * Prints the description of an archive in the block format.
+     *
+     * @param in             is the stream reading the archive from its first byte.
+     * @param compressedSize is the size of the archive.
+     * @return the size of the original file.
+     */
+    private long inspectBlockArchive(DataInputStream in, long compressedSize) throws IOException {
+        ParFormat format = ParFormat.read(in);
+        long blocks = (format.ORIGINAL_SIZE + format.BLOCK_SIZE - 1) / format.BLOCK_SIZE;
+        addLine("- format: blocks (version " + ParFormat.VERSION + "), flags: " + getFlagNames(format)
+                + ", " + format.STREAMS + " stream(s) per block");
+        addLine("- blocks: " + (format.hasFlag(ParFormat.FLAG_ADAPTIVE) ? "at least " : "") + blocks
+                + " of up to " + AUX_METHODS.getFileSize(format.BLOCK_SIZE));
+        printSizes(format.ORIGINAL_SIZE, format.ORIGINAL_SIZE, compressedSize);
+        if (format.hasFlag(ParFormat.FLAG_FSE)) {
+            FseTable table = FseTable.read(in);
+            int symbols = 0;
+            for (int symbol = 0; symbol < CodeTable.BYTE_ENCODE_CAPACITY; symbol++) {
+                symbols += table.getNormalized(symbol) > 0 ? 1 : 0;
+            }
+            addLine("- unique bytes: " + symbols + ", FSE table of " + (1 << table.TABLE_LOG) + " states");
+        } else if (format.hasFlag(ParFormat.FLAG_ADAPTIVE)) {
+            addLine("- unique bytes: every block has its own code table");
+        } else {
+            printCodeLengths(ParFormat.readTableHeader(in));
+        }
+        return format.ORIGINAL_SIZE;
+    }
+
+    /**
+     * Prints the description of an archive in the original format.
+     *
+     * @param in             is the stream reading the archive from its first byte.
+     * @param compressedSize is the size of the archive.
+     * @return the smallest possible size of the original file.
+     */
+    private long inspectOriginalFormat(DataInputStream in, long compressedSize) throws IOException {
+        ArchiveHeader header = ParFormat.readTableHeader(in);
+        CodeTable table = header.toCodeTable();
+        long streamBits = (compressedSize - header.LENGTH - 1) * Byte.SIZE + header.MEANINGFUL_BITS_IN_LAST_BYTE;
+        long minOriginal = Math.max(0, streamBits) / Math.max(1, table.getMaxLength());
+        addLine("- format: original (one bitstream, no checksums)");
+        printSizes(minOriginal, Math.max(0, streamBits) / Math.max(1, table.getMinLength()), compressedSize);
+        printCodeLengths(header);
+        return minOriginal;
+    }
+
+    /**
+     * Adds a line to the description of the current archive.
+     *
+     * @param line is the line.
+     */
+    private void addLine(String line) {
+        REPORT.append(line).append(System.lineSeparator());
+    }
+
+    /**
+     * Prints the compressed and the original size and the compression ratio.
+     *
+     * @param minOriginal    is the smallest possible original size.
+     * @param maxOriginal    is the largest possible original size (the same one if it is known).
+     * @param compressedSize is the size of the archive.
+     */
+    private void printSizes(long minOriginal, long maxOriginal, long compressedSize) {
+        addLine("- compressed size: " + AUX_METHODS.getFileSize(compressedSize));
+        if (minOriginal == maxOriginal) {
+            addLine("- original size: " + AUX_METHODS.getFileSize(minOriginal));
+        } else {
+            addLine("- original size: not stored, between " + AUX_METHODS.getFileSize(minOriginal)
+                    + " and " + AUX_METHODS.getFileSize(maxOriginal));
+            totalIsExact = false;
+        }
+        if (minOriginal > 0) {
+            addLine("- ratio: " + String.format("%.2f", (double) compressedSize / minOriginal * 100)
+                    + "%" + (minOriginal == maxOriginal ? "" : " at most"));
+        }
+    }
+
+    /**
+     * Prints the number of unique bytes and how many of them got codes of every length.
+     *
+     * @param header is the code table in the form of the header of the original format.
+     */
+    private void printCodeLengths(ArchiveHeader header) {
+        CodeTable table = header.toCodeTable();
+        int[] lengthCounts = new int[CodeTable.MAX_CODE_LENGTH + 1];
+        for (byte uniqueByte : header.UNIQUE_BYTES) {
+            lengthCounts[table.getLength(uniqueByte & 0xFF)]++;
+        }
+        StringJoiner histogram = new StringJoiner(", ");
+        for (int length = 0; length < lengthCounts.length; length++) {
+            if (lengthCounts[length] > 0) {
+                histogram.add(length + " bits x " + lengthCounts[length]);
+            }
+        }
+        addLine("- unique bytes: " + table.getSymbolCount());
+        addLine("- code lengths: " + histogram);
+    }
+
+    /**
+     * Lists the flags of an archive in the block format by their names.
+     *
+     * @param format is the description of the archive.
+     * @return the names of the flags or "none".
+     */
+    private static String getFlagNames(ParFormat format) {
+        StringJoiner names = new StringJoiner(" ");
+        if (format.hasFlag(ParFormat.FLAG_FSE)) {
+            names.add("fse");
+        }
+        if (format.hasFlag(ParFormat.FLAG_ADAPTIVE)) {
+            names.add("adaptive");
+        }
+        if (format.hasFlag(ParFormat.FLAG_CRC32C)) {
+            names.add("crc32c");
+        }
+        return names.length() == 0 ? "none" : names.toString();
+    }
+}
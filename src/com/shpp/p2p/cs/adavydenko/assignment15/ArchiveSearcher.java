@@ -0,0 +1,539 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+
+/**
+ * Searches for a string in an archive without unarchiving it.
+ * <p>
+ * An archive in the original format uses one code table for the whole file,
+ * so the string can be turned into the bits of its codes and those bits can be
+ * looked for in the archive directly. The search looks at every bit of the
+ * archive as a possible start of the string (the shift-and algorithm: every bit
+ * of a number says whether the last bits read match the beginning of the string
+ * of the same length, and all those checks are done with one shift and one "and").
+ * <p>
+ * Equal bits do not always mean equal bytes: the bits may start in the middle of
+ * a code. To find out where codes start, the search also walks the tree, a whole
+ * archive byte at a time, using a table made for every pair of a tree node and a
+ * byte. The same walk counts the decoded bytes, so every match gets its offset in
+ * the original file. Only the bytes around a match are actually decoded.
+ * <p>
+ * Archives in the block format are decoded and searched as they are decoded,
+ * since their bytes may be spread over several bitstreams or several tables.
+ */
+public class ArchiveSearcher {
+
+    /**
+     * The maximum number of decoded bytes printed after the beginning of a match.
+     */
+    private static final int CONTEXT_LENGTH = 60;
+
+    /**
+     * The maximum number of bits of the string checked by the shift-and algorithm.
+     * The rest of the string is checked by decoding.
+     */
+    private static final int FILTER_BITS = Long.SIZE;
+
+    /**
+     * The number of the last archive bytes remembered, so that the walk of the
+     * tree can be repeated from the byte where a possible match starts.
+     */
+    private static final int HISTORY_LENGTH = 16;
+
+    /**
+     * Stands for the size of the original file when it was not counted.
+     */
+    private static final long UNKNOWN_SIZE = -1;
+
+    /**
+     * The name and the location of the archive.
+     */
+    private final String ARCHIVE;
+
+    /**
+     * The string to search for as bytes.
+     */
+    private final byte[] PATTERN;
+
+    /**
+     * An auxiliary class that performs functions common to all operations.
+     */
+    private final AuxiliaryMethods AUX_METHODS;
+
+    /**
+     * The number of matches found so far.
+     */
+    private int matches = 0;
+
+    /**
+     * The number of archive bytes read so far.
+     */
+    private long bytesRead = 0;
+
+    /**
+     * Creates a searcher.
+     *
+     * @param archive    is the name and the location of the archive.
+     * @param pattern    is the string to search for.
+     * @param auxMethods an auxiliary class that performs functions common to all operations.
+     */
+    public ArchiveSearcher(String archive, String pattern, AuxiliaryMethods auxMethods) {
+        this.ARCHIVE = archive;
+        this.PATTERN = pattern.getBytes(StandardCharsets.UTF_8);
+        this.AUX_METHODS = auxMethods;
+    }
+
+    /**
+     * Searches the archive and prints every match with its offset in the original file.
+     *
+     * @return the number of matches.
+     */
+    protected int search() {
+        File archive = new File(ARCHIVE);
+        if (!archive.exists() || PATTERN.length == 0) {
+            throw new ArchiveException("Nothing to search: check the archive " + ARCHIVE + " and the string");
+        }
+        System.out.println("Searching for \"" + new String(PATTERN, StandardCharsets.UTF_8) + "\" in " + ARCHIVE);
+        long originalSize;
+        try {
+            if (archive.length() == 0) {
+                originalSize = 0;
+            } else if (ParFormat.isBlockArchive(archive)) {
+                originalSize = searchBlockArchive();
+            } else {
+                originalSize = searchOriginalFormat(archive);
+            }
+        } catch (IOException e) {
+            throw new ArchiveException("Can not read the archive " + ARCHIVE, e);
+        }
+        System.out.println("- Found " + matches + " match(es)"
+                + (originalSize == UNKNOWN_SIZE ? "" : " in " + AUX_METHODS.getFileSize(originalSize) + " of original data")
+                + ", " + AUX_METHODS.getFileSize(bytesRead) + " of the archive read");
+        return matches;
+    }
+
+    /**
+     * Searches an archive in the original format directly in its bitstream.
+     *
+     * @param archive is the archive.
+     * @return the size of the original file or UNKNOWN_SIZE if the bitstream was not read.
+     */
+    private long searchOriginalFormat(File archive) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(archive)));
+             FileChannel channel = FileChannel.open(Paths.get(ARCHIVE), StandardOpenOption.READ)) {
+            ArchiveHeader header = ParFormat.readTableHeader(in);
+            CodeTable table = header.toCodeTable();
+            long streamLength = archive.length() - header.LENGTH;
+            bytesRead = header.LENGTH;
+            for (byte value : PATTERN) {
+                if (table.getLength(value & 0xFF) == 0) { // The bitstream does not need to be read at all
+                    System.out.println("- Some bytes of the string never occur in the archived file");
+                    return UNKNOWN_SIZE;
+                }
+            }
+            BitStream stream = new BitStream(channel, header.LENGTH, streamLength, header.MEANINGFUL_BITS_IN_LAST_BYTE);
+            return scanBitstream(in, table, stream);
+        }
+    }
+
+    /**
+     * Reads the bitstream once, looking for the codes of the string at every bit
+     * and counting the decoded bytes.
+     *
+     * @param in     is the stream reading the archive right after the header.
+     * @param table  are the codes of the archive.
+     * @param stream gives access to any part of the bitstream for decoding.
+     * @return the number of bytes in the original file.
+     */
+    private long scanBitstream(DataInputStream in, CodeTable table, BitStream stream) throws IOException {
+        int[] walk = createWalkTable(table);
+        long[] masks = new long[2];
+        int filterBits = createMasks(table, masks);
+        long matchBit = 1L << (filterBits - 1);
+        int[] historyNodes = new int[HISTORY_LENGTH];
+        long[] historyDecoded = new long[HISTORY_LENGTH];
+        byte[] historyBytes = new byte[HISTORY_LENGTH];
+
+        long state = 0; // Bit i is set if the last i + 1 bits match the first i + 1 bits of the string
+        int node = 0;
+        long decoded = 0;
+        byte[] buffer = new byte[32 * 1024];
+        long byteIndex = 0;
+        int len;
+        while ((len = in.read(buffer)) > 0) {
+            for (int i = 0; i < len; i++, byteIndex++) {
+                int value = buffer[i] & 0xFF;
+                int slot = (int) (byteIndex % HISTORY_LENGTH);
+                historyNodes[slot] = node;
+                historyDecoded[slot] = decoded;
+                historyBytes[slot] = buffer[i];
+                int bits = stream.getBitsInByte(byteIndex);
+                for (int bit = 0; bit < bits; bit++) {
+                    state = ((state << 1) | 1) & masks[(value >> (Byte.SIZE - 1 - bit)) & 1];
+                    if ((state & matchBit) != 0) {
+                        long start = byteIndex * Byte.SIZE + bit - filterBits + 1;
+                        checkCandidate(start, table, stream, historyNodes, historyDecoded, historyBytes);
+                    }
+                }
+                if (bits == Byte.SIZE) {
+                    int entry = walk[node * 256 + value];
+                    node = entry >>> Byte.SIZE;
+                    decoded += entry & 0xFF;
+                } else {
+                    decoded += walkBits(table, node, value, bits)[1];
+                }
+            }
+            bytesRead += len;
+        }
+        return decoded;
+    }
+
+    /**
+     * Checks whether a possible match starts at the beginning of a code and
+     * whether the decoded bytes are really the string. Prints the match if so.
+     *
+     * @param start          is the number of the first bit of the possible match.
+     * @param table          are the codes of the archive.
+     * @param stream         gives access to any part of the bitstream for decoding.
+     * @param historyNodes   are the tree nodes at the start of the last archive bytes.
+     * @param historyDecoded are the numbers of bytes decoded before the last archive bytes.
+     * @param historyBytes   are the last archive bytes.
+     */
+    private void checkCandidate(long start, CodeTable table, BitStream stream, int[] historyNodes,
+                                long[] historyDecoded, byte[] historyBytes) throws IOException {
+        if (start < 0) {
+            return;
+        }
+        int slot = (int) ((start / Byte.SIZE) % HISTORY_LENGTH);
+        int[] nodeAndDecoded = walkBits(table, historyNodes[slot], historyBytes[slot] & 0xFF, (int) (start % Byte.SIZE));
+        if (nodeAndDecoded[0] != 0) { // The bits start in the middle of a code
+            return;
+        }
+        long offset = historyDecoded[slot] + nodeAndDecoded[1];
+        byte[] context = stream.decode(table, start, Math.max(PATTERN.length, CONTEXT_LENGTH));
+        if (context.length < PATTERN.length) {
+            return;
+        }
+        for (int i = 0; i < PATTERN.length; i++) {
+            if (context[i] != PATTERN[i]) {
+                return;
+            }
+        }
+        printMatch(offset, context, context.length);
+    }
+
+    /**
+     * Creates the table for walking the tree a whole byte at a time. The index is
+     * a node number multiplied by 256 plus an archive byte, the value holds the node
+     * where the walk ends (bits 8 and higher) and the number of bytes decoded on the
+     * way (the lowest 8 bits).
+     *
+     * @param table are the codes of the archive.
+     * @return the table.
+     */
+    private static int[] createWalkTable(CodeTable table) {
+        int nodes = countNodes(table);
+        int[] walk = new int[nodes * 256];
+        for (int node = 0; node < nodes; node++) {
+            for (int value = 0; value < 256; value++) {
+                int[] result = walkBits(table, node, value, Byte.SIZE);
+                walk[node * 256 + value] = (result[0] << Byte.SIZE) | result[1];
+            }
+        }
+        return walk;
+    }
+
+    /**
+     * Walks the tree with the first bits of a byte.
+     *
+     * @param table are the codes of the archive.
+     * @param node  is the node the walk starts from (0 is the root).
+     * @param value is the archive byte.
+     * @param bits  is the number of the highest bits of the byte to walk with.
+     * @return the node where the walk ends (index 0) and the number of decoded bytes (index 1).
+     */
+    private static int[] walkBits(CodeTable table, int node, int value, int bits) {
+        int decoded = 0;
+        for (int bit = 0; bit < bits; bit++) {
+            node = table.getChild(node, (value >> (Byte.SIZE - 1 - bit)) & 1);
+            if (node < 0) {
+                decoded++;
+                node = 0;
+            }
+        }
+        return new int[]{node, decoded};
+    }
+
+    /**
+     * Counts the nodes with children in the tree.
+     *
+     * @param table are the codes of the archive.
+     * @return the number of nodes (the biggest node number plus one).
+     */
+    private static int countNodes(CodeTable table) {
+        int maxNode = 0;
+        for (int node = 0; node <= maxNode; node++) {
+            maxNode = Math.max(maxNode, Math.max(table.getChild(node, 0), table.getChild(node, 1)));
+        }
+        return maxNode + 1;
+    }
+
+    /**
+     * Creates the masks of the shift-and algorithm for the codes of the string:
+     * bit i of the mask of a bit value is set if bit i of the codes has this value.
+     *
+     * @param table are the codes of the archive.
+     * @param masks is the array the masks for bit 0 and bit 1 are written to.
+     * @return the number of bits of the codes used in the masks.
+     */
+    private int createMasks(CodeTable table, long[] masks) {
+        int bits = 0;
+        for (int i = 0; i < PATTERN.length && bits < FILTER_BITS; i++) {
+            int value = PATTERN[i] & 0xFF;
+            long code = table.getCode(value);
+            for (int j = table.getLength(value) - 1; j >= 0 && bits < FILTER_BITS; j--, bits++) {
+                masks[(int) ((code >>> j) & 1)] |= 1L << bits;
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * Decodes an archive in the block format and searches the decoded bytes.
+     *
+     * @return the size of the original file.
+     */
+    private long searchBlockArchive() throws IOException {
+        MatchingOutputStream matcher = new MatchingOutputStream();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(ARCHIVE)))) {
+            long originalSize = new BlockDecoder().decode(in, matcher);
+            matcher.close();
+            bytesRead = new File(ARCHIVE).length();
+            return originalSize;
+        }
+    }
+
+    /**
+     * Prints a match.
+     *
+     * @param offset  is the offset of the match in the original file.
+     * @param context is an array with the decoded bytes starting with the match.
+     * @param length  is the number of decoded bytes in the context array.
+     */
+    private void printMatch(long offset, byte[] context, int length) {
+        matches++;
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < length && context[i] != '\n'; i++) {
+            line.append(context[i] >= ' ' && context[i] < 127 ? (char) context[i] : '.');
+        }
+        System.out.println(offset + ": " + line);
+    }
+
+    /**
+     * Gives access to any part of the bitstream of an archive in the original format.
+     */
+    private static class BitStream {
+
+        /**
+         * The channel reading the archive.
+         */
+        private final FileChannel CHANNEL;
+
+        /**
+         * The position of the first byte of the bitstream in the archive.
+         */
+        private final long START;
+
+        /**
+         * The number of bytes in the bitstream.
+         */
+        private final long LENGTH;
+
+        /**
+         * The number of meaningful bits in the last byte of the bitstream.
+         */
+        private final int BITS_IN_LAST_BYTE;
+
+        /**
+         * Creates access to a bitstream.
+         *
+         * @param channel        is the channel reading the archive.
+         * @param start          is the position of the first byte of the bitstream.
+         * @param length         is the number of bytes in the bitstream.
+         * @param bitsInLastByte is the number of meaningful bits in the last byte.
+         */
+        BitStream(FileChannel channel, long start, long length, int bitsInLastByte) {
+            this.CHANNEL = channel;
+            this.START = start;
+            this.LENGTH = length;
+            this.BITS_IN_LAST_BYTE = bitsInLastByte;
+        }
+
+        /**
+         * Provides the number of meaningful bits in a byte of the bitstream.
+         *
+         * @param byteIndex is the index of the byte in the bitstream.
+         * @return 8 for every byte except the last one.
+         */
+        int getBitsInByte(long byteIndex) {
+            return byteIndex == LENGTH - 1 ? BITS_IN_LAST_BYTE : Byte.SIZE;
+        }
+
+        /**
+         * Decodes bytes starting with a bit that is the beginning of a code.
+         *
+         * @param table    are the codes of the archive.
+         * @param startBit is the number of the first bit of the first code.
+         * @param count    is the maximum number of bytes to decode.
+         * @return the decoded bytes (less than count at the end of the bitstream).
+         */
+        byte[] decode(CodeTable table, long startBit, int count) throws IOException {
+            long firstByte = startBit / Byte.SIZE;
+            int windowLength = (int) Math.min(LENGTH - firstByte,
+                    ((long) count * table.getMaxLength()) / Byte.SIZE + 2);
+            ByteBuffer window = ByteBuffer.allocate(windowLength);
+            while (window.hasRemaining() && CHANNEL.read(window, START + firstByte + window.position()) > 0) {
+                // Reads until the window is full
+            }
+            byte[] decoded = new byte[count];
+            int decodedCount = 0;
+            int node = 0;
+            long bitEnd = (firstByte + windowLength - 1) * Byte.SIZE + getBitsInByte(firstByte + windowLength - 1);
+            for (long bit = startBit; bit < bitEnd && decodedCount < count; bit++) {
+                int value = window.get((int) (bit / Byte.SIZE - firstByte)) & 0xFF;
+                node = table.getChild(node, (value >> (Byte.SIZE - 1 - bit % Byte.SIZE)) & 1);
+                if (node < 0) {
+                    decoded[decodedCount++] = (byte) (-node - 1);
+                    node = 0;
+                }
+            }
+            byte[] result = new byte[decodedCount];
+            System.arraycopy(decoded, 0, result, 0, decodedCount);
+            return result;
+        }
+    }
+
+    /**
+     * Searches bytes while they are written (the Knuth-Morris-Pratt algorithm)
+     * and prints every match as soon as the bytes after it are known.
+     */
+    private class MatchingOutputStream extends OutputStream {
+
+        /**
+         * For every prefix of the string: the length of its longest proper prefix
+         * that is also its suffix.
+         */
+        private final int[] FALLBACK = new int[PATTERN.length];
+
+        /**
+         * The bytes written after the beginning of the oldest match not printed yet.
+         */
+        private final ByteArrayOutputStream PENDING_CONTEXT = new ByteArrayOutputStream();
+
+        /**
+         * The offsets of the matches not printed yet.
+         */
+        private final ArrayDeque<Long> PENDING_OFFSETS = new ArrayDeque<>();
+
+        /**
+         * The number of bytes of the string matched by the last written bytes.
+         */
+        private int matched = 0;
+
+        /**
+         * The number of bytes written so far.
+         */
+        private long written = 0;
+
+        /**
+         * Creates the stream and prepares the FALLBACK table.
+         */
+        MatchingOutputStream() {
+            for (int i = 1, k = 0; i < PATTERN.length; i++) {
+                while (k > 0 && PATTERN[i] != PATTERN[k]) {
+                    k = FALLBACK[k - 1];
+                }
+                if (PATTERN[i] == PATTERN[k]) {
+                    k++;
+                }
+                FALLBACK[i] = k;
+            }
+        }
+
+        @Override
+        public void write(int b) {
+            byte value = (byte) b;
+            written++;
+            if (!PENDING_OFFSETS.isEmpty()) {
+                PENDING_CONTEXT.write(value);
+            }
+            while (matched > 0 && PATTERN[matched] != value) {
+                matched = FALLBACK[matched - 1];
+            }
+            if (PATTERN[matched] == value) {
+                matched++;
+            }
+            if (matched == PATTERN.length) {
+                long offset = written - PATTERN.length;
+                if (PENDING_OFFSETS.isEmpty()) {
+                    PENDING_CONTEXT.write(PATTERN, 0, PATTERN.length);
+                }
+                PENDING_OFFSETS.add(offset);
+                matched = FALLBACK[matched - 1];
+            }
+            printReadyMatches(false);
+        }
+
+        @Override
+        public void close() {
+            printReadyMatches(true);
+        }
+
+        /**
+         * Prints the pending matches whose context is already fully written.
+         *
+         * @param all says whether all pending matches shall be printed (at the end of the file).
+         */
+        private void printReadyMatches(boolean all) {
+            while (!PENDING_OFFSETS.isEmpty()) {
+                long offset = PENDING_OFFSETS.peek();
+                int available = (int) (written - offset);
+                byte[] context = PENDING_CONTEXT.toByteArray();
+                int contextStart = context.length - available;
+                if (available < CONTEXT_LENGTH && !all && indexOfNewLine(context, contextStart) < 0) {
+                    return;
+                }
+                byte[] matchContext = new byte[Math.min(available, CONTEXT_LENGTH)];
+                System.arraycopy(context, contextStart, matchContext, 0, matchContext.length);
+                printMatch(PENDING_OFFSETS.poll(), matchContext, matchContext.length);
+                PENDING_CONTEXT.reset();
+                if (!PENDING_OFFSETS.isEmpty()) {
+                    int keep = (int) (written - PENDING_OFFSETS.peek());
+                    PENDING_CONTEXT.write(context, context.length - keep, keep);
+                }
+            }
+        }
+
+        /**
+         * Finds the first new line character in a part of an array.
+         *
+         * @param array is any array.
+         * @param from  is the index to start from.
+         * @return the index of the character or -1 if there is none.
+         */
+        private int indexOfNewLine(byte[] array, int from) {
+            for (int i = from; i < array.length; i++) {
+                if (array[i] == '\n') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Checks an archive without unarchiving it to a file (the "-t" flag).
+ * <p>
+ * Every block of an archive in the block format is decoded and the checksum
+ * of its decoded bytes is compared with the one stored in the archive. Blocks
+ * do not depend on each other, so they are checked in several threads and the
+ * decoded bytes are thrown away at once. An archive in the original format has
+ * no checksums, so it is only decoded to find out whether its bitstream matches
+ * its code tree.
+ */
+public class ArchiveTester {
+
+    /**
+     * The name and the location of the archive.
+     */
+    private final String ARCHIVE;
+
+    /**
+     * The number of threads checking blocks.
+     */
+    private final int THREADS;
+
+    /**
+     * An auxiliary class that performs functions common to all operations.
+     */
+    private final AuxiliaryMethods AUX_METHODS;
+
+    /**
+     * Creates a tester.
+     *
+     * @param archive    is the name and the location of the archive.
+     * @param threads    is the number of threads checking blocks.
+     * @param auxMethods an auxiliary class that performs functions common to all operations.
+     */
+    public ArchiveTester(String archive, int threads, AuxiliaryMethods auxMethods) {
+        this.ARCHIVE = archive;
+        this.THREADS = Math.max(1, threads);
+        this.AUX_METHODS = auxMethods;
+    }
+
+    /**
+     * Creates a tester from the command line arguments ("--threads=N" sets the
+     * number of threads, all processors are used by default).
+     *
+     * @param argHandler is the handler of the command line arguments.
+     * @param auxMethods an auxiliary class that performs functions common to all operations.
+     * @return the tester.
+     */
+    protected static ArchiveTester fromArguments(ArgumentsHandler argHandler, AuxiliaryMethods auxMethods) {
+        int threads = argHandler.getIntOption("threads", Runtime.getRuntime().availableProcessors());
+        return new ArchiveTester(argHandler.inFile, threads, auxMethods);
+    }
+
+    /**
+     * Checks the archive and prints the result. A damaged archive is reported
+     * with an ArchiveException.
+     */
+    protected void test() {
+        File archive = new File(ARCHIVE);
+        if (!archive.exists()) {
+            throw new ArchiveException("There is no archive " + ARCHIVE + " to test");
+        }
+        System.out.println("Testing " + ARCHIVE);
+        try {
+            if (archive.length() == 0) {
+                System.out.println("- OK: the archive of an empty file");
+            } else if (ParFormat.isBlockArchive(archive)) {
+                testBlockArchive();
+            } else {
+                testOriginalFormat();
+            }
+        } catch (IOException e) {
+            throw new ArchiveException("Can not read the archive " + ARCHIVE, e);
+        }
+    }
+
+    /**
+     * Decodes all blocks of an archive in the block format and compares their checksums.
+     */
+    private void testBlockArchive() throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "archive-tester");
+            thread.setDaemon(true);
+            return thread;
+        });
+        int blocks = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(ARCHIVE)))) {
+            BlockReader reader = new BlockReader(in);
+            ArrayDeque<Future<?>> inProgress = new ArrayDeque<>();
+            BlockReader.Block block;
+            while ((block = reader.next(null)) != null) {
+                if (inProgress.size() == THREADS * 2) { // Not too many blocks are kept in memory at once
+                    inProgress.poll().get();
+                }
+                BlockReader.Block current = block;
+                inProgress.add(pool.submit(() -> current.decode(new byte[current.RAW_LENGTH])));
+                blocks++;
+            }
+            while (!inProgress.isEmpty()) {
+                inProgress.poll().get();
+            }
+            boolean checksums = reader.FORMAT.hasFlag(ParFormat.FLAG_CRC32C);
+            System.out.println("- OK: " + blocks + " block(s), "
+                    + AUX_METHODS.getFileSize(reader.FORMAT.ORIGINAL_SIZE) + " of original data, "
+                    + (checksums ? "all checksums match" : "the archive has no checksums"));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ArchiveException("Testing was interrupted", e);
+        } catch (ExecutionException e) {
+            throw new ArchiveException(e.getCause().getMessage(), e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Decodes the bitstream of an archive in the original format, which has no checksums.
+     */
+    private void testOriginalFormat() throws IOException {
+        ArchiveHeader header;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(ARCHIVE)))) {
+            header = ParFormat.readTableHeader(in);
+        }
+        CodeTable table = header.toCodeTable();
+        try (RandomAccessFile archive = new RandomAccessFile(ARCHIVE, "r")) {
+            if (archive.length() <= header.LENGTH || !ParallelDecoder.canDecode(table)) {
+                System.out.println("- OK: the header is right, the archive has no checksums");
+                return;
+            }
+            long decoded = new ParallelDecoder(THREADS).decode(archive, header.LENGTH,
+                    header.MEANINGFUL_BITS_IN_LAST_BYTE, table, OutputStream.nullOutputStream());
+            System.out.println("- OK: " + AUX_METHODS.getFileSize(decoded)
+                    + " of original data decoded, the archive has no checksums");
+        }
+    }
+}
@@ -64,6 +64,11 @@ public class Archiver {
      */
     private final AuxiliaryMethods AUX_METHODS;
 
+    /**
+     * Settings of the archiving chosen by user.
+     */
+    private final CodecOptions OPTIONS;
+
     /**
      * An array with all visited nodes. Is used while the program
      * recursively visits all tree nodes. Nodes are put to this
@@ -187,6 +192,39 @@ public class Archiver {
      */
     private int numOfSteps = 0;
 
+    /**
+     * The times of the phases of archiving, null if user did not ask for them.
+     */
+    private final CodecStats STATS;
+
+    /**
+     * The spans of the phases and buffers of archiving (see the CodecTrace class).
+     */
+    private final CodecTrace TRACE;
+
+    /**
+     * The monitor of the progress of archiving, null if nobody wants it.
+     */
+    private final ProgressMonitor PROGRESS;
+
+    /**
+     * Reads the inFile and writes the outFile past the page cache if user
+     * asked for it (see the DirectIo class), null otherwise.
+     */
+    private final DirectIo DIRECT_IO;
+
+    /**
+     * The xxHash of the inFile bytes, computed while they are counted if the
+     * cache of archives is used, null otherwise.
+     */
+    private final XxHash64 CONTENT_HASH;
+
+    /**
+     * The key of the archive in the cache, null if the archive shall not be
+     * added to the cache.
+     */
+    private String cacheKey = null;
+
     /**
      * Gets the name and the location of the file that shall be converted to
      * an archive and the archive that shall be created as well as the link to
@@ -200,33 +238,279 @@ public class Archiver {
      *                   to both archiver and unarchiver.
      */
     public Archiver(String[] files, AuxiliaryMethods auxMethods) {
+        this(files, auxMethods, new CodecOptions());
+    }
+
+    /**
+     * Creates an archiver with settings chosen by user.
+     *
+     * @param files      an array with source file name and location
+     *                   with index 0 and the future archived file
+     *                   name and location with index 1.
+     * @param auxMethods an auxiliary class that performs functions common
+     *                   to both archiver and unarchiver.
+     * @param options    settings of the archiving chosen by user.
+     */
+    public Archiver(String[] files, AuxiliaryMethods auxMethods, CodecOptions options) {
         this.IN_FILE = files[0];
         this.OUT_FILE = files[1];
         this.AUX_METHODS = auxMethods;
+        this.OPTIONS = options;
+        this.STATS = options.createStats();
+        this.TRACE = options.trace;
+        this.PROGRESS = options.createProgress(IN_FILE);
+        this.DIRECT_IO = options.directIo ? new DirectIo(auxMethods) : null;
+        this.CONTENT_HASH = options.cache == null ? null : new XxHash64();
     }
 
     /**
      * Archives the inFile by analyzing all unique bytes and the number of times they
      * appear in the inFile, building a tree to get new codes for those bytes and
      * writing encoded bytes to archive along with a portion of service information.
+     * The operation is counted in the CodecMetrics.
      */
     protected void archiveFile() {
+        CodecTrace.Span job = TRACE.begin(CodecTrace.JOB, "archive", IN_FILE);
+        try {
+            archive();
+            CodecMetrics.INSTANCE.ARCHIVE.recordSuccess(job.START_NANOS, new File(IN_FILE).length(),
+                    new File(OUT_FILE).length());
+        } catch (RuntimeException e) {
+            CodecMetrics.INSTANCE.ARCHIVE.recordError();
+            throw e;
+        } finally {
+            TRACE.end(job, new File(IN_FILE).length());
+            if (PROGRESS != null) {
+                PROGRESS.finish();
+            }
+        }
+    }
+
+    /**
+     * Does the work of archiveFile.
+     */
+    private void archive() {
         File inFile = new File(IN_FILE);
         final long IN_FILE_SIZE = inFile.length(); // Defines the size of the input file in bytes
-        System.out.println("- File size before archiving: " + AUX_METHODS.getFileSize(IN_FILE_SIZE));
+        AUX_METHODS.printMessage("- File size before archiving: " + AUX_METHODS.getFileSize(IN_FILE_SIZE));
+        if (OPTIONS.append && new File(OUT_FILE).length() > 0) {
+            ArchiveCache.detach(OUT_FILE, true);
+            appendToArchive(IN_FILE_SIZE);
+            finishArchiving(IN_FILE_SIZE);
+            return;
+        }
+        if (!OPTIONS.resume) {
+            ArchiveCache.detach(OUT_FILE, false);
+        }
+        if (OPTIONS.usesGzip()) { // Even an empty file becomes a valid gzip file
+            if (CONTENT_HASH == null || !hashAndTakeFromCache(IN_FILE_SIZE)) {
+                writeGzipFile(IN_FILE_SIZE);
+                finishArchiving(IN_FILE_SIZE);
+            }
+            return;
+        }
         if (AUX_METHODS.processEmptyFileIfApplicable(inFile, OUT_FILE, IN_FILE_SIZE, true)) {
             return;
         }
-        countByteFrequency(inFile);
+        if (OPTIONS.adaptive) {
+            if (CONTENT_HASH != null && hashAndTakeFromCache(IN_FILE_SIZE)) {
+                return;
+            }
+            writeAdaptiveArchive(IN_FILE_SIZE);
+            finishArchiving(IN_FILE_SIZE);
+            return;
+        }
+        Checkpoint resumed = OPTIONS.resume ? Checkpoint.resume(true, IN_FILE, OUT_FILE, AUX_METHODS) : null;
+        CodecTrace.Span phase = startPhase("histogram");
+        if (resumed != null) { // The frequencies are saved in the checkpoint, so the inFile is not read twice
+            restoreByteFrequency(resumed);
+            endPhase(phase, 0);
+        } else {
+            countByteFrequency(inFile);
+            endPhase(phase, IN_FILE_SIZE);
+            if (CONTENT_HASH != null && takeFromCache(IN_FILE_SIZE)) {
+                return;
+            }
+        }
+        if (OPTIONS.usesFse()) {
+            writeFseArchive(IN_FILE_SIZE);
+            finishArchiving(IN_FILE_SIZE);
+            return;
+        }
+        phase = startPhase("tree");
         formPriorityQueue();
         buildTree();
+        endPhase(phase, 0);
+        phase = startPhase("codes");
         formTreeStructureAndEncodedBytesArray();
         createByteArray();
         treeStructureBytes = writeTreeStructure();
         countBitsOfEncodedBytes();
         fillHashMapWithCodes();
-        writeArchive();
-        AUX_METHODS.displayOutFileSizeAndEffectiveness(OUT_FILE, IN_FILE_SIZE, true);
+        endPhase(phase, 0);
+        if (OPTIONS.usesBlockFormat()) {
+            writeBlockArchive(IN_FILE_SIZE);
+        } else if (OPTIONS.checkpointBytes > 0) {
+            writeArchiveWithCheckpoints(IN_FILE_SIZE, resumed);
+        } else {
+            writeArchive(IN_FILE_SIZE);
+        }
+        finishArchiving(IN_FILE_SIZE);
+    }
+
+    /**
+     * Prints the size of the archive and, if user asked for them, the times of all phases.
+     *
+     * @param inFileSize is the size of the inFile in bytes.
+     */
+    private void finishArchiving(long inFileSize) {
+        if (cacheKey != null) {
+            OPTIONS.cache.store(cacheKey, OUT_FILE, AUX_METHODS);
+        }
+        AUX_METHODS.displayOutFileSizeAndEffectiveness(OUT_FILE, inFileSize, true);
+        if (DIRECT_IO != null) {
+            AUX_METHODS.printMessage("- " + DIRECT_IO.describe());
+        }
+        if (STATS != null) {
+            STATS.print("archive", IN_FILE, OUT_FILE, inFileSize, new File(OUT_FILE).length());
+        }
+    }
+
+    /**
+     * Takes the archive from the cache if the inFile was archived with the same
+     * settings before. Otherwise remembers the key, so the archive is added to
+     * the cache when it is written.
+     *
+     * @param inFileSize is the size of the inFile in bytes.
+     * @return true if the archive was taken from the cache and nothing else shall be done.
+     */
+    private boolean takeFromCache(long inFileSize) {
+        String key = ArchiveCache.createKey(CONTENT_HASH.getValue(), inFileSize, OPTIONS.describeArchiveSettings());
+        if (!OPTIONS.cache.fetch(key, OUT_FILE, AUX_METHODS)) {
+            cacheKey = key;
+            return false;
+        }
+        AUX_METHODS.printMessage("- The file did not change since it was archived, the archive is taken from the cache");
+        finishArchiving(inFileSize);
+        return true;
+    }
+
+    /**
+     * Computes the hash of the inFile in a pass of its own (for the modes that
+     * do not count bytes) and takes the archive from the cache if it is there.
+     *
+     * @param inFileSize is the size of the inFile in bytes.
+     * @return true if the archive was taken from the cache and nothing else shall be done.
+     */
+    private boolean hashAndTakeFromCache(long inFileSize) {
+        CodecTrace.Span phase = startPhase("hash");
+        hashInFile();
+        endPhase(phase, inFileSize);
+        return takeFromCache(inFileSize);
+    }
+
+    /**
+     * Reads the inFile only to compute its hash for the cache.
+     */
+    private void hashInFile() {
+        try (InputStream in = trackProgress(openInFile(), "hashing")) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int len;
+            while ((len = in.read(buffer)) > 0) {
+                CONTENT_HASH.update(buffer, 0, len);
+            }
+        } catch (IOException e) {
+            throw new ArchiveException("Can not read the file " + IN_FILE, e);
+        }
+    }
+
+    /**
+     * Opens the inFile for reading, past the page cache and within the rate
+     * limit if user asked for them.
+     *
+     * @return the stream reading the inFile.
+     */
+    private InputStream openInFile() throws IOException {
+        return limitRate(DIRECT_IO == null ? new FileInputStream(IN_FILE) : DIRECT_IO.openInput(IN_FILE));
+    }
+
+    /**
+     * Creates the outFile for writing, past the page cache and within the rate
+     * limit if user asked for them.
+     *
+     * @return the stream writing the outFile.
+     */
+    private OutputStream openOutFile() throws IOException {
+        return limitRate(DIRECT_IO == null ? new FileOutputStream(OUT_FILE) : DIRECT_IO.openOutput(OUT_FILE));
+    }
+
+    /**
+     * Makes a stream reading the inFile take its bytes within the rate limit
+     * if user asked for one.
+     *
+     * @param in is the stream reading the inFile.
+     * @return the throttled stream or the same stream if there is no limit.
+     */
+    private InputStream limitRate(InputStream in) {
+        return OPTIONS.throttle == null ? in : OPTIONS.throttle.limit(in);
+    }
+
+    /**
+     * Makes a stream writing the outFile take its bytes within the rate limit
+     * if user asked for one.
+     *
+     * @param out is the stream writing the outFile.
+     * @return the throttled stream or the same stream if there is no limit.
+     */
+    private OutputStream limitRate(OutputStream out) {
+        return OPTIONS.throttle == null ? out : OPTIONS.throttle.limit(out);
+    }
+
+    /**
+     * Starts a phase of archiving: a span of the trace and, if user asked
+     * for the stats, a timed phase of the stats.
+     *
+     * @param phase is the name of the phase.
+     * @return the started phase.
+     */
+    private CodecTrace.Span startPhase(String phase) {
+        return TRACE.begin(CodecTrace.PHASE, phase, IN_FILE);
+    }
+
+    /**
+     * Finishes a phase: adds its time to the stats if user asked for them
+     * and passes it to the trace.
+     *
+     * @param phase is the phase started by startPhase.
+     * @param bytes is the number of bytes the phase processed.
+     */
+    private void endPhase(CodecTrace.Span phase, long bytes) {
+        if (STATS != null) {
+            STATS.record(phase.NAME, phase.START_NANOS, bytes);
+        }
+        TRACE.end(phase, bytes);
+    }
+
+    /**
+     * Makes a pass over the inFile tell its progress if anybody wants it.
+     *
+     * @param in    is the stream reading the inFile.
+     * @param phase is the name of the pass.
+     * @return the stream counting the bytes read or the same stream if nobody wants the progress.
+     */
+    private InputStream trackProgress(InputStream in, String phase) {
+        return PROGRESS == null ? in : PROGRESS.track(in, phase, new File(IN_FILE).length());
+    }
+
+    /**
+     * Writes the buffered bytes of the archive to the disk, timing it as the "flush" phase.
+     *
+     * @param out is the stream writing the archive.
+     */
+    private void flushArchive(OutputStream out) throws IOException {
+        CodecTrace.Span phase = startPhase("flush");
+        out.flush();
+        endPhase(phase, 0);
     }
 
     /**
@@ -236,18 +520,261 @@ public class Archiver {
      * The bytes after that are the sequence of unique bytes from the inFile.
      * All bytes after that stand for encoded inFile bytes. The method creates
      * the last group of bytes and writes them to the archive.
+     *
+     * @param inFileSize is the size of the inFile in bytes.
      */
-    private void writeArchive() {
-        try {
-            BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(OUT_FILE));
+    private void writeArchive(long inFileSize) {
+        try (BufferedOutputStream bos = new BufferedOutputStream(openOutFile())) {
+            CodecTrace.Span phase = startPhase("header");
             bos.write(convertToByteArray(treeSize)); // Writes the size of the tree to archive
             bos.write(getNumOfMeaningfulBitsInLastByte()); // Writes the number of meaningful bits in the last encoded byte of the archive
             bos.write(treeStructureBytes); // Writes bytes describing tree structure
             bos.write(encodedBytesArray); // Writes all unique bytes from the inFile
+            endPhase(phase, 0);
+            phase = startPhase("encode");
             readAndEncodeInFileBytes(bos); // Encodes inFile bytes and writes them to archive
-            bos.close();
-        } catch (Exception e) {
-            e.printStackTrace();
+            endPhase(phase, inFileSize);
+            flushArchive(bos);
+        } catch (IOException e) {
+            throw new ArchiveException("Can not write the archive " + OUT_FILE, e);
+        }
+    }
+
+    /**
+     * Does the same as writeArchive, but takes a checkpoint (see the Checkpoint
+     * class) before the first encoded byte and after every OPTIONS.checkpointBytes
+     * bytes of the inFile, or goes on from a checkpoint taken before.
+     *
+     * @param inFileSize is the size of the inFile in bytes.
+     * @param resumed    is the checkpoint to go on from, null to start from the beginning.
+     */
+    private void writeArchiveWithCheckpoints(long inFileSize, Checkpoint resumed) {
+        byte[] header = createHeader();
+        long inputOffset = 0; // The number of the inFile bytes encoded so far
+        if (resumed != null) {
+            resumed.prepareOutput(OUT_FILE, header);
+            inputOffset = resumed.INPUT_OFFSET;
+            for (byte bit : resumed.PARTIAL_BITS) { // Puts back the bits that did not make a whole byte
+                byteToWriteBitsTo |= (byte) (bit << (Byte.SIZE - 1 - alreadyWrittenBitsInThisByte));
+                alreadyWrittenBitsInThisByte++;
+            }
+        }
+        try (FileOutputStream fos = new FileOutputStream(OUT_FILE, resumed != null);
+             BufferedOutputStream bos = new BufferedOutputStream(limitRate(fos));
+             InputStream bis = new BufferedInputStream(trackProgress(openInFile(), "encoding"))) {
+            CodecTrace.Span phase = startPhase("header");
+            if (resumed == null) {
+                bos.write(header);
+                saveCheckpoint(fos, bos, 0); // The counting pass is not needed after this checkpoint
+            }
+            endPhase(phase, 0);
+            phase = startPhase("encode");
+            bis.skipNBytes(inputOffset);
+            long startOffset = inputOffset;
+            long nextCheckpoint = inputOffset + OPTIONS.checkpointBytes;
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int len;
+            while ((len = bis.read(buffer)) > 0) {
+                encodeBytes(buffer, len, bos);
+                inputOffset += len;
+                if (inputOffset >= nextCheckpoint && inputOffset < inFileSize) {
+                    saveCheckpoint(fos, bos, inputOffset);
+                    nextCheckpoint = inputOffset + OPTIONS.checkpointBytes;
+                }
+            }
+            writeLastBuffer(bos);
+            endPhase(phase, inputOffset - startOffset);
+            flushArchive(bos);
+        } catch (IOException e) {
+            throw new ArchiveException("Can not write the archive " + OUT_FILE, e);
+        }
+        Checkpoint.delete(OUT_FILE, AUX_METHODS);
+    }
+
+    /**
+     * Writes all encoded bytes to the archive and takes a checkpoint.
+     *
+     * @param fos         is the stream writing the archive file.
+     * @param bos         is the buffered stream on top of the fos.
+     * @param inputOffset is the number of the inFile bytes encoded so far.
+     */
+    private void saveCheckpoint(FileOutputStream fos, BufferedOutputStream bos, long inputOffset) throws IOException {
+        bos.write(BYTES_TO_WRITE_TO_ARCHIVE, 0, indexToWriteNewByte); // The buffer is written earlier than usual
+        indexToWriteNewByte = 0;
+        bos.flush();
+        byte[] partialBits = new byte[alreadyWrittenBitsInThisByte];
+        for (int i = 0; i < partialBits.length; i++) {
+            partialBits[i] = (byte) ((byteToWriteBitsTo >> (Byte.SIZE - 1 - i)) & 1);
+        }
+        byte[] symbols = new byte[BYTE_FREQUENCY.size()];
+        long[] counts = new long[symbols.length];
+        int i = 0;
+        for (Map.Entry<Byte, Integer> item : BYTE_FREQUENCY.entrySet()) { // Keeps the order of the hashmap, so the same tree is built from it
+            symbols[i] = item.getKey();
+            counts[i++] = item.getValue();
+        }
+        Checkpoint.save(true, IN_FILE, OUT_FILE, inputOffset, fos, partialBits, symbols, counts);
+    }
+
+    /**
+     * Fills the BYTE_FREQUENCY hashmap with the frequencies saved in a checkpoint.
+     * They are put in the order they were saved in, so the hashmap is the same as
+     * the one the checkpoint was taken with, and the tree built from it is the same too.
+     *
+     * @param checkpoint is the checkpoint the archiving goes on from.
+     */
+    private void restoreByteFrequency(Checkpoint checkpoint) {
+        for (int i = 0; i < checkpoint.SYMBOLS.length; i++) {
+            BYTE_FREQUENCY.put(checkpoint.SYMBOLS[i], (int) checkpoint.COUNTS[i]);
+        }
+    }
+
+    /**
+     * Creates the bytes the archive starts with: the tree size, the number of
+     * meaningful bits in the last byte, the tree structure and the unique bytes
+     * (the same bytes writeArchive writes).
+     *
+     * @return the header of the archive.
+     */
+    private byte[] createHeader() {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        header.writeBytes(convertToByteArray(treeSize));
+        header.write(getNumOfMeaningfulBitsInLastByte());
+        header.writeBytes(treeStructureBytes);
+        header.writeBytes(encodedBytesArray);
+        return header.toByteArray();
+    }
+
+    /**
+     * Writes the archive in the block format (see the ParFormat class). The
+     * code table is the same as in the original format, but the encoded bytes
+     * are split into blocks with several bitstreams each.
+     *
+     * @param inFileSize is the size of the inFile in bytes.
+     */
+    private void writeBlockArchive(long inFileSize) {
+        CodeTable codeTable = createCodeTable();
+        ParFormat format = new ParFormat(ParFormat.FLAG_CRC32C, OPTIONS.streams,
+                ParFormat.DEFAULT_BLOCK_SIZE, inFileSize);
+        BlockEncoder encoder = new BlockEncoder(format, codeTable,
+                ParFormat.createTableBytes(treeSize, treeStructureBytes, encodedBytesArray));
+        try (BufferedInputStream bis = new BufferedInputStream(trackProgress(openInFile(), "encoding"));
+             DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(openOutFile()))) {
+            CodecTrace.Span phase = startPhase("encode");
+            encoder.encode(bis, dos);
+            endPhase(phase, inFileSize);
+            flushArchive(dos);
+        } catch (IOException e) {
+            throw new ArchiveException("Can not write the archive " + OUT_FILE, e);
+        }
+    }
+
+    /**
+     * Creates the table with the same codes as the ones in the BYTE_CODES hashmap.
+     *
+     * @return the table built from the tree structure and the unique bytes.
+     */
+    private CodeTable createCodeTable() {
+        byte[] treeStructureBits = new byte[TREE_STRUCTURE.size()];
+        for (int i = 0; i < treeStructureBits.length; i++) {
+            treeStructureBits[i] = TREE_STRUCTURE.get(i);
+        }
+        return CodeTable.fromTreeStructure(treeStructureBits, encodedBytesArray);
+    }
+
+    /**
+     * Writes the archive in the block format with a code table for every block
+     * (see the BlockEncoder class). The byte frequencies are counted while the
+     * inFile is encoded, so the inFile is read only once.
+     *
+     * @param inFileSize is the size of the inFile in bytes.
+     */
+    private void writeAdaptiveArchive(long inFileSize) {
+        ParFormat format = new ParFormat(ParFormat.FLAG_ADAPTIVE | ParFormat.FLAG_CRC32C, OPTIONS.streams,
+                ParFormat.DEFAULT_BLOCK_SIZE, inFileSize);
+        try (BufferedInputStream bis = new BufferedInputStream(trackProgress(openInFile(), "encoding"));
+             DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(openOutFile()))) {
+            CodecTrace.Span phase = startPhase("encode");
+            new BlockEncoder(format).encode(bis, dos);
+            endPhase(phase, inFileSize);
+            flushArchive(dos);
+        } catch (IOException e) {
+            throw new ArchiveException("Can not write the archive " + OUT_FILE, e);
+        }
+    }
+
+    /**
+     * Adds the bytes the inFile got since it was archived to the end of the
+     * existing archive, without encoding the archived bytes again (the
+     * "--append" option).
+     *
+     * @param inFileSize is the size of the inFile in bytes.
+     */
+    private void appendToArchive(long inFileSize) {
+        CodecTrace.Span phase = startPhase("scan archive");
+        ArchiveAppender appender = new ArchiveAppender(OUT_FILE, OPTIONS.throttle);
+        appender.checkInput(IN_FILE, inFileSize);
+        endPhase(phase, 0);
+        long newBytes = inFileSize - appender.ARCHIVED_SIZE;
+        if (newBytes == 0) {
+            AUX_METHODS.printMessage("- Nothing new to append to " + OUT_FILE);
+            return;
+        }
+        try (FileInputStream fis = new FileInputStream(IN_FILE)) {
+            fis.getChannel().position(appender.ARCHIVED_SIZE);
+            InputStream limited = limitRate(fis);
+            InputStream in = PROGRESS == null ? limited : PROGRESS.track(limited, "appending", newBytes);
+            phase = startPhase("encode");
+            long grownBy = appender.append(new BufferedInputStream(in), newBytes);
+            endPhase(phase, newBytes);
+            AUX_METHODS.printMessage("- Appended " + AUX_METHODS.getFileSize(newBytes) + " of new bytes as "
+                    + AUX_METHODS.getFileSize(grownBy) + " of new blocks");
+        } catch (IOException e) {
+            throw new ArchiveException("Can not append to the archive " + OUT_FILE, e);
+        }
+    }
+
+    /**
+     * Writes a gzip file instead of a par-archive (see the DeflateEncoder class).
+     *
+     * @param inFileSize is the size of the inFile in bytes.
+     */
+    private void writeGzipFile(long inFileSize) {
+        try (InputStream in = trackProgress(openInFile(), "encoding");
+             OutputStream out = openOutFile()) {
+            CodecTrace.Span phase = startPhase("encode");
+            new DeflateEncoder(out).encode(in, new File(IN_FILE).lastModified());
+            endPhase(phase, inFileSize);
+        } catch (IOException e) {
+            throw new ArchiveException("Can not write the gzip file " + OUT_FILE, e);
+        }
+    }
+
+    /**
+     * Writes the archive in the block format with bytes encoded by the FSE coder.
+     * The FSE table is built from the byte frequencies counted before, so the
+     * Huffman tree is not needed at all.
+     *
+     * @param inFileSize is the size of the inFile in bytes.
+     */
+    private void writeFseArchive(long inFileSize) {
+        CodecTrace.Span codes = startPhase("codes");
+        long[] counts = new long[256];
+        for (Map.Entry<Byte, Integer> item : BYTE_FREQUENCY.entrySet()) {
+            counts[item.getKey() & 0xFF] = item.getValue();
+        }
+        ParFormat format = new ParFormat(ParFormat.FLAG_FSE | ParFormat.FLAG_CRC32C, 1,
+                ParFormat.DEFAULT_BLOCK_SIZE, inFileSize);
+        FseEncoder encoder = new FseEncoder(format, FseTable.fromCounts(counts));
+        endPhase(codes, 0);
+        try (BufferedInputStream bis = new BufferedInputStream(trackProgress(openInFile(), "encoding"));
+             DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(openOutFile()))) {
+            CodecTrace.Span phase = startPhase("encode");
+            encoder.encode(bis, dos);
+            endPhase(phase, inFileSize);
+            flushArchive(dos);
+        } catch (IOException e) {
+            throw new ArchiveException("Can not write the archive " + OUT_FILE, e);
         }
     }
 
@@ -257,18 +784,67 @@ public class Archiver {
      *
      * @param bos is an object writing bytes to an output File.
      */
-    private void readAndEncodeInFileBytes(BufferedOutputStream bos) {
-        try {
-            BufferedInputStream bis = new BufferedInputStream(new FileInputStream(IN_FILE));
+    private void readAndEncodeInFileBytes(OutputStream bos) {
+        if (OPTIONS.parallelThreads > 0 && readAndEncodeInFileBytesInParallel(bos)) {
+            return;
+        }
+        if (OPTIONS.pipelined) {
+            readAndEncodeInFileBytesPipelined(bos);
+            return;
+        }
+        try (BufferedInputStream bis = new BufferedInputStream(trackProgress(openInFile(), "encoding"))) {
             byte[] buffer = new byte[BUFFER_SIZE]; // Buffer with bytes from the source file that shall be archived
             int len; // The number of bytes extracted from the source file
+            CodecTrace.Span fill = TRACE.beginIfTraced(CodecTrace.BUFFER, "fill buffer", IN_FILE);
             while ((len = bis.read(buffer)) > 0) {
+                TRACE.end(fill, len);
+                CodecTrace.Span encode = TRACE.beginIfTraced(CodecTrace.BUFFER, "encode buffer", IN_FILE);
                 encodeBytes(buffer, len, bos);
+                TRACE.end(encode, len);
+                fill = TRACE.beginIfTraced(CodecTrace.BUFFER, "fill buffer", IN_FILE);
             }
             writeLastBuffer(bos);
-            bis.close();
-        } catch (Exception e) {
-            e.printStackTrace();
+        } catch (IOException e) {
+            throw new ArchiveException("Can not read the file " + IN_FILE, e);
+        }
+    }
+
+    /**
+     * Does the same as readAndEncodeInFileBytes, but encodes the inFile in
+     * several threads (see the ParallelEncoder class).
+     *
+     * @param bos is an object writing bytes to an output File.
+     * @return false if the codes do not suit the parallel encoding and nothing was done.
+     */
+    private boolean readAndEncodeInFileBytesInParallel(OutputStream bos) {
+        CodeTable codeTable = createCodeTable();
+        if (!ParallelEncoder.canEncode(codeTable)) {
+            return false;
+        }
+        try (InputStream fis = trackProgress(openInFile(), "encoding")) {
+            long writtenBits = new ParallelEncoder(OPTIONS.getParallelThreads(), codeTable).encode(fis, bos);
+            if (writtenBits != numOfBits) { // The header already promised this number of bits
+                throw new ArchiveException("The inFile changed while it was archived: " + IN_FILE);
+            }
+            return true;
+        } catch (IOException e) {
+            throw new ArchiveException("Can not archive the file " + IN_FILE, e);
+        }
+    }
+
+    /**
+     * Does the same as readAndEncodeInFileBytes, but reads the inFile and writes
+     * the archive in separate threads while this thread encodes bytes.
+     *
+     * @param bos is an object writing bytes to an output File.
+     */
+    private void readAndEncodeInFileBytesPipelined(OutputStream bos) {
+        try (InputStream fis = trackProgress(openInFile(), "encoding")) {
+            PipelinedEngine engine = new PipelinedEngine(TRACE, IN_FILE);
+            engine.run(fis, bos, this::encodeBytes, this::writeLastBuffer);
+            AUX_METHODS.printMessage(engine.getStallReport());
+        } catch (IOException e) {
+            throw new ArchiveException("Can not archive the file " + IN_FILE, e);
         }
     }
 
@@ -278,7 +854,7 @@ public class Archiver {
      *
      * @param bos is an object writing bytes to an output File.
      */
-    private void writeLastBuffer(BufferedOutputStream bos) {
+    private void writeLastBuffer(OutputStream bos) {
         try {
             if (indexToWriteNewByte == 0 && alreadyWrittenBitsInThisByte > 0) { // if buffer is empty, but the alreadyWrittenBitsInThisByte is not empty
                 flushByteToBuffer();
@@ -289,8 +865,8 @@ public class Archiver {
             } else { // if buffer is not empty, but the alreadyWrittenBitsInThisByte is empty. Buffer and alreadyWrittenBitsInThisByte can not be empty at the same time
                 bos.write(BYTES_TO_WRITE_TO_ARCHIVE, 0, indexToWriteNewByte);
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+        } catch (IOException e) {
+            throw new ArchiveException("Can not write the archive " + OUT_FILE, e);
         }
     }
 
@@ -304,7 +880,7 @@ public class Archiver {
      * @param len    is the number of bytes written to the buffer.
      * @param bos    is an object writing bytes to an output File.
      */
-    private void encodeBytes(byte[] buffer, int len, BufferedOutputStream bos) {
+    private void encodeBytes(byte[] buffer, int len, OutputStream bos) {
 
         for (int i = 0; i < len; i++) {
             byte currentByteToBeEncoded = buffer[i]; // Gets byte to be encoded from the buffer
@@ -337,7 +913,7 @@ public class Archiver {
      *                    of an array of bits.
      * @param bos         is an object writing bytes to an output File.
      */
-    private void writeRestOfBits(ArrayDeque<Byte> newByteCode, BufferedOutputStream bos) {
+    private void writeRestOfBits(ArrayDeque<Byte> newByteCode, OutputStream bos) {
         if (newByteCode.size() < Byte.SIZE) { // if there are less than 8 bits left
             int queueLength = newByteCode.size();
             iterateAndWriteBitsToByte(queueLength, newByteCode);
@@ -363,7 +939,7 @@ public class Archiver {
      *
      * @param bos is an object writing bytes to an output File.
      */
-    private void flushByteAndReset(BufferedOutputStream bos) {
+    private void flushByteAndReset(OutputStream bos) {
         flushByteToBuffer();
         alreadyWrittenBitsInThisByte = 0;
         byteToWriteBitsTo = 0;
@@ -400,13 +976,15 @@ public class Archiver {
      *
      * @param bos is an object writing bytes to an output File.
      */
-    private void writeBytesArrayToArchiveIfApplicable(BufferedOutputStream bos) {
+    private void writeBytesArrayToArchiveIfApplicable(OutputStream bos) {
         if (indexToWriteNewByte == BYTES_TO_WRITE_TO_ARCHIVE.length) {
             try {
+                CodecTrace.Span flush = TRACE.beginIfTraced(CodecTrace.BUFFER, "flush buffer", IN_FILE);
                 bos.write(BYTES_TO_WRITE_TO_ARCHIVE, 0, indexToWriteNewByte);
+                TRACE.end(flush, indexToWriteNewByte);
                 indexToWriteNewByte = 0; // reset the number of bytes written to array
-            } catch (Exception e) {
-                e.printStackTrace();
+            } catch (IOException e) {
+                throw new ArchiveException("Can not write the archive " + OUT_FILE, e);
             }
         }
     }
@@ -648,15 +1226,17 @@ public class Archiver {
      * @param inFile is the name and the location of the file that shall be archived.
      */
     private void countByteFrequency(File inFile) {
-        try {
-            BufferedInputStream bis = new BufferedInputStream(new FileInputStream(inFile));
+        try (BufferedInputStream bis = new BufferedInputStream(trackProgress(openInFile(), "counting bytes"))) {
             byte[] buffer = new byte[BUFFER_SIZE];
             int len; // The number of bytes extracted from the file
             while ((len = bis.read(buffer)) > 0) {
                 analyzeBuff(buffer, len);
+                if (CONTENT_HASH != null) {
+                    CONTENT_HASH.update(buffer, 0, len);
+                }
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+        } catch (IOException e) {
+            throw new ArchiveException("Can not read the file " + IN_FILE, e);
         }
     }
 
@@ -727,7 +1307,7 @@ public class Archiver {
 
         if (BYTE_FREQUENCY.size() == 1) {
             newByteCode.add((byte) 0); // if there is only 1 unique byte, its code will be 0
-            System.out.println("Your file has less than 2 unique bytes. No Huffman encoding for you bro");
+            AUX_METHODS.printMessage("Your file has less than 2 unique bytes. No Huffman encoding for you bro");
             BYTE_CODES.put(tree.value, AUX_METHODS.getArrayCopy(newByteCode));
         } else { // if there is more than 1 unique byte
             collectNewCodes(tree, newByteCode);
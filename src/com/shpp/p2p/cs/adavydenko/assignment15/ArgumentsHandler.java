@@ -1,5 +1,9 @@
 package com.shpp.p2p.cs.adavydenko.assignment15;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
 /**
  * This class takes user arguments and defines whether it shall be
  * an archiving or an unarchiving operation, what are the input
@@ -17,6 +21,49 @@ public class ArgumentsHandler {
      */
     private static final String UNARCHIVE_FLAG = "-u";
 
+    /**
+     * A flag explicitly stating that many files shall be processed at once.
+     * It is followed by an optional "-a" / "-u" flag and by a list file, a glob
+     * or a directory with the files to be processed.
+     */
+    private static final String BATCH_FLAG = "-b";
+
+    /**
+     * A flag stating that the program shall run as a resident server. It is
+     * followed by a port number or a path of a Unix domain socket file.
+     */
+    private static final String SERVER_FLAG = "-s";
+
+    /**
+     * A flag stating that the program shall send its job to a running server.
+     * It is followed by the server address and by the usual arguments.
+     */
+    private static final String CLIENT_FLAG = "-c";
+
+    /**
+     * A flag stating that the program shall search for a string in an archive
+     * without unarchiving it. It is followed by the string and the archive.
+     */
+    private static final String SEARCH_FLAG = "-g";
+
+    /**
+     * A flag stating that the program shall check an archive by decoding it
+     * without writing anything. It is followed by the archive.
+     */
+    private static final String TEST_FLAG = "-t";
+
+    /**
+     * A flag stating that the program shall print what the headers of archives
+     * say about them. It is followed by one or more archives.
+     */
+    private static final String INFO_FLAG = "-i";
+
+    /**
+     * The prefix of named options like "--threads=4". Options may stand
+     * anywhere among the command line arguments.
+     */
+    private static final String OPTION_PREFIX = "--";
+
     /**
      * File extension for archived files.
      */
@@ -33,6 +80,49 @@ public class ArgumentsHandler {
      */
     protected boolean archiveOperation = false;
 
+    /**
+     * A boolean flag stating for the main class that many files shall
+     * be processed at once. In this case the inFile is the list file,
+     * the glob or the directory with all files to be processed.
+     */
+    protected boolean batchOperation = false;
+
+    /**
+     * A boolean flag stating for the main class that the program shall run
+     * as a server. In this case the inFile is the address to listen on.
+     */
+    protected boolean serverOperation = false;
+
+    /**
+     * The address of a running server the job shall be sent to. Null if the
+     * job shall be done by this program itself.
+     */
+    protected String serverAddress = null;
+
+    /**
+     * The string to search for in the inFile. Null if this is not a search.
+     */
+    protected String searchPattern = null;
+
+    /**
+     * A boolean flag stating for the main class that the inFile shall be
+     * checked instead of being archived or unarchived.
+     */
+    protected boolean testOperation = false;
+
+    /**
+     * The archives to be described by their headers. Null if this is not
+     * an info operation.
+     */
+    protected String[] infoFiles = null;
+
+    /**
+     * Named options provided by user as "--name=value" or just "--name".
+     * The name is the key, the value is the value (or an empty string
+     * if the option has no value).
+     */
+    protected final HashMap<String, String> OPTIONS = new HashMap<>();
+
     /**
      * Name and location of the input file.
      */
@@ -56,7 +146,26 @@ public class ArgumentsHandler {
         String DEFAULT_IN_FILE = "test.txt"; // Default name for the inFile if the user did not provide any
         String DEFAULT_OUT_FILE = "test.txt.par"; // Default name for the outFile if the user did not provide any inFile
 
-        if (args.length == 3) {
+        args = extractOptions(args);
+        if (args.length > 1 && args[0].equalsIgnoreCase(CLIENT_FLAG)) {
+            serverAddress = args[1];
+            args = Arrays.copyOfRange(args, 2, args.length);
+        }
+        if (args.length == 2 && args[0].equalsIgnoreCase(SERVER_FLAG)) {
+            serverOperation = true;
+            inFile = args[1];
+        } else if (args.length == 3 && args[0].equalsIgnoreCase(SEARCH_FLAG)) {
+            searchPattern = args[1];
+            inFile = args[2];
+        } else if (args.length == 2 && args[0].equalsIgnoreCase(TEST_FLAG)) {
+            testOperation = true;
+            inFile = args[1];
+        } else if (args.length > 1 && args[0].equalsIgnoreCase(INFO_FLAG)) {
+            infoFiles = Arrays.copyOfRange(args, 1, args.length);
+            inFile = args[1];
+        } else if (args.length > 0 && args[0].equalsIgnoreCase(BATCH_FLAG)) {
+            analyzeBatchArguments(args);
+        } else if (args.length == 3) {
             analyzeThreeArguments(args);
         } else if (args.length == 2) {
             analyzeTwoArguments(args);
@@ -73,6 +182,95 @@ public class ArgumentsHandler {
         return new String[]{inFile, outFile};
     }
 
+    /**
+     * Separates named options ("--name=value") from the other command line
+     * arguments and saves them to the OPTIONS hashmap.
+     *
+     * @param args user command line arguments.
+     * @return user command line arguments without named options.
+     */
+    private String[] extractOptions(String[] args) {
+        ArrayList<String> otherArgs = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith(OPTION_PREFIX) && arg.length() > OPTION_PREFIX.length()) {
+                int equalsIndex = arg.indexOf('=');
+                if (equalsIndex > 0) {
+                    OPTIONS.put(arg.substring(OPTION_PREFIX.length(), equalsIndex), arg.substring(equalsIndex + 1));
+                } else {
+                    OPTIONS.put(arg.substring(OPTION_PREFIX.length()), "");
+                }
+            } else {
+                otherArgs.add(arg);
+            }
+        }
+        return otherArgs.toArray(new String[0]);
+    }
+
+    /**
+     * Analyzes user command line arguments of a batch operation. They look
+     * like "-b source" or "-b -a source" (archive all files) or "-b -u source"
+     * (unarchive all par-files). The files are archived by default.
+     *
+     * @param args user command line arguments starting with the batch flag.
+     */
+    private void analyzeBatchArguments(String[] args) {
+        batchOperation = true;
+        archiveOperation = true;
+        if (args.length == 2) {
+            inFile = args[1];
+        } else if (args.length == 3 && (args[1].equalsIgnoreCase(ARCHIVE_FLAG)
+                || args[1].equalsIgnoreCase(UNARCHIVE_FLAG))) {
+            archiveOperation = args[1].equalsIgnoreCase(ARCHIVE_FLAG);
+            inFile = args[2];
+        } else {
+            System.out.println("You entered incorrect batch arguments");
+            System.exit(-1);
+        }
+    }
+
+    /**
+     * Says whether user provided a named option.
+     *
+     * @param name is the name of the option without "--".
+     * @return true if the option was provided.
+     */
+    protected boolean hasOption(String name) {
+        return OPTIONS.containsKey(name);
+    }
+
+    /**
+     * Provides the value of a named option as a string.
+     *
+     * @param name         is the name of the option without "--".
+     * @param defaultValue is the value used if user did not provide this option.
+     * @return the value of the option or the default value.
+     */
+    protected String getOption(String name, String defaultValue) {
+        String value = OPTIONS.get(name);
+        return value == null || value.isEmpty() ? defaultValue : value;
+    }
+
+    /**
+     * Provides the value of a named option as an integer.
+     *
+     * @param name         is the name of the option without "--".
+     * @param defaultValue is the value used if user did not provide this option.
+     * @return the value of the option or the default value.
+     * @throws ArchiveException if the value is not a number (so a server
+     *                          rejects the request instead of terminating).
+     */
+    protected int getIntOption(String name, int defaultValue) {
+        String value = OPTIONS.get(name);
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new ArchiveException("Option --" + name + " shall be a number");
+        }
+    }
+
     /**
      * Analyzes user command line arguments if there were three of them provided.
      *
@@ -55,8 +55,27 @@ public class Assignment15Part1 {
             ArgumentsHandler argHandler = new ArgumentsHandler();
             AuxiliaryMethods auxMethods = new AuxiliaryMethods();
             String[] filesNames = argHandler.decideOperationType(args); // inputFile (index 0), outputFile (index 1)
-            launchFileProcessing(argHandler.archiveOperation, filesNames, auxMethods);
+            if (argHandler.serverOperation) {
+                CodecServer.fromArguments(argHandler).serve();
+            } else if (argHandler.serverAddress != null) {
+                new CodecClient(argHandler.serverAddress, auxMethods)
+                        .sendJob(argHandler.archiveOperation, filesNames, argHandler);
+            } else if (argHandler.searchPattern != null) {
+                new ArchiveSearcher(filesNames[0], argHandler.searchPattern, auxMethods).search();
+            } else if (argHandler.testOperation) {
+                ArchiveTester.fromArguments(argHandler, auxMethods).test();
+            } else if (argHandler.infoFiles != null) {
+                new ArchiveInspector(argHandler.infoFiles, auxMethods).inspect();
+            } else if (argHandler.batchOperation) {
+                BatchProcessor.fromArguments(argHandler).processBatch();
+            } else {
+                launchFileProcessing(argHandler.archiveOperation, filesNames, auxMethods,
+                        CodecOptions.fromArguments(argHandler));
+            }
             displayOperationTime(startTime);
+        } catch (ArchiveException e) {
+            System.out.println(e.getMessage());
+            System.exit(-1);
         } catch (Exception e) {
             System.out.println("You have an error in your arguments");
             e.printStackTrace();
@@ -73,18 +92,20 @@ public class Assignment15Part1 {
      *                           element and an output file as its second element.
      * @param auxMethods         an auxiliary class that performs functions common
      *                           to both archiver and unarchiver.
+     * @param options            settings of the archiving / unarchiving chosen by user.
      */
     private static void launchFileProcessing(boolean isArchiveOperation, String[] filesNames,
-                                             AuxiliaryMethods auxMethods) {
+                                             AuxiliaryMethods auxMethods, CodecOptions options) {
         if (isArchiveOperation) {
             System.out.println("Archiving " + filesNames[0] + " to " + filesNames[1]);
-            Archiver archiver = new Archiver(filesNames, auxMethods);
+            Archiver archiver = new Archiver(filesNames, auxMethods, options);
             archiver.archiveFile();
         } else {
             System.out.println("Unarchiving " + filesNames[0] + " to " + filesNames[1]);
-            Unarchiver unarchiver = new Unarchiver(filesNames, auxMethods);
+            Unarchiver unarchiver = new Unarchiver(filesNames, auxMethods, options);
             unarchiver.unarchiveFile();
         }
+        options.trace.save();
     }
 
     /**
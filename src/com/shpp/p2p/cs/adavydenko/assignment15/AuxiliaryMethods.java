@@ -11,6 +11,43 @@ import java.util.ArrayList;
  */
 public class AuxiliaryMethods {
 
+    /**
+     * Says whether messages about the operation shall be printed to console.
+     * Batch runs process many files at once and keep the console quiet, so
+     * that only their own summary is printed.
+     */
+    private final boolean VERBOSE;
+
+    /**
+     * Creates an object with auxiliary methods that prints all messages
+     * about the operation to console.
+     */
+    public AuxiliaryMethods() {
+        this(true);
+    }
+
+    /**
+     * Creates an object with auxiliary methods.
+     *
+     * @param verbose says whether messages about the operation shall
+     *                be printed to console.
+     */
+    public AuxiliaryMethods(boolean verbose) {
+        this.VERBOSE = verbose;
+    }
+
+    /**
+     * Prints a message about the operation to console if this object
+     * is allowed to do so.
+     *
+     * @param message is the message to be printed.
+     */
+    protected void printMessage(String message) {
+        if (VERBOSE) {
+            System.out.println(message);
+        }
+    }
+
     /**
      * Converts
      * Remember, you need to cast argument to byte each time
@@ -70,13 +107,12 @@ public class AuxiliaryMethods {
      */
     protected void checkForEmptyFile(File file, boolean isArchivingOperation, String inFile, String outFile) {
         if (file.length() == 0) {
-            System.out.println("The file you specified does not exist or is empty. Process terminated");
-            System.exit(-1);
+            throw new ArchiveException("The file you specified does not exist or is empty. Process terminated");
         } else {
             if (isArchivingOperation) {
-                System.out.println("Archiving " + inFile + " file to " + outFile);
+                printMessage("Archiving " + inFile + " file to " + outFile);
             } else {
-                System.out.println("Unarchiving " + inFile + " file to " + outFile);
+                printMessage("Unarchiving " + inFile + " file to " + outFile);
             }
         }
     }
@@ -111,7 +147,7 @@ public class AuxiliaryMethods {
             sourceFile = "archived";
             resultFile = "unarchived";
         }
-        System.out.println("- File size after " + operationType + ": " + getFileSize(file.length()) + "\nThe "
+        printMessage("- File size after " + operationType + ": " + getFileSize(file.length()) + "\nThe "
                 + resultFile + " file is " + effectivenessPercentage + "% of the " + sourceFile + " file");
     }
 
@@ -133,10 +169,10 @@ public class AuxiliaryMethods {
         }
         try {
             BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(OUT_FILE));
-            System.out.println(message);
+            printMessage(message);
             bos.close();
         } catch (Exception e) {
-            e.printStackTrace();
+            throw new ArchiveException("Can not create " + OUT_FILE, e);
         }
     }
 
@@ -151,10 +187,9 @@ public class AuxiliaryMethods {
      */
     protected boolean processEmptyFileIfApplicable(File inFile, String outFile, long inFileSize, boolean isArchivingOperation) {
         if (!inFile.exists()) { // if the file does not exist
-            System.out.println("The file you specified does not exist");
-            System.exit(-1);
+            throw new ArchiveException("The file you specified does not exist: " + inFile);
         } else if (inFile.length() == 0) { // if the inFile is empty
-            System.out.println("Your file has less than 2 unique bytes. No Huffman encoding for you bro");
+            printMessage("Your file has less than 2 unique bytes. No Huffman encoding for you bro");
             processEmptyFile(outFile, isArchivingOperation);
             displayOutFileSizeAndEffectiveness(outFile, inFileSize, isArchivingOperation);
             return true;
@@ -0,0 +1,401 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Archives or unarchives many files in one run of the program, so that the
+ * JVM is started (and warmed up) only once for all of them.
+ * <p>
+ * The source of the files can be:
+ * --- a directory - all regular files in it and in all its subdirectories
+ * --- a glob like "logs/*.txt" or "data/**.csv"
+ * --- a list file - a text file with one file name per line
+ * <p>
+ * Each file is archived to its own par-file or gz-file (or unarchived from one)
+ * by a job running in a thread pool. Archiving skips the files that already are
+ * archives of the chosen format, and unarchiving takes par-files and gz-files
+ * only. The number of jobs running at the same time is
+ * limited by the number of threads and by the memory budget: every job takes
+ * its share of the budget before it starts and gives it back when it is done.
+ * The share is an estimate of the buffers the chosen mode needs, so the budget
+ * really limits the jobs of the modes with big buffers (blocks, parallel groups).
+ * A failed file does not stop the run. All failures and the overall throughput
+ * are printed to console at the end.
+ */
+public class BatchProcessor {
+
+    /**
+     * Memory budget (in megabytes) for all jobs running at the same time
+     * if user did not provide the "--memory" option.
+     */
+    private static final int DEFAULT_MEMORY_BUDGET_MB = 256;
+
+    /**
+     * The approximate amount of memory (in kilobytes) that one job of the
+     * original format needs: two 32 Kb buffers of the codec, two 8 Kb buffers
+     * of the buffered streams, the tree, the hashmaps with codes and frequencies
+     * etc. The other modes need their own buffers on top of it.
+     */
+    private static final int BASE_JOB_FOOTPRINT_KB = 256;
+
+    /**
+     * The number of bytes in one kilobyte.
+     */
+    private static final int BYTES_IN_KB = 1024;
+
+    /**
+     * The number of kilobytes in one megabyte.
+     */
+    private static final int KB_IN_MB = 1024;
+
+    /**
+     * The number of nanoseconds in one second.
+     */
+    private static final double NANOS_IN_SEC = 1_000_000_000.0;
+
+    /**
+     * The number of bytes in one megabyte.
+     */
+    private static final double BYTES_IN_MB = 1024 * 1024;
+
+    /**
+     * The extension of archived files (with the point).
+     */
+    private static final String PAR_EXTENSION = ".par";
+
+    /**
+     * The extension of files written in the gzip format.
+     */
+    private static final String GZIP_EXTENSION = ".gz";
+
+    /**
+     * The extension of unarchived files whose own extension is unknown (with the point).
+     */
+    private static final String UNKNOWN_EXTENSION = ".uar";
+
+    /**
+     * A directory, a glob or a list file with all files to be processed.
+     */
+    private final String SOURCE;
+
+    /**
+     * Says whether the files shall be archived (if true) or unarchived (if false).
+     */
+    private final boolean ARCHIVE_OPERATION;
+
+    /**
+     * The maximum number of jobs running at the same time.
+     */
+    private final int THREADS;
+
+    /**
+     * The memory budget for all jobs running at the same time in kilobytes.
+     */
+    private final int MEMORY_BUDGET_KB;
+
+    /**
+     * The approximate amount of memory (in kilobytes) that one job needs with
+     * the settings of this run.
+     */
+    private final int JOB_FOOTPRINT_KB;
+
+    /**
+     * Settings of the archiving / unarchiving used for every file.
+     */
+    private final CodecOptions OPTIONS;
+
+    /**
+     * Creates a batch run.
+     *
+     * @param source           is a directory, a glob or a list file with all files
+     *                         to be processed.
+     * @param archiveOperation says whether the files shall be archived (if true)
+     *                         or unarchived (if false).
+     * @param threads          is the maximum number of jobs running at the same time.
+     * @param memoryBudgetMb   is the memory budget for all jobs running at the same
+     *                         time in megabytes.
+     * @param options          settings of the archiving / unarchiving used for every file.
+     */
+    public BatchProcessor(String source, boolean archiveOperation, int threads, int memoryBudgetMb,
+                          CodecOptions options) {
+        this.SOURCE = source;
+        this.ARCHIVE_OPERATION = archiveOperation;
+        this.THREADS = Math.max(1, threads);
+        this.OPTIONS = options;
+        this.JOB_FOOTPRINT_KB = estimateJobFootprintKb();
+        this.MEMORY_BUDGET_KB = Math.max(JOB_FOOTPRINT_KB, memoryBudgetMb * KB_IN_MB);
+    }
+
+    /**
+     * Estimates the memory one job needs: the base footprint and the buffers
+     * of every mode chosen for this run. An archive to be unarchived may be in
+     * the block format, so unarchiving is always charged for a block.
+     *
+     * @return the approximate amount of memory in kilobytes.
+     */
+    private int estimateJobFootprintKb() {
+        long bytes = 0;
+        if (ARCHIVE_OPERATION && OPTIONS.usesGzip()) { // The block being written and the next one
+            bytes += 2L * DeflateEncoder.BLOCK_SIZE;
+        } else if (!ARCHIVE_OPERATION || OPTIONS.usesBlockFormat()) { // A block and its bitstreams
+            bytes += 2L * ParFormat.DEFAULT_BLOCK_SIZE;
+        }
+        if (ARCHIVE_OPERATION && OPTIONS.usesFse()) { // The states of a whole block and their bits
+            bytes += (long) ParFormat.DEFAULT_BLOCK_SIZE * Integer.BYTES + ParFormat.DEFAULT_BLOCK_SIZE / 2;
+        }
+        if (ARCHIVE_OPERATION && OPTIONS.append) { // The new bytes of the file are read block by block
+            bytes += ParFormat.DEFAULT_BLOCK_SIZE;
+        }
+        if (OPTIONS.pipelined) { // The buffers on both sides of the coder
+            bytes += 2L * PipelinedEngine.CHUNKS_PER_SIDE * PipelinedEngine.CHUNK_SIZE;
+        }
+        if (OPTIONS.parallelThreads > 0) { // A group of two chunks per thread and the results of the whole group
+            int chunkLength = ARCHIVE_OPERATION ? ParallelEncoder.DEFAULT_CHUNK_LENGTH
+                    : ParallelDecoder.DEFAULT_CHUNK_LENGTH;
+            bytes += 2L * (2L * OPTIONS.getParallelThreads() * chunkLength);
+        }
+        return (int) Math.min(Integer.MAX_VALUE, BASE_JOB_FOOTPRINT_KB + bytes / BYTES_IN_KB);
+    }
+
+    /**
+     * Creates a batch run based on the command line arguments.
+     *
+     * @param argHandler is the object that already analyzed the command line arguments.
+     * @return a batch run for the files described by the command line arguments.
+     */
+    protected static BatchProcessor fromArguments(ArgumentsHandler argHandler) {
+        int threads = argHandler.getIntOption("threads", Runtime.getRuntime().availableProcessors());
+        int memoryBudgetMb = argHandler.getIntOption("memory", DEFAULT_MEMORY_BUDGET_MB);
+        return new BatchProcessor(argHandler.inFile, argHandler.archiveOperation, threads, memoryBudgetMb,
+                CodecOptions.fromArguments(argHandler));
+    }
+
+    /**
+     * Collects all files to be processed, runs a job for every file and prints
+     * the summary of the run.
+     *
+     * @return all jobs of this run with their results.
+     */
+    protected List<FileJob> processBatch() {
+        List<FileJob> jobs = createJobs(collectInputFiles());
+        System.out.println("Batch " + (ARCHIVE_OPERATION ? "archiving" : "unarchiving") + " of "
+                + jobs.size() + " file(s) using " + THREADS + " thread(s), about "
+                + JOB_FOOTPRINT_KB + " Kb per file of the " + MEMORY_BUDGET_KB / KB_IN_MB + " Mb budget");
+        if (OPTIONS.throttle != null) {
+            System.out.println("- Throttle: " + OPTIONS.throttle.describe());
+        }
+
+        long startTime = System.nanoTime();
+        runJobs(jobs);
+        displaySummary(jobs, System.nanoTime() - startTime);
+        OPTIONS.trace.save();
+        return jobs;
+    }
+
+    /**
+     * Runs all jobs in a thread pool. A job is submitted only after it got its
+     * share of the memory budget, so the number of jobs waiting in the pool
+     * never exceeds what the budget allows.
+     *
+     * @param jobs are all jobs of this run.
+     */
+    private void runJobs(List<FileJob> jobs) {
+        Semaphore memoryBudget = new Semaphore(MEMORY_BUDGET_KB);
+        AuxiliaryMethods auxMethods = new AuxiliaryMethods(false);
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            for (FileJob job : jobs) {
+                memoryBudget.acquireUninterruptibly(JOB_FOOTPRINT_KB);
+                pool.execute(() -> {
+                    if (OPTIONS.throttle != null) {
+                        OPTIONS.throttle.startJob();
+                    }
+                    try {
+                        job.run(auxMethods);
+                    } finally {
+                        if (OPTIONS.throttle != null) {
+                            OPTIONS.throttle.finishJob();
+                        }
+                        memoryBudget.release(JOB_FOOTPRINT_KB);
+                    }
+                });
+            }
+        } finally {
+            pool.shutdown();
+        }
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Creates a job for every file. The output file of each job is defined
+     * the same way as if user provided this file as the only command line
+     * argument.
+     *
+     * @param files are all files to be processed.
+     * @return a job for every file.
+     */
+    private List<FileJob> createJobs(List<Path> files) {
+        List<FileJob> jobs = new ArrayList<>();
+        for (Path file : files) {
+            String fileName = file.toString();
+            boolean isPar = fileName.toLowerCase().endsWith(PAR_EXTENSION);
+            boolean isGzip = fileName.toLowerCase().endsWith(GZIP_EXTENSION);
+            if (ARCHIVE_OPERATION ? isPar || (isGzip && OPTIONS.usesGzip()) : !isPar && !isGzip) {
+                continue; // never archive archives again and never unarchive anything but archives
+            }
+            ArgumentsHandler fileArgHandler = new ArgumentsHandler();
+            String[] filesNames = fileArgHandler.decideOperationType(new String[]{fileName});
+            if (ARCHIVE_OPERATION && OPTIONS.usesGzip()) {
+                filesNames[1] = fileName + GZIP_EXTENSION;
+            } else if (!ARCHIVE_OPERATION && isGzip) {
+                filesNames[1] = getGzipOutFile(file);
+            }
+            jobs.add(new FileJob(filesNames[0], filesNames[1], ARCHIVE_OPERATION, OPTIONS));
+        }
+        return jobs;
+    }
+
+    /**
+     * Defines the name of the file unarchived from a gz-file: "file.txt.gz" becomes
+     * "file.txt", and a name left without an extension gets the one of unknown files.
+     *
+     * @param file is the gz-file.
+     * @return the name of the unarchived file.
+     */
+    private String getGzipOutFile(Path file) {
+        String fileName = file.toString();
+        String outFile = fileName.substring(0, fileName.length() - GZIP_EXTENSION.length());
+        String shortName = file.getFileName().toString();
+        if (shortName.substring(0, shortName.length() - GZIP_EXTENSION.length()).indexOf('.') <= 0) {
+            outFile += UNKNOWN_EXTENSION;
+        }
+        return outFile;
+    }
+
+    /**
+     * Collects all files described by the SOURCE: all regular files of a directory
+     * tree, all files matching a glob or all files listed in a list file.
+     *
+     * @return all files to be processed.
+     */
+    private List<Path> collectInputFiles() {
+        try {
+            Path source = Paths.get(SOURCE);
+            if (Files.isDirectory(source)) {
+                return collectRegularFiles(source, null);
+            } else if (Files.isRegularFile(source)) {
+                return collectListedFiles(source);
+            } else {
+                return collectGlobFiles();
+            }
+        } catch (InvalidPathException | IOException e) {
+            throw new ArchiveException("Can not collect files from " + SOURCE, e);
+        }
+    }
+
+    /**
+     * Collects all regular files of a directory tree.
+     *
+     * @param directory is the root of the directory tree.
+     * @param matcher   is the glob matcher files shall match or null if all files fit.
+     * @return all (matching) regular files of the directory tree.
+     */
+    private List<Path> collectRegularFiles(Path directory, PathMatcher matcher) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.filter(Files::isRegularFile)
+                    .filter(path -> matcher == null || matcher.matches(path))
+                    .sorted()
+                    .forEach(files::add);
+        }
+        return files;
+    }
+
+    /**
+     * Reads a list file with one file name per line. Empty lines are skipped.
+     *
+     * @param listFile is a text file with names of the files to be processed.
+     * @return all files named in the list file.
+     */
+    private List<Path> collectListedFiles(Path listFile) throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (String line : Files.readAllLines(listFile)) {
+            if (!line.isBlank()) {
+                files.add(Paths.get(line.trim()));
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Collects all files matching the glob. The directory walk starts in the
+     * longest part of the glob that has no wildcards in it.
+     *
+     * @return all files matching the glob.
+     */
+    private List<Path> collectGlobFiles() throws IOException {
+        int wildcardIndex = SOURCE.length();
+        for (String wildcard : new String[]{"*", "?", "[", "{"}) {
+            int index = SOURCE.indexOf(wildcard);
+            if (index >= 0 && index < wildcardIndex) {
+                wildcardIndex = index;
+            }
+        }
+        int separatorIndex = SOURCE.lastIndexOf(File.separatorChar, wildcardIndex);
+        Path root = separatorIndex >= 0 ? Paths.get(SOURCE.substring(0, separatorIndex + 1)) : Paths.get(".");
+        String glob = separatorIndex >= 0 ? SOURCE : "./" + SOURCE;
+        if (!Files.isDirectory(root)) {
+            throw new ArchiveException("The file you specified does not exist: " + SOURCE);
+        }
+        return collectRegularFiles(root, FileSystems.getDefault().getPathMatcher("glob:" + glob));
+    }
+
+    /**
+     * Prints the number of processed and failed files, the overall size of
+     * all files before and after the operation and the throughput of the run.
+     * An unarchiving run also prints how often the decode tables were reused.
+     * Every failed file is printed with the reason of its failure.
+     *
+     * @param jobs       are all jobs of this run.
+     * @param wallNanos  is the number of nanoseconds the whole run took.
+     */
+    private void displaySummary(List<FileJob> jobs, long wallNanos) {
+        long bytesIn = 0;
+        long bytesOut = 0;
+        int failures = 0;
+        for (FileJob job : jobs) {
+            if (job.isSuccessful()) {
+                bytesIn += job.bytesIn;
+                bytesOut += job.bytesOut;
+            } else {
+                failures++;
+                System.out.println("- FAILED " + job.IN_FILE + ": " + job.error.getMessage());
+            }
+        }
+        double seconds = wallNanos / NANOS_IN_SEC;
+        System.out.println("- Processed " + (jobs.size() - failures) + " file(s), failed " + failures);
+        System.out.println("- Bytes in: " + bytesIn + ", bytes out: " + bytesOut);
+        System.out.println("- Throughput: " + String.format("%.2f", seconds > 0 ? bytesIn / BYTES_IN_MB / seconds : 0)
+                + " Mb/s, " + String.format("%.2f", seconds > 0 ? (jobs.size() - failures) / seconds : 0) + " file(s)/s");
+        if (ARCHIVE_OPERATION && OPTIONS.cache != null) {
+            System.out.println("- " + OPTIONS.cache.describe());
+        }
+        if (!ARCHIVE_OPERATION) {
+            System.out.println("- " + Unarchiver.DECODE_TABLES.describe());
+            System.out.println("- " + ArchiveHeader.CODE_TABLES.describe());
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+/**
+ * Reads bits from a part of a byte array (the first bit of a byte is its highest
+ * bit) and decodes them with a code table. Up to 64 bits are kept in a number,
+ * so most codes are decoded with one look into the lookup table of the CodeTable
+ * and only long codes need walking the tree bit by bit.
+ * <p>
+ * Several readers working on different parts of the same array do not depend
+ * on each other, so a decoder can decode several of them in one loop.
+ */
+public class BitReader {
+
+    /**
+     * The number of bits after which the reader refills the buffer: there is
+     * always room for one more byte when the buffer has at most this many bits.
+     */
+    private static final int REFILL_LIMIT = Long.SIZE - Byte.SIZE;
+
+    /**
+     * The array with encoded bytes.
+     */
+    private byte[] data;
+
+    /**
+     * The index of the next byte to be read from the data array.
+     */
+    private int position;
+
+    /**
+     * The index after the last byte this reader may read.
+     */
+    private int end;
+
+    /**
+     * Bits read from data but not decoded yet. The next bit is the highest bit.
+     */
+    private long buffer = 0;
+
+    /**
+     * The number of meaningful bits in the buffer.
+     */
+    private int bufferBits = 0;
+
+    /**
+     * Creates a reader of a part of an array.
+     *
+     * @param data   is the array with encoded bytes.
+     * @param offset is the index of the first byte of the part.
+     * @param length is the number of bytes in the part.
+     */
+    public BitReader(byte[] data, int offset, int length) {
+        reset(data, offset, length);
+    }
+
+    /**
+     * Makes the reader read another part of an array from its beginning, so
+     * that one reader can be used for many bitstreams.
+     *
+     * @param data   is the array with encoded bytes.
+     * @param offset is the index of the first byte of the part.
+     * @param length is the number of bytes in the part.
+     */
+    protected void reset(byte[] data, int offset, int length) {
+        this.data = data;
+        this.position = offset;
+        this.end = offset + length;
+        this.buffer = 0;
+        this.bufferBits = 0;
+    }
+
+    /**
+     * Decodes one byte. The code of this byte shall be fully stored in the part
+     * of the array this reader reads (the zeros after the end of the part are
+     * used only to look the code up, never as a part of it).
+     *
+     * @param table is the table with the codes.
+     * @return the decoded byte as an int (0 - 255).
+     */
+    protected int decode(CodeTable table) {
+        if (bufferBits <= REFILL_LIMIT) {
+            refill();
+        }
+        int lookupBits = table.getLookupBits();
+        int entry = table.lookup((int) (buffer >>> (Long.SIZE - lookupBits)));
+        if (entry >= 0) {
+            int length = entry >>> Byte.SIZE;
+            buffer <<= length;
+            bufferBits -= length;
+            return entry & 0xFF;
+        }
+        buffer <<= lookupBits;
+        bufferBits -= lookupBits;
+        int node = -entry - 1;
+        while (true) {
+            if (bufferBits == 0) {
+                refill();
+            }
+            int bit = (int) (buffer >>> (Long.SIZE - 1));
+            buffer <<= 1;
+            bufferBits--;
+            node = table.getChild(node, bit);
+            if (node < 0) {
+                return -node - 1;
+            }
+        }
+    }
+
+    /**
+     * Reads several bits as a number, the first bit being the highest one.
+     *
+     * @param count is the number of bits to read (0 - 32).
+     * @return the number made of these bits.
+     */
+    protected int readBits(int count) {
+        if (count == 0) {
+            return 0;
+        }
+        if (bufferBits < count) {
+            refill();
+        }
+        int value = (int) (buffer >>> (Long.SIZE - count));
+        buffer <<= count;
+        bufferBits -= count;
+        return value;
+    }
+
+    /**
+     * Says whether the reader consumed exactly all bits of its part except
+     * the padding bits of the last byte.
+     *
+     * @return true if less than 8 unread bits are left.
+     */
+    protected boolean isExhausted() {
+        return position == end && bufferBits >= 0 && bufferBits < Byte.SIZE;
+    }
+
+    /**
+     * Moves whole bytes from the array to the buffer while there is room for them.
+     */
+    private void refill() {
+        while (bufferBits <= REFILL_LIMIT && position < end) {
+            buffer |= (long) (data[position++] & 0xFF) << (REFILL_LIMIT - bufferBits);
+            bufferBits += Byte.SIZE;
+        }
+    }
+}
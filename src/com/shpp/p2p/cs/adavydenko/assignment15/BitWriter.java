@@ -0,0 +1,114 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+import java.util.Arrays;
+
+/**
+ * Writes codes bit by bit to a byte array the same way the Archiver does:
+ * the first bit of a code goes to the highest free bit of the current byte.
+ * Unlike the Archiver, it keeps the bits in a number (not in a queue of
+ * Byte objects), so writing a code costs a couple of shifts.
+ */
+public class BitWriter {
+
+    /**
+     * The maximum number of bits added to the accumulator at once.
+     */
+    private static final int MAX_BITS_AT_ONCE = 32;
+
+    /**
+     * The bytes written so far.
+     */
+    private byte[] data;
+
+    /**
+     * The number of bytes written to the data array.
+     */
+    private int length = 0;
+
+    /**
+     * Bits that do not make up a whole byte yet. The lowest accumulatorBits
+     * bits of this number are meaningful.
+     */
+    private long accumulator = 0;
+
+    /**
+     * The number of meaningful bits in the accumulator (always less than 8
+     * between the calls).
+     */
+    private int accumulatorBits = 0;
+
+    /**
+     * Creates a writer.
+     *
+     * @param capacity is the expected number of bytes. The array grows if needed.
+     */
+    public BitWriter(int capacity) {
+        this.data = new byte[Math.max(1, capacity)];
+    }
+
+    /**
+     * Writes a code.
+     *
+     * @param code   has the code bits as its lowest bits.
+     * @param length is the number of bits in the code.
+     */
+    protected void write(long code, int length) {
+        if (length > MAX_BITS_AT_ONCE) {
+            write(code >>> MAX_BITS_AT_ONCE, length - MAX_BITS_AT_ONCE);
+            code &= 0xFFFFFFFFL;
+            length = MAX_BITS_AT_ONCE;
+        }
+        accumulator = (accumulator << length) | code;
+        accumulatorBits += length;
+        while (accumulatorBits >= Byte.SIZE) {
+            accumulatorBits -= Byte.SIZE;
+            if (this.length == data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            data[this.length++] = (byte) (accumulator >>> accumulatorBits);
+        }
+    }
+
+    /**
+     * Writes the bits left in the accumulator as the last byte. The free
+     * bits of this byte are zeros.
+     *
+     * @return the number of meaningful bits in the last byte (8 if all bits
+     * fit in whole bytes).
+     */
+    protected int flush() {
+        if (accumulatorBits == 0) {
+            return Byte.SIZE;
+        }
+        int meaningfulBits = accumulatorBits;
+        write(0, Byte.SIZE - accumulatorBits);
+        return meaningfulBits;
+    }
+
+    /**
+     * Provides the array with the written bytes.
+     *
+     * @return the array. Only the first getLength() bytes are meaningful.
+     */
+    protected byte[] getData() {
+        return data;
+    }
+
+    /**
+     * Provides the number of whole bytes written so far.
+     *
+     * @return the number of meaningful bytes in the array.
+     */
+    protected int getLength() {
+        return length;
+    }
+
+    /**
+     * Forgets everything written so far, so the writer can be used again.
+     */
+    protected void reset() {
+        length = 0;
+        accumulator = 0;
+        accumulatorBits = 0;
+    }
+}
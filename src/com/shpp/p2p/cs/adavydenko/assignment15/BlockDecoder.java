@@ -0,0 +1,228 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Reads archives in the block format (see the ParFormat class). Every block is
+ * read completely and its bitstreams are decoded in one loop: one byte from every
+ * bitstream per iteration. Since the bitstreams do not depend on each other, the
+ * CPU decodes the next bytes of all of them at the same time.
+ */
+public class BlockDecoder {
+
+    /**
+     * The number of bitstreams decoded by the fast interleaved loop.
+     */
+    private static final int INTERLEAVED_STREAMS = 4;
+
+    /**
+     * The maximum length of a code the fast interleaved loop can decode: a code
+     * shall fit in the bits a bit buffer has right after it is refilled.
+     */
+    protected static final int MAX_FAST_CODE_LENGTH = Long.SIZE - Byte.SIZE + 1;
+
+    /**
+     * Reads the header and all blocks of an archive and writes the decoded bytes.
+     * Blocks of the FSE coder are decoded by the FseDecoder.
+     *
+     * @param in  is the stream reading the archive.
+     * @param out is the stream writing the unarchived file.
+     * @return the number of decoded bytes.
+     */
+    protected long decode(DataInputStream in, OutputStream out) throws IOException {
+        BlockReader reader = new BlockReader(in);
+        byte[] payload = null;
+        byte[] output = new byte[reader.FORMAT.BLOCK_SIZE];
+        BlockReader.Block block;
+        while ((block = reader.next(payload)) != null) {
+            payload = block.getPayload();
+            block.decode(output);
+            out.write(output, 0, block.RAW_LENGTH);
+        }
+        return reader.FORMAT.ORIGINAL_SIZE;
+    }
+
+    /**
+     * Decodes all bitstreams of one block.
+     *
+     * @param table         are the codes of the archive.
+     * @param streams       is the number of bitstreams in the block.
+     * @param payload       is an array with the jump table and the bitstreams.
+     * @param payloadLength is the number of meaningful bytes in the payload array.
+     * @param output        is an array the decoded bytes shall be written to.
+     * @param rawLength     is the number of original bytes in the block.
+     */
+    protected static void decodeBlock(CodeTable table, int streams, byte[] payload, int payloadLength,
+                                      byte[] output, int rawLength) {
+        // The readers are created in any case, since creating them checks the jump table
+        BitReader[] readers = createReaders(streams, payload, payloadLength);
+        if (streams == INTERLEAVED_STREAMS && table.getMaxLength() <= MAX_FAST_CODE_LENGTH) {
+            decodeInterleaved(table, payload, payloadLength, output, rawLength);
+            return;
+        }
+        for (int i = 0; i < rawLength; i++) {
+            output[i] = (byte) readers[i % streams].decode(table);
+        }
+        for (BitReader reader : readers) {
+            if (!reader.isExhausted()) {
+                throw new ArchiveException("Corrupted block: the bitstream length does not match its content");
+            }
+        }
+    }
+
+    /**
+     * Decodes a block with four bitstreams. The state of every bitstream (its bit
+     * buffer, the number of bits in it and its position) is kept in local variables,
+     * so the four decodings of one iteration are four independent chains of
+     * instructions the CPU can run at the same time.
+     *
+     * @param table         are the codes of the archive.
+     * @param payload       is an array with the jump table and the bitstreams.
+     * @param payloadLength is the number of meaningful bytes in the payload array.
+     * @param output        is an array the decoded bytes shall be written to.
+     * @param rawLength     is the number of original bytes in the block.
+     */
+    private static void decodeInterleaved(CodeTable table, byte[] payload, int payloadLength,
+                                          byte[] output, int rawLength) {
+        final int REFILL_LIMIT = Long.SIZE - Byte.SIZE;
+        int lookupShift = Long.SIZE - table.getLookupBits();
+        int jumpTableLength = Integer.BYTES * (INTERLEAVED_STREAMS - 1);
+        int pos0 = jumpTableLength;
+        int end0 = pos0 + readInt(payload, 0);
+        int pos1 = end0;
+        int end1 = pos1 + readInt(payload, Integer.BYTES);
+        int pos2 = end1;
+        int end2 = pos2 + readInt(payload, 2 * Integer.BYTES);
+        int pos3 = end2;
+        int end3 = payloadLength;
+        long buf0 = 0, buf1 = 0, buf2 = 0, buf3 = 0;
+        int bits0 = 0, bits1 = 0, bits2 = 0, bits3 = 0;
+
+        int i = 0;
+        while (i < rawLength) {
+            while (bits0 <= REFILL_LIMIT && pos0 < end0) {
+                buf0 |= (long) (payload[pos0++] & 0xFF) << (REFILL_LIMIT - bits0);
+                bits0 += Byte.SIZE;
+            }
+            while (bits1 <= REFILL_LIMIT && pos1 < end1) {
+                buf1 |= (long) (payload[pos1++] & 0xFF) << (REFILL_LIMIT - bits1);
+                bits1 += Byte.SIZE;
+            }
+            while (bits2 <= REFILL_LIMIT && pos2 < end2) {
+                buf2 |= (long) (payload[pos2++] & 0xFF) << (REFILL_LIMIT - bits2);
+                bits2 += Byte.SIZE;
+            }
+            while (bits3 <= REFILL_LIMIT && pos3 < end3) {
+                buf3 |= (long) (payload[pos3++] & 0xFF) << (REFILL_LIMIT - bits3);
+                bits3 += Byte.SIZE;
+            }
+            // After a refill every buffer holds at least 57 bits (or the rest of its
+            // bitstream), so several codes can be decoded before the next refill
+            int codesBeforeRefill = Math.max(1, (REFILL_LIMIT + 1) / table.getMaxLength());
+            for (int c = 0; c < codesBeforeRefill && i < rawLength; c++) {
+                long entry0 = decodeFromBuffer(table, buf0, lookupShift);
+                int length0 = (int) (entry0 >>> Byte.SIZE);
+                buf0 <<= length0;
+                bits0 -= length0;
+                output[i++] = (byte) entry0;
+                if (i == rawLength) {
+                    break;
+                }
+                long entry1 = decodeFromBuffer(table, buf1, lookupShift);
+                int length1 = (int) (entry1 >>> Byte.SIZE);
+                buf1 <<= length1;
+                bits1 -= length1;
+                output[i++] = (byte) entry1;
+                if (i == rawLength) {
+                    break;
+                }
+                long entry2 = decodeFromBuffer(table, buf2, lookupShift);
+                int length2 = (int) (entry2 >>> Byte.SIZE);
+                buf2 <<= length2;
+                bits2 -= length2;
+                output[i++] = (byte) entry2;
+                if (i == rawLength) {
+                    break;
+                }
+                long entry3 = decodeFromBuffer(table, buf3, lookupShift);
+                int length3 = (int) (entry3 >>> Byte.SIZE);
+                buf3 <<= length3;
+                bits3 -= length3;
+                output[i++] = (byte) entry3;
+            }
+        }
+        if (pos0 != end0 || pos1 != end1 || pos2 != end2 || pos3 != end3
+                || !isPadding(bits0) || !isPadding(bits1) || !isPadding(bits2) || !isPadding(bits3)) {
+            throw new ArchiveException("Corrupted block: the bitstream length does not match its content");
+        }
+    }
+
+    /**
+     * Decodes one code from the highest bits of a bit buffer.
+     *
+     * @param table       are the codes of the archive.
+     * @param buffer      has the next bits of a bitstream as its highest bits.
+     * @param lookupShift is the shift that leaves only the lookup bits of the buffer.
+     * @return the length of the code (bits 8 and higher) and the decoded byte (the lowest 8 bits).
+     */
+    protected static long decodeFromBuffer(CodeTable table, long buffer, int lookupShift) {
+        int entry = table.lookup((int) (buffer >>> lookupShift));
+        if (entry >= 0) {
+            return entry;
+        }
+        int length = Long.SIZE - lookupShift;
+        int node = -entry - 1;
+        while (node >= 0) {
+            node = table.getChild(node, (int) ((buffer << length) >>> (Long.SIZE - 1)));
+            length++;
+        }
+        return ((long) length << Byte.SIZE) | (-node - 1);
+    }
+
+    /**
+     * Says whether the bits left in a bit buffer are just the padding of the last byte.
+     *
+     * @param bits is the number of bits left in the buffer.
+     * @return true if less than a byte is left.
+     */
+    private static boolean isPadding(int bits) {
+        return bits >= 0 && bits < Byte.SIZE;
+    }
+
+    /**
+     * Creates a reader for every bitstream using the jump table.
+     *
+     * @param streams       is the number of bitstreams in the block.
+     * @param payload       is an array with the jump table and the bitstreams.
+     * @param payloadLength is the number of meaningful bytes in the payload array.
+     * @return one reader for every bitstream.
+     */
+    private static BitReader[] createReaders(int streams, byte[] payload, int payloadLength) {
+        BitReader[] readers = new BitReader[streams];
+        int jumpTableLength = Integer.BYTES * (streams - 1);
+        int offset = jumpTableLength;
+        for (int s = 0; s < streams; s++) {
+            int length = s < streams - 1 ? readInt(payload, s * Integer.BYTES) : payloadLength - offset;
+            if (length < 0 || offset + length > payloadLength) {
+                throw new ArchiveException("Corrupted block: wrong bitstream lengths");
+            }
+            readers[s] = new BitReader(payload, offset, length);
+            offset += length;
+        }
+        return readers;
+    }
+
+    /**
+     * Reads an int (4 bytes, the highest byte first) from an array.
+     *
+     * @param array  is any array.
+     * @param offset is the index of the first byte of the int.
+     * @return the int.
+     */
+    protected static int readInt(byte[] array, int offset) {
+        return ((array[offset] & 0xFF) << 24) | ((array[offset + 1] & 0xFF) << 16)
+                | ((array[offset + 2] & 0xFF) << 8) | (array[offset + 3] & 0xFF);
+    }
+}
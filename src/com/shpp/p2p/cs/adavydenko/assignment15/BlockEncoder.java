@@ -0,0 +1,256 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Writes archives in the block format (see the ParFormat class). The input is
+ * read block by block, and the bytes of every block are spread over several
+ * independent bitstreams in turn. A decoder can then decode one byte from every
+ * bitstream in the same loop: those decodings do not wait for each other, so the
+ * CPU runs them at the same time instead of one after another.
+ * <p>
+ * In the adaptive mode (FLAG_ADAPTIVE) there is no code table for the whole
+ * file. The input is read in segments, and every segment is either added to
+ * the current block or starts a new one, whatever takes less bits. Every block
+ * then gets the codes of its own bytes or repeats the codes of the previous
+ * block if they are cheaper than writing a new table.
+ */
+public class BlockEncoder {
+
+    /**
+     * The number of original bytes the adaptive mode looks at before it decides
+     * whether the statistics of bytes changed.
+     */
+    private static final int SEGMENT_SIZE = 64 * 1024;
+
+    /**
+     * The description of the archive being written.
+     */
+    private final ParFormat FORMAT;
+
+    /**
+     * The codes used to encode bytes. In the adaptive mode they are the codes
+     * of the previous block.
+     */
+    private CodeTable table;
+
+    /**
+     * The code table in the form it is stored in the archive.
+     */
+    private final byte[] TABLE_BYTES;
+
+    /**
+     * One writer for every bitstream. They are used again for every block.
+     */
+    private final BitWriter[] WRITERS;
+
+    /**
+     * Creates an encoder.
+     *
+     * @param format     is the description of the archive to be written.
+     * @param table      are the codes used to encode bytes.
+     * @param tableBytes is the code table in the form it is stored in the archive.
+     */
+    public BlockEncoder(ParFormat format, CodeTable table, byte[] tableBytes) {
+        this.FORMAT = format;
+        this.table = table;
+        this.TABLE_BYTES = tableBytes;
+        this.WRITERS = new BitWriter[format.STREAMS];
+        int maxLength = table == null ? Byte.SIZE : table.getMaxLength();
+        int expectedStreamLength = (int) Math.min(Integer.MAX_VALUE / 2,
+                (long) format.BLOCK_SIZE / format.STREAMS * maxLength / Byte.SIZE + Byte.SIZE);
+        for (int i = 0; i < WRITERS.length; i++) {
+            WRITERS[i] = new BitWriter(expectedStreamLength);
+        }
+    }
+
+    /**
+     * Creates an encoder for the adaptive mode: every block gets its own codes.
+     *
+     * @param format is the description of the archive to be written. FLAG_ADAPTIVE shall be set.
+     */
+    public BlockEncoder(ParFormat format) {
+        this(format, null, null);
+    }
+
+    /**
+     * Writes the header and all blocks of the archive.
+     *
+     * @param in  is the stream reading the original file.
+     * @param out is the stream writing the archive.
+     */
+    protected void encode(InputStream in, DataOutputStream out) throws IOException {
+        FORMAT.write(out);
+        if (!FORMAT.hasFlag(ParFormat.FLAG_ADAPTIVE)) {
+            out.write(TABLE_BYTES);
+        }
+        encodeBlocks(in, out);
+    }
+
+    /**
+     * Writes the blocks only, without the header. Is also used to add blocks
+     * to the end of an existing archive (see the ArchiveAppender class): in the
+     * adaptive mode the first of them always gets a new code table.
+     *
+     * @param in  is the stream reading the original bytes.
+     * @param out is the stream writing the archive.
+     */
+    protected void encodeBlocks(InputStream in, DataOutputStream out) throws IOException {
+        if (FORMAT.hasFlag(ParFormat.FLAG_ADAPTIVE)) {
+            encodeAdaptive(in, out);
+            return;
+        }
+        byte[] block = new byte[FORMAT.BLOCK_SIZE];
+        int len;
+        while ((len = in.readNBytes(block, 0, block.length)) > 0) {
+            encodeBlock(block, len);
+            writeBlock(block, len, out);
+        }
+    }
+
+    /**
+     * Reads the input segment by segment and cuts a block every time the bytes
+     * of a new segment are encoded better with codes of their own (including
+     * the cost of writing those codes) than together with the current block.
+     *
+     * @param in  is the stream reading the original file.
+     * @param out is the stream writing the archive.
+     */
+    private void encodeAdaptive(InputStream in, DataOutputStream out) throws IOException {
+        byte[] block = new byte[FORMAT.BLOCK_SIZE];
+        byte[] segment = new byte[Math.min(SEGMENT_SIZE, FORMAT.BLOCK_SIZE)];
+        long[] blockCounts = new long[CodeTable.BYTE_ENCODE_CAPACITY];
+        long[] segmentCounts = new long[CodeTable.BYTE_ENCODE_CAPACITY];
+        int blockLength = 0;
+        int len;
+        while ((len = in.readNBytes(segment, 0, segment.length)) > 0) {
+            Arrays.fill(segmentCounts, 0);
+            for (int i = 0; i < len; i++) {
+                segmentCounts[segment[i] & 0xFF]++;
+            }
+            if (blockLength > 0 && (blockLength + len > block.length || isBetterApart(blockCounts, segmentCounts))) {
+                writeAdaptiveBlock(block, blockLength, blockCounts, out);
+                blockLength = 0;
+                Arrays.fill(blockCounts, 0);
+            }
+            System.arraycopy(segment, 0, block, blockLength, len);
+            blockLength += len;
+            for (int i = 0; i < blockCounts.length; i++) {
+                blockCounts[i] += segmentCounts[i];
+            }
+        }
+        if (blockLength > 0) {
+            writeAdaptiveBlock(block, blockLength, blockCounts, out);
+        }
+    }
+
+    /**
+     * Says whether a segment takes less bits as a separate block with its own
+     * codes than as a part of the current block.
+     *
+     * @param blockCounts   are the frequencies of bytes in the current block.
+     * @param segmentCounts are the frequencies of bytes in the new segment.
+     * @return true if a new block shall be started.
+     */
+    private static boolean isBetterApart(long[] blockCounts, long[] segmentCounts) {
+        long[] mergedCounts = new long[blockCounts.length];
+        for (int i = 0; i < mergedCounts.length; i++) {
+            mergedCounts[i] = blockCounts[i] + segmentCounts[i];
+        }
+        long together = getCostInBits(mergedCounts);
+        long apart = getCostInBits(blockCounts) + getCostInBits(segmentCounts);
+        return apart < together;
+    }
+
+    /**
+     * Counts the bits needed to store bytes with their own codes, including
+     * the table of those codes and the fields of a block.
+     *
+     * @param counts are the frequencies of the bytes.
+     * @return the number of bits.
+     */
+    private static long getCostInBits(long[] counts) {
+        CodeTable codes = CodeTable.fromCounts(counts);
+        long overhead = 1 + ParFormat.BLOCK_HEADER_LENGTH + codes.toTableBytes().length;
+        return codes.getEncodedBits(counts) + overhead * Byte.SIZE;
+    }
+
+    /**
+     * Writes one block of the adaptive mode. It starts with a byte saying
+     * whether a new code table follows or the table of the previous block
+     * is used again. The previous table is used if it costs less bits than
+     * the new table together with its description.
+     *
+     * @param block       is an array with the original bytes.
+     * @param blockLength is the number of bytes in the block.
+     * @param counts      are the frequencies of the bytes in the block.
+     * @param out         is the stream writing the archive.
+     */
+    private void writeAdaptiveBlock(byte[] block, int blockLength, long[] counts,
+                                    DataOutputStream out) throws IOException {
+        CodeTable ownTable = CodeTable.fromCounts(counts);
+        byte[] ownTableBytes = ownTable.toTableBytes();
+        long ownCost = ownTable.getEncodedBits(counts) + (long) ownTableBytes.length * Byte.SIZE;
+        if (table != null && table.getEncodedBits(counts) <= ownCost) {
+            out.writeByte(ParFormat.REPEAT_TABLE);
+        } else {
+            out.writeByte(ParFormat.NEW_TABLE);
+            out.write(ownTableBytes);
+            table = ownTable;
+        }
+        encodeBlock(block, blockLength);
+        writeBlock(block, blockLength, out);
+    }
+
+    /**
+     * Encodes the bytes of one block: byte i goes to the bitstream i % STREAMS.
+     *
+     * @param block is an array with the original bytes.
+     * @param len   is the number of bytes in the block.
+     */
+    private void encodeBlock(byte[] block, int len) {
+        for (BitWriter writer : WRITERS) {
+            writer.reset();
+        }
+        int streams = WRITERS.length;
+        for (int i = 0; i < len; i++) {
+            int value = block[i] & 0xFF;
+            WRITERS[i % streams].write(table.getCode(value), table.getLength(value));
+        }
+        for (BitWriter writer : WRITERS) {
+            writer.flush();
+        }
+    }
+
+    /**
+     * Writes the fields of a block, the lengths of the bitstreams (the jump
+     * table) and the bitstreams themselves.
+     *
+     * @param block     is an array with the original bytes (for the checksum).
+     * @param rawLength is the number of original bytes in the block.
+     * @param out       is the stream writing the archive.
+     */
+    private void writeBlock(byte[] block, int rawLength, DataOutputStream out) throws IOException {
+        long payloadLength = (long) Integer.BYTES * (WRITERS.length - 1);
+        for (BitWriter writer : WRITERS) {
+            payloadLength += writer.getLength();
+        }
+        if (payloadLength > Integer.MAX_VALUE) {
+            throw new ArchiveException("The block is too big: " + payloadLength + " bytes");
+        }
+        out.writeInt(rawLength);
+        out.writeInt((int) payloadLength);
+        if (FORMAT.hasFlag(ParFormat.FLAG_CRC32C)) {
+            out.writeInt(ParFormat.checksum(block, rawLength));
+        }
+        for (int i = 0; i < WRITERS.length - 1; i++) {
+            out.writeInt(WRITERS[i].getLength());
+        }
+        for (BitWriter writer : WRITERS) {
+            out.write(writer.getData(), 0, writer.getLength());
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+
+/**
+ * Reads the header and the blocks of an archive in the block format (see the
+ * ParFormat class) without decoding them. Every block is returned with the code
+ * table it needs, so blocks can be decoded one after another or at the same time
+ * in different threads.
+ */
+public class BlockReader {
+
+    /**
+     * The description of the archive.
+     */
+    protected final ParFormat FORMAT;
+
+    /**
+     * The stream reading the archive.
+     */
+    private final DataInputStream IN;
+
+    /**
+     * The tables of the FSE coder if the archive uses it, null otherwise.
+     */
+    private final FseTable FSE_TABLE;
+
+    /**
+     * The Huffman codes of the last read block (null for archives of the FSE coder).
+     */
+    private CodeTable codeTable;
+
+    /**
+     * The number of original bytes in the blocks not read yet.
+     */
+    private long remaining;
+
+    /**
+     * The number of blocks read so far.
+     */
+    private int blocksRead = 0;
+
+    /**
+     * The checksum of the block passed by the last call of skip.
+     */
+    private int lastChecksum = 0;
+
+    /**
+     * Reads the header of an archive.
+     *
+     * @param in is the stream reading the archive from its first byte.
+     */
+    public BlockReader(DataInputStream in) throws IOException {
+        this.IN = in;
+        this.FORMAT = ParFormat.read(in);
+        this.remaining = FORMAT.ORIGINAL_SIZE;
+        if (FORMAT.hasFlag(ParFormat.FLAG_FSE)) {
+            FSE_TABLE = FseTable.read(in);
+        } else {
+            FSE_TABLE = null;
+            codeTable = FORMAT.hasFlag(ParFormat.FLAG_ADAPTIVE) ? null : ParFormat.readTable(in);
+        }
+    }
+
+    /**
+     * Reads the next block.
+     *
+     * @param payload is an array the payload may be read to. A new array is
+     *                created if it is null or too small.
+     * @return the block or null if all blocks were read.
+     */
+    protected Block next(byte[] payload) throws IOException {
+        if (remaining == 0) {
+            return null;
+        }
+        if (FORMAT.hasFlag(ParFormat.FLAG_ADAPTIVE)) {
+            codeTable = readBlockTable();
+        }
+        int rawLength = IN.readInt();
+        int payloadLength = IN.readInt();
+        int checksum = FORMAT.hasFlag(ParFormat.FLAG_CRC32C) ? IN.readInt() : 0;
+        checkBlock(rawLength, payloadLength);
+        if (payload == null || payload.length < payloadLength) {
+            payload = new byte[payloadLength];
+        }
+        IN.readFully(payload, 0, payloadLength);
+        remaining -= rawLength;
+        return new Block(this, blocksRead++, codeTable, rawLength, payload, payloadLength, checksum);
+    }
+
+    /**
+     * Reads the fields of the next block and skips its payload without reading
+     * it, so the end of the blocks is found without reading the whole archive.
+     *
+     * @return the number of original bytes in the block or 0 if all blocks were read.
+     */
+    protected int skip() throws IOException {
+        if (remaining == 0) {
+            return 0;
+        }
+        if (FORMAT.hasFlag(ParFormat.FLAG_ADAPTIVE)) {
+            codeTable = readBlockTable();
+        }
+        int rawLength = IN.readInt();
+        int payloadLength = IN.readInt();
+        lastChecksum = FORMAT.hasFlag(ParFormat.FLAG_CRC32C) ? IN.readInt() : 0;
+        checkBlock(rawLength, payloadLength);
+        IN.skipNBytes(payloadLength);
+        remaining -= rawLength;
+        blocksRead++;
+        return rawLength;
+    }
+
+    /**
+     * Provides the checksum of the block passed by the last call of skip.
+     *
+     * @return the CRC32C checksum of its original bytes (0 if the archive has no checksums).
+     */
+    protected int getLastChecksum() {
+        return lastChecksum;
+    }
+
+    /**
+     * Provides the Huffman codes of the last read block. For archives that are
+     * not adaptive those are the codes of the whole archive.
+     *
+     * @return the codes or null for archives of the FSE coder and adaptive archives with no blocks.
+     */
+    protected CodeTable getCodeTable() {
+        return codeTable;
+    }
+
+    /**
+     * Reads the byte before a block of the adaptive mode and the new code table if it follows.
+     *
+     * @return the code table of the block.
+     */
+    private CodeTable readBlockTable() throws IOException {
+        int tableMode = IN.readUnsignedByte();
+        if (tableMode == ParFormat.NEW_TABLE) {
+            return ParFormat.readTable(IN);
+        }
+        if (tableMode != ParFormat.REPEAT_TABLE || codeTable == null) {
+            throw new ArchiveException("Corrupted block: wrong code table mode " + tableMode);
+        }
+        return codeTable;
+    }
+
+    /**
+     * Checks the fields of a block before its payload is read.
+     *
+     * @param rawLength     is the number of original bytes in the block.
+     * @param payloadLength is the number of bytes of the block that follow.
+     */
+    private void checkBlock(int rawLength, int payloadLength) {
+        if (rawLength < 1 || rawLength > FORMAT.BLOCK_SIZE || rawLength > remaining
+                || payloadLength < Integer.BYTES * (FORMAT.STREAMS - 1)) {
+            throw new ArchiveException("Corrupted block " + blocksRead + ": "
+                    + rawLength + " bytes in " + payloadLength + " bytes");
+        }
+    }
+
+    /**
+     * One block read from an archive, ready to be decoded.
+     */
+    protected static class Block {
+
+        /**
+         * The reader that read this block.
+         */
+        private final BlockReader READER;
+
+        /**
+         * The number of the block in the archive (0 is the first one).
+         */
+        protected final int NUMBER;
+
+        /**
+         * The Huffman codes of the block (null for archives of the FSE coder).
+         */
+        private final CodeTable CODE_TABLE;
+
+        /**
+         * The number of original bytes in the block.
+         */
+        protected final int RAW_LENGTH;
+
+        /**
+         * The array with the payload of the block.
+         */
+        private final byte[] PAYLOAD;
+
+        /**
+         * The number of meaningful bytes in the PAYLOAD array.
+         */
+        protected final int PAYLOAD_LENGTH;
+
+        /**
+         * The CRC32C checksum of the original bytes (0 if the archive has no checksums).
+         */
+        private final int CHECKSUM;
+
+        /**
+         * Creates a block.
+         *
+         * @param reader        is the reader that read this block.
+         * @param number        is the number of the block in the archive.
+         * @param codeTable     are the Huffman codes of the block.
+         * @param rawLength     is the number of original bytes in the block.
+         * @param payload       is the array with the payload of the block.
+         * @param payloadLength is the number of meaningful bytes in the payload array.
+         * @param checksum      is the checksum of the original bytes.
+         */
+        Block(BlockReader reader, int number, CodeTable codeTable, int rawLength,
+              byte[] payload, int payloadLength, int checksum) {
+            this.READER = reader;
+            this.NUMBER = number;
+            this.CODE_TABLE = codeTable;
+            this.RAW_LENGTH = rawLength;
+            this.PAYLOAD = payload;
+            this.PAYLOAD_LENGTH = payloadLength;
+            this.CHECKSUM = checksum;
+        }
+
+        /**
+         * Provides the array with the payload, so that it can be used again for the next block.
+         *
+         * @return the array with the payload.
+         */
+        protected byte[] getPayload() {
+            return PAYLOAD;
+        }
+
+        /**
+         * Decodes the block and compares the checksum of the decoded bytes with
+         * the one stored in the archive.
+         *
+         * @param output is an array the decoded bytes shall be written to.
+         */
+        protected void decode(byte[] output) {
+            ParFormat format = READER.FORMAT;
+            if (READER.FSE_TABLE != null) {
+                FseDecoder.decodeBlock(READER.FSE_TABLE, PAYLOAD, PAYLOAD_LENGTH, output, RAW_LENGTH);
+            } else {
+                BlockDecoder.decodeBlock(CODE_TABLE, format.STREAMS, PAYLOAD, PAYLOAD_LENGTH, output, RAW_LENGTH);
+            }
+            if (format.hasFlag(ParFormat.FLAG_CRC32C) && ParFormat.checksum(output, RAW_LENGTH) != CHECKSUM) {
+                throw new ArchiveException("Corrupted block " + NUMBER + ": the checksum does not match");
+            }
+        }
+    }
+}
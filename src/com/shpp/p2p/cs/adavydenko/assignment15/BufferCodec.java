@@ -0,0 +1,340 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compresses data that is already in memory, from one ByteBuffer to another.
+ * The buffers may be heap or direct ones: bytes are read from the source and
+ * written to the destination right where they are, without copying them to
+ * arrays in between.
+ * <p>
+ * Every compressed payload describes itself, so it can be decompressed on its
+ * own. Its header is kept short for small payloads:
+ * --- the mode (1 byte): STORED if the bytes follow as they are, HUFFMAN if
+ * they are encoded
+ * --- the number of original bytes (1 - 5 bytes, 7 bits in every byte, the
+ * highest bit says whether another byte follows)
+ * --- only for HUFFMAN: the code table in the form of the header of the original
+ * format (see the ArchiveHeader class) without the byte of meaningful bits in the
+ * last byte, since the number of original bytes tells where the bitstream ends
+ * --- the bytes or the bitstream
+ * <p>
+ * The size of the encoded bytes is counted before anything is written, and the
+ * payload is stored as it is if encoding does not make it shorter. That is why
+ * a compressed payload is never longer than maxCompressedLength says.
+ */
+public class BufferCodec {
+
+    /**
+     * The mode of a payload whose bytes are stored as they are.
+     */
+    protected static final int STORED = 0;
+
+    /**
+     * The mode of a payload whose bytes are encoded with Huffman codes.
+     */
+    protected static final int HUFFMAN = 1;
+
+    /**
+     * The maximum number of bytes of the number of original bytes.
+     */
+    private static final int MAX_LENGTH_BYTES = 5;
+
+    /**
+     * The bits of a byte of the number of original bytes that keep the number itself.
+     */
+    private static final int LENGTH_BITS_PER_BYTE = 7;
+
+    /**
+     * The bit of a byte of the number of original bytes saying that another byte follows.
+     */
+    private static final int MORE_BYTES_BIT = 0x80;
+
+    /**
+     * The maximum number of bits added to the accumulator at once.
+     */
+    private static final int MAX_BITS_AT_ONCE = 32;
+
+    /**
+     * The number of bits after which the decoder reads one more byte.
+     */
+    private static final int REFILL_LIMIT = Long.SIZE - Byte.SIZE;
+
+    /**
+     * Says how long a compressed payload may be at most, so that the destination
+     * buffer can be made big enough before compressing.
+     *
+     * @param sourceLength is the number of bytes to be compressed.
+     * @return the maximum number of bytes of the compressed payload.
+     */
+    public static int maxCompressedLength(int sourceLength) {
+        return 1 + getLengthBytes(sourceLength) + sourceLength;
+    }
+
+    /**
+     * Compresses all remaining bytes of the source. The position of the source
+     * moves to its limit and the position of the destination moves after the
+     * compressed payload.
+     *
+     * @param src is the buffer with the bytes to be compressed.
+     * @param dst is the buffer the compressed payload shall be written to.
+     * @return the number of bytes of the compressed payload.
+     */
+    public static int compress(ByteBuffer src, ByteBuffer dst) {
+        long startNanos = System.nanoTime();
+        int sourceLength = src.remaining();
+        try {
+            int payloadLength = compressPayload(src, dst);
+            CodecMetrics.INSTANCE.COMPRESS.recordSuccess(startNanos, sourceLength, payloadLength);
+            return payloadLength;
+        } catch (RuntimeException e) {
+            CodecMetrics.INSTANCE.COMPRESS.recordError();
+            throw e;
+        }
+    }
+
+    /**
+     * Does the work of compress.
+     *
+     * @param src is the buffer with the bytes to be compressed.
+     * @param dst is the buffer the compressed payload shall be written to.
+     * @return the number of bytes of the compressed payload.
+     */
+    private static int compressPayload(ByteBuffer src, ByteBuffer dst) {
+        int from = src.position();
+        int to = src.limit();
+        long[] counts = new long[CodeTable.BYTE_ENCODE_CAPACITY];
+        for (int i = from; i < to; i++) {
+            counts[src.get(i) & 0xFF]++;
+        }
+        int storedLength = maxCompressedLength(to - from);
+        CodeTable table = to > from ? CodeTable.fromCounts(counts) : null;
+        byte[] tableBytes = table != null ? table.toTableBytes() : null;
+        long encodedLength = table != null ? 1 + getLengthBytes(to - from) + tableBytes.length - 1
+                + (table.getEncodedBits(counts) + Byte.SIZE - 1) / Byte.SIZE : storedLength;
+        int payloadLength = (int) Math.min(storedLength, encodedLength);
+        if (dst.remaining() < payloadLength) {
+            throw new ArchiveException("The destination buffer is too small: " + dst.remaining()
+                    + " bytes left, " + payloadLength + " bytes needed");
+        }
+        if (encodedLength < storedLength) {
+            dst.put((byte) HUFFMAN);
+            putLength(dst, to - from);
+            dst.put(tableBytes, 0, 2); // The tree size
+            dst.put(tableBytes, ArchiveHeader.FIXED_PART_LENGTH, tableBytes.length - ArchiveHeader.FIXED_PART_LENGTH);
+            encode(table, src, from, to, dst);
+        } else {
+            dst.put((byte) STORED);
+            putLength(dst, to - from);
+            dst.put(src.duplicate()); // A duplicate shares the bytes of the source, nothing is copied in between
+        }
+        src.position(to);
+        return payloadLength;
+    }
+
+    /**
+     * Reads the number of original bytes of a compressed payload without moving
+     * the position of the buffer, so that the destination buffer can be made big
+     * enough before decompressing.
+     *
+     * @param src is the buffer with the compressed payload at its position.
+     * @return the number of original bytes.
+     */
+    public static int getDecompressedLength(ByteBuffer src) {
+        return readLength(src.duplicate().position(src.position() + 1));
+    }
+
+    /**
+     * Decompresses one payload. The position of the source moves after the
+     * payload and the position of the destination moves after the original bytes.
+     *
+     * @param src is the buffer with the compressed payload at its position.
+     * @param dst is the buffer the original bytes shall be written to.
+     * @return the number of original bytes.
+     */
+    public static int decompress(ByteBuffer src, ByteBuffer dst) {
+        long startNanos = System.nanoTime();
+        int payloadStart = src.position();
+        try {
+            int length = decompressPayload(src, dst);
+            CodecMetrics.INSTANCE.DECOMPRESS.recordSuccess(startNanos, src.position() - payloadStart, length);
+            return length;
+        } catch (RuntimeException e) {
+            CodecMetrics.INSTANCE.DECOMPRESS.recordError();
+            throw e;
+        }
+    }
+
+    /**
+     * Does the work of decompress.
+     *
+     * @param src is the buffer with the compressed payload at its position.
+     * @param dst is the buffer the original bytes shall be written to.
+     * @return the number of original bytes.
+     */
+    private static int decompressPayload(ByteBuffer src, ByteBuffer dst) {
+        int mode = src.get() & 0xFF;
+        int length = readLength(src);
+        if (dst.remaining() < length) {
+            throw new ArchiveException("The destination buffer is too small: " + dst.remaining()
+                    + " bytes left, " + length + " bytes needed");
+        }
+        if (mode == STORED) {
+            if (src.remaining() < length) {
+                throw new ArchiveException("Corrupted payload: " + length + " bytes stored in " + src.remaining());
+            }
+            ByteBuffer stored = src.duplicate();
+            stored.limit(stored.position() + length);
+            dst.put(stored);
+            src.position(src.position() + length);
+        } else if (mode == HUFFMAN) {
+            decode(readTable(src), src, length, dst);
+        } else {
+            throw new ArchiveException("Corrupted payload: unknown mode " + mode);
+        }
+        return length;
+    }
+
+    /**
+     * Writes the bitstream of the source bytes to the destination.
+     *
+     * @param table are the codes of the bytes.
+     * @param src   is the buffer with the bytes to be compressed.
+     * @param from  is the index of the first byte to be compressed.
+     * @param to    is the index after the last byte to be compressed.
+     * @param dst   is the buffer the bitstream shall be written to.
+     */
+    private static void encode(CodeTable table, ByteBuffer src, int from, int to, ByteBuffer dst) {
+        long accumulator = 0;
+        int accumulatorBits = 0;
+        for (int i = from; i < to; i++) {
+            int value = src.get(i) & 0xFF;
+            long code = table.getCode(value);
+            int length = table.getLength(value);
+            while (length > 0) {
+                int part = Math.min(length, MAX_BITS_AT_ONCE);
+                length -= part;
+                accumulator = (accumulator << part) | ((code >>> length) & ((1L << part) - 1));
+                accumulatorBits += part;
+                while (accumulatorBits >= Byte.SIZE) {
+                    accumulatorBits -= Byte.SIZE;
+                    dst.put((byte) (accumulator >>> accumulatorBits));
+                }
+            }
+        }
+        if (accumulatorBits > 0) {
+            dst.put((byte) (accumulator << (Byte.SIZE - accumulatorBits)));
+        }
+    }
+
+    /**
+     * Decodes the bitstream at the position of the source to the destination.
+     *
+     * @param table  are the codes of the bytes.
+     * @param src    is the buffer with the bitstream at its position.
+     * @param length is the number of original bytes.
+     * @param dst    is the buffer the original bytes shall be written to.
+     */
+    private static void decode(CodeTable table, ByteBuffer src, int length, ByteBuffer dst) {
+        int position = src.position();
+        int end = src.limit();
+        int lookupBits = table.getLookupBits();
+        long buffer = 0;
+        int bufferBits = 0; // The bits read from the source but not decoded yet, the next bit is the highest one
+        for (int i = 0; i < length; i++) {
+            while (bufferBits <= REFILL_LIMIT && position < end) {
+                buffer |= (long) (src.get(position++) & 0xFF) << (REFILL_LIMIT - bufferBits);
+                bufferBits += Byte.SIZE;
+            }
+            int entry = table.lookup((int) (buffer >>> (Long.SIZE - lookupBits)));
+            int codeLength;
+            int value;
+            if (entry >= 0) {
+                codeLength = entry >>> Byte.SIZE;
+                value = entry & 0xFF;
+            } else { // The code is longer than the lookup table, the rest of it is walked bit by bit
+                int node = -entry - 1;
+                codeLength = lookupBits;
+                do {
+                    node = table.getChild(node, (int) (buffer >>> (Long.SIZE - 1 - codeLength)) & 1);
+                    codeLength++;
+                } while (node >= 0);
+                value = -node - 1;
+            }
+            if (codeLength > bufferBits) {
+                throw new ArchiveException("Corrupted payload: the bitstream is too short");
+            }
+            buffer <<= codeLength;
+            bufferBits -= codeLength;
+            dst.put((byte) value);
+        }
+        src.position(position - bufferBits / Byte.SIZE); // Whole unread bytes do not belong to this payload
+    }
+
+    /**
+     * Reads the code table at the position of the source.
+     *
+     * @param src is the buffer with the table at its position.
+     * @return the table.
+     */
+    private static CodeTable readTable(ByteBuffer src) {
+        byte[] tableBytes = new byte[ArchiveHeader.MAX_LENGTH];
+        src.get(tableBytes, 0, 2); // The tree size, the byte of meaningful bits is not stored
+        int collected = ArchiveHeader.FIXED_PART_LENGTH;
+        int tableLength;
+        while ((tableLength = ArchiveHeader.getLengthIfKnown(tableBytes, collected)) < 0) {
+            tableBytes[collected++] = src.get();
+        }
+        src.get(tableBytes, collected, tableLength - collected);
+        return new ArchiveHeader(tableBytes).toCodeTable();
+    }
+
+    /**
+     * Writes the number of original bytes, 7 bits at a time starting from the lowest ones.
+     *
+     * @param dst    is the buffer the number shall be written to.
+     * @param length is the number.
+     */
+    private static void putLength(ByteBuffer dst, int length) {
+        while (length >= MORE_BYTES_BIT) {
+            dst.put((byte) (length | MORE_BYTES_BIT));
+            length >>>= LENGTH_BITS_PER_BYTE;
+        }
+        dst.put((byte) length);
+    }
+
+    /**
+     * Reads the number of original bytes written by putLength.
+     *
+     * @param src is the buffer with the number at its position.
+     * @return the number.
+     */
+    private static int readLength(ByteBuffer src) {
+        int length = 0;
+        for (int i = 0; i < MAX_LENGTH_BYTES; i++) {
+            int next = src.get() & 0xFF;
+            length |= (next & ~MORE_BYTES_BIT) << (LENGTH_BITS_PER_BYTE * i);
+            if ((next & MORE_BYTES_BIT) == 0) {
+                if (length < 0) {
+                    break;
+                }
+                return length;
+            }
+        }
+        throw new ArchiveException("Corrupted payload: wrong number of original bytes");
+    }
+
+    /**
+     * Says how many bytes the number of original bytes takes.
+     *
+     * @param length is the number.
+     * @return the number of bytes (1 - 5).
+     */
+    private static int getLengthBytes(int length) {
+        int bytes = 1;
+        while ((length >>>= LENGTH_BITS_PER_BYTE) > 0) {
+            bytes++;
+        }
+        return bytes;
+    }
+}
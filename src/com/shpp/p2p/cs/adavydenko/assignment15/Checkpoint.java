@@ -0,0 +1,342 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * The state of an archiving / unarchiving job saved from time to time to a
+ * sidecar file next to the outFile (the "--checkpoint" option), so that a job
+ * killed in the middle can go on from the last checkpoint with "--resume"
+ * instead of starting over.
+ * <p>
+ * A checkpoint is taken between two buffers of the inFile. At that moment
+ * everything decoded / encoded so far is written to the outFile and synced to
+ * the disk, so the state is small: how many bytes of the inFile and of the
+ * outFile are done, the bits that did not make a whole byte / a whole code
+ * yet and, when archiving, the byte frequencies (the codes are built from them
+ * again, so the counting pass is not repeated).
+ * <p>
+ * Before a job goes on, the checkpoint is checked against the files: the inFile
+ * shall have the same size and modification time, the outFile shall be at least
+ * as long as the checkpoint says and its last bytes before that point shall have
+ * the same checksum. Everything after that point is cut off, since it was
+ * written after the checkpoint.
+ */
+public class Checkpoint {
+
+    /**
+     * The first bytes of every sidecar file ("PARC").
+     */
+    private static final int MAGIC = 0x50415243;
+
+    /**
+     * The version of the sidecar file.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * The end of the name of the sidecar file.
+     */
+    protected static final String SUFFIX = ".ckpt";
+
+    /**
+     * The number of the last bytes of the outFile covered by the checksum.
+     */
+    private static final int TAIL_LENGTH = 1024 * 1024;
+
+    /**
+     * Says whether the checkpoint was taken while archiving (or unarchiving).
+     */
+    protected final boolean ARCHIVING;
+
+    /**
+     * The size of the inFile when the checkpoint was taken.
+     */
+    private final long IN_FILE_LENGTH;
+
+    /**
+     * The modification time of the inFile when the checkpoint was taken.
+     */
+    private final long IN_FILE_MODIFIED;
+
+    /**
+     * The number of bytes of the inFile encoded / decoded so far.
+     */
+    protected final long INPUT_OFFSET;
+
+    /**
+     * The number of bytes of the outFile written so far.
+     */
+    protected final long OUTPUT_OFFSET;
+
+    /**
+     * The checksum of the last bytes of the outFile before OUTPUT_OFFSET.
+     */
+    private final long OUTPUT_TAIL_CRC;
+
+    /**
+     * The bits that did not make a whole byte (archiving) or a whole code (unarchiving) yet.
+     */
+    protected final byte[] PARTIAL_BITS;
+
+    /**
+     * The bytes of the inFile in the order of the frequency table (archiving only).
+     */
+    protected final byte[] SYMBOLS;
+
+    /**
+     * The number of times every byte of SYMBOLS appears in the inFile (archiving only).
+     */
+    protected final long[] COUNTS;
+
+    /**
+     * Creates a checkpoint.
+     *
+     * @param archiving      says whether the job archives (or unarchives).
+     * @param inFileLength   is the size of the inFile.
+     * @param inFileModified is the modification time of the inFile.
+     * @param inputOffset    is the number of bytes of the inFile encoded / decoded so far.
+     * @param outputOffset   is the number of bytes of the outFile written so far.
+     * @param outputTailCrc  is the checksum of the last bytes of the outFile before outputOffset.
+     * @param partialBits    are the bits that did not make a whole byte / code yet.
+     * @param symbols        are the bytes of the frequency table (empty when unarchiving).
+     * @param counts         are the frequencies of those bytes (empty when unarchiving).
+     */
+    private Checkpoint(boolean archiving, long inFileLength, long inFileModified, long inputOffset,
+                       long outputOffset, long outputTailCrc, byte[] partialBits, byte[] symbols, long[] counts) {
+        this.ARCHIVING = archiving;
+        this.IN_FILE_LENGTH = inFileLength;
+        this.IN_FILE_MODIFIED = inFileModified;
+        this.INPUT_OFFSET = inputOffset;
+        this.OUTPUT_OFFSET = outputOffset;
+        this.OUTPUT_TAIL_CRC = outputTailCrc;
+        this.PARTIAL_BITS = partialBits;
+        this.SYMBOLS = symbols;
+        this.COUNTS = counts;
+    }
+
+    /**
+     * Takes a checkpoint. The caller shall have flushed all buffered bytes of
+     * the outFile to the out stream before; they are synced to the disk here,
+     * so the sidecar file never points beyond the bytes that really are there.
+     * The sidecar file is replaced atomically: a job killed while it is written
+     * leaves the previous checkpoint.
+     *
+     * @param archiving   says whether the job archives (or unarchives).
+     * @param inFile      is the file the job reads.
+     * @param outFile     is the file the job writes.
+     * @param inputOffset is the number of bytes of the inFile encoded / decoded so far.
+     * @param out         is the stream writing the outFile.
+     * @param partialBits are the bits that did not make a whole byte / code yet.
+     * @param symbols     are the bytes of the frequency table (empty when unarchiving).
+     * @param counts      are the frequencies of those bytes (empty when unarchiving).
+     */
+    protected static void save(boolean archiving, String inFile, String outFile, long inputOffset,
+                               FileOutputStream out, byte[] partialBits, byte[] symbols, long[] counts)
+            throws IOException {
+        out.getFD().sync();
+        long outputOffset = out.getChannel().position();
+        File input = new File(inFile);
+        Checkpoint checkpoint = new Checkpoint(archiving, input.length(), input.lastModified(), inputOffset,
+                outputOffset, getTailCrc(outFile, outputOffset), partialBits, symbols, counts);
+        Path sidecar = getSidecar(outFile);
+        Path temporary = sidecar.resolveSibling(sidecar.getFileName() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(temporary.toFile());
+             DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos))) {
+            checkpoint.writeTo(dos);
+            dos.flush();
+            fos.getFD().sync();
+        }
+        Files.move(temporary, sidecar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads the checkpoint of a job.
+     *
+     * @param outFile is the file the job writes.
+     * @return the checkpoint or null if there is no sidecar file.
+     */
+    protected static Checkpoint load(String outFile) {
+        Path sidecar = getSidecar(outFile);
+        if (!Files.exists(sidecar)) {
+            return null;
+        }
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar.toFile())))) {
+            if (dis.readInt() != MAGIC || dis.readInt() != VERSION) {
+                throw new ArchiveException("The checkpoint " + sidecar + " is not a checkpoint of this program");
+            }
+            boolean archiving = dis.readBoolean();
+            long inFileLength = dis.readLong();
+            long inFileModified = dis.readLong();
+            long inputOffset = dis.readLong();
+            long outputOffset = dis.readLong();
+            long outputTailCrc = dis.readLong();
+            byte[] partialBits = new byte[dis.readUnsignedShort()];
+            dis.readFully(partialBits);
+            byte[] symbols = new byte[dis.readUnsignedShort()];
+            dis.readFully(symbols);
+            long[] counts = new long[symbols.length];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = dis.readLong();
+            }
+            return new Checkpoint(archiving, inFileLength, inFileModified, inputOffset, outputOffset,
+                    outputTailCrc, partialBits, symbols, counts);
+        } catch (IOException e) {
+            throw new ArchiveException("The checkpoint " + sidecar + " is broken", e);
+        }
+    }
+
+    /**
+     * Finds the checkpoint a job shall go on from (the "--resume" option).
+     *
+     * @param archiving  says whether the job archives (or unarchives).
+     * @param inFile     is the file the job reads.
+     * @param outFile    is the file the job writes.
+     * @param auxMethods prints the messages about the checkpoint.
+     * @return the checked checkpoint or null if there is none and the job shall start from the beginning.
+     */
+    protected static Checkpoint resume(boolean archiving, String inFile, String outFile, AuxiliaryMethods auxMethods) {
+        Checkpoint checkpoint = load(outFile);
+        if (checkpoint == null || !new File(outFile).exists()) {
+            auxMethods.printMessage("- No checkpoint of " + outFile + " found, starting from the beginning");
+            return null;
+        }
+        checkpoint.checkInput(archiving, inFile);
+        auxMethods.printMessage("- Resuming from the checkpoint at " + checkpoint.INPUT_OFFSET + " of "
+                + checkpoint.IN_FILE_LENGTH + " bytes of " + inFile);
+        return checkpoint;
+    }
+
+    /**
+     * Deletes the checkpoint of a finished job.
+     *
+     * @param outFile    is the file the job wrote.
+     * @param auxMethods prints the messages of the job.
+     */
+    protected static void delete(String outFile, AuxiliaryMethods auxMethods) {
+        try {
+            Files.deleteIfExists(getSidecar(outFile));
+        } catch (IOException e) {
+            auxMethods.printMessage("- Can not delete the checkpoint " + getSidecar(outFile) + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Checks that the checkpoint was taken by the same kind of job on the same inFile.
+     *
+     * @param archiving says whether the job archives (or unarchives).
+     * @param inFile    is the file the job reads.
+     */
+    protected void checkInput(boolean archiving, String inFile) {
+        if (archiving != ARCHIVING) {
+            throw new ArchiveException("The checkpoint was taken while " + (ARCHIVING ? "archiving" : "unarchiving")
+                    + ", it can not be used for " + (archiving ? "archiving" : "unarchiving"));
+        }
+        File input = new File(inFile);
+        if (input.length() != IN_FILE_LENGTH || input.lastModified() != IN_FILE_MODIFIED) {
+            throw new ArchiveException("The file " + inFile + " changed after the checkpoint was taken");
+        }
+    }
+
+    /**
+     * Checks that the outFile has all the bytes written before the checkpoint
+     * and cuts off the bytes written after it.
+     *
+     * @param outFile is the file the job writes.
+     * @param header  are the first bytes the outFile shall start with, null if they are not known.
+     */
+    protected void prepareOutput(String outFile, byte[] header) {
+        try (RandomAccessFile output = new RandomAccessFile(outFile, "rw")) {
+            if (output.length() < OUTPUT_OFFSET) {
+                throw new ArchiveException("The file " + outFile + " is shorter than the checkpoint says");
+            }
+            if (header != null) {
+                byte[] start = new byte[(int) Math.min(header.length, OUTPUT_OFFSET)];
+                output.readFully(start);
+                if (!Arrays.equals(start, Arrays.copyOf(header, start.length))) {
+                    throw new ArchiveException("The file " + outFile + " does not start with the header of this archive");
+                }
+            }
+            if (getTailCrc(output, OUTPUT_OFFSET) != OUTPUT_TAIL_CRC) {
+                throw new ArchiveException("The file " + outFile + " does not match its checkpoint");
+            }
+            output.setLength(OUTPUT_OFFSET);
+        } catch (IOException e) {
+            throw new ArchiveException("Can not check the file " + outFile, e);
+        }
+    }
+
+    /**
+     * Writes the checkpoint to the sidecar file.
+     *
+     * @param dos is the stream writing the sidecar file.
+     */
+    private void writeTo(DataOutputStream dos) throws IOException {
+        dos.writeInt(MAGIC);
+        dos.writeInt(VERSION);
+        dos.writeBoolean(ARCHIVING);
+        dos.writeLong(IN_FILE_LENGTH);
+        dos.writeLong(IN_FILE_MODIFIED);
+        dos.writeLong(INPUT_OFFSET);
+        dos.writeLong(OUTPUT_OFFSET);
+        dos.writeLong(OUTPUT_TAIL_CRC);
+        dos.writeShort(PARTIAL_BITS.length);
+        dos.write(PARTIAL_BITS);
+        dos.writeShort(SYMBOLS.length);
+        dos.write(SYMBOLS);
+        for (long count : COUNTS) {
+            dos.writeLong(count);
+        }
+    }
+
+    /**
+     * Provides the sidecar file of a job.
+     *
+     * @param outFile is the file the job writes.
+     * @return the path of the sidecar file.
+     */
+    protected static Path getSidecar(String outFile) {
+        return Path.of(outFile + SUFFIX);
+    }
+
+    /**
+     * Counts the checksum of the last bytes of a file before a point.
+     *
+     * @param file is the name of the file.
+     * @param end  is the point.
+     * @return the checksum.
+     */
+    private static long getTailCrc(String file, long end) throws IOException {
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            return getTailCrc(input, end);
+        }
+    }
+
+    /**
+     * Counts the checksum of the last bytes of a file before a point.
+     *
+     * @param file is the open file.
+     * @param end  is the point.
+     * @return the checksum.
+     */
+    private static long getTailCrc(RandomAccessFile file, long end) throws IOException {
+        byte[] tail = new byte[(int) Math.min(TAIL_LENGTH, end)];
+        file.seek(end - tail.length);
+        file.readFully(tail);
+        CRC32C crc = new CRC32C();
+        crc.update(tail);
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,442 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.PriorityQueue;
+
+/**
+ * An immutable description of the codes used in an archive. It is built from
+ * the same information the archive header contains: the tree structure bits
+ * (1 for a node with children, 0 for a leaf, nodes visited from the top, always
+ * the left child first) and the unique bytes in the order their leaves occur.
+ * <p>
+ * Unlike the Node objects, the tree is stored in one int array: the children
+ * of the node number N are stored at indexes 2 * N (bit 0) and 2 * N + 1 (bit 1).
+ * A non-negative child is the number of another node, a negative child stands
+ * for a leaf with the byte -(child + 1). The root always has the number 0. If
+ * there is only one unique byte, both children of the root are this leaf, so
+ * its code is 0 (like in the archive) and a decoder never gets stuck.
+ * <p>
+ * Every byte also gets its code as a number (the code bits are the lowest bits
+ * of this number, the first bit of the code is the highest of them) and the
+ * length of this code. Since nothing in this object changes after it is built,
+ * one table can be shared by any number of threads.
+ */
+public class CodeTable {
+
+    /**
+     * The number of values that can be encoded using one byte.
+     */
+    protected static final int BYTE_ENCODE_CAPACITY = 256;
+
+    /**
+     * The maximum length of a code that fits in the CODES array.
+     */
+    protected static final int MAX_CODE_LENGTH = Long.SIZE;
+
+    /**
+     * The maximum number of bits a decoder looks up in the LOOKUP table at once.
+     */
+    private static final int MAX_LOOKUP_BITS = 11;
+
+    /**
+     * The children of all nodes with children (see the class description).
+     */
+    private final int[] CHILDREN;
+
+    /**
+     * The code of every byte. The index is the byte converted to int (0 - 255).
+     */
+    private final long[] CODES;
+
+    /**
+     * The length of the code of every byte. 0 if the byte is not encoded.
+     */
+    private final int[] LENGTHS;
+
+    /**
+     * The number of unique bytes encoded with this table.
+     */
+    private final int SYMBOL_COUNT;
+
+    /**
+     * The length of the shortest code.
+     */
+    private final int MIN_LENGTH;
+
+    /**
+     * The length of the longest code.
+     */
+    private final int MAX_LENGTH;
+
+    /**
+     * The number of bits a decoder looks up in the LOOKUP table at once.
+     */
+    private final int LOOKUP_BITS;
+
+    /**
+     * Lets a decoder decode a short code with one array access instead of walking
+     * the tree bit by bit. The index is the next LOOKUP_BITS bits of the archive.
+     * A non-negative value holds the length of the code (bits 8 and higher) and
+     * the decoded byte (the lowest 8 bits). A negative value means the code is
+     * longer than LOOKUP_BITS: the decoder shall continue walking the tree from
+     * the node number -(value + 1) after it consumed LOOKUP_BITS bits.
+     */
+    private final int[] LOOKUP;
+
+    /**
+     * Creates a table from the tree arrays and computes all codes.
+     *
+     * @param children the children of all nodes with children.
+     */
+    private CodeTable(int[] children) {
+        this.CHILDREN = children;
+        this.CODES = new long[BYTE_ENCODE_CAPACITY];
+        this.LENGTHS = new int[BYTE_ENCODE_CAPACITY];
+        collectCodes();
+        int symbolCount = 0;
+        int minLength = Integer.MAX_VALUE;
+        int maxLength = 0;
+        for (int length : LENGTHS) {
+            if (length > 0) {
+                symbolCount++;
+                minLength = Math.min(minLength, length);
+                maxLength = Math.max(maxLength, length);
+            }
+        }
+        this.SYMBOL_COUNT = symbolCount;
+        this.MIN_LENGTH = minLength;
+        this.MAX_LENGTH = maxLength;
+        this.LOOKUP_BITS = Math.min(MAX_LOOKUP_BITS, maxLength);
+        this.LOOKUP = new int[1 << LOOKUP_BITS];
+        fillLookup();
+    }
+
+    /**
+     * Builds a table from the tree description stored in the archive header.
+     *
+     * @param treeStructureBits the bits describing the tree structure, one bit per array element.
+     * @param uniqueBytes       all unique bytes in the order their leaves occur in the tree.
+     * @return the table with the same codes the archiver used.
+     */
+    protected static CodeTable fromTreeStructure(byte[] treeStructureBits, byte[] uniqueBytes) {
+        if (treeStructureBits.length == 0 || uniqueBytes.length == 0) {
+            throw new ArchiveException("Corrupted archive header: the tree is empty");
+        }
+        if (treeStructureBits[0] == 0) { // the tree consists of only one node
+            return new CodeTable(new int[]{toLeaf(uniqueBytes[0]), toLeaf(uniqueBytes[0])});
+        }
+        int[] children = new int[treeStructureBits.length * 2];
+        int nodeCount = 1;
+        int leafIndex = 0;
+        ArrayDeque<Integer> openSlots = new ArrayDeque<>(); // slots of children that are not filled yet
+        openSlots.push(1);
+        openSlots.push(0);
+        for (int i = 1; i < treeStructureBits.length; i++) {
+            if (openSlots.isEmpty()) {
+                throw new ArchiveException("Corrupted archive header: the tree structure is too long");
+            }
+            int slot = openSlots.pop();
+            if (treeStructureBits[i] == 1) {
+                int newNode = nodeCount++;
+                children[slot] = newNode;
+                openSlots.push(newNode * 2 + 1);
+                openSlots.push(newNode * 2);
+            } else {
+                if (leafIndex == uniqueBytes.length) {
+                    throw new ArchiveException("Corrupted archive header: too few unique bytes");
+                }
+                children[slot] = toLeaf(uniqueBytes[leafIndex++]);
+            }
+        }
+        if (!openSlots.isEmpty()) {
+            throw new ArchiveException("Corrupted archive header: the tree structure is incomplete");
+        }
+        int[] compactChildren = new int[nodeCount * 2];
+        System.arraycopy(children, 0, compactChildren, 0, compactChildren.length);
+        return new CodeTable(compactChildren);
+    }
+
+    /**
+     * Builds a table of Huffman codes for given byte frequencies. It does the same
+     * the Archiver does with Node objects, but works with plain numbers, so it is
+     * cheap enough to be used for every block of a file.
+     *
+     * @param counts are the numbers of occurrences of every byte value (256 items).
+     * @return the table with Huffman codes of all bytes that occur.
+     */
+    protected static CodeTable fromCounts(long[] counts) {
+        PriorityQueue<long[]> queue = new PriorityQueue<>((a, b) ->
+                a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1])); // {weight, child}
+        for (int value = 0; value < BYTE_ENCODE_CAPACITY; value++) {
+            if (counts[value] > 0) {
+                queue.add(new long[]{counts[value], toLeaf((byte) value)});
+            }
+        }
+        if (queue.isEmpty()) {
+            throw new ArchiveException("Can not build codes for an empty block");
+        }
+        if (queue.size() == 1) {
+            int leaf = (int) queue.poll()[1];
+            return new CodeTable(new int[]{leaf, leaf});
+        }
+        int[] children = new int[(queue.size() - 1) * 2]; // the children of node N built here are at 2 * N and 2 * N + 1
+        int nodeCount = 0;
+        while (queue.size() > 1) {
+            long[] left = queue.poll();
+            long[] right = queue.poll();
+            children[nodeCount * 2] = (int) left[1];
+            children[nodeCount * 2 + 1] = (int) right[1];
+            queue.add(new long[]{left[0] + right[0], nodeCount++});
+        }
+        // The root was built last, but it shall get the number 0, so the nodes are renumbered
+        int[] renumbered = new int[children.length];
+        renumber(children, nodeCount - 1, renumbered, new int[]{0});
+        return new CodeTable(renumbered);
+    }
+
+    /**
+     * Builds a table of Huffman codes for messages similar to a sample, so that
+     * one table can be shared by many short messages instead of every message
+     * carrying a table of its own. Every byte value gets a code, even the ones
+     * the sample does not have, so that any message can be encoded.
+     *
+     * @param sample is an array with typical bytes.
+     * @param offset is the index of the first byte of the sample.
+     * @param length is the number of bytes in the sample.
+     * @return the table with codes of all 256 byte values.
+     */
+    public static CodeTable fromSample(byte[] sample, int offset, int length) {
+        long[] counts = new long[BYTE_ENCODE_CAPACITY];
+        for (int value = 0; value < BYTE_ENCODE_CAPACITY; value++) {
+            counts[value] = 1;
+        }
+        for (int i = offset; i < offset + length; i++) {
+            counts[sample[i] & 0xFF] += BYTE_ENCODE_CAPACITY; // Real bytes weigh much more than the added ones
+        }
+        return fromCounts(counts);
+    }
+
+    /**
+     * Copies a node and all nodes below it to a new array, numbering them in the
+     * order they are visited (the node itself first, then the subtree of bit 0).
+     *
+     * @param children   are the children of all nodes in the old numbering.
+     * @param node       is the old number of the node to copy.
+     * @param renumbered is the array the nodes are copied to.
+     * @param nextNumber holds the next free number in the new numbering.
+     * @return the new number of the node.
+     */
+    private static int renumber(int[] children, int node, int[] renumbered, int[] nextNumber) {
+        int newNode = nextNumber[0]++;
+        for (int bit = 0; bit <= 1; bit++) {
+            int child = children[node * 2 + bit];
+            renumbered[newNode * 2 + bit] = child < 0 ? child : renumber(children, child, renumbered, nextNumber);
+        }
+        return newNode;
+    }
+
+    /**
+     * Creates the description of this table in the form of the header of the
+     * original format (see the ArchiveHeader class): the tree size, the byte of
+     * the meaningful bits in the last byte (always 0 here), the tree structure
+     * bits and the unique bytes in the order their leaves occur.
+     *
+     * @return the bytes describing the table.
+     */
+    protected byte[] toTableBytes() {
+        BitWriter structure = new BitWriter(BYTE_ENCODE_CAPACITY / Byte.SIZE);
+        ByteArrayOutputStream uniqueBytes = new ByteArrayOutputStream();
+        int treeSize;
+        if (CHILDREN.length == 2 && CHILDREN[0] < 0 && CHILDREN[0] == CHILDREN[1]) { // a one-node tree
+            structure.write(0, 1);
+            uniqueBytes.write(-CHILDREN[0] - 1);
+            treeSize = 1;
+        } else {
+            treeSize = describeNode(0, structure, uniqueBytes);
+        }
+        structure.flush();
+        ByteArrayOutputStream table = new ByteArrayOutputStream();
+        table.write(treeSize >> Byte.SIZE);
+        table.write(treeSize);
+        table.write(0);
+        table.write(structure.getData(), 0, structure.getLength());
+        table.writeBytes(uniqueBytes.toByteArray());
+        return table.toByteArray();
+    }
+
+    /**
+     * Writes the structure bits of a node and all nodes below it.
+     *
+     * @param node        is the number of a node with children.
+     * @param structure   is the writer of the tree structure bits.
+     * @param uniqueBytes is the stream collecting the bytes of the leaves.
+     * @return the number of nodes and leaves written.
+     */
+    private int describeNode(int node, BitWriter structure, ByteArrayOutputStream uniqueBytes) {
+        structure.write(1, 1);
+        int written = 1;
+        for (int bit = 0; bit <= 1; bit++) {
+            int child = CHILDREN[node * 2 + bit];
+            if (child >= 0) {
+                written += describeNode(child, structure, uniqueBytes);
+            } else {
+                structure.write(0, 1);
+                uniqueBytes.write(-child - 1);
+                written++;
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Counts the number of bits the codes of this table take for given byte frequencies.
+     *
+     * @param counts are the numbers of occurrences of every byte value (256 items).
+     * @return the number of bits or Long.MAX_VALUE if some byte that occurs has no code.
+     */
+    protected long getEncodedBits(long[] counts) {
+        long bits = 0;
+        for (int value = 0; value < BYTE_ENCODE_CAPACITY; value++) {
+            if (counts[value] > 0) {
+                if (LENGTHS[value] == 0) {
+                    return Long.MAX_VALUE;
+                }
+                bits += counts[value] * LENGTHS[value];
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * Converts a byte to the value of a child standing for the leaf with this byte.
+     *
+     * @param value is any byte.
+     * @return a negative number standing for the leaf.
+     */
+    private static int toLeaf(byte value) {
+        return -((value & 0xFF) + 1);
+    }
+
+    /**
+     * Visits all nodes starting from the root and saves the code and its
+     * length for every leaf.
+     */
+    private void collectCodes() {
+        ArrayDeque<long[]> nodesToVisit = new ArrayDeque<>(); // {node, code, length}
+        nodesToVisit.push(new long[]{0, 0, 0});
+        while (!nodesToVisit.isEmpty()) {
+            long[] item = nodesToVisit.pop();
+            int node = (int) item[0];
+            for (int bit = 0; bit <= 1; bit++) {
+                int child = CHILDREN[node * 2 + bit];
+                long code = (item[1] << 1) | bit;
+                int length = (int) item[2] + 1;
+                if (length > MAX_CODE_LENGTH) {
+                    throw new ArchiveException("The tree is too deep: codes longer than " + MAX_CODE_LENGTH + " bits");
+                }
+                if (child >= 0) {
+                    nodesToVisit.push(new long[]{child, code, length});
+                } else if (LENGTHS[-child - 1] == 0) { // the only leaf of a one-node tree gets code 0
+                    CODES[-child - 1] = code;
+                    LENGTHS[-child - 1] = length;
+                }
+            }
+        }
+    }
+
+    /**
+     * Walks the tree for every possible combination of LOOKUP_BITS bits
+     * and saves where the walk ends in the LOOKUP table.
+     */
+    private void fillLookup() {
+        for (int index = 0; index < LOOKUP.length; index++) {
+            int node = 0;
+            int length = 0;
+            while (node >= 0 && length < LOOKUP_BITS) {
+                int bit = (index >> (LOOKUP_BITS - 1 - length)) & 1;
+                node = CHILDREN[node * 2 + bit];
+                length++;
+            }
+            LOOKUP[index] = node < 0 ? (length << Byte.SIZE) | (-node - 1) : -(node + 1);
+        }
+    }
+
+    /**
+     * Provides the number of bits a decoder looks up in the lookup table at once.
+     *
+     * @return the number of bits used as an index of the lookup table.
+     */
+    protected int getLookupBits() {
+        return LOOKUP_BITS;
+    }
+
+    /**
+     * Provides what a decoder finds in the lookup table (see the LOOKUP field).
+     *
+     * @param index is the next getLookupBits() bits of the archive.
+     * @return the length of the code and the decoded byte or the node to continue from.
+     */
+    protected int lookup(int index) {
+        return LOOKUP[index];
+    }
+
+    /**
+     * Provides the next node when a decoder reads one bit.
+     *
+     * @param node is the number of the current node (0 is the root).
+     * @param bit  is the bit read from the archive (0 or 1).
+     * @return the number of the next node or a negative number standing for
+     * the leaf with the byte -(result + 1).
+     */
+    protected int getChild(int node, int bit) {
+        return CHILDREN[node * 2 + bit];
+    }
+
+    /**
+     * Provides the code of a byte.
+     *
+     * @param value is the byte converted to int (0 - 255).
+     * @return the code bits as the lowest bits of the number.
+     */
+    protected long getCode(int value) {
+        return CODES[value];
+    }
+
+    /**
+     * Provides the length of the code of a byte.
+     *
+     * @param value is the byte converted to int (0 - 255).
+     * @return the number of bits in the code or 0 if the byte is not encoded.
+     */
+    protected int getLength(int value) {
+        return LENGTHS[value];
+    }
+
+    /**
+     * Provides the number of unique bytes encoded with this table.
+     *
+     * @return the number of leaves in the tree.
+     */
+    protected int getSymbolCount() {
+        return SYMBOL_COUNT;
+    }
+
+    /**
+     * Provides the length of the shortest code.
+     *
+     * @return the minimum number of bits needed to encode one byte.
+     */
+    protected int getMinLength() {
+        return MIN_LENGTH;
+    }
+
+    /**
+     * Provides the length of the longest code.
+     *
+     * @return the maximum number of bits needed to encode one byte.
+     */
+    protected int getMaxLength() {
+        return MAX_LENGTH;
+    }
+}
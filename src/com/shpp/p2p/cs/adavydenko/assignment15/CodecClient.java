@@ -0,0 +1,129 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A thin client of the CodecServer. It does not archive or unarchive anything
+ * itself: it sends the names of the files and the named options to the server,
+ * waits for the result and prints it the same way a local run does. A server
+ * with a token gets the token first (the "--token" option names the same token
+ * file the server uses).
+ */
+public class CodecClient {
+
+    /**
+     * The number of nanoseconds in one millisecond.
+     */
+    private static final double NANOS_IN_MILLISEC = 1_000_000.0;
+
+    /**
+     * The options whose value is a file or a directory. The server does not
+     * know the working directory of the client, so they are sent as absolute paths.
+     */
+    private static final List<String> PATH_OPTIONS = List.of("cache");
+
+    /**
+     * A port number or a path of a socket file the server listens on.
+     */
+    private final String ADDRESS;
+
+    /**
+     * An instance of a class containing auxiliary methods helping other
+     * classes to conduct operations (like converting byte to int etc).
+     */
+    private final AuxiliaryMethods AUX_METHODS;
+
+    /**
+     * Creates a client.
+     *
+     * @param address    is a port number or a path of a socket file.
+     * @param auxMethods an auxiliary class that performs functions common
+     *                   to both archiver and unarchiver.
+     */
+    public CodecClient(String address, AuxiliaryMethods auxMethods) {
+        this.ADDRESS = address;
+        this.AUX_METHODS = auxMethods;
+    }
+
+    /**
+     * Asks the server to archive / unarchive a file and prints the result.
+     *
+     * @param isArchiveOperation says whether the server shall archive the
+     *                           input file (if true) or unarchive it (if false).
+     * @param filesNames         is a string array containing an input file as its first
+     *                           element and an output file as its second element.
+     * @param argHandler         is the object that already analyzed the command line
+     *                           arguments, its named options are sent with the job.
+     */
+    protected void sendJob(boolean isArchiveOperation, String[] filesNames, ArgumentsHandler argHandler) {
+        String inFile = new File(filesNames[0]).getAbsolutePath();
+        String outFile = new File(filesNames[1]).getAbsolutePath();
+        Map<String, String> options = prepareOptions(argHandler);
+        String tokenFile = options.remove(CodecProtocol.TOKEN_OPTION);
+        if (CodecProtocol.isTcp(CodecProtocol.parseAddress(ADDRESS)) && (tokenFile == null || tokenFile.isEmpty())) {
+            throw new ArchiveException("A server on a TCP port needs the token file it was started with, "
+                    + "e.g. --" + CodecProtocol.TOKEN_OPTION + "=par.token");
+        }
+        String token = tokenFile == null || tokenFile.isEmpty() ? null : CodecProtocol.loadToken(tokenFile, false);
+        try (SocketChannel channel = SocketChannel.open(CodecProtocol.parseAddress(ADDRESS));
+             DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)))) {
+            if (token != null) {
+                CodecProtocol.writeToken(out, token);
+            }
+            CodecProtocol.writeRequest(out, isArchiveOperation, inFile, outFile, options);
+            DataInputStream response = CodecProtocol.readFrame(in);
+            if (response == null) {
+                throw new ArchiveException("The server closed the connection");
+            }
+            displayResponse(response, isArchiveOperation);
+        } catch (IOException e) {
+            throw new ArchiveException("Can not reach the server at " + ADDRESS, e);
+        }
+    }
+
+    /**
+     * Checks the named options the same way a local run does, so wrong values
+     * are reported before anything is sent, and makes their paths absolute.
+     *
+     * @param argHandler is the object that already analyzed the command line arguments.
+     * @return the options to be sent (the name without "--" and the value).
+     */
+    private Map<String, String> prepareOptions(ArgumentsHandler argHandler) {
+        CodecProtocol.checkRemoteOptions(argHandler.OPTIONS);
+        CodecOptions.fromArguments(argHandler);
+        Map<String, String> options = new HashMap<>(argHandler.OPTIONS);
+        for (String name : PATH_OPTIONS) {
+            if (options.containsKey(name) && !options.get(name).isEmpty()) {
+                options.put(name, new File(options.get(name)).getAbsolutePath());
+            }
+        }
+        return options;
+    }
+
+    /**
+     * Prints the result of the job received from the server.
+     *
+     * @param response           is the content of the response frame.
+     * @param isArchiveOperation is the type of the operation.
+     */
+    private void displayResponse(DataInputStream response, boolean isArchiveOperation) throws IOException {
+        byte status = response.readByte();
+        long bytesIn = response.readLong();
+        long bytesOut = response.readLong();
+        long nanos = response.readLong();
+        String message = response.readUTF();
+        if (status != CodecProtocol.STATUS_OK) {
+            throw new ArchiveException("The server failed: " + message);
+        }
+        String operationType = isArchiveOperation ? "archiving" : "unarchiving";
+        AUX_METHODS.printMessage("- File size before " + operationType + ": " + AUX_METHODS.getFileSize(bytesIn));
+        AUX_METHODS.printMessage("- File size after " + operationType + ": " + AUX_METHODS.getFileSize(bytesOut));
+        AUX_METHODS.printMessage("- Server time: " + String.format("%.3f", nanos / NANOS_IN_MILLISEC) + " millisecond(s)");
+    }
+}
@@ -0,0 +1,261 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts what the codec did since the program started: the bytes read and
+ * written, the number of operations and errors and how long the operations
+ * took. The metrics are shown by JMX under the name in OBJECT_NAME, so tools
+ * like jconsole can watch a long-lived program (the server mode, or a service
+ * using the BufferCodec).
+ * <p>
+ * Counters are LongAdders: every thread adds to its own cell, so threads
+ * finishing operations at the same time do not wait for each other. The cells
+ * are summed only when somebody reads the metrics.
+ */
+public class CodecMetrics implements CodecMetricsMXBean {
+
+    /**
+     * The name the metrics are registered under in the platform MBean server.
+     */
+    protected static final String OBJECT_NAME = "com.shpp.p2p.cs.adavydenko:type=CodecMetrics";
+
+    /**
+     * The metrics of the whole program.
+     */
+    protected static final CodecMetrics INSTANCE = new CodecMetrics();
+
+    /**
+     * The metrics of archiving files.
+     */
+    protected final Operation ARCHIVE = new Operation();
+
+    /**
+     * The metrics of unarchiving files.
+     */
+    protected final Operation UNARCHIVE = new Operation();
+
+    /**
+     * The metrics of compressing buffers in memory.
+     */
+    protected final Operation COMPRESS = new Operation();
+
+    /**
+     * The metrics of decompressing buffers in memory.
+     */
+    protected final Operation DECOMPRESS = new Operation();
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+        } catch (JMException | SecurityException e) {
+            System.out.println("Codec metrics are not available by JMX: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Creates metrics with all counters at zero.
+     */
+    private CodecMetrics() {
+    }
+
+    @Override
+    public long getBytesIn() {
+        return ARCHIVE.BYTES_IN.sum() + UNARCHIVE.BYTES_IN.sum() + COMPRESS.BYTES_IN.sum() + DECOMPRESS.BYTES_IN.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return ARCHIVE.BYTES_OUT.sum() + UNARCHIVE.BYTES_OUT.sum() + COMPRESS.BYTES_OUT.sum()
+                + DECOMPRESS.BYTES_OUT.sum();
+    }
+
+    @Override
+    public long getOperationCount() {
+        return ARCHIVE.COUNT.sum() + UNARCHIVE.COUNT.sum() + COMPRESS.COUNT.sum() + DECOMPRESS.COUNT.sum();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return ARCHIVE.ERRORS.sum() + UNARCHIVE.ERRORS.sum() + COMPRESS.ERRORS.sum() + DECOMPRESS.ERRORS.sum();
+    }
+
+    @Override
+    public OperationSnapshot getArchive() {
+        return new OperationSnapshot(ARCHIVE);
+    }
+
+    @Override
+    public OperationSnapshot getUnarchive() {
+        return new OperationSnapshot(UNARCHIVE);
+    }
+
+    @Override
+    public OperationSnapshot getCompress() {
+        return new OperationSnapshot(COMPRESS);
+    }
+
+    @Override
+    public OperationSnapshot getDecompress() {
+        return new OperationSnapshot(DECOMPRESS);
+    }
+
+    @Override
+    public void reset() {
+        ARCHIVE.reset();
+        UNARCHIVE.reset();
+        COMPRESS.reset();
+        DECOMPRESS.reset();
+    }
+
+    /**
+     * The counters of one kind of operations.
+     */
+    protected static class Operation {
+
+        /**
+         * The number of finished operations.
+         */
+        private final LongAdder COUNT = new LongAdder();
+
+        /**
+         * The number of failed operations.
+         */
+        private final LongAdder ERRORS = new LongAdder();
+
+        /**
+         * The number of bytes the finished operations read.
+         */
+        private final LongAdder BYTES_IN = new LongAdder();
+
+        /**
+         * The number of bytes the finished operations wrote.
+         */
+        private final LongAdder BYTES_OUT = new LongAdder();
+
+        /**
+         * How long the finished operations took.
+         */
+        private final LatencyHistogram LATENCY = new LatencyHistogram();
+
+        /**
+         * Counts a finished operation.
+         *
+         * @param startNanos is the System.nanoTime when the operation started.
+         * @param bytesIn    is the number of bytes the operation read.
+         * @param bytesOut   is the number of bytes the operation wrote.
+         */
+        protected void recordSuccess(long startNanos, long bytesIn, long bytesOut) {
+            COUNT.increment();
+            BYTES_IN.add(bytesIn);
+            BYTES_OUT.add(bytesOut);
+            LATENCY.add(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+        }
+
+        /**
+         * Counts a failed operation.
+         */
+        protected void recordError() {
+            ERRORS.increment();
+        }
+
+        /**
+         * Sets all counters to zero.
+         */
+        private void reset() {
+            COUNT.reset();
+            ERRORS.reset();
+            BYTES_IN.reset();
+            BYTES_OUT.reset();
+            LATENCY.reset();
+        }
+    }
+
+    /**
+     * The counters of one kind of operations at the moment they were read,
+     * in the form JMX can show.
+     */
+    public static class OperationSnapshot {
+
+        /**
+         * The counters the snapshot was taken from.
+         */
+        private final Operation OPERATION;
+
+        /**
+         * Takes a snapshot.
+         *
+         * @param operation are the counters.
+         */
+        OperationSnapshot(Operation operation) {
+            this.OPERATION = operation;
+        }
+
+        /**
+         * @return the number of finished operations.
+         */
+        public long getCount() {
+            return OPERATION.COUNT.sum();
+        }
+
+        /**
+         * @return the number of failed operations.
+         */
+        public long getErrors() {
+            return OPERATION.ERRORS.sum();
+        }
+
+        /**
+         * @return the number of bytes the finished operations read.
+         */
+        public long getBytesIn() {
+            return OPERATION.BYTES_IN.sum();
+        }
+
+        /**
+         * @return the number of bytes the finished operations wrote.
+         */
+        public long getBytesOut() {
+            return OPERATION.BYTES_OUT.sum();
+        }
+
+        /**
+         * @return the median time of an operation in microseconds.
+         */
+        public long getLatencyP50Micros() {
+            return OPERATION.LATENCY.getPercentile(50);
+        }
+
+        /**
+         * @return the time 90% of operations fit in, in microseconds.
+         */
+        public long getLatencyP90Micros() {
+            return OPERATION.LATENCY.getPercentile(90);
+        }
+
+        /**
+         * @return the time 99% of operations fit in, in microseconds.
+         */
+        public long getLatencyP99Micros() {
+            return OPERATION.LATENCY.getPercentile(99);
+        }
+
+        /**
+         * @return the time 99.9% of operations fit in, in microseconds.
+         */
+        public long getLatencyP999Micros() {
+            return OPERATION.LATENCY.getPercentile(99.9);
+        }
+
+        /**
+         * @return the longest operation in microseconds.
+         */
+        public long getLatencyMaxMicros() {
+            return OPERATION.LATENCY.getMax();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+/**
+ * The metrics of the codec as JMX shows them (see the CodecMetrics class).
+ * Every attribute counts all operations since the program started or since
+ * the metrics were reset.
+ */
+public interface CodecMetricsMXBean {
+
+    /**
+     * @return the number of bytes all operations read.
+     */
+    long getBytesIn();
+
+    /**
+     * @return the number of bytes all operations wrote.
+     */
+    long getBytesOut();
+
+    /**
+     * @return the number of finished operations of all kinds.
+     */
+    long getOperationCount();
+
+    /**
+     * @return the number of failed operations of all kinds.
+     */
+    long getErrorCount();
+
+    /**
+     * @return the metrics of archiving files.
+     */
+    CodecMetrics.OperationSnapshot getArchive();
+
+    /**
+     * @return the metrics of unarchiving files.
+     */
+    CodecMetrics.OperationSnapshot getUnarchive();
+
+    /**
+     * @return the metrics of compressing buffers in memory.
+     */
+    CodecMetrics.OperationSnapshot getCompress();
+
+    /**
+     * @return the metrics of decompressing buffers in memory.
+     */
+    CodecMetrics.OperationSnapshot getDecompress();
+
+    /**
+     * Sets all metrics to zero.
+     */
+    void reset();
+}
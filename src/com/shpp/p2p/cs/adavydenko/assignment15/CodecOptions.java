@@ -0,0 +1,359 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+/**
+ * Settings of the archiver and the unarchiver that user can change with
+ * named command line options. The default values make the program work
+ * exactly the way it worked before those options appeared.
+ */
+public class CodecOptions {
+
+    /**
+     * Says whether reading, coding and writing shall run in three threads
+     * at the same time (the "--pipeline" option).
+     */
+    protected boolean pipelined = false;
+
+    /**
+     * The number of independent bitstreams in every block (the "--streams" option).
+     * More than one bitstream means the archive is written in the block format.
+     */
+    protected int streams = 1;
+
+    /**
+     * The name of the coder of bytes (the "--coder" option): "huffman" for
+     * Huffman codes or "fse" for the FSE coder (see the FseTable class).
+     */
+    protected String coder = HUFFMAN_CODER;
+
+    /**
+     * Says whether every block shall get its own code table when the statistics
+     * of bytes change (the "--adaptive" option).
+     */
+    protected boolean adaptive = false;
+
+    /**
+     * Says whether the archive shall be written in the block format only for
+     * the sake of the checksums of its blocks (the "--checksum" option).
+     */
+    protected boolean checksum = false;
+
+    /**
+     * The number of threads decoding an archive in the original format (the
+     * "--parallel" option, with the number of processors if no number is given).
+     * 0 means the archive is decoded in one thread.
+     */
+    protected int parallelThreads = 0;
+
+    /**
+     * The form of the report with the times of all phases ("--stats" for text,
+     * "--stats=json" for JSON), null if user did not ask for it.
+     */
+    protected String stats = null;
+
+    /**
+     * The spans of all jobs for Java Flight Recorder and, with the "--trace=file.json"
+     * option, for the Chrome trace (see the CodecTrace class).
+     */
+    protected CodecTrace trace = new CodecTrace(null);
+
+    /**
+     * The listener getting the progress of every job, null if nobody wants it
+     * (the "--progress" option prints it to console).
+     */
+    protected ProgressListener progressListener = null;
+
+    /**
+     * The period of the progress samples in milliseconds.
+     */
+    protected long progressMillis = DEFAULT_PROGRESS_SECONDS * MILLIS_IN_SEC;
+
+    /**
+     * The number of bytes of the inFile between two checkpoints (the "--checkpoint"
+     * option, in megabytes on the command line), 0 if no checkpoints shall be taken.
+     */
+    protected long checkpointBytes = 0;
+
+    /**
+     * Says whether the job shall go on from its last checkpoint (the "--resume" option).
+     */
+    protected boolean resume = false;
+
+    /**
+     * Says whether the new bytes of the inFile shall be added to the end of
+     * the existing archive instead of archiving the whole file again (the
+     * "--append" option). New archives are written adaptive, so they can grow.
+     */
+    protected boolean append = false;
+
+    /**
+     * The format of the archives (the "--format" option): "par" for par-archives
+     * or "gzip" for gzip files any gunzip or zlib can read (see the DeflateEncoder class).
+     */
+    protected String format = PAR_FORMAT;
+
+    /**
+     * Says whether files shall be read and written past the page cache (the
+     * "--direct-io" option, see the DirectIo class).
+     */
+    protected boolean directIo = false;
+
+    /**
+     * The limits of the disk bandwidth and of the worker threads (the "--max-rate",
+     * "--max-threads" and "--control" options), null if there are no limits.
+     */
+    protected Throttle throttle = null;
+
+    /**
+     * The cache of archives made by earlier runs (the "--cache" option), null
+     * if every file shall be encoded.
+     */
+    protected ArchiveCache cache = null;
+
+    /**
+     * The name of the Huffman coder.
+     */
+    protected static final String HUFFMAN_CODER = "huffman";
+
+    /**
+     * The name of the FSE coder.
+     */
+    protected static final String FSE_CODER = "fse";
+
+    /**
+     * The name of the par-archive format.
+     */
+    protected static final String PAR_FORMAT = "par";
+
+    /**
+     * The name of the gzip format.
+     */
+    protected static final String GZIP_FORMAT = "gzip";
+
+    /**
+     * The value of the "--stats" option asking for the report as JSON.
+     */
+    protected static final String JSON_STATS = "json";
+
+    /**
+     * The period of the progress samples if user did not choose it.
+     */
+    private static final int DEFAULT_PROGRESS_SECONDS = 1;
+
+    /**
+     * The number of milliseconds in a second.
+     */
+    private static final long MILLIS_IN_SEC = 1000;
+
+    /**
+     * The number of megabytes between two checkpoints if user did not choose it.
+     */
+    private static final int DEFAULT_CHECKPOINT_MB = 64;
+
+    /**
+     * The maximum size of the cache of archives if user did not choose it.
+     */
+    private static final int DEFAULT_CACHE_MB = 1024;
+
+    /**
+     * The number of bytes in a megabyte.
+     */
+    private static final long BYTES_IN_MB = 1024 * 1024;
+
+    /**
+     * Creates settings based on the command line arguments.
+     *
+     * @param argHandler is the object that already analyzed the command line arguments.
+     * @return settings chosen by user.
+     */
+    protected static CodecOptions fromArguments(ArgumentsHandler argHandler) {
+        CodecOptions options = new CodecOptions();
+        options.pipelined = argHandler.hasOption("pipeline");
+        options.streams = argHandler.getIntOption("streams", 1);
+        if (options.streams != 1 && options.streams != 4) {
+            throw new ArchiveException("Option --streams shall be 1 or 4");
+        }
+        options.coder = argHandler.getOption("coder", HUFFMAN_CODER);
+        if (!options.coder.equals(HUFFMAN_CODER) && !options.coder.equals(FSE_CODER)) {
+            throw new ArchiveException("Option --coder shall be " + HUFFMAN_CODER + " or " + FSE_CODER);
+        }
+        options.format = argHandler.getOption("format", PAR_FORMAT);
+        if (!options.format.equals(PAR_FORMAT) && !options.format.equals(GZIP_FORMAT)) {
+            throw new ArchiveException("Option --format shall be " + PAR_FORMAT + " or " + GZIP_FORMAT);
+        }
+        options.adaptive = argHandler.hasOption("adaptive");
+        options.checksum = argHandler.hasOption("checksum");
+        if (argHandler.hasOption("parallel")) {
+            options.parallelThreads = argHandler.getIntOption("parallel", Runtime.getRuntime().availableProcessors());
+            if (options.parallelThreads < 1) {
+                throw new ArchiveException("Option --parallel shall be a positive number");
+            }
+        }
+        if (argHandler.hasOption("stats")) {
+            options.stats = argHandler.getOption("stats", "");
+            if (!options.stats.isEmpty() && !options.stats.equals(JSON_STATS)) {
+                throw new ArchiveException("Option --stats shall have no value or be --stats=" + JSON_STATS);
+            }
+        }
+        if (argHandler.hasOption("progress")) {
+            int seconds = argHandler.getIntOption("progress", DEFAULT_PROGRESS_SECONDS);
+            if (seconds < 1) {
+                throw new ArchiveException("Option --progress shall be a positive number of seconds");
+            }
+            options.setProgressListener(new ConsoleProgress(), seconds * MILLIS_IN_SEC);
+        }
+        options.resume = argHandler.hasOption("resume");
+        if (argHandler.hasOption("checkpoint") || options.resume) {
+            int megabytes = argHandler.getIntOption("checkpoint", DEFAULT_CHECKPOINT_MB);
+            if (megabytes < 1) {
+                throw new ArchiveException("Option --checkpoint shall be a positive number of megabytes");
+            }
+            options.checkpointBytes = megabytes * BYTES_IN_MB;
+        }
+        if (argHandler.hasOption("trace")) {
+            String traceFile = argHandler.getOption("trace", "");
+            if (traceFile.isEmpty()) {
+                throw new ArchiveException("Option --trace shall name a file, e.g. --trace=trace.json");
+            }
+            options.trace = new CodecTrace(traceFile);
+        }
+        if (argHandler.hasOption("cache")) {
+            String cacheDirectory = argHandler.getOption("cache", "");
+            if (cacheDirectory.isEmpty()) {
+                throw new ArchiveException("Option --cache shall name a directory, e.g. --cache=par-cache");
+            }
+            int megabytes = argHandler.getIntOption("cache-size", DEFAULT_CACHE_MB);
+            if (megabytes < 1) {
+                throw new ArchiveException("Option --cache-size shall be a positive number of megabytes");
+            }
+            options.cache = new ArchiveCache(cacheDirectory, megabytes * BYTES_IN_MB);
+        }
+        options.directIo = argHandler.hasOption("direct-io");
+        if (argHandler.hasOption(Throttle.MAX_RATE_KEY) || argHandler.hasOption(Throttle.MAX_THREADS_KEY)
+                || argHandler.hasOption("control")) {
+            int megabytesPerSecond = argHandler.getIntOption(Throttle.MAX_RATE_KEY, 0);
+            int maxThreads = argHandler.getIntOption(Throttle.MAX_THREADS_KEY, Integer.MAX_VALUE);
+            if (megabytesPerSecond < 0 || maxThreads < 1) {
+                throw new ArchiveException("Option --" + Throttle.MAX_RATE_KEY + " shall be a number of megabytes "
+                        + "per second and --" + Throttle.MAX_THREADS_KEY + " a positive number");
+            }
+            String controlFile = argHandler.getOption("control", "");
+            options.throttle = new Throttle(megabytesPerSecond, maxThreads, controlFile.isEmpty() ? null : controlFile);
+        }
+        options.append = argHandler.hasOption("append");
+        if (options.append) {
+            if (options.usesFse()) {
+                throw new ArchiveException("Options --coder=" + FSE_CODER + " and --append can not be used together");
+            }
+            options.adaptive = true;
+        }
+        if (options.usesFse() && options.adaptive) {
+            throw new ArchiveException("Options --coder=" + FSE_CODER + " and --adaptive can not be used together");
+        }
+        if (options.usesFse() && options.streams != 1) {
+            throw new ArchiveException("Option --coder=" + FSE_CODER + " works with one stream only");
+        }
+        if (options.checkpointBytes > 0
+                && (options.usesBlockFormat() || options.pipelined || options.parallelThreads > 0)) {
+            throw new ArchiveException("Options --checkpoint and --resume work with the original format in one thread only");
+        }
+        if (options.usesGzip() && (options.usesBlockFormat() || options.append || options.checkpointBytes > 0)) {
+            throw new ArchiveException("Option --format=" + GZIP_FORMAT + " can not be used with --streams, --coder, "
+                    + "--adaptive, --checksum, --append, --checkpoint or --resume");
+        }
+        if (options.cache != null && (options.append || options.checkpointBytes > 0)) {
+            throw new ArchiveException("Option --cache can not be used with --append, --checkpoint or --resume");
+        }
+        if (options.directIo && (options.append || options.checkpointBytes > 0
+                || (options.parallelThreads > 0 && !argHandler.archiveOperation))) {
+            throw new ArchiveException("Option --direct-io can not be used with --append, --checkpoint, --resume "
+                    + "or --parallel when unarchiving");
+        }
+        return options;
+    }
+
+    /**
+     * Says whether the archive shall be written in the block format, since
+     * the original format has no room for the chosen settings. Archives in
+     * the block format always have checksums.
+     *
+     * @return true if the block format shall be used.
+     */
+    protected boolean usesBlockFormat() {
+        return streams > 1 || usesFse() || adaptive || checksum;
+    }
+
+    /**
+     * Describes the settings that change the bytes of an archive, so that the
+     * cache never gives an archive made with other settings.
+     *
+     * @return a short description that may be a part of a file name.
+     */
+    protected String describeArchiveSettings() {
+        if (usesGzip()) {
+            return GZIP_FORMAT;
+        }
+        return coder + "-s" + streams + (adaptive ? "-adaptive" : "") + (checksum ? "-checksum" : "");
+    }
+
+    /**
+     * Provides the number of threads of the parallel coders within the thread limit.
+     *
+     * @return the number of threads.
+     */
+    protected int getParallelThreads() {
+        return throttle == null ? parallelThreads : throttle.limitThreads(parallelThreads);
+    }
+
+    /**
+     * Says whether gzip files shall be written instead of par-archives.
+     *
+     * @return true if the gzip format was chosen.
+     */
+    protected boolean usesGzip() {
+        return format.equals(GZIP_FORMAT);
+    }
+
+    /**
+     * Says whether bytes shall be encoded with the FSE coder instead of Huffman codes.
+     *
+     * @return true if the FSE coder was chosen.
+     */
+    protected boolean usesFse() {
+        return coder.equals(FSE_CODER);
+    }
+
+    /**
+     * Makes every job tell its progress to a listener.
+     *
+     * @param listener     is the listener, null to stop telling the progress.
+     * @param periodMillis is the period of the samples in milliseconds.
+     * @return these settings.
+     */
+    public CodecOptions setProgressListener(ProgressListener listener, long periodMillis) {
+        if (periodMillis < 1) {
+            throw new ArchiveException("The period of the progress samples shall be positive");
+        }
+        this.progressListener = listener;
+        this.progressMillis = periodMillis;
+        return this;
+    }
+
+    /**
+     * Creates the monitor of the progress of one file.
+     *
+     * @param file is the file of the job.
+     * @return the monitor or null if nobody wants the progress.
+     */
+    protected ProgressMonitor createProgress(String file) {
+        return progressListener == null ? null : new ProgressMonitor(file, progressListener, progressMillis);
+    }
+
+    /**
+     * Creates the collector of the times of all phases of one file.
+     *
+     * @return the collector or null if user did not ask for the report.
+     */
+    protected CodecStats createStats() {
+        return stats == null ? null : new CodecStats(stats.equals(JSON_STATS));
+    }
+}
@@ -0,0 +1,331 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Describes the simple framed protocol used by the CodecServer and the CodecClient.
+ * Every message (a frame) starts with 4 bytes saying how many bytes follow.
+ * <p>
+ * A request frame contains:
+ * --- the operation (1 byte): archive or unarchive
+ * --- the name and location of the input file (modified UTF-8 string)
+ * --- the name and location of the output file (modified UTF-8 string)
+ * --- the number of named options (2 bytes)
+ * --- the name (without "--") and the value of every option (two modified UTF-8 strings)
+ * <p>
+ * The server builds the settings of the job from the options the same way a
+ * local run builds them from the command line. Options that only make sense in
+ * the program user sees (the progress, the report of the phases, the trace and
+ * the control file) are rejected, since their output would go to the server.
+ * <p>
+ * A response frame contains:
+ * --- the status (1 byte): ok or error
+ * --- the size of the input file in bytes (8 bytes)
+ * --- the size of the output file in bytes (8 bytes)
+ * --- the number of nanoseconds the job took on the server (8 bytes)
+ * --- a message (modified UTF-8 string), the reason of the error if there was one
+ * <p>
+ * The server works with files, so the client shall provide absolute file names.
+ * <p>
+ * The server reads and writes any file its user may, so only that user shall be
+ * able to send it jobs. The socket file of a Unix domain socket is made readable
+ * and writable by its owner only. A loopback TCP port can be reached by every user
+ * of the machine, so a server on a port needs a token file (the "--token" option):
+ * a secret the server creates on its first start, readable by its owner only.
+ * Every connection then starts with a token frame holding the secret (modified
+ * UTF-8 string). A connection with a wrong token gets an error response and is closed.
+ */
+public class CodecProtocol {
+
+    /**
+     * The operation byte of a request to archive a file.
+     */
+    protected static final byte OPERATION_ARCHIVE = 1;
+
+    /**
+     * The operation byte of a request to unarchive a file.
+     */
+    protected static final byte OPERATION_UNARCHIVE = 2;
+
+    /**
+     * The status byte of a response to a successfully done job.
+     */
+    protected static final byte STATUS_OK = 0;
+
+    /**
+     * The status byte of a response to a failed job.
+     */
+    protected static final byte STATUS_ERROR = 1;
+
+    /**
+     * The maximum size of a frame in bytes. Two file names and the options never
+     * need more, so a bigger length means the other side does not speak this protocol.
+     */
+    private static final int MAX_FRAME_SIZE = 64 * 1024;
+
+    /**
+     * The options that work only in a local run: their output would be printed
+     * or saved by the server instead of the client.
+     */
+    private static final List<String> LOCAL_OPTIONS = List.of("progress", "stats", "trace", "control");
+
+    /**
+     * The name of the option naming the token file.
+     */
+    protected static final String TOKEN_OPTION = "token";
+
+    /**
+     * The number of random bytes in a new token.
+     */
+    private static final int TOKEN_BYTES = 32;
+
+    /**
+     * The permissions of the socket file and of the token file: read and write for the owner only.
+     */
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rw-------");
+
+    /**
+     * Checks that all options of a request can be sent to the server.
+     *
+     * @param options are the named options (the name without "--" and the value).
+     * @throws ArchiveException if one of the options works only in a local run.
+     */
+    protected static void checkRemoteOptions(Map<String, String> options) {
+        for (String name : LOCAL_OPTIONS) {
+            if (options.containsKey(name)) {
+                throw new ArchiveException("Option --" + name + " works only without a server");
+            }
+        }
+    }
+
+    /**
+     * Converts the address provided by user to a socket address. A number
+     * stands for a TCP port on the loopback interface, anything else stands
+     * for the path of a Unix domain socket.
+     *
+     * @param address is a port number or a path of a socket file.
+     * @return the socket address the server listens on.
+     */
+    protected static SocketAddress parseAddress(String address) {
+        try {
+            int port = Integer.parseInt(address);
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        } catch (NumberFormatException e) {
+            return UnixDomainSocketAddress.of(address);
+        }
+    }
+
+    /**
+     * Says whether an address is a TCP port, which every user of the machine can reach.
+     *
+     * @param address is the socket address.
+     * @return true if it is a TCP port.
+     */
+    protected static boolean isTcp(SocketAddress address) {
+        return address instanceof InetSocketAddress;
+    }
+
+    /**
+     * Makes a file readable and writable by its owner only. File systems
+     * without POSIX permissions are left as they are.
+     *
+     * @param file is the socket file or the token file.
+     */
+    protected static void restrictToOwner(Path file) throws IOException {
+        try {
+            Files.setPosixFilePermissions(file, OWNER_ONLY);
+        } catch (UnsupportedOperationException ignored) {
+            // nothing to do, the file system has no permissions like these
+        }
+    }
+
+    /**
+     * Reads the token from a token file. The server creates the file with a new
+     * random token if there is no such file yet.
+     *
+     * @param tokenFile is the name and location of the token file.
+     * @param create    says whether a missing file shall be created (by the server) or is an error.
+     * @return the token.
+     * @throws ArchiveException if the file is missing or other users may read it.
+     */
+    protected static String loadToken(String tokenFile, boolean create) {
+        Path file = Path.of(tokenFile);
+        try {
+            if (create && Files.notExists(file)) {
+                byte[] secret = new byte[TOKEN_BYTES];
+                new SecureRandom().nextBytes(secret);
+                Files.createFile(file);
+                restrictToOwner(file);
+                Files.writeString(file, HexFormat.of().formatHex(secret));
+            }
+            try {
+                if (!OWNER_ONLY.containsAll(Files.getPosixFilePermissions(file))) {
+                    throw new ArchiveException("The token file " + tokenFile + " shall be readable by its owner only"
+                            + " (chmod 600 " + tokenFile + ")");
+                }
+            } catch (UnsupportedOperationException ignored) {
+                // nothing to check, the file system has no permissions like these
+            }
+            String token = Files.readString(file).trim();
+            if (token.isEmpty()) {
+                throw new ArchiveException("The token file " + tokenFile + " is empty");
+            }
+            return token;
+        } catch (IOException e) {
+            throw new ArchiveException("Can not read the token file " + tokenFile, e);
+        }
+    }
+
+    /**
+     * Writes a token frame: the first frame of a connection to a server with a token.
+     *
+     * @param out   is the stream connected to the server.
+     * @param token is the token read from the token file.
+     */
+    protected static void writeToken(DataOutputStream out, String token) throws IOException {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        new DataOutputStream(frame).writeUTF(token);
+        writeFrame(out, frame.toByteArray());
+    }
+
+    /**
+     * Reads a token frame and compares its token with the one of the server.
+     * The comparison takes the same time wherever the tokens differ.
+     *
+     * @param in    is the stream connected to the client.
+     * @param token is the token of the server.
+     * @return true if the client sent the same token.
+     */
+    protected static boolean readToken(DataInputStream in, String token) throws IOException {
+        DataInputStream frame = readFrame(in);
+        if (frame == null) {
+            return false;
+        }
+        byte[] received = frame.readUTF().getBytes(StandardCharsets.UTF_8);
+        return MessageDigest.isEqual(received, token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes a request frame.
+     *
+     * @param out              is the stream connected to the server.
+     * @param archiveOperation says whether the inFile shall be archived (if true)
+     *                         or unarchived (if false).
+     * @param inFile           is the name and location of the file to be processed.
+     * @param outFile          is the name and location of the file to be created.
+     * @param options          are the named options (the name without "--" and the value).
+     */
+    protected static void writeRequest(DataOutputStream out, boolean archiveOperation,
+                                       String inFile, String outFile, Map<String, String> options) throws IOException {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        DataOutputStream frameData = new DataOutputStream(frame);
+        frameData.writeByte(archiveOperation ? OPERATION_ARCHIVE : OPERATION_UNARCHIVE);
+        frameData.writeUTF(inFile);
+        frameData.writeUTF(outFile);
+        frameData.writeShort(options.size());
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            frameData.writeUTF(option.getKey());
+            frameData.writeUTF(option.getValue());
+        }
+        writeFrame(out, frame.toByteArray());
+    }
+
+    /**
+     * Reads the named options of a request frame. The operation and both file
+     * names shall be read already.
+     *
+     * @param request is the content of the request frame.
+     * @return the options (the name without "--" and the value).
+     */
+    protected static Map<String, String> readOptions(DataInputStream request) throws IOException {
+        Map<String, String> options = new HashMap<>();
+        int count = request.readUnsignedShort();
+        for (int i = 0; i < count; i++) {
+            options.put(request.readUTF(), request.readUTF());
+        }
+        return options;
+    }
+
+    /**
+     * Writes a response frame with the result of a job.
+     *
+     * @param out is the stream connected to the client.
+     * @param job is the finished job.
+     */
+    protected static void writeResponse(DataOutputStream out, FileJob job) throws IOException {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        DataOutputStream frameData = new DataOutputStream(frame);
+        frameData.writeByte(job.isSuccessful() ? STATUS_OK : STATUS_ERROR);
+        frameData.writeLong(job.bytesIn);
+        frameData.writeLong(job.bytesOut);
+        frameData.writeLong(job.nanos);
+        frameData.writeUTF(job.isSuccessful() ? "" : String.valueOf(job.error.getMessage()));
+        writeFrame(out, frame.toByteArray());
+    }
+
+    /**
+     * Writes a response frame to a request that could not become a job.
+     *
+     * @param out     is the stream connected to the client.
+     * @param message is the reason of the error.
+     */
+    protected static void writeError(DataOutputStream out, String message) throws IOException {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        DataOutputStream frameData = new DataOutputStream(frame);
+        frameData.writeByte(STATUS_ERROR);
+        frameData.writeLong(0);
+        frameData.writeLong(0);
+        frameData.writeLong(0);
+        frameData.writeUTF(message);
+        writeFrame(out, frame.toByteArray());
+    }
+
+    /**
+     * Reads one frame and checks its length.
+     *
+     * @param in is the stream connected to the other side.
+     * @return the content of the frame or null if the other side closed the connection.
+     */
+    protected static DataInputStream readFrame(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new IOException("Invalid frame length " + length);
+        }
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return new DataInputStream(new ByteArrayInputStream(frame));
+    }
+
+    /**
+     * Writes the length of the frame followed by the frame itself.
+     *
+     * @param out   is the stream connected to the other side.
+     * @param frame is the content of the frame.
+     */
+    private static void writeFrame(DataOutputStream out, byte[] frame) throws IOException {
+        out.writeInt(frame.length);
+        out.write(frame);
+        out.flush();
+    }
+}
@@ -0,0 +1,366 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+import java.io.*;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.*;
+
+/**
+ * A long-running server that archives and unarchives files on request. It stays
+ * resident, so the JVM starts only once and the codec reaches JIT steady state
+ * after the warm-up instead of running cold for every file.
+ * <p>
+ * The server listens on a Unix domain socket or on a loopback TCP port and speaks
+ * the protocol described in the CodecProtocol class. Only the user running the
+ * server may send it jobs: the socket file is readable and writable by its owner
+ * only, and a server on a TCP port needs a token file ("--token=par.token") whose
+ * secret every connection shall send first. Every connection is served by
+ * its own thread that reads requests one after another. Every job gets the settings
+ * built from the options of its request, so a "--max-rate" limits that job alone.
+ * A request with an unknown operation or wrong options gets an error response and
+ * the connection goes on. Jobs are run by a fixed
+ * number of workers. Jobs that can not be run at once wait in a bounded queue. If
+ * the queue is full, the connection thread stops reading its socket until there is
+ * room again, so clients feel the backpressure and can not overload the server.
+ * The number of connections served at once is bounded too: when all of them are
+ * taken, new clients wait in the backlog of the socket until one is closed, so
+ * waiting clients hold neither threads nor file descriptors of the server.
+ * <p>
+ * A failed accept (e.g. when the process is out of file descriptors) does not stop
+ * the server: it is printed, and the server tries again after a growing pause.
+ */
+public class CodecServer {
+
+    /**
+     * The number of jobs that may wait in the queue if user
+     * did not provide the "--queue" option.
+     */
+    private static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+    /**
+     * The number of connections served at the same time if user
+     * did not provide the "--connections" option.
+     */
+    private static final int DEFAULT_MAX_CONNECTIONS = 256;
+
+    /**
+     * The pause after the first failed accept in milliseconds.
+     */
+    private static final long FIRST_ACCEPT_PAUSE = 100;
+
+    /**
+     * The longest pause after a failed accept in milliseconds.
+     */
+    private static final long MAX_ACCEPT_PAUSE = 5000;
+
+    /**
+     * The number of archive / unarchive rounds done while warming up.
+     */
+    private static final int WARM_UP_ROUNDS = 20;
+
+    /**
+     * The size of the sample file used for warming up in bytes.
+     */
+    private static final int WARM_UP_FILE_SIZE = 256 * 1024;
+
+    /**
+     * The address the server listens on.
+     */
+    private final SocketAddress ADDRESS;
+
+    /**
+     * The secret every connection shall start with, null if the server has no token.
+     */
+    private final String TOKEN;
+
+    /**
+     * The number of jobs running at the same time.
+     */
+    private final int WORKERS;
+
+    /**
+     * Workers running jobs. Their queue is bounded by the JOB_SLOTS semaphore.
+     */
+    private final ExecutorService WORKER_POOL;
+
+    /**
+     * Permits for jobs that are either running or waiting in the queue. A connection
+     * takes a permit before it submits a job and blocks if there are no permits left.
+     */
+    private final Semaphore JOB_SLOTS;
+
+    /**
+     * Permits for connections being served. The server takes a permit before it
+     * accepts a connection, so there are never more connection threads than permits.
+     */
+    private final Semaphore CONNECTION_SLOTS;
+
+    /**
+     * Threads serving client connections. Their number is bounded by the CONNECTION_SLOTS semaphore.
+     */
+    private final ExecutorService CONNECTION_POOL = Executors.newCachedThreadPool();
+
+    /**
+     * Auxiliary methods shared by all jobs. They do not print anything, since
+     * the server console is not the place where clients look for results.
+     */
+    private final AuxiliaryMethods AUX_METHODS = new AuxiliaryMethods(false);
+
+    /**
+     * Creates a server.
+     *
+     * @param address       is a port number or a path of a socket file.
+     * @param workers       is the number of jobs running at the same time.
+     * @param queueCapacity is the number of jobs that may wait for a free worker.
+     */
+    public CodecServer(String address, int workers, int queueCapacity) {
+        this(address, workers, queueCapacity, DEFAULT_MAX_CONNECTIONS, null);
+    }
+
+    /**
+     * Creates a server with a chosen number of connections served at once and
+     * a token file.
+     *
+     * @param address        is a port number or a path of a socket file.
+     * @param workers        is the number of jobs running at the same time.
+     * @param queueCapacity  is the number of jobs that may wait for a free worker.
+     * @param maxConnections is the number of connections served at the same time.
+     * @param tokenFile      is the file with the secret of the clients (created if there
+     *                       is no such file yet), null for no token.
+     * @throws ArchiveException if the server shall listen on a TCP port without a token.
+     */
+    public CodecServer(String address, int workers, int queueCapacity, int maxConnections, String tokenFile) {
+        this.ADDRESS = CodecProtocol.parseAddress(address);
+        if (CodecProtocol.isTcp(ADDRESS) && tokenFile == null) {
+            throw new ArchiveException("Every user of the machine can reach a TCP port, so the server needs "
+                    + "a token file there, e.g. --" + CodecProtocol.TOKEN_OPTION + "=par.token");
+        }
+        this.TOKEN = tokenFile == null ? null : CodecProtocol.loadToken(tokenFile, true);
+        this.WORKERS = Math.max(1, workers);
+        this.WORKER_POOL = Executors.newFixedThreadPool(WORKERS);
+        this.JOB_SLOTS = new Semaphore(WORKERS + Math.max(0, queueCapacity));
+        this.CONNECTION_SLOTS = new Semaphore(Math.max(1, maxConnections));
+    }
+
+    /**
+     * Creates a server based on the command line arguments.
+     *
+     * @param argHandler is the object that already analyzed the command line arguments.
+     * @return a server listening on the address provided by user.
+     */
+    protected static CodecServer fromArguments(ArgumentsHandler argHandler) {
+        int workers = argHandler.getIntOption("workers", Runtime.getRuntime().availableProcessors());
+        int queueCapacity = argHandler.getIntOption("queue", DEFAULT_QUEUE_CAPACITY);
+        int maxConnections = argHandler.getIntOption("connections", DEFAULT_MAX_CONNECTIONS);
+        String tokenFile = argHandler.getOption(CodecProtocol.TOKEN_OPTION, "");
+        return new CodecServer(argHandler.inFile, workers, queueCapacity, maxConnections,
+                tokenFile.isEmpty() ? null : tokenFile);
+    }
+
+    /**
+     * Warms the codec up, opens the socket and serves clients until the
+     * program is terminated.
+     */
+    protected void serve() {
+        warmUp();
+        CodecMetrics.INSTANCE.reset(); // The warm-up jobs are not real work
+        try (ServerSocketChannel serverChannel = openServerChannel()) {
+            System.out.println("Listening on " + ADDRESS + " with " + WORKERS + " worker(s)");
+            long pause = FIRST_ACCEPT_PAUSE;
+            while (true) {
+                CONNECTION_SLOTS.acquireUninterruptibly();
+                SocketChannel channel;
+                try {
+                    channel = serverChannel.accept();
+                } catch (IOException e) {
+                    CONNECTION_SLOTS.release();
+                    if (!serverChannel.isOpen()) {
+                        throw e;
+                    }
+                    System.out.println("Can not accept a connection: " + e.getMessage()
+                            + ". Trying again in " + pause + " millisecond(s)");
+                    sleep(pause);
+                    pause = Math.min(MAX_ACCEPT_PAUSE, pause * 2);
+                    continue;
+                }
+                pause = FIRST_ACCEPT_PAUSE;
+                CONNECTION_POOL.execute(() -> {
+                    try {
+                        serveConnection(channel);
+                    } finally {
+                        CONNECTION_SLOTS.release();
+                    }
+                });
+            }
+        } catch (IOException e) {
+            throw new ArchiveException("Can not listen on " + ADDRESS, e);
+        }
+    }
+
+    /**
+     * Pauses the thread accepting connections.
+     *
+     * @param millis is the length of the pause in milliseconds.
+     */
+    private void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ArchiveException("The server was interrupted", e);
+        }
+    }
+
+    /**
+     * Opens the server socket. A stale socket file of a Unix domain socket is
+     * deleted first, the new one is made readable and writable by its owner
+     * only, and it is deleted when the program terminates.
+     *
+     * @return the channel accepting client connections.
+     */
+    private ServerSocketChannel openServerChannel() throws IOException {
+        ServerSocketChannel serverChannel;
+        if (ADDRESS instanceof UnixDomainSocketAddress) {
+            Path socketFile = ((UnixDomainSocketAddress) ADDRESS).getPath();
+            Files.deleteIfExists(socketFile);
+            serverChannel = ServerSocketChannel.open(java.net.StandardProtocolFamily.UNIX);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    Files.deleteIfExists(socketFile);
+                } catch (IOException ignored) {
+                    // nothing to do, the program is terminating anyway
+                }
+            }));
+        } else {
+            serverChannel = ServerSocketChannel.open();
+        }
+        serverChannel.bind(ADDRESS);
+        if (ADDRESS instanceof UnixDomainSocketAddress) {
+            CodecProtocol.restrictToOwner(((UnixDomainSocketAddress) ADDRESS).getPath());
+        }
+        return serverChannel;
+    }
+
+    /**
+     * Checks the token of one client, then reads its requests one after another,
+     * runs a job for every request and writes its result back.
+     *
+     * @param channel is the connection with the client.
+     */
+    private void serveConnection(SocketChannel channel) {
+        try (channel;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)))) {
+            if (TOKEN != null && !CodecProtocol.readToken(in, TOKEN)) {
+                CodecProtocol.readFrame(in); // The request is dropped, so the client gets the error and not a reset
+                CodecProtocol.writeError(out, "Wrong token, see the --" + CodecProtocol.TOKEN_OPTION + " option");
+                return;
+            }
+            DataInputStream request;
+            while ((request = CodecProtocol.readFrame(in)) != null) {
+                byte operation = request.readByte();
+                String inFile = request.readUTF();
+                String outFile = request.readUTF();
+                Map<String, String> options = CodecProtocol.readOptions(request);
+                if (operation != CodecProtocol.OPERATION_ARCHIVE && operation != CodecProtocol.OPERATION_UNARCHIVE) {
+                    CodecProtocol.writeError(out, "Unknown operation " + operation);
+                    continue;
+                }
+                FileJob job;
+                try {
+                    boolean isArchive = operation == CodecProtocol.OPERATION_ARCHIVE;
+                    job = new FileJob(inFile, outFile, isArchive, createOptions(isArchive, options));
+                } catch (ArchiveException e) {
+                    CodecProtocol.writeError(out, e.getMessage());
+                    continue;
+                }
+                runJob(job);
+                CodecProtocol.writeResponse(out, job);
+            }
+        } catch (IOException e) {
+            System.out.println("Connection closed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Builds the settings of a job from the options of its request the same
+     * way a local run builds them from the command line.
+     *
+     * @param isArchive says whether the job archives a file (some options depend on it).
+     * @param options   are the named options of the request.
+     * @return the settings of the job.
+     * @throws ArchiveException if an option is wrong or works only in a local run.
+     */
+    private CodecOptions createOptions(boolean isArchive, Map<String, String> options) {
+        CodecProtocol.checkRemoteOptions(options);
+        ArgumentsHandler argHandler = new ArgumentsHandler();
+        argHandler.archiveOperation = isArchive;
+        argHandler.OPTIONS.putAll(options);
+        return CodecOptions.fromArguments(argHandler);
+    }
+
+    /**
+     * Runs a job on one of the workers and waits until it is done. If all workers
+     * are busy and the queue is full, waits for a free place in the queue first.
+     *
+     * @param job is the job to be run.
+     */
+    private void runJob(FileJob job) {
+        JOB_SLOTS.acquireUninterruptibly();
+        try {
+            WORKER_POOL.submit(() -> job.run(AUX_METHODS)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            job.error = e;
+        } catch (ExecutionException e) {
+            job.error = e;
+        } finally {
+            JOB_SLOTS.release();
+        }
+    }
+
+    /**
+     * Archives and unarchives a sample file several times, so that the JIT
+     * compiler compiles the hot codec methods before the first client comes.
+     */
+    private void warmUp() {
+        try {
+            File sample = File.createTempFile("warm-up", ".txt");
+            File archive = new File(sample.getPath() + ".par");
+            File restored = new File(sample.getPath() + ".uar");
+            Files.write(sample.toPath(), createWarmUpData());
+            for (int i = 0; i < WARM_UP_ROUNDS; i++) {
+                new FileJob(sample.getPath(), archive.getPath(), true).run(AUX_METHODS);
+                new FileJob(archive.getPath(), restored.getPath(), false).run(AUX_METHODS);
+            }
+            Files.deleteIfExists(sample.toPath());
+            Files.deleteIfExists(archive.toPath());
+            Files.deleteIfExists(restored.toPath());
+        } catch (IOException e) {
+            System.out.println("Warm-up skipped: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Creates sample data for warming up: text-like bytes with a skewed
+     * distribution, so that codes of different lengths are used.
+     *
+     * @return the sample data.
+     */
+    private byte[] createWarmUpData() {
+        final String ALPHABET = "eeeeeeettttaaaooinnsshrdlu ,.\n0123456789";
+        Random random = new Random(WARM_UP_FILE_SIZE);
+        byte[] data = new byte[WARM_UP_FILE_SIZE];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+        }
+        return data;
+    }
+}
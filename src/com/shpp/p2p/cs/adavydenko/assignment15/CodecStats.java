@@ -0,0 +1,294 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Collects how long every phase of archiving or unarchiving one file took
+ * (the "--stats" option) and prints it as text or, with "--stats=json", as
+ * one line of JSON a job scheduler can parse.
+ * <p>
+ * Phases are timed with System.nanoTime. Besides the phases the report has
+ * the sizes of both files, the number of compressed bits per original byte,
+ * the garbage collections and the bytes allocated by the thread that did the
+ * job (threads of the parallel modes are not counted), and the peak memory
+ * used by the heap while the file was processed.
+ */
+public class CodecStats {
+
+    /**
+     * The number of bytes in a megabyte.
+     */
+    private static final double BYTES_IN_MB = 1024 * 1024;
+
+    /**
+     * The number of nanoseconds in a second.
+     */
+    private static final double NANOS_IN_SEC = 1_000_000_000;
+
+    /**
+     * The number of nanoseconds in a millisecond.
+     */
+    private static final double NANOS_IN_MILLI = 1_000_000;
+
+    /**
+     * Says whether the report shall be printed as JSON.
+     */
+    private final boolean JSON;
+
+    /**
+     * The nanoseconds every phase took, in the order the phases were finished.
+     */
+    private final LinkedHashMap<String, Long> PHASE_NANOS = new LinkedHashMap<>();
+
+    /**
+     * The number of bytes every phase processed (0 if it did not process bytes).
+     */
+    private final LinkedHashMap<String, Long> PHASE_BYTES = new LinkedHashMap<>();
+
+    /**
+     * The moment the job started.
+     */
+    private final long START_NANOS;
+
+    /**
+     * The number of garbage collections before the job started.
+     */
+    private final long START_GC_COUNT;
+
+    /**
+     * The milliseconds spent on garbage collections before the job started.
+     */
+    private final long START_GC_MILLIS;
+
+    /**
+     * The number of bytes the thread allocated before the job started (-1 if unknown).
+     */
+    private final long START_ALLOCATED;
+
+    /**
+     * Creates an empty report and remembers the state of the memory when the job starts.
+     *
+     * @param json says whether the report shall be printed as JSON.
+     */
+    public CodecStats(boolean json) {
+        this.JSON = json;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+        this.START_GC_COUNT = getGcCount();
+        this.START_GC_MILLIS = getGcMillis();
+        this.START_ALLOCATED = getAllocatedBytes();
+        this.START_NANOS = System.nanoTime();
+    }
+
+    /**
+     * Adds the time of a phase. A phase finished several times gets the sum of its times.
+     *
+     * @param phase      is the name of the phase.
+     * @param startNanos is the System.nanoTime when the phase started.
+     * @param bytes      is the number of bytes the phase processed (0 if it did not process bytes).
+     */
+    protected void record(String phase, long startNanos, long bytes) {
+        PHASE_NANOS.merge(phase, System.nanoTime() - startNanos, Long::sum);
+        PHASE_BYTES.merge(phase, bytes, Long::sum);
+    }
+
+    /**
+     * Provides the time of a phase recorded so far.
+     *
+     * @param phase is the name of the phase.
+     * @return the nanoseconds of the phase (0 if it was not recorded).
+     */
+    protected long getNanos(String phase) {
+        return PHASE_NANOS.getOrDefault(phase, 0L);
+    }
+
+    /**
+     * Prints the report.
+     *
+     * @param operation is "archive" or "unarchive".
+     * @param inFile    is the file the job read.
+     * @param outFile   is the file the job wrote.
+     * @param bytesIn   is the size of the inFile.
+     * @param bytesOut  is the size of the outFile.
+     */
+    protected void print(String operation, String inFile, String outFile, long bytesIn, long bytesOut) {
+        long wallNanos = System.nanoTime() - START_NANOS;
+        long originalBytes = operation.equals("archive") ? bytesIn : bytesOut;
+        long compressedBytes = operation.equals("archive") ? bytesOut : bytesIn;
+        double bitsPerSymbol = originalBytes > 0 ? compressedBytes * (double) Byte.SIZE / originalBytes : 0;
+        long gcCount = getGcCount() - START_GC_COUNT;
+        long gcMillis = getGcMillis() - START_GC_MILLIS;
+        long allocated = START_ALLOCATED < 0 ? -1 : getAllocatedBytes() - START_ALLOCATED;
+        long peakHeap = getPeakHeapBytes();
+        System.out.println(JSON
+                ? toJson(operation, inFile, outFile, bytesIn, bytesOut, wallNanos, bitsPerSymbol,
+                gcCount, gcMillis, allocated, peakHeap)
+                : toText(bytesIn, bytesOut, wallNanos, bitsPerSymbol, gcCount, gcMillis, allocated, peakHeap));
+    }
+
+    /**
+     * Creates the report as one line of JSON.
+     *
+     * @return the JSON object.
+     */
+    private String toJson(String operation, String inFile, String outFile, long bytesIn, long bytesOut,
+                          long wallNanos, double bitsPerSymbol, long gcCount, long gcMillis,
+                          long allocated, long peakHeap) {
+        StringBuilder json = new StringBuilder("{");
+        json.append("\"operation\":").append(quote(operation))
+                .append(",\"inFile\":").append(quote(inFile))
+                .append(",\"outFile\":").append(quote(outFile))
+                .append(",\"bytesIn\":").append(bytesIn)
+                .append(",\"bytesOut\":").append(bytesOut)
+                .append(",\"wallNanos\":").append(wallNanos)
+                .append(",\"mbPerSec\":").append(format(getMbPerSec(bytesIn, wallNanos)))
+                .append(",\"bitsPerSymbol\":").append(format(bitsPerSymbol))
+                .append(",\"phases\":[");
+        boolean first = true;
+        for (Map.Entry<String, Long> phase : PHASE_NANOS.entrySet()) {
+            long bytes = PHASE_BYTES.get(phase.getKey());
+            json.append(first ? "" : ",")
+                    .append("{\"name\":").append(quote(phase.getKey()))
+                    .append(",\"nanos\":").append(phase.getValue())
+                    .append(",\"bytes\":").append(bytes)
+                    .append(",\"mbPerSec\":").append(format(getMbPerSec(bytes, phase.getValue())))
+                    .append("}");
+            first = false;
+        }
+        json.append("],\"gcCount\":").append(gcCount)
+                .append(",\"gcMillis\":").append(gcMillis)
+                .append(",\"allocatedBytes\":").append(allocated)
+                .append(",\"peakHeapBytes\":").append(peakHeap)
+                .append("}");
+        return json.toString();
+    }
+
+    /**
+     * Creates the report as lines of text.
+     *
+     * @return the text.
+     */
+    private String toText(long bytesIn, long bytesOut, long wallNanos, double bitsPerSymbol,
+                          long gcCount, long gcMillis, long allocated, long peakHeap) {
+        StringBuilder text = new StringBuilder("Stats: " + bytesIn + " bytes in, " + bytesOut + " bytes out, "
+                + format(bitsPerSymbol) + " bits per byte, " + format(wallNanos / NANOS_IN_MILLI) + " ms, "
+                + format(getMbPerSec(bytesIn, wallNanos)) + " Mb/s");
+        for (Map.Entry<String, Long> phase : PHASE_NANOS.entrySet()) {
+            long bytes = PHASE_BYTES.get(phase.getKey());
+            text.append(System.lineSeparator()).append("- ").append(phase.getKey()).append(": ")
+                    .append(format(phase.getValue() / NANOS_IN_MILLI)).append(" ms")
+                    .append(bytes > 0 ? ", " + format(getMbPerSec(bytes, phase.getValue())) + " Mb/s" : "");
+        }
+        text.append(System.lineSeparator()).append("- GC: ").append(gcCount).append(" collection(s), ")
+                .append(gcMillis).append(" ms; allocated: ")
+                .append(allocated < 0 ? "unknown" : allocated + " bytes")
+                .append("; peak heap: ").append(peakHeap).append(" bytes");
+        return text.toString();
+    }
+
+    /**
+     * Counts the megabytes processed in a second.
+     *
+     * @param bytes is the number of processed bytes.
+     * @param nanos is the time it took.
+     * @return the speed (0 if the time is 0).
+     */
+    private static double getMbPerSec(long bytes, long nanos) {
+        return nanos > 0 ? bytes / BYTES_IN_MB / (nanos / NANOS_IN_SEC) : 0;
+    }
+
+    /**
+     * Formats a number with two digits after the point, whatever the language of the system is.
+     *
+     * @param value is the number.
+     * @return the formatted number.
+     */
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.2f", value);
+    }
+
+    /**
+     * Puts a string in quotes, escaping the characters JSON does not allow in it.
+     *
+     * @param value is the string.
+     * @return the JSON string.
+     */
+    protected static String quote(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < ' ') {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    /**
+     * Counts the garbage collections of all collectors since the start of the program.
+     *
+     * @return the number of collections.
+     */
+    private static long getGcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    /**
+     * Counts the time of all garbage collections since the start of the program.
+     *
+     * @return the milliseconds.
+     */
+    private static long getGcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+        return millis;
+    }
+
+    /**
+     * Provides the number of bytes the current thread allocated since it started.
+     *
+     * @return the number of bytes or -1 if the virtual machine does not count them.
+     */
+    private static long getAllocatedBytes() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+                return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Sums the peak memory of all heap pools since this report was created.
+     *
+     * @return the number of bytes.
+     */
+    private static long getPeakHeapBytes() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+}
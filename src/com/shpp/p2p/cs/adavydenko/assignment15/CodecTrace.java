@@ -0,0 +1,275 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Shows where the time of a run goes: every phase of a job, every buffer that
+ * is filled, coded or flushed and every time a stage of the pipeline waits for
+ * another one becomes a span with a start and a duration.
+ * <p>
+ * The spans are sent to Java Flight Recorder as "Codec Stage" events, so they
+ * appear in JDK Mission Control when the program runs with a recording (e.g.
+ * java -XX:StartFlightRecording=filename=run.jfr ...). With the "--trace=file.json"
+ * option they are also saved in the trace event format of Chrome, which can be
+ * opened in chrome://tracing or ui.perfetto.dev: every thread gets its own row,
+ * so the stalls and the overlap of reading, coding and writing are seen at once.
+ * <p>
+ * When no recording listens and no trace file was asked for, the spans of
+ * buffers are not even created, so the tracing costs one check per buffer.
+ */
+public class CodecTrace {
+
+    /**
+     * The category of spans covering a whole job.
+     */
+    protected static final String JOB = "job";
+
+    /**
+     * The category of spans covering a phase of a job (the ones of "--stats").
+     */
+    protected static final String PHASE = "phase";
+
+    /**
+     * The category of spans covering the work on one buffer.
+     */
+    protected static final String BUFFER = "buffer";
+
+    /**
+     * The category of spans covering the time a stage waited for another one.
+     */
+    protected static final String STALL = "stall";
+
+    /**
+     * The type of the events sent to Java Flight Recorder.
+     */
+    private static final EventType STAGE_EVENT_TYPE = EventType.getEventType(StageEvent.class);
+
+    /**
+     * The number of nanoseconds in a microsecond.
+     */
+    private static final double NANOS_IN_MICRO = 1000;
+
+    /**
+     * The file the Chrome trace shall be saved to, null if user did not ask for it.
+     */
+    private final String CHROME_FILE;
+
+    /**
+     * The spans for the Chrome trace as JSON objects, null if user did not ask for it.
+     */
+    private final ConcurrentLinkedQueue<String> CHROME_EVENTS;
+
+    /**
+     * The names of all threads that finished spans, by the ids of the threads.
+     */
+    private final Map<Long, String> THREAD_NAMES = new ConcurrentHashMap<>();
+
+    /**
+     * The moment the trace started. The times in the Chrome trace are counted from it.
+     */
+    private final long ORIGIN_NANOS = System.nanoTime();
+
+    /**
+     * Creates a trace.
+     *
+     * @param chromeFile is the file the Chrome trace shall be saved to,
+     *                   null if only Java Flight Recorder shall get the spans.
+     */
+    public CodecTrace(String chromeFile) {
+        this.CHROME_FILE = chromeFile;
+        this.CHROME_EVENTS = chromeFile == null ? null : new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * Says whether anybody listens to the spans now.
+     *
+     * @return true if there is a Chrome trace or a flight recording with the stage events.
+     */
+    protected boolean isTraced() {
+        return CHROME_EVENTS != null || STAGE_EVENT_TYPE.isEnabled();
+    }
+
+    /**
+     * Starts a span. The span is always created, since the phases need their
+     * start time for the "--stats" report even when nobody traces them.
+     *
+     * @param category is the category of the span (JOB, PHASE, BUFFER or STALL).
+     * @param name     is the name of the span.
+     * @param file     is the file the span belongs to.
+     * @return the started span.
+     */
+    protected Span begin(String category, String name, String file) {
+        StageEvent event = null;
+        if (STAGE_EVENT_TYPE.isEnabled()) {
+            event = new StageEvent();
+            event.begin();
+        }
+        return new Span(category, name, file, event);
+    }
+
+    /**
+     * Starts a span if anybody listens to it. Is used for the work repeated
+     * for every buffer, which shall cost nothing when nobody listens.
+     *
+     * @param category is the category of the span (JOB, PHASE, BUFFER or STALL).
+     * @param name     is the name of the span.
+     * @param file     is the file the span belongs to.
+     * @return the started span or null if nobody listens.
+     */
+    protected Span beginIfTraced(String category, String name, String file) {
+        return isTraced() ? begin(category, name, file) : null;
+    }
+
+    /**
+     * Finishes a span and passes it to everybody who listens.
+     *
+     * @param span  is the span (nothing is done if it is null).
+     * @param bytes is the number of bytes processed in the span (0 if it did not process bytes).
+     */
+    protected void end(Span span, long bytes) {
+        if (span == null) {
+            return;
+        }
+        if (span.EVENT != null) {
+            span.EVENT.category = span.CATEGORY;
+            span.EVENT.stage = span.NAME;
+            span.EVENT.file = span.FILE;
+            span.EVENT.bytes = bytes;
+            span.EVENT.commit();
+        }
+        if (CHROME_EVENTS != null) {
+            long endNanos = System.nanoTime();
+            Thread thread = Thread.currentThread();
+            THREAD_NAMES.putIfAbsent(thread.getId(), thread.getName());
+            CHROME_EVENTS.add("{\"name\":" + CodecStats.quote(span.NAME)
+                    + ",\"cat\":" + CodecStats.quote(span.CATEGORY)
+                    + ",\"ph\":\"X\",\"ts\":" + toMicros(span.START_NANOS - ORIGIN_NANOS)
+                    + ",\"dur\":" + toMicros(endNanos - span.START_NANOS)
+                    + ",\"pid\":1,\"tid\":" + thread.getId()
+                    + ",\"args\":{\"file\":" + CodecStats.quote(span.FILE) + ",\"bytes\":" + bytes + "}}");
+        }
+    }
+
+    /**
+     * Saves the Chrome trace to its file if user asked for it.
+     */
+    protected void save() {
+        if (CHROME_EVENTS == null) {
+            return;
+        }
+        try (BufferedWriter writer = Files.newBufferedWriter(Path.of(CHROME_FILE), StandardCharsets.UTF_8)) {
+            writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+            boolean first = true;
+            for (Map.Entry<Long, String> thread : THREAD_NAMES.entrySet()) { // Names the rows of the threads
+                writer.write((first ? "" : ",") + System.lineSeparator() + "{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":"
+                        + thread.getKey() + ",\"args\":{\"name\":" + CodecStats.quote(thread.getValue()) + "}}");
+                first = false;
+            }
+            for (String event : CHROME_EVENTS) {
+                writer.write((first ? "" : ",") + System.lineSeparator() + event);
+                first = false;
+            }
+            writer.write(System.lineSeparator() + "]}" + System.lineSeparator());
+        } catch (IOException e) {
+            throw new ArchiveException("Can not write the trace " + CHROME_FILE, e);
+        }
+        System.out.println("- Trace with " + CHROME_EVENTS.size() + " span(s) is saved to " + CHROME_FILE);
+    }
+
+    /**
+     * Converts nanoseconds to microseconds, the unit of the Chrome trace.
+     *
+     * @param nanos is the number of nanoseconds.
+     * @return the number of microseconds with three digits after the point.
+     */
+    private static String toMicros(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / NANOS_IN_MICRO);
+    }
+
+    /**
+     * A started span.
+     */
+    protected static class Span {
+
+        /**
+         * The category of the span (JOB, PHASE, BUFFER or STALL).
+         */
+        protected final String CATEGORY;
+
+        /**
+         * The name of the span.
+         */
+        protected final String NAME;
+
+        /**
+         * The file the span belongs to.
+         */
+        protected final String FILE;
+
+        /**
+         * The System.nanoTime when the span started.
+         */
+        protected final long START_NANOS = System.nanoTime();
+
+        /**
+         * The event of Java Flight Recorder, null if no recording listened when the span started.
+         */
+        private final StageEvent EVENT;
+
+        /**
+         * Creates a started span.
+         *
+         * @param category is the category of the span.
+         * @param name     is the name of the span.
+         * @param file     is the file the span belongs to.
+         * @param event    is the started event of Java Flight Recorder or null.
+         */
+        private Span(String category, String name, String file, StageEvent event) {
+            this.CATEGORY = category;
+            this.NAME = name;
+            this.FILE = file;
+            this.EVENT = event;
+        }
+    }
+
+    /**
+     * A span as Java Flight Recorder sees it.
+     */
+    @Name("com.shpp.p2p.cs.adavydenko.CodecStage")
+    @Label("Codec Stage")
+    @Category("Huffman Archiver")
+    @Description("A job, a phase of a job, the work on one buffer or a stall of the pipeline")
+    @StackTrace(false)
+    static class StageEvent extends Event {
+
+        @Label("Category")
+        String category;
+
+        @Label("Stage")
+        String stage;
+
+        @Label("File")
+        String file;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+}
@@ -0,0 +1,89 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+import java.util.Locale;
+
+/**
+ * Prints the progress of a job to console (the "--progress" option), e.g.
+ * "- encoding big.log: 42% (1.13 Gb of 2.70 Gb), 48.20 Mb/s, 0:00:33 left".
+ * <p>
+ * In a terminal the line is rewritten in place. When the output goes to a file
+ * (a job started by a scheduler), every sample gets its own line, so the log
+ * shows the job was alive at every moment.
+ */
+public class ConsoleProgress implements ProgressListener {
+
+    /**
+     * The number of bytes in a megabyte.
+     */
+    private static final double BYTES_IN_MB = 1024 * 1024;
+
+    /**
+     * The number of bytes in a gigabyte.
+     */
+    private static final double BYTES_IN_GB = BYTES_IN_MB * 1024;
+
+    /**
+     * The number of seconds in a minute and minutes in an hour.
+     */
+    private static final int SIXTY = 60;
+
+    /**
+     * Says whether the line shall be rewritten in place.
+     */
+    private final boolean IN_PLACE = System.console() != null;
+
+    @Override
+    public void onProgress(ProgressMonitor progress) {
+        String line = toLine(progress);
+        if (IN_PLACE) {
+            System.out.print("\r" + line + "   "); // The spaces erase the end of a longer previous line
+        } else {
+            System.out.println(line);
+        }
+    }
+
+    @Override
+    public void onFinish(ProgressMonitor progress) {
+        if (IN_PLACE) {
+            System.out.println("\r" + toLine(progress) + "   ");
+        }
+    }
+
+    /**
+     * Creates the line about the latest sample.
+     *
+     * @param progress is the monitor of the job.
+     * @return the line.
+     */
+    private static String toLine(ProgressMonitor progress) {
+        long done = progress.getDoneBytes();
+        long total = progress.getTotalBytes();
+        StringBuilder line = new StringBuilder("- " + progress.getPhase() + " " + progress.getFile() + ": ");
+        if (total > 0) {
+            line.append(Math.min(100, done * 100 / total)).append("% (")
+                    .append(formatBytes(done)).append(" of ").append(formatBytes(total)).append(")");
+        } else {
+            line.append(formatBytes(done));
+        }
+        line.append(", ").append(String.format(Locale.ROOT, "%.2f", progress.getBytesPerSecond() / BYTES_IN_MB))
+                .append(" Mb/s");
+        long eta = progress.getEtaSeconds();
+        if (eta >= 0) {
+            line.append(", ").append(String.format(Locale.ROOT, "%d:%02d:%02d",
+                    eta / (SIXTY * SIXTY), eta / SIXTY % SIXTY, eta % SIXTY)).append(" left");
+        }
+        return line.toString();
+    }
+
+    /**
+     * Formats a number of bytes as megabytes or gigabytes.
+     *
+     * @param bytes is the number of bytes.
+     * @return the formatted number with its unit.
+     */
+    private static String formatBytes(long bytes) {
+        return bytes >= BYTES_IN_GB
+                ? String.format(Locale.ROOT, "%.2f Gb", bytes / BYTES_IN_GB)
+                : String.format(Locale.ROOT, "%.2f Mb", bytes / BYTES_IN_MB);
+    }
+}
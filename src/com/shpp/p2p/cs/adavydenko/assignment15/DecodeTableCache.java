@@ -0,0 +1,173 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Keeps the decode tables built for the last archives, so that an archive whose
+ * header describes the same tree as one of them gets its tables without building
+ * them again. This pays off when many small archives of similar data are
+ * unarchived in one run (the batch mode or the server mode).
+ * <p>
+ * Tables are found by the header bytes describing the tree. The cache holds a
+ * limited number of tables and forgets the one used least recently when it is
+ * full. It may be used by many threads at once. Tables are built outside the
+ * lock, so two threads may happen to build the same table at the same time; the
+ * first one stays in the cache. The tables shall never be changed once built.
+ *
+ * @param <T> is the kind of tables kept in the cache.
+ */
+public class DecodeTableCache<T> {
+
+    /**
+     * The maximum number of tables kept in a cache.
+     */
+    protected static final int DEFAULT_CAPACITY = 256;
+
+    /**
+     * The name of the cache printed with its counters.
+     */
+    private final String NAME;
+
+    /**
+     * The tables in the order they were used, the least recently used one first.
+     */
+    private final LinkedHashMap<Fingerprint, T> ENTRIES;
+
+    /**
+     * The number of times a table was found in the cache.
+     */
+    private long hits = 0;
+
+    /**
+     * The number of times a table had to be built.
+     */
+    private long misses = 0;
+
+    /**
+     * The number of tables forgotten since the cache was full.
+     */
+    private long evictions = 0;
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param name     is the name of the cache printed with its counters.
+     * @param capacity is the maximum number of tables kept in the cache.
+     */
+    public DecodeTableCache(String name, int capacity) {
+        this.NAME = name;
+        this.ENTRIES = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Fingerprint, T> eldest) {
+                if (size() > capacity) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Finds the table described by the header bytes or builds it and keeps it.
+     *
+     * @param headerBytes are the bytes of the header describing the tree. The
+     *                    array shall not be changed afterwards.
+     * @param builder     builds the table if it is not in the cache.
+     * @return the table.
+     */
+    protected T get(byte[] headerBytes, Supplier<T> builder) {
+        Fingerprint fingerprint = new Fingerprint(headerBytes);
+        synchronized (this) {
+            T table = ENTRIES.get(fingerprint);
+            if (table != null) {
+                hits++;
+                return table;
+            }
+            misses++;
+        }
+        T table = builder.get();
+        synchronized (this) {
+            T earlier = ENTRIES.putIfAbsent(fingerprint, table);
+            return earlier != null ? earlier : table;
+        }
+    }
+
+    /**
+     * Provides the number of times a table was found in the cache.
+     *
+     * @return the number of hits.
+     */
+    protected synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Provides the number of times a table had to be built.
+     *
+     * @return the number of misses.
+     */
+    protected synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Provides the number of tables forgotten since the cache was full.
+     *
+     * @return the number of evictions.
+     */
+    protected synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Describes the counters of the cache in one line.
+     *
+     * @return the description.
+     */
+    protected synchronized String describe() {
+        return NAME + ": " + hits + " hit(s), " + misses + " miss(es), " + evictions + " eviction(s), "
+                + ENTRIES.size() + " table(s) kept";
+    }
+
+    /**
+     * The header bytes describing a tree with their hash computed once.
+     */
+    private static class Fingerprint {
+
+        /**
+         * The header bytes.
+         */
+        private final byte[] BYTES;
+
+        /**
+         * The hash of the header bytes.
+         */
+        private final int HASH;
+
+        /**
+         * Creates a fingerprint.
+         *
+         * @param bytes are the header bytes.
+         */
+        Fingerprint(byte[] bytes) {
+            this.BYTES = bytes;
+            this.HASH = Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return HASH;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            // Equal hashes are not enough: the bytes are compared too, so different trees never meet
+            return other instanceof Fingerprint && HASH == ((Fingerprint) other).HASH
+                    && Arrays.equals(BYTES, ((Fingerprint) other).BYTES);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+/**
+ * Decodes messages written by the EncoderContext. Like the encoder, a context
+ * belongs to one thread and is used for any number of messages: it keeps one
+ * reader of bitstreams and one output array, which grows only when a message
+ * is longer than all messages before it.
+ */
+public class DecoderContext {
+
+    /**
+     * The expected number of bytes of a decoded message.
+     */
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * The codes messages were encoded with.
+     */
+    private CodeTable table;
+
+    /**
+     * The reader of the bitstream of the current message.
+     */
+    private final BitReader READER = new BitReader(new byte[0], 0, 0);
+
+    /**
+     * The array with the last decoded message in its first bytes.
+     */
+    private byte[] output = new byte[INITIAL_CAPACITY];
+
+    /**
+     * Creates a context.
+     *
+     * @param table are the codes messages were encoded with.
+     */
+    public DecoderContext(CodeTable table) {
+        this.table = table;
+    }
+
+    /**
+     * Decodes a message. The result stays in the array given by getOutput
+     * until the next message is decoded.
+     *
+     * @param encoded   is an array with the encoded message.
+     * @param offset    is the index of the first byte of the encoded message.
+     * @param length    is the number of bytes of the encoded message.
+     * @param rawLength is the number of bytes in the original message.
+     * @return the number of decoded bytes (rawLength).
+     */
+    public int decode(byte[] encoded, int offset, int length, int rawLength) {
+        if (output.length < rawLength) {
+            output = new byte[rawLength];
+        }
+        READER.reset(encoded, offset, length);
+        for (int i = 0; i < rawLength; i++) {
+            output[i] = (byte) READER.decode(table);
+        }
+        if (!READER.isExhausted()) {
+            throw new ArchiveException("Corrupted message: the bitstream does not match its length");
+        }
+        return rawLength;
+    }
+
+    /**
+     * Provides the array with the last decoded message in its first bytes.
+     *
+     * @return the array (it is reused for the next message).
+     */
+    public byte[] getOutput() {
+        return output;
+    }
+
+    /**
+     * Forgets the message being read.
+     */
+    public void reset() {
+        READER.reset(output, 0, 0);
+    }
+
+    /**
+     * Forgets the message being read and makes the context use other codes.
+     *
+     * @param table are the codes the next messages were encoded with.
+     */
+    public void reset(CodeTable table) {
+        reset();
+        this.table = table;
+    }
+}
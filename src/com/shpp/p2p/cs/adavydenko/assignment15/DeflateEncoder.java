@@ -0,0 +1,485 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.PriorityQueue;
+import java.util.zip.CRC32;
+
+/**
+ * Writes files in the gzip format (RFC 1952) instead of par-archives (the
+ * "--format=gzip" option), so the archives can be read by gunzip, zlib or
+ * java.util.zip.Inflater at native speed by programs knowing nothing about
+ * this archiver.
+ * <p>
+ * The DEFLATE stream inside (RFC 1951) is made of dynamic Huffman blocks of
+ * literals only: every block holds up to BLOCK_SIZE original bytes encoded with
+ * Huffman codes built for those bytes, just like the blocks of the adaptive
+ * mode. There is no search for repeated strings (LZ77), so the archive is about
+ * as small as a par-archive of the same file. DEFLATE needs a few things the
+ * par-format does not: a code for the end of a block, codes of 15 bits at most
+ * and canonical codes (known from their lengths alone). So the lengths are
+ * built here with the same Huffman construction CodeTable.fromCounts uses, then
+ * limited, and the codes are derived from the lengths.
+ */
+public class DeflateEncoder {
+
+    /**
+     * The number of original bytes in one DEFLATE block.
+     */
+    protected static final int BLOCK_SIZE = 1024 * 1024;
+
+    /**
+     * The symbol marking the end of a block in the literal/length alphabet.
+     */
+    private static final int END_OF_BLOCK = 256;
+
+    /**
+     * The number of literal/length codes written: all literals and the end of block.
+     */
+    private static final int LITERAL_CODES = 257;
+
+    /**
+     * The longest code of the literal/length and distance alphabets.
+     */
+    private static final int MAX_CODE_LENGTH = 15;
+
+    /**
+     * The longest code of the alphabet describing the code lengths.
+     */
+    private static final int MAX_LENGTH_CODE_LENGTH = 7;
+
+    /**
+     * The number of symbols of the alphabet describing the code lengths.
+     */
+    private static final int LENGTH_CODES = 19;
+
+    /**
+     * The order the lengths of the code length codes are written in.
+     */
+    private static final int[] LENGTH_CODE_ORDER = {16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15};
+
+    /**
+     * The code length symbol repeating the previous length 3 - 6 times.
+     */
+    private static final int REPEAT_PREVIOUS = 16;
+
+    /**
+     * The code length symbol repeating zero 3 - 10 times.
+     */
+    private static final int REPEAT_ZERO = 17;
+
+    /**
+     * The code length symbol repeating zero 11 - 138 times.
+     */
+    private static final int REPEAT_ZERO_LONG = 18;
+
+    /**
+     * The block type of dynamic Huffman blocks.
+     */
+    private static final int DYNAMIC_BLOCK = 2;
+
+    /**
+     * The first two bytes of every gzip file.
+     */
+    private static final int GZIP_MAGIC = 0x1F8B;
+
+    /**
+     * The compression method of the gzip header meaning DEFLATE.
+     */
+    private static final int DEFLATE_METHOD = 8;
+
+    /**
+     * The operating system of the gzip header meaning "unknown".
+     */
+    private static final int UNKNOWN_OS = 255;
+
+    /**
+     * The stream writing the gzip file.
+     */
+    private final OutputStream OUT;
+
+    /**
+     * The bytes written to OUT at once.
+     */
+    private final byte[] BUFFER = new byte[64 * 1024];
+
+    /**
+     * The number of bytes in BUFFER.
+     */
+    private int bufferLength = 0;
+
+    /**
+     * The bits not written to BUFFER yet, the first one is the lowest.
+     */
+    private long bits = 0;
+
+    /**
+     * The number of bits in the bits field.
+     */
+    private int bitCount = 0;
+
+    /**
+     * Creates an encoder.
+     *
+     * @param out is the stream the gzip file shall be written to.
+     */
+    public DeflateEncoder(OutputStream out) {
+        this.OUT = out;
+    }
+
+    /**
+     * Says whether a file is in the gzip format.
+     *
+     * @param file is any file.
+     * @return true if the file starts with the magic number of gzip.
+     */
+    protected static boolean isGzipFile(File file) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return file.length() >= 2 && in.readUnsignedShort() == GZIP_MAGIC;
+        } catch (IOException e) {
+            throw new ArchiveException("Can not read the file " + file, e);
+        }
+    }
+
+    /**
+     * Writes the gzip header, the DEFLATE blocks of all bytes and the gzip trailer.
+     *
+     * @param in           is the stream reading the original file.
+     * @param modifiedTime is the time the original file was modified, in milliseconds.
+     */
+    protected void encode(InputStream in, long modifiedTime) throws IOException {
+        writeHeader(modifiedTime);
+        CRC32 crc = new CRC32();
+        long totalLength = 0;
+        byte[] block = new byte[BLOCK_SIZE];
+        byte[] nextBlock = new byte[BLOCK_SIZE];
+        int length = in.readNBytes(block, 0, block.length);
+        if (length == 0) {
+            writeEmptyBlock();
+        }
+        while (length > 0) { // A block can be written only when it is known whether it is the last one
+            int nextLength = in.readNBytes(nextBlock, 0, nextBlock.length);
+            crc.update(block, 0, length);
+            totalLength += length;
+            writeBlock(block, length, nextLength == 0);
+            byte[] swap = block;
+            block = nextBlock;
+            nextBlock = swap;
+            length = nextLength;
+        }
+        alignToByte();
+        writeIntLittleEndian((int) crc.getValue());
+        writeIntLittleEndian((int) totalLength); // The size modulo 2^32, as RFC 1952 says
+        flushBuffer();
+    }
+
+    /**
+     * Writes the gzip header: no file name, no comment, no extra fields.
+     *
+     * @param modifiedTime is the time the original file was modified, in milliseconds.
+     */
+    private void writeHeader(long modifiedTime) {
+        writeBits(GZIP_MAGIC >>> Byte.SIZE, Byte.SIZE);
+        writeBits(GZIP_MAGIC & 0xFF, Byte.SIZE);
+        writeBits(DEFLATE_METHOD, Byte.SIZE);
+        writeBits(0, Byte.SIZE); // Flags
+        writeIntLittleEndian((int) (modifiedTime / 1000));
+        writeBits(0, Byte.SIZE); // Extra flags
+        writeBits(UNKNOWN_OS, Byte.SIZE);
+    }
+
+    /**
+     * Writes the only block of an empty file: a stored block with no bytes.
+     */
+    private void writeEmptyBlock() {
+        writeBits(1, 1); // The last block
+        writeBits(0, 2); // Stored
+        alignToByte();
+        writeBits(0, Short.SIZE);
+        writeBits(0xFFFF, Short.SIZE);
+    }
+
+    /**
+     * Writes one dynamic Huffman block: its header, the lengths of its codes
+     * and the codes of all its bytes followed by the end of the block.
+     *
+     * @param block  is an array with the original bytes.
+     * @param length is the number of bytes in the block.
+     * @param last   says whether it is the last block of the file.
+     */
+    private void writeBlock(byte[] block, int length, boolean last) {
+        long[] counts = new long[LITERAL_CODES];
+        for (int i = 0; i < length; i++) {
+            counts[block[i] & 0xFF]++;
+        }
+        counts[END_OF_BLOCK] = 1;
+        int[] literalLengths = buildLengths(counts, MAX_CODE_LENGTH);
+        int[] literalCodes = buildCodes(literalLengths);
+        int[] distanceLengths = {1, 1}; // No distances are used, but a complete code keeps every inflater happy
+
+        writeBits(last ? 1 : 0, 1);
+        writeBits(DYNAMIC_BLOCK, 2);
+        writeCodeLengths(literalLengths, distanceLengths);
+        for (int i = 0; i < length; i++) {
+            int value = block[i] & 0xFF;
+            writeBits(literalCodes[value], literalLengths[value]);
+        }
+        writeBits(literalCodes[END_OF_BLOCK], literalLengths[END_OF_BLOCK]);
+    }
+
+    /**
+     * Writes the lengths of the literal/length and distance codes, compressed
+     * with runs of repeated lengths and Huffman codes of their own.
+     *
+     * @param literalLengths  are the lengths of the literal/length codes.
+     * @param distanceLengths are the lengths of the distance codes.
+     */
+    private void writeCodeLengths(int[] literalLengths, int[] distanceLengths) {
+        int[] lengths = new int[literalLengths.length + distanceLengths.length];
+        System.arraycopy(literalLengths, 0, lengths, 0, literalLengths.length);
+        System.arraycopy(distanceLengths, 0, lengths, literalLengths.length, distanceLengths.length);
+        int[] symbols = new int[lengths.length * 2]; // Pairs of a symbol and the value of its extra bits
+        int symbolCount = 0;
+        for (int i = 0; i < lengths.length; ) {
+            int run = 1;
+            while (i + run < lengths.length && lengths[i + run] == lengths[i]) {
+                run++;
+            }
+            if (lengths[i] == 0 && run >= 3) {
+                run = Math.min(run, 138);
+                symbols[symbolCount++] = run >= 11 ? REPEAT_ZERO_LONG : REPEAT_ZERO;
+                symbols[symbolCount++] = run >= 11 ? run - 11 : run - 3;
+            } else if (lengths[i] != 0 && run >= 4) { // The length itself, then up to 6 repeats of it
+                run = Math.min(run, 7);
+                symbols[symbolCount++] = lengths[i];
+                symbols[symbolCount++] = 0;
+                symbols[symbolCount++] = REPEAT_PREVIOUS;
+                symbols[symbolCount++] = run - 4;
+            } else {
+                run = 1;
+                symbols[symbolCount++] = lengths[i];
+                symbols[symbolCount++] = 0;
+            }
+            i += run;
+        }
+        long[] counts = new long[LENGTH_CODES];
+        for (int i = 0; i < symbolCount; i += 2) {
+            counts[symbols[i]]++;
+        }
+        int[] codeLengths = buildLengths(counts, MAX_LENGTH_CODE_LENGTH);
+        int[] codes = buildCodes(codeLengths);
+        int orderedCount = LENGTH_CODES;
+        while (orderedCount > 4 && codeLengths[LENGTH_CODE_ORDER[orderedCount - 1]] == 0) {
+            orderedCount--;
+        }
+        writeBits(literalLengths.length - LITERAL_CODES, 5);
+        writeBits(distanceLengths.length - 1, 5);
+        writeBits(orderedCount - 4, 4);
+        for (int i = 0; i < orderedCount; i++) {
+            writeBits(codeLengths[LENGTH_CODE_ORDER[i]], 3);
+        }
+        for (int i = 0; i < symbolCount; i += 2) {
+            int symbol = symbols[i];
+            writeBits(codes[symbol], codeLengths[symbol]);
+            if (symbol == REPEAT_PREVIOUS) {
+                writeBits(symbols[i + 1], 2);
+            } else if (symbol == REPEAT_ZERO) {
+                writeBits(symbols[i + 1], 3);
+            } else if (symbol == REPEAT_ZERO_LONG) {
+                writeBits(symbols[i + 1], 7);
+            }
+        }
+    }
+
+    /**
+     * Builds the lengths of Huffman codes for given frequencies, no longer than
+     * the limit. The code is always complete, as zlib demands: if only one
+     * symbol occurs, another one gets a code too.
+     *
+     * @param counts    are the numbers of occurrences of every symbol.
+     * @param maxLength is the longest code allowed.
+     * @return the length of the code of every symbol, 0 for symbols that do not occur.
+     */
+    private static int[] buildLengths(long[] counts, int maxLength) {
+        int symbols = counts.length;
+        int[] lengths = new int[symbols];
+        PriorityQueue<long[]> queue = new PriorityQueue<>((a, b) ->
+                a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1])); // {weight, node}
+        for (int symbol = 0; symbol < symbols; symbol++) {
+            if (counts[symbol] > 0) {
+                queue.add(new long[]{counts[symbol], symbol});
+            }
+        }
+        if (queue.size() == 1) {
+            int symbol = (int) queue.peek()[1];
+            lengths[symbol] = 1;
+            lengths[symbol == 0 ? 1 : 0] = 1;
+            return lengths;
+        }
+        int[] parents = new int[symbols * 2]; // Symbols are the nodes 0 .. symbols - 1, inner nodes follow
+        int nextNode = symbols;
+        while (queue.size() > 1) {
+            long[] left = queue.poll();
+            long[] right = queue.poll();
+            parents[(int) left[1]] = nextNode;
+            parents[(int) right[1]] = nextNode;
+            queue.add(new long[]{left[0] + right[0], nextNode++});
+        }
+        int[] depths = new int[nextNode]; // The root is the last node, every parent comes after its children
+        for (int node = nextNode - 2; node >= 0; node--) {
+            if (node >= symbols || counts[node] > 0) {
+                depths[node] = depths[parents[node]] + 1;
+            }
+        }
+        System.arraycopy(depths, 0, lengths, 0, symbols);
+        limitLengths(lengths, counts, maxLength);
+        return lengths;
+    }
+
+    /**
+     * Makes all codes not longer than the limit and keeps the code complete.
+     * Longer codes are cut to the limit, then the longest codes below the limit
+     * are made longer until the codes fit (the Kraft sum is 1 at most), then
+     * the longest codes are made shorter while there is room, rare ones first.
+     *
+     * @param lengths   are the lengths of the codes, changed in place.
+     * @param counts    are the numbers of occurrences of every symbol.
+     * @param maxLength is the longest code allowed.
+     */
+    private static void limitLengths(int[] lengths, long[] counts, int maxLength) {
+        long full = 1L << maxLength; // The Kraft sum of a complete code, in units of 2^-maxLength
+        long kraft = 0;
+        for (int i = 0; i < lengths.length; i++) {
+            if (lengths[i] > maxLength) {
+                lengths[i] = maxLength;
+            }
+            if (lengths[i] > 0) {
+                kraft += full >>> lengths[i];
+            }
+        }
+        while (kraft > full) {
+            int longest = findSymbol(lengths, counts, maxLength - 1, false);
+            kraft -= full >>> (lengths[longest] + 1);
+            lengths[longest]++;
+        }
+        while (kraft < full) {
+            int longest = findSymbol(lengths, counts, maxLength, true);
+            kraft += full >>> lengths[longest];
+            lengths[longest]--;
+        }
+    }
+
+    /**
+     * Finds the symbol with the longest code not longer than the limit.
+     * Among such symbols takes the rarest or the most frequent one.
+     *
+     * @param lengths      are the lengths of the codes.
+     * @param counts       are the numbers of occurrences of every symbol.
+     * @param limit        is the longest code to be considered.
+     * @param mostFrequent says whether the most frequent symbol shall be taken (or the rarest one).
+     * @return the symbol.
+     */
+    private static int findSymbol(int[] lengths, long[] counts, int limit, boolean mostFrequent) {
+        int found = -1;
+        for (int i = 0; i < lengths.length; i++) {
+            if (lengths[i] == 0 || lengths[i] > limit) {
+                continue;
+            }
+            if (found < 0 || lengths[i] > lengths[found] || (lengths[i] == lengths[found]
+                    && (mostFrequent ? counts[i] > counts[found] : counts[i] < counts[found]))) {
+                found = i;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Derives the canonical codes from their lengths (RFC 1951, section 3.2.2).
+     * The codes are returned with their bits reversed, since DEFLATE writes
+     * Huffman codes starting with their highest bit into a stream filled from
+     * the lowest bit of every byte.
+     *
+     * @param lengths are the lengths of the codes.
+     * @return the code of every symbol, ready for writeBits.
+     */
+    private static int[] buildCodes(int[] lengths) {
+        int[] lengthCounts = new int[MAX_CODE_LENGTH + 1];
+        for (int length : lengths) {
+            lengthCounts[length]++;
+        }
+        lengthCounts[0] = 0;
+        int[] nextCode = new int[MAX_CODE_LENGTH + 2];
+        for (int length = 1; length <= MAX_CODE_LENGTH; length++) {
+            nextCode[length + 1] = (nextCode[length] + lengthCounts[length]) << 1;
+        }
+        int[] codes = new int[lengths.length];
+        for (int symbol = 0; symbol < lengths.length; symbol++) {
+            int length = lengths[symbol];
+            if (length > 0) {
+                codes[symbol] = Integer.reverse(nextCode[length]++) >>> (Integer.SIZE - length);
+            }
+        }
+        return codes;
+    }
+
+    /**
+     * Adds bits to the stream, the lowest bit first.
+     *
+     * @param value is the number whose lowest bits shall be written.
+     * @param count is the number of bits.
+     */
+    private void writeBits(int value, int count) {
+        bits |= (long) value << bitCount;
+        bitCount += count;
+        while (bitCount >= Byte.SIZE) {
+            if (bufferLength == BUFFER.length) {
+                flushBufferQuietly();
+            }
+            BUFFER[bufferLength++] = (byte) bits;
+            bits >>>= Byte.SIZE;
+            bitCount -= Byte.SIZE;
+        }
+    }
+
+    /**
+     * Writes 4 bytes, the lowest one first.
+     *
+     * @param value is the number to be written.
+     */
+    private void writeIntLittleEndian(int value) {
+        writeBits(value & 0xFFFF, Short.SIZE);
+        writeBits(value >>> Short.SIZE, Short.SIZE);
+    }
+
+    /**
+     * Pads the stream with zero bits to a whole number of bytes.
+     */
+    private void alignToByte() {
+        if (bitCount > 0) {
+            writeBits(0, Byte.SIZE - bitCount);
+        }
+    }
+
+    /**
+     * Writes the full bytes of the buffer to the stream.
+     */
+    private void flushBuffer() throws IOException {
+        OUT.write(BUFFER, 0, bufferLength);
+        bufferLength = 0;
+    }
+
+    /**
+     * Writes the buffer from the bit writing methods, which can not throw checked exceptions.
+     */
+    private void flushBufferQuietly() {
+        try {
+            flushBuffer();
+        } catch (IOException e) {
+            throw new ArchiveException("Can not write the gzip file", e);
+        }
+    }
+}
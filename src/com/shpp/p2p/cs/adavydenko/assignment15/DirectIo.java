@@ -0,0 +1,374 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+import com.sun.nio.file.ExtendedOpenOption;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+/**
+ * Reads and writes files past the page cache of the operating system (the
+ * "--direct-io" option), so archiving a huge file does not push the pages of
+ * other programs (e.g. a database on the same host) out of memory.
+ * <p>
+ * Files are opened with ExtendedOpenOption.DIRECT. Such files can be read and
+ * written only in whole blocks of the file system, at positions that are
+ * multiples of the block, from memory aligned to the block. So all bytes go
+ * through one aligned direct ByteBuffer of BUFFER_SIZE bytes. The last block of
+ * a written file is padded with zeros and the file is cut to its real size
+ * when it is closed.
+ * <p>
+ * If the file system can not do direct I/O (e.g. tmpfs of old kernels, which
+ * refuse O_DIRECT with EINVAL), the usual buffered streams are used and a
+ * message says so. Any other error of opening the file (e.g. a missing file or
+ * no permission) is thrown as it is. Every job has its own DirectIo,
+ * which counts the bytes and the time spent in reading and writing, so its
+ * throughput can be compared with the one of a run without the option.
+ */
+public class DirectIo {
+
+    /**
+     * The size of the buffer of every file. It is a multiple of any block size.
+     */
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * The number of bytes in a megabyte.
+     */
+    private static final double BYTES_IN_MB = 1024 * 1024;
+
+    /**
+     * The number of nanoseconds in a second.
+     */
+    private static final double NANOS_IN_SEC = 1_000_000_000;
+
+    /**
+     * The reason of the error thrown when the file system refuses to open a file
+     * for direct I/O (the message of EINVAL).
+     */
+    private static final String UNSUPPORTED_REASON = "Invalid argument";
+
+    /**
+     * Prints the messages about the files that fall back to the page cache.
+     */
+    private final AuxiliaryMethods AUX_METHODS;
+
+    /**
+     * The number of bytes read with direct I/O. Only the thread reading the file changes it.
+     */
+    private long bytesRead = 0;
+
+    /**
+     * The time spent in reading with direct I/O.
+     */
+    private long readNanos = 0;
+
+    /**
+     * The number of bytes written with direct I/O. Only the thread writing the file changes it.
+     */
+    private long bytesWritten = 0;
+
+    /**
+     * The time spent in writing with direct I/O.
+     */
+    private long writeNanos = 0;
+
+    /**
+     * Creates an object reading and writing the files of one job past the page cache.
+     *
+     * @param auxMethods prints the messages of the job.
+     */
+    protected DirectIo(AuxiliaryMethods auxMethods) {
+        this.AUX_METHODS = auxMethods;
+    }
+
+    /**
+     * Opens a file for reading past the page cache.
+     *
+     * @param file is the file to be read.
+     * @return the stream reading the file.
+     */
+    protected InputStream openInput(String file) throws IOException {
+        Path path = Path.of(file);
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(path, StandardOpenOption.READ, ExtendedOpenOption.DIRECT);
+        } catch (UnsupportedOperationException | IOException e) {
+            checkUnsupported(e);
+            AUX_METHODS.printMessage("- Direct I/O is not supported for " + file + ", reading it through the page cache");
+            return new FileInputStream(file);
+        }
+        return new DirectInputStream(channel, Files.getFileStore(path).getBlockSize());
+    }
+
+    /**
+     * Creates (or empties) a file for writing past the page cache.
+     *
+     * @param file is the file to be written.
+     * @return the stream writing the file.
+     */
+    protected OutputStream openOutput(String file) throws IOException {
+        Path path = Path.of(file).toAbsolutePath();
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING, ExtendedOpenOption.DIRECT);
+        } catch (UnsupportedOperationException | IOException e) {
+            checkUnsupported(e);
+            AUX_METHODS.printMessage("- Direct I/O is not supported for " + file + ", writing it through the page cache");
+            return new FileOutputStream(file);
+        }
+        return new DirectOutputStream(channel, Files.getFileStore(path).getBlockSize());
+    }
+
+    /**
+     * Throws again an error of opening a file for direct I/O unless it says
+     * that direct I/O is not supported there.
+     *
+     * @param e is the error.
+     */
+    private static void checkUnsupported(Exception e) throws IOException {
+        if (e instanceof UnsupportedOperationException) {
+            return;
+        }
+        if (e instanceof FileSystemException && UNSUPPORTED_REASON.equals(((FileSystemException) e).getReason())) {
+            return;
+        }
+        throw (IOException) e;
+    }
+
+    /**
+     * Describes the bytes read and written with direct I/O and their speed in one line.
+     *
+     * @return the description.
+     */
+    protected String describe() {
+        return "Direct I/O: read " + describe(bytesRead, readNanos) + ", written " + describe(bytesWritten, writeNanos);
+    }
+
+    /**
+     * Describes a number of bytes and their speed.
+     *
+     * @param bytes is the number of bytes.
+     * @param nanos is the time spent with them.
+     * @return the description.
+     */
+    private static String describe(long bytes, long nanos) {
+        double seconds = nanos / NANOS_IN_SEC;
+        return String.format(Locale.ROOT, "%.2f Mb at %.2f Mb/s", bytes / BYTES_IN_MB,
+                seconds > 0 ? bytes / BYTES_IN_MB / seconds : 0);
+    }
+
+    /**
+     * Creates a direct buffer whose address is a multiple of the block size.
+     *
+     * @param blockSize is the block size of the file system.
+     * @return the buffer of at least BUFFER_SIZE bytes.
+     */
+    private static ByteBuffer allocateAligned(long blockSize) {
+        int size = (int) Math.max(BUFFER_SIZE, blockSize);
+        return ByteBuffer.allocateDirect(size + (int) blockSize).alignedSlice((int) blockSize).slice(0, size);
+    }
+
+    /**
+     * Reads a file opened for direct I/O buffer by buffer.
+     */
+    private class DirectInputStream extends InputStream {
+
+        /**
+         * The channel reading the file.
+         */
+        private final FileChannel CHANNEL;
+
+        /**
+         * The block size of the file system.
+         */
+        private final long BLOCK_SIZE;
+
+        /**
+         * The buffer with the bytes read from the file and not taken yet.
+         */
+        private final ByteBuffer BUFFER;
+
+        /**
+         * Says whether the end of the file was reached.
+         */
+        private boolean endOfFile = false;
+
+        /**
+         * Creates a stream.
+         *
+         * @param channel   is the channel reading the file.
+         * @param blockSize is the block size of the file system.
+         */
+        private DirectInputStream(FileChannel channel, long blockSize) {
+            this.CHANNEL = channel;
+            this.BLOCK_SIZE = blockSize;
+            this.BUFFER = allocateAligned(blockSize);
+            BUFFER.limit(0);
+        }
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? BUFFER.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int count = Math.min(len, BUFFER.remaining());
+            BUFFER.get(bytes, off, count);
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            CHANNEL.close();
+        }
+
+        /**
+         * Reads the next buffer from the file if all bytes of the current one were taken.
+         *
+         * @return false if there are no more bytes in the file.
+         */
+        private boolean fill() throws IOException {
+            if (BUFFER.hasRemaining()) {
+                return true;
+            }
+            if (endOfFile) {
+                return false;
+            }
+            long startTime = System.nanoTime();
+            BUFFER.clear();
+            while (BUFFER.hasRemaining()) {
+                int read = CHANNEL.read(BUFFER);
+                if (read < 0 || BUFFER.position() % BLOCK_SIZE != 0) { // Only the last block of a file can be partial
+                    endOfFile = true;
+                    break;
+                }
+            }
+            BUFFER.flip();
+            bytesRead += BUFFER.remaining();
+            readNanos += System.nanoTime() - startTime;
+            return BUFFER.hasRemaining();
+        }
+    }
+
+    /**
+     * Writes a file opened for direct I/O buffer by buffer.
+     */
+    private class DirectOutputStream extends OutputStream {
+
+        /**
+         * The channel writing the file.
+         */
+        private final FileChannel CHANNEL;
+
+        /**
+         * The block size of the file system.
+         */
+        private final long BLOCK_SIZE;
+
+        /**
+         * The buffer with the bytes not written to the file yet.
+         */
+        private final ByteBuffer BUFFER;
+
+        /**
+         * The number of bytes written to the file, without the padding of the last block.
+         */
+        private long fileSize = 0;
+
+        /**
+         * Creates a stream.
+         *
+         * @param channel   is the channel writing the file.
+         * @param blockSize is the block size of the file system.
+         */
+        private DirectOutputStream(FileChannel channel, long blockSize) {
+            this.CHANNEL = channel;
+            this.BLOCK_SIZE = blockSize;
+            this.BUFFER = allocateAligned(blockSize);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!BUFFER.hasRemaining()) {
+                writeBuffer();
+            }
+            BUFFER.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int off, int len) throws IOException {
+            while (len > 0) {
+                if (!BUFFER.hasRemaining()) {
+                    writeBuffer();
+                }
+                int count = Math.min(len, BUFFER.remaining());
+                BUFFER.put(bytes, off, count);
+                off += count;
+                len -= count;
+            }
+        }
+
+        /**
+         * Does nothing: a buffer can be written only when it is full or the file is closed.
+         */
+        @Override
+        public void flush() {
+        }
+
+        /**
+         * Writes the last bytes padded to a whole block and cuts the padding off.
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                int tail = BUFFER.position();
+                if (tail > 0) {
+                    int padded = (int) ((tail + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE);
+                    while (BUFFER.position() < padded) {
+                        BUFFER.put((byte) 0);
+                    }
+                    writeBuffer();
+                    fileSize -= padded - tail;
+                    bytesWritten -= padded - tail;
+                    CHANNEL.truncate(fileSize);
+                }
+            } finally {
+                CHANNEL.close();
+            }
+        }
+
+        /**
+         * Writes all bytes of the buffer to the file.
+         */
+        private void writeBuffer() throws IOException {
+            long startTime = System.nanoTime();
+            BUFFER.flip();
+            int count = BUFFER.remaining();
+            while (BUFFER.hasRemaining()) {
+                CHANNEL.write(BUFFER);
+            }
+            BUFFER.clear();
+            fileSize += count;
+            bytesWritten += count;
+            writeNanos += System.nanoTime() - startTime;
+        }
+    }
+}
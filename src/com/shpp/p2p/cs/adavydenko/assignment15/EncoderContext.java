@@ -0,0 +1,89 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+/**
+ * Encodes short messages in memory with a code table shared by all of them
+ * (see CodeTable.fromSample). Unlike the Archiver, which is made for one file
+ * and keeps everything it needs in its own fields, a context keeps only the
+ * writer of its bitstream and can be used for any number of messages. Nothing
+ * is allocated for a message unless it is longer than all messages before it.
+ * <p>
+ * The table may be shared by many threads, while a context belongs to one
+ * thread: a service keeps one context per thread. An encoded message is just
+ * its bitstream padded with zero bits to a whole number of bytes, so the
+ * decoder shall know the table and the number of bytes in the message.
+ */
+public class EncoderContext {
+
+    /**
+     * The expected number of bytes of an encoded message.
+     */
+    private static final int INITIAL_CAPACITY = 256;
+
+    /**
+     * The codes messages are encoded with.
+     */
+    private CodeTable table;
+
+    /**
+     * The writer of the bitstream of the current message.
+     */
+    private final BitWriter WRITER = new BitWriter(INITIAL_CAPACITY);
+
+    /**
+     * Creates a context.
+     *
+     * @param table are the codes messages shall be encoded with.
+     */
+    public EncoderContext(CodeTable table) {
+        this.table = table;
+    }
+
+    /**
+     * Encodes a message. The result stays in the array given by getOutput
+     * until the next message is encoded.
+     *
+     * @param message is an array with the message.
+     * @param offset  is the index of the first byte of the message.
+     * @param length  is the number of bytes in the message.
+     * @return the number of bytes of the encoded message.
+     */
+    public int encode(byte[] message, int offset, int length) {
+        WRITER.reset();
+        for (int i = offset; i < offset + length; i++) {
+            int value = message[i] & 0xFF;
+            int codeLength = table.getLength(value);
+            if (codeLength == 0) {
+                throw new ArchiveException("The byte " + value + " has no code in the table");
+            }
+            WRITER.write(table.getCode(value), codeLength);
+        }
+        WRITER.flush();
+        return WRITER.getLength();
+    }
+
+    /**
+     * Provides the array with the last encoded message in its first bytes.
+     *
+     * @return the array (it is reused for the next message).
+     */
+    public byte[] getOutput() {
+        return WRITER.getData();
+    }
+
+    /**
+     * Forgets the last encoded message.
+     */
+    public void reset() {
+        WRITER.reset();
+    }
+
+    /**
+     * Forgets the last encoded message and makes the context use other codes.
+     *
+     * @param table are the codes the next messages shall be encoded with.
+     */
+    public void reset(CodeTable table) {
+        reset();
+        this.table = table;
+    }
+}
@@ -0,0 +1,113 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+import java.io.File;
+
+/**
+ * Describes archiving or unarchiving of one file and remembers the result
+ * of this operation: the size of both files, the time it took and the error
+ * (if there was any). Unlike the single-file run in the main class, a job
+ * never terminates the program. It catches every problem and keeps it, so
+ * that a batch run can report all failed files at the end.
+ */
+public class FileJob {
+
+    /**
+     * Name and location of the file to be archived / unarchived.
+     */
+    protected final String IN_FILE;
+
+    /**
+     * Name and location of the file to be created.
+     */
+    protected final String OUT_FILE;
+
+    /**
+     * Says whether the IN_FILE shall be archived (if true) or unarchived (if false).
+     */
+    protected final boolean ARCHIVE_OPERATION;
+
+    /**
+     * Settings of the archiving / unarchiving chosen by user.
+     */
+    private final CodecOptions OPTIONS;
+
+    /**
+     * The size of the IN_FILE in bytes.
+     */
+    protected long bytesIn = 0;
+
+    /**
+     * The size of the OUT_FILE in bytes after the job is done.
+     */
+    protected long bytesOut = 0;
+
+    /**
+     * The number of nanoseconds it took to process the file.
+     */
+    protected long nanos = 0;
+
+    /**
+     * The problem that stopped this job. Null if the job finished successfully.
+     */
+    protected Exception error = null;
+
+    /**
+     * Creates a job for a particular file.
+     *
+     * @param inFile           is the name and location of the file to be processed.
+     * @param outFile          is the name and location of the file to be created.
+     * @param archiveOperation says whether the inFile shall be archived (if true)
+     *                         or unarchived (if false).
+     */
+    public FileJob(String inFile, String outFile, boolean archiveOperation) {
+        this(inFile, outFile, archiveOperation, new CodecOptions());
+    }
+
+    /**
+     * Creates a job for a particular file with settings chosen by user.
+     *
+     * @param inFile           is the name and location of the file to be processed.
+     * @param outFile          is the name and location of the file to be created.
+     * @param archiveOperation says whether the inFile shall be archived (if true)
+     *                         or unarchived (if false).
+     * @param options          settings of the archiving / unarchiving chosen by user.
+     */
+    public FileJob(String inFile, String outFile, boolean archiveOperation, CodecOptions options) {
+        this.IN_FILE = inFile;
+        this.OUT_FILE = outFile;
+        this.ARCHIVE_OPERATION = archiveOperation;
+        this.OPTIONS = options;
+    }
+
+    /**
+     * Archives / unarchives the file and saves the result of this operation.
+     *
+     * @param auxMethods an auxiliary class that performs functions common
+     *                   to both archiver and unarchiver.
+     */
+    protected void run(AuxiliaryMethods auxMethods) {
+        long startTime = System.nanoTime();
+        try {
+            bytesIn = new File(IN_FILE).length();
+            String[] filesNames = {IN_FILE, OUT_FILE};
+            if (ARCHIVE_OPERATION) {
+                new Archiver(filesNames, auxMethods, OPTIONS).archiveFile();
+            } else {
+                new Unarchiver(filesNames, auxMethods, OPTIONS).unarchiveFile();
+            }
+            bytesOut = new File(OUT_FILE).length();
+        } catch (Exception e) {
+            error = e;
+        }
+        nanos = System.nanoTime() - startTime;
+    }
+
+    /**
+     * Says whether the job finished without any problem.
+     *
+     * @return true if the file was processed successfully.
+     */
+    protected boolean isSuccessful() {
+        return error == null;
+    }
+}
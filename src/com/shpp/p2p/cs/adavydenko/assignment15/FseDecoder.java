@@ -0,0 +1,32 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+/**
+ * Decodes blocks written by the FseEncoder (the blocks themselves are read by
+ * the BlockReader). Decoding a byte takes one look into the tables: the byte
+ * of the current state, the number of bits to read and the base of the next state.
+ */
+public class FseDecoder {
+
+    /**
+     * Decodes the bitstream of one block.
+     *
+     * @param table         are the tables of the FSE coder.
+     * @param payload       is an array with the bitstream.
+     * @param payloadLength is the number of meaningful bytes in the payload array.
+     * @param output        is an array the decoded bytes shall be written to.
+     * @param rawLength     is the number of original bytes in the block.
+     */
+    protected static void decodeBlock(FseTable table, byte[] payload, int payloadLength,
+                                      byte[] output, int rawLength) {
+        BitReader reader = new BitReader(payload, 0, payloadLength);
+        int state = reader.readBits(table.TABLE_LOG);
+        for (int i = 0; i < rawLength; i++) {
+            output[i] = (byte) table.getSymbol(state);
+            state = table.getBase(state) + reader.readBits(table.getBits(state));
+        }
+        // The encoder starts every block with the first cell, so the decoder shall end there
+        if (state != 0 || !reader.isExhausted()) {
+            throw new ArchiveException("Corrupted block: the bitstream does not match its length");
+        }
+    }
+}
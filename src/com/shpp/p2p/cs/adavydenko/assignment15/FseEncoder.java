@@ -0,0 +1,108 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Writes archives in the block format with bytes encoded by the FSE coder
+ * (see the FseTable class). The header has FLAG_FSE set and the FSE table
+ * instead of the Huffman code table. Every block has one bitstream.
+ * <p>
+ * The FSE coder encodes bytes from the last one to the first one, while the
+ * decoder decodes them from the first one, so the encoder remembers the bits
+ * of every byte of a block and writes them in the order the decoder reads them.
+ * The bitstream of a block starts with the final state of the encoder, which is
+ * the state the decoder starts with.
+ */
+public class FseEncoder {
+
+    /**
+     * The number of lowest bits of a PENDING item that keep the number of bits.
+     */
+    private static final int COUNT_BITS = 4;
+
+    /**
+     * The description of the archive being written.
+     */
+    private final ParFormat FORMAT;
+
+    /**
+     * The tables of the FSE coder.
+     */
+    private final FseTable TABLE;
+
+    /**
+     * The bits of every byte of the current block: the bits themselves are in
+     * the higher part of an item and their number is in the lowest COUNT_BITS bits.
+     */
+    private final int[] PENDING;
+
+    /**
+     * The writer of the bitstream. It is used again for every block.
+     */
+    private final BitWriter WRITER;
+
+    /**
+     * Creates an encoder.
+     *
+     * @param format is the description of the archive to be written.
+     * @param table  are the tables of the FSE coder.
+     */
+    public FseEncoder(ParFormat format, FseTable table) {
+        this.FORMAT = format;
+        this.TABLE = table;
+        this.PENDING = new int[format.BLOCK_SIZE];
+        this.WRITER = new BitWriter(format.BLOCK_SIZE / 2 + Byte.SIZE);
+    }
+
+    /**
+     * Writes the header and all blocks of the archive.
+     *
+     * @param in  is the stream reading the original file.
+     * @param out is the stream writing the archive.
+     */
+    protected void encode(InputStream in, DataOutputStream out) throws IOException {
+        FORMAT.write(out);
+        TABLE.write(out);
+        byte[] block = new byte[FORMAT.BLOCK_SIZE];
+        int len;
+        while ((len = in.readNBytes(block, 0, block.length)) > 0) {
+            encodeBlock(block, len);
+            out.writeInt(len);
+            out.writeInt(WRITER.getLength());
+            if (FORMAT.hasFlag(ParFormat.FLAG_CRC32C)) {
+                out.writeInt(ParFormat.checksum(block, len));
+            }
+            out.write(WRITER.getData(), 0, WRITER.getLength());
+        }
+    }
+
+    /**
+     * Encodes the bytes of one block to the bitstream.
+     *
+     * @param block is an array with the original bytes.
+     * @param len   is the number of bytes in the block.
+     */
+    private void encodeBlock(byte[] block, int len) {
+        int size = 1 << TABLE.TABLE_LOG;
+        int state = size;
+        for (int i = len - 1; i >= 0; i--) {
+            int symbol = block[i] & 0xFF;
+            int normalized = TABLE.getNormalized(symbol);
+            // The state is shifted until it gets in the range of this byte: [normalized, 2 * normalized)
+            int bits = FseTable.highestBit(state) - FseTable.highestBit(normalized);
+            if ((state >>> bits) < normalized) {
+                bits--;
+            }
+            PENDING[i] = ((state & ((1 << bits) - 1)) << COUNT_BITS) | bits;
+            state = TABLE.getEncodeState(symbol, state >>> bits);
+        }
+        WRITER.reset();
+        WRITER.write(state - size, TABLE.TABLE_LOG);
+        for (int i = 0; i < len; i++) {
+            WRITER.write(PENDING[i] >>> COUNT_BITS, PENDING[i] & ((1 << COUNT_BITS) - 1));
+        }
+        WRITER.flush();
+    }
+}
@@ -0,0 +1,314 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * The tables of the FSE coder (finite state entropy, a table-based form of
+ * asymmetric numeral systems). Unlike Huffman codes, FSE does not round the
+ * cost of every byte to a whole number of bits, so it compresses files with
+ * very uneven byte frequencies better.
+ * <p>
+ * The frequencies of bytes are scaled ("normalized") so that their sum is a
+ * power of two, the table size. Every byte gets as many cells of the table as
+ * its normalized frequency, and the cells are spread over the table. The coder
+ * has a state, which is a number of a cell: decoding a byte means reading the
+ * byte from the cell of the current state and a few bits from the bitstream to
+ * get the next state. The more frequent a byte is, the less bits it costs.
+ */
+public class FseTable {
+
+    /**
+     * The maximum logarithm of the table size.
+     */
+    protected static final int MAX_TABLE_LOG = 11;
+
+    /**
+     * The minimum logarithm of the table size.
+     */
+    protected static final int MIN_TABLE_LOG = 5;
+
+    /**
+     * The number of different byte values.
+     */
+    private static final int ALPHABET_SIZE = 256;
+
+    /**
+     * The logarithm of the table size: the table has 2 ^ TABLE_LOG cells.
+     */
+    protected final int TABLE_LOG;
+
+    /**
+     * The normalized frequency of every byte value (0 for bytes that do not occur).
+     */
+    private final int[] NORMALIZED = new int[ALPHABET_SIZE];
+
+    /**
+     * The byte stored in every cell of the table.
+     */
+    private final byte[] DECODE_SYMBOL;
+
+    /**
+     * The number of bits to read after decoding the byte of every cell.
+     */
+    private final byte[] DECODE_BITS;
+
+    /**
+     * The next state of every cell before the read bits are added to it.
+     */
+    private final int[] DECODE_BASE;
+
+    /**
+     * The index of the first cell of every byte value in the ENCODE_STATES array.
+     */
+    private final int[] CUMULATIVE = new int[ALPHABET_SIZE];
+
+    /**
+     * The states the encoder moves to: the cells of every byte in ascending order,
+     * all cells of byte 0 first, then all cells of byte 1 and so on.
+     */
+    private final int[] ENCODE_STATES;
+
+    /**
+     * Creates the tables from normalized frequencies.
+     *
+     * @param tableLog   is the logarithm of the table size.
+     * @param normalized are the normalized frequencies of all byte values. Their sum
+     *                   shall be exactly 2 ^ tableLog.
+     */
+    private FseTable(int tableLog, int[] normalized) {
+        this.TABLE_LOG = tableLog;
+        int size = 1 << tableLog;
+        System.arraycopy(normalized, 0, NORMALIZED, 0, ALPHABET_SIZE);
+        DECODE_SYMBOL = new byte[size];
+        DECODE_BITS = new byte[size];
+        DECODE_BASE = new int[size];
+        ENCODE_STATES = new int[size];
+        spreadSymbols(size);
+        buildDecodeAndEncodeTables(size);
+    }
+
+    /**
+     * Creates the tables from the number of times every byte occurs in a file.
+     *
+     * @param counts are the numbers of occurrences of every byte value (256 items).
+     * @return the tables for these frequencies.
+     */
+    protected static FseTable fromCounts(long[] counts) {
+        long total = 0;
+        int symbols = 0;
+        for (long count : counts) {
+            total += count;
+            if (count > 0) {
+                symbols++;
+            }
+        }
+        if (symbols == 0) {
+            throw new ArchiveException("Can not build the FSE table of an empty file");
+        }
+        int tableLog = MAX_TABLE_LOG;
+        // Small files do not need a big table, while every byte shall get at least one cell
+        while (tableLog > MIN_TABLE_LOG && (1L << (tableLog - 1)) >= total
+                && (1 << (tableLog - 1)) >= 2 * symbols) {
+            tableLog--;
+        }
+        return new FseTable(tableLog, normalize(counts, total, tableLog));
+    }
+
+    /**
+     * Scales the frequencies so that their sum is exactly 2 ^ tableLog. Every
+     * byte that occurs gets at least 1, so it can still be encoded.
+     *
+     * @param counts   are the numbers of occurrences of every byte value.
+     * @param total    is the sum of all counts.
+     * @param tableLog is the logarithm of the table size.
+     * @return the normalized frequencies.
+     */
+    private static int[] normalize(long[] counts, long total, int tableLog) {
+        int size = 1 << tableLog;
+        int[] normalized = new int[ALPHABET_SIZE];
+        int sum = 0;
+        int mostFrequent = 0;
+        for (int i = 0; i < ALPHABET_SIZE; i++) {
+            if (counts[i] > 0) {
+                normalized[i] = (int) Math.max(1, Math.round((double) counts[i] * size / total));
+                sum += normalized[i];
+                if (counts[i] > counts[mostFrequent]) {
+                    mostFrequent = i;
+                }
+            }
+        }
+        normalized[mostFrequent] += Math.max(0, size - sum); // Rounding errors go to the most frequent byte
+        sum = Math.max(sum, size);
+        while (sum > size) { // Too many bytes got the minimum 1, so the biggest ones give cells back
+            int biggest = 0;
+            for (int i = 1; i < ALPHABET_SIZE; i++) {
+                if (normalized[i] > normalized[biggest]) {
+                    biggest = i;
+                }
+            }
+            normalized[biggest]--;
+            sum--;
+        }
+        return normalized;
+    }
+
+    /**
+     * Spreads the cells of every byte over the table. The step is odd, so
+     * it visits every cell of the table exactly once.
+     *
+     * @param size is the number of cells in the table.
+     */
+    private void spreadSymbols(int size) {
+        int step = (size >>> 1) + (size >>> 3) + 3;
+        int mask = size - 1;
+        int position = 0;
+        for (int symbol = 0; symbol < ALPHABET_SIZE; symbol++) {
+            for (int i = 0; i < NORMALIZED[symbol]; i++) {
+                DECODE_SYMBOL[position] = (byte) symbol;
+                position = (position + step) & mask;
+            }
+        }
+    }
+
+    /**
+     * Fills the tables of the decoder and of the encoder. The k-th cell of a
+     * byte with the normalized frequency f stands for the number f + k, and
+     * the decoder gets the next state by appending enough bits to this number
+     * to make it a number of a cell again.
+     *
+     * @param size is the number of cells in the table.
+     */
+    private void buildDecodeAndEncodeTables(int size) {
+        int[] next = new int[ALPHABET_SIZE];
+        int cumulative = 0;
+        for (int symbol = 0; symbol < ALPHABET_SIZE; symbol++) {
+            next[symbol] = NORMALIZED[symbol];
+            CUMULATIVE[symbol] = cumulative;
+            cumulative += NORMALIZED[symbol];
+        }
+        for (int cell = 0; cell < size; cell++) {
+            int symbol = DECODE_SYMBOL[cell] & 0xFF;
+            int value = next[symbol]++;
+            int bits = TABLE_LOG - highestBit(value);
+            DECODE_BITS[cell] = (byte) bits;
+            DECODE_BASE[cell] = (value << bits) - size;
+            ENCODE_STATES[CUMULATIVE[symbol] + value - NORMALIZED[symbol]] = size + cell;
+        }
+    }
+
+    /**
+     * Gets the byte stored in a cell.
+     *
+     * @param state is the number of a cell.
+     * @return the byte as an int (0 - 255).
+     */
+    protected int getSymbol(int state) {
+        return DECODE_SYMBOL[state] & 0xFF;
+    }
+
+    /**
+     * Gets the number of bits the decoder reads after decoding the byte of a cell.
+     *
+     * @param state is the number of a cell.
+     * @return the number of bits.
+     */
+    protected int getBits(int state) {
+        return DECODE_BITS[state];
+    }
+
+    /**
+     * Gets the next state before the read bits are added to it.
+     *
+     * @param state is the number of a cell.
+     * @return the base of the next state.
+     */
+    protected int getBase(int state) {
+        return DECODE_BASE[state];
+    }
+
+    /**
+     * Gets the normalized frequency of a byte value.
+     *
+     * @param symbol is a byte value (0 - 255).
+     * @return its normalized frequency.
+     */
+    protected int getNormalized(int symbol) {
+        return NORMALIZED[symbol];
+    }
+
+    /**
+     * Gets the state the encoder moves to when it encodes a byte.
+     *
+     * @param symbol is a byte value (0 - 255).
+     * @param value  is the current encoder state shifted into the range of
+     *               this byte (from its normalized frequency f to 2 * f - 1).
+     * @return the next encoder state (from 2 ^ TABLE_LOG to 2 ^ (TABLE_LOG + 1) - 1).
+     */
+    protected int getEncodeState(int symbol, int value) {
+        return ENCODE_STATES[CUMULATIVE[symbol] + value - NORMALIZED[symbol]];
+    }
+
+    /**
+     * Writes the table: its logarithm, the number of bytes that occur minus
+     * one and every such byte with its normalized frequency (2 bytes).
+     *
+     * @param out is the stream writing the archive.
+     */
+    protected void write(DataOutputStream out) throws IOException {
+        int symbols = 0;
+        for (int count : NORMALIZED) {
+            if (count > 0) {
+                symbols++;
+            }
+        }
+        out.writeByte(TABLE_LOG);
+        out.writeByte(symbols - 1);
+        for (int symbol = 0; symbol < ALPHABET_SIZE; symbol++) {
+            if (NORMALIZED[symbol] > 0) {
+                out.writeByte(symbol);
+                out.writeShort(NORMALIZED[symbol]);
+            }
+        }
+    }
+
+    /**
+     * Reads and checks a table written by the write method.
+     *
+     * @param in is the stream reading the archive.
+     * @return the table.
+     */
+    protected static FseTable read(DataInputStream in) throws IOException {
+        int tableLog = in.readUnsignedByte();
+        if (tableLog < MIN_TABLE_LOG || tableLog > MAX_TABLE_LOG) {
+            throw new ArchiveException("Corrupted FSE table: wrong table size");
+        }
+        int symbols = in.readUnsignedByte() + 1;
+        int[] normalized = new int[ALPHABET_SIZE];
+        int sum = 0;
+        for (int i = 0; i < symbols; i++) {
+            int symbol = in.readUnsignedByte();
+            int count = in.readUnsignedShort();
+            if (count == 0 || normalized[symbol] != 0) {
+                throw new ArchiveException("Corrupted FSE table: wrong frequency of byte " + symbol);
+            }
+            normalized[symbol] = count;
+            sum += count;
+        }
+        if (sum != 1 << tableLog) {
+            throw new ArchiveException("Corrupted FSE table: the frequencies do not fill the table");
+        }
+        return new FseTable(tableLog, normalized);
+    }
+
+    /**
+     * Finds the position of the highest set bit of a positive number.
+     *
+     * @param value is a positive number.
+     * @return the position of its highest set bit (0 for 1).
+     */
+    protected static int highestBit(int value) {
+        return Integer.SIZE - 1 - Integer.numberOfLeadingZeros(value);
+    }
+}
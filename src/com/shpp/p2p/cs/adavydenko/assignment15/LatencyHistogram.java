@@ -0,0 +1,134 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * Counts how many operations took how long, in the way HDR histograms do it:
+ * every power of two of microseconds is split into SUB_BUCKETS buckets of equal
+ * width, so every value is kept with an error of about 3% whatever its size,
+ * from one microsecond to years, in less than two thousand counters.
+ * <p>
+ * Many threads may add values at the same time. Every bucket is a separate
+ * atomic counter, so threads wait for each other only when they add values
+ * to the very same bucket at the very same moment.
+ */
+public class LatencyHistogram {
+
+    /**
+     * The number of bits of a value kept exactly inside its power of two.
+     */
+    private static final int SUB_BUCKET_BITS = 5;
+
+    /**
+     * The number of buckets every power of two is split into.
+     */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * The values below this one get a bucket each.
+     */
+    private static final int EXACT_VALUES = SUB_BUCKETS * 2;
+
+    /**
+     * The number of buckets needed for all non-negative long values.
+     */
+    private static final int BUCKET_COUNT = EXACT_VALUES + (Long.SIZE - 2 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    /**
+     * The number of values in every bucket.
+     */
+    private final AtomicLongArray COUNTS = new AtomicLongArray(BUCKET_COUNT);
+
+    /**
+     * The largest value added so far.
+     */
+    private final LongAccumulator MAX = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Adds one value.
+     *
+     * @param micros is the value in microseconds (negative values count as 0).
+     */
+    protected void add(long micros) {
+        long value = Math.max(0, micros);
+        COUNTS.incrementAndGet(getBucket(value));
+        MAX.accumulate(value);
+    }
+
+    /**
+     * Finds the value below which the given share of all values lies.
+     *
+     * @param percentile is the share in percent (for example 99.9).
+     * @return the value in microseconds (0 if there are no values).
+     */
+    protected long getPercentile(double percentile) {
+        long[] counts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = COUNTS.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(getHighestValue(i), MAX.get());
+            }
+        }
+        return MAX.get();
+    }
+
+    /**
+     * Provides the largest value added so far.
+     *
+     * @return the value in microseconds.
+     */
+    protected long getMax() {
+        return MAX.get();
+    }
+
+    /**
+     * Forgets all values.
+     */
+    protected void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            COUNTS.set(i, 0);
+        }
+        MAX.reset();
+    }
+
+    /**
+     * Finds the bucket of a value.
+     *
+     * @param value is a non-negative value.
+     * @return the index of the bucket.
+     */
+    private static int getBucket(long value) {
+        if (value < EXACT_VALUES) {
+            return (int) value;
+        }
+        int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS; // 1 or more
+        int subBucket = (int) (value >>> shift) - SUB_BUCKETS; // The bits after the highest one
+        return EXACT_VALUES + (shift - 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Finds the largest value that falls into a bucket.
+     *
+     * @param bucket is the index of the bucket.
+     * @return the value.
+     */
+    private static long getHighestValue(int bucket) {
+        if (bucket < EXACT_VALUES) {
+            return bucket;
+        }
+        int shift = (bucket - EXACT_VALUES) / SUB_BUCKETS + 1;
+        long subBucket = (bucket - EXACT_VALUES) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
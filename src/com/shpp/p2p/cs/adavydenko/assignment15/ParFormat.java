@@ -0,0 +1,262 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+import java.io.*;
+import java.util.zip.CRC32C;
+
+/**
+ * Describes the block format of par-archives. The original format (a header
+ * followed by one bitstream) is still the default one; the block format is
+ * used only when user chooses a setting the original format has no room for.
+ * <p>
+ * An archive in the block format starts with:
+ * --- the magic number (2 bytes). Its first byte has the highest bit set, while
+ * the first byte of an archive in the original format is the high byte of the
+ * tree size and never exceeds 1, so the two formats never get confused
+ * --- the version of the format (1 byte)
+ * --- flags (1 byte): FLAG_FSE means the bytes are encoded with the FSE coder,
+ * FLAG_ADAPTIVE means every block has its own code table, FLAG_CRC32C means
+ * every block has the checksum of its original bytes
+ * --- the number of bitstreams in each block (1 byte)
+ * --- the maximum number of original bytes in one block (4 bytes)
+ * --- the size of the original file (8 bytes)
+ * --- the code table: exactly the header of the original format (with the byte
+ * of the meaningful bits in the last byte set to 0, since it is not used), or
+ * the table of the FSE coder if FLAG_FSE is set (see the FseTable class). There
+ * is no table here if FLAG_ADAPTIVE is set
+ * <p>
+ * After that follow the blocks. Each block contains:
+ * --- only if FLAG_ADAPTIVE is set: NEW_TABLE (1 byte) followed by the code table
+ * of this block in the same form as above, or REPEAT_TABLE (1 byte) if the block
+ * uses the table of the previous block
+ * --- the number of original bytes in this block (4 bytes)
+ * --- the number of bytes of this block that follow (4 bytes), so that a reader
+ * can skip a block without decoding it. The checksum is not counted here
+ * --- only if FLAG_CRC32C is set: the CRC32C checksum of the original bytes of
+ * this block (4 bytes)
+ * --- the lengths of all bitstreams except the last one (4 bytes each)
+ * --- the bitstreams. The bytes of the block are spread over the bitstreams in
+ * turn: byte 0 goes to stream 0, byte 1 to stream 1 and so on. Each bitstream
+ * is padded with zero bits to a whole number of bytes. Blocks of the FSE coder
+ * always have one bitstream (see the FseEncoder class).
+ */
+public class ParFormat {
+
+    /**
+     * The magic number every archive in the block format starts with.
+     */
+    protected static final int MAGIC = 0xB750;
+
+    /**
+     * The current version of the block format.
+     */
+    protected static final int VERSION = 2;
+
+    /**
+     * The maximum number of original bytes in one block if user did not choose another one.
+     */
+    protected static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+    /**
+     * The maximum number of bitstreams in one block.
+     */
+    protected static final int MAX_STREAMS = 16;
+
+    /**
+     * The length of the part of the header before the code table in bytes.
+     */
+    protected static final int HEADER_LENGTH = 17;
+
+    /**
+     * The position of the size of the original file in the header. The field
+     * is rewritten in place when blocks are added to the end of the archive.
+     */
+    protected static final int ORIGINAL_SIZE_OFFSET = 9;
+
+    /**
+     * The length of the fields before the payload of every block in bytes.
+     */
+    protected static final int BLOCK_HEADER_LENGTH = 8;
+
+    /**
+     * The flag saying that the bytes are encoded with the FSE coder instead of Huffman codes.
+     */
+    protected static final int FLAG_FSE = 1;
+
+    /**
+     * The flag saying that every block has its own code table.
+     */
+    protected static final int FLAG_ADAPTIVE = 2;
+
+    /**
+     * The flag saying that every block has the CRC32C checksum of its original bytes.
+     */
+    protected static final int FLAG_CRC32C = 4;
+
+    /**
+     * The byte before a block saying that a new code table follows (adaptive mode only).
+     */
+    protected static final int NEW_TABLE = 0;
+
+    /**
+     * The byte before a block saying that it uses the code table of the previous block.
+     */
+    protected static final int REPEAT_TABLE = 1;
+
+    /**
+     * The flags of the archive.
+     */
+    protected final int FLAGS;
+
+    /**
+     * The number of bitstreams in each block.
+     */
+    protected final int STREAMS;
+
+    /**
+     * The maximum number of original bytes in one block.
+     */
+    protected final int BLOCK_SIZE;
+
+    /**
+     * The size of the original file in bytes.
+     */
+    protected final long ORIGINAL_SIZE;
+
+    /**
+     * Creates the description of an archive.
+     *
+     * @param flags        are the flags of the archive.
+     * @param streams      is the number of bitstreams in each block.
+     * @param blockSize    is the maximum number of original bytes in one block.
+     * @param originalSize is the size of the original file in bytes.
+     */
+    public ParFormat(int flags, int streams, int blockSize, long originalSize) {
+        this.FLAGS = flags;
+        this.STREAMS = streams;
+        this.BLOCK_SIZE = blockSize;
+        this.ORIGINAL_SIZE = originalSize;
+    }
+
+    /**
+     * Says whether a file is an archive in the block format.
+     *
+     * @param file is any file.
+     * @return true if the file starts with the magic number of the block format.
+     */
+    protected static boolean isBlockArchive(File file) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return file.length() >= HEADER_LENGTH && in.readUnsignedShort() == MAGIC;
+        } catch (IOException e) {
+            throw new ArchiveException("Can not read the file " + file, e);
+        }
+    }
+
+    /**
+     * Says whether a flag is set in the header of the archive.
+     *
+     * @param flag is one of the FLAG_ constants.
+     * @return true if the flag is set.
+     */
+    protected boolean hasFlag(int flag) {
+        return (FLAGS & flag) != 0;
+    }
+
+    /**
+     * Computes the checksum stored in the blocks when FLAG_CRC32C is set.
+     *
+     * @param data   is an array with original bytes.
+     * @param length is the number of bytes from the start of the array to compute the checksum of.
+     * @return the CRC32C checksum.
+     */
+    protected static int checksum(byte[] data, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(data, 0, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Writes the part of the header before the code table.
+     *
+     * @param out is the stream writing the archive.
+     */
+    protected void write(DataOutputStream out) throws IOException {
+        out.writeShort(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(FLAGS);
+        out.writeByte(STREAMS);
+        out.writeInt(BLOCK_SIZE);
+        out.writeLong(ORIGINAL_SIZE);
+    }
+
+    /**
+     * Reads and checks the part of the header before the code table.
+     *
+     * @param in is the stream reading the archive.
+     * @return the description of the archive.
+     */
+    protected static ParFormat read(DataInputStream in) throws IOException {
+        if (in.readUnsignedShort() != MAGIC) {
+            throw new ArchiveException("Not a par-archive in the block format");
+        }
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new ArchiveException("Unsupported version of the block format: " + version);
+        }
+        int flags = in.readUnsignedByte();
+        int streams = in.readUnsignedByte();
+        int blockSize = in.readInt();
+        long originalSize = in.readLong();
+        if (streams < 1 || streams > MAX_STREAMS || blockSize < 1 || originalSize < 0
+                || ((flags & FLAG_FSE) != 0 && (streams != 1 || (flags & FLAG_ADAPTIVE) != 0))) {
+            throw new ArchiveException("Corrupted header of the block format");
+        }
+        return new ParFormat(flags, streams, blockSize, originalSize);
+    }
+
+    /**
+     * Creates the code table in the form of the header of the original format.
+     *
+     * @param treeSize           is the size of the tree in bits.
+     * @param treeStructureBytes are the bytes describing the tree structure.
+     * @param uniqueBytes        are all unique bytes in the order their leaves occur in the tree.
+     * @return the bytes of the code table.
+     */
+    protected static byte[] createTableBytes(short treeSize, byte[] treeStructureBytes, byte[] uniqueBytes) {
+        ByteArrayOutputStream table = new ByteArrayOutputStream();
+        table.write(treeSize >> Byte.SIZE);
+        table.write(treeSize);
+        table.write(0); // the number of meaningful bits in the last byte is not used by the block format
+        table.writeBytes(treeStructureBytes);
+        table.writeBytes(uniqueBytes);
+        return table.toByteArray();
+    }
+
+    /**
+     * Reads the code table.
+     *
+     * @param in is the stream reading the archive.
+     * @return the table with the codes of the archive.
+     */
+    protected static CodeTable readTable(DataInputStream in) throws IOException {
+        return readTableHeader(in).toCodeTable();
+    }
+
+    /**
+     * Reads the code table in the form of the header of the original format.
+     *
+     * @param in is the stream reading the archive.
+     * @return the header with the code table.
+     */
+    protected static ArchiveHeader readTableHeader(DataInputStream in) throws IOException {
+        byte[] tableBytes = new byte[ArchiveHeader.MAX_LENGTH];
+        int collected = ArchiveHeader.FIXED_PART_LENGTH;
+        in.readFully(tableBytes, 0, collected);
+        int tableLength;
+        while ((tableLength = ArchiveHeader.getLengthIfKnown(tableBytes, collected)) < 0) {
+            in.readFully(tableBytes, collected, 1);
+            collected++;
+        }
+        in.readFully(tableBytes, collected, tableLength - collected);
+        return new ArchiveHeader(tableBytes);
+    }
+}
@@ -0,0 +1,337 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Decodes an archive in the original format (one bitstream) in several threads.
+ * <p>
+ * The bitstream is cut into chunks of equal length. Nobody knows where the codes
+ * start inside a chunk, so every thread just starts decoding at the beginning of
+ * its chunk as if a code started there. Huffman codes synchronize themselves: after
+ * a few wrong bytes the guessed code borders almost always meet the real ones, and
+ * from that point on the decoded bytes are right. Every thread remembers the code
+ * borders it passed at the beginning of its chunk.
+ * <p>
+ * When the chunks are decoded, they are joined one after another. The previous
+ * chunk tells where the first real code of the next chunk starts. From there the
+ * bytes are decoded again until the real border meets one of the remembered
+ * borders, and the rest of the chunk is taken as it is. If the borders never met,
+ * the chunk is decoded again from its real start. The result is exactly what the
+ * Unarchiver decodes in one thread.
+ */
+public class ParallelDecoder {
+
+    /**
+     * The number of archive bytes in one chunk if no other length is chosen.
+     */
+    protected static final int DEFAULT_CHUNK_LENGTH = 1024 * 1024;
+
+    /**
+     * The number of code borders remembered at the beginning of every chunk.
+     */
+    private static final int SYNC_WINDOW = 4096;
+
+    /**
+     * The number of bytes read after a group of chunks, so that the last code
+     * of the group can be decoded (a code fits in 57 bits, see BlockDecoder).
+     */
+    private static final int OVERLAP = Long.BYTES;
+
+    /**
+     * The number of threads decoding chunks.
+     */
+    private final int THREADS;
+
+    /**
+     * The number of archive bytes in one chunk.
+     */
+    private final int CHUNK_LENGTH;
+
+    /**
+     * The limit of the disk bandwidth the reading of the archive is kept within,
+     * null if there is no limit.
+     */
+    private final Throttle THROTTLE;
+
+    /**
+     * Creates a decoder.
+     *
+     * @param threads is the number of threads decoding chunks.
+     */
+    public ParallelDecoder(int threads) {
+        this(threads, null);
+    }
+
+    /**
+     * Creates a decoder that reads the archive within a rate limit.
+     *
+     * @param threads  is the number of threads decoding chunks.
+     * @param throttle is the limit of the disk bandwidth, null if there is no limit.
+     */
+    public ParallelDecoder(int threads, Throttle throttle) {
+        this(threads, throttle, DEFAULT_CHUNK_LENGTH);
+    }
+
+    /**
+     * Creates a decoder with chunks of a chosen length. In tiny chunks most codes
+     * cross the borders of chunks and many codes cover whole chunks, so tests use
+     * them to check the joining of chunks.
+     *
+     * @param threads     is the number of threads decoding chunks.
+     * @param throttle    is the limit of the disk bandwidth, null if there is no limit.
+     * @param chunkLength is the number of archive bytes in one chunk.
+     */
+    ParallelDecoder(int threads, Throttle throttle, int chunkLength) {
+        this.THREADS = Math.max(1, threads);
+        this.CHUNK_LENGTH = Math.max(1, chunkLength);
+        this.THROTTLE = throttle;
+    }
+
+    /**
+     * Says whether an archive with these codes can be decoded by this class. A tree
+     * of one leaf is left to the Unarchiver, since it decodes such archives in its
+     * own way, and so are very long codes the decoding loop has no room for.
+     *
+     * @param table are the codes of the archive.
+     * @return true if the archive can be decoded in parallel.
+     */
+    protected static boolean canDecode(CodeTable table) {
+        return table.getSymbolCount() > 1 && table.getMaxLength() <= BlockDecoder.MAX_FAST_CODE_LENGTH;
+    }
+
+    /**
+     * Decodes the bitstream of an archive in the original format.
+     *
+     * @param archive        is the archive opened for reading.
+     * @param streamStart    is the position of the first byte of the bitstream in the archive.
+     * @param meaningfulBits is the number of meaningful bits in the last byte of the archive.
+     * @param table          are the codes of the archive.
+     * @param out            is the stream writing the unarchived file.
+     * @return the number of decoded bytes.
+     */
+    protected long decode(RandomAccessFile archive, long streamStart, int meaningfulBits,
+                          CodeTable table, OutputStream out) throws IOException {
+        long streamLength = archive.length() - streamStart;
+        long totalBits = (streamLength - 1) * Byte.SIZE + meaningfulBits;
+        int chunksInGroup = THREADS * 2;
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "parallel-decoder");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long decoded = 0;
+        try {
+            long realStart = 0; // The bit where the first real code of the next chunk starts
+            for (long groupStart = 0; groupStart < streamLength; groupStart += (long) chunksInGroup * CHUNK_LENGTH) {
+                long groupEnd = Math.min(streamLength, groupStart + (long) chunksInGroup * CHUNK_LENGTH);
+                byte[] window = new byte[(int) (groupEnd - groupStart + OVERLAP)];
+                archive.seek(streamStart + groupStart);
+                int windowLength = (int) Math.min(window.length, streamLength - groupStart);
+                archive.readFully(window, 0, windowLength);
+                if (THROTTLE != null) {
+                    THROTTLE.acquire(windowLength);
+                }
+                long windowStartBit = groupStart * Byte.SIZE;
+
+                ArrayList<Future<Chunk>> chunks = new ArrayList<>();
+                for (long chunkStart = groupStart; chunkStart < groupEnd; chunkStart += CHUNK_LENGTH) {
+                    long startBit = chunkStart * Byte.SIZE;
+                    long limitBit = Math.min(totalBits, (chunkStart + CHUNK_LENGTH) * Byte.SIZE);
+                    chunks.add(pool.submit(() -> decodeChunk(table, window, windowStartBit, startBit, limitBit)));
+                }
+                for (Future<Chunk> future : chunks) {
+                    Chunk chunk = future.get();
+                    realStart = join(chunk, realStart, table, window, windowStartBit, out);
+                    decoded += chunk.length;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ArchiveException("Parallel decoding was interrupted", e);
+        } catch (ExecutionException e) {
+            throw new ArchiveException("Parallel decoding failed: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return decoded;
+    }
+
+    /**
+     * Decodes a chunk starting at its first bit, as if a code started there.
+     *
+     * @param table          are the codes of the archive.
+     * @param window         is an array with the archive bytes of the current group of chunks.
+     * @param windowStartBit is the number of the first bit of the window in the bitstream.
+     * @param startBit       is the first bit of the chunk.
+     * @param limitBit       is the bit after the chunk: the codes starting before it belong to this chunk.
+     * @return the decoded chunk.
+     */
+    private static Chunk decodeChunk(CodeTable table, byte[] window, long windowStartBit,
+                                     long startBit, long limitBit) {
+        Chunk chunk = new Chunk(limitBit, (int) ((limitBit - startBit) / table.getMinLength()));
+        chunk.endBit = decodeCodes(table, window, windowStartBit, startBit, limitBit, chunk, true);
+        return chunk;
+    }
+
+    /**
+     * Joins a decoded chunk to the decoded file and writes its right bytes.
+     *
+     * @param chunk          is the chunk decoded from its first bit.
+     * @param realStart      is the bit where the first real code of this chunk starts.
+     * @param table          are the codes of the archive.
+     * @param window         is an array with the archive bytes of the current group of chunks.
+     * @param windowStartBit is the number of the first bit of the window in the bitstream.
+     * @param out            is the stream writing the unarchived file.
+     * @return the bit where the first real code of the next chunk starts.
+     */
+    private static long join(Chunk chunk, long realStart, CodeTable table, byte[] window,
+                             long windowStartBit, OutputStream out) throws IOException {
+        if (realStart >= chunk.LIMIT_BIT) { // The last code of the previous chunk covered this whole chunk
+            chunk.length = 0;
+            return realStart;
+        }
+        Chunk prefix = new Chunk(chunk.LIMIT_BIT, 0);
+        long border = realStart;
+        int borderIndex;
+        // Decodes one code at a time from the real start until the real border meets a remembered one
+        while ((borderIndex = Arrays.binarySearch(chunk.borders, 0, chunk.borderCount, border)) < 0) {
+            if (border >= chunk.LIMIT_BIT || border > chunk.borders[chunk.borderCount - 1]) {
+                // The borders never met, so the whole chunk is decoded again from its real start
+                Chunk redone = new Chunk(chunk.LIMIT_BIT, chunk.length);
+                redone.endBit = decodeCodes(table, window, windowStartBit, realStart, chunk.LIMIT_BIT, redone, false);
+                out.write(redone.output, 0, redone.length);
+                chunk.length = redone.length;
+                return redone.endBit;
+            }
+            border = decodeCodes(table, window, windowStartBit, border, border + 1, prefix, false);
+        }
+        int skipped = borderIndex; // The bytes decoded before the border met are wrong
+        out.write(prefix.output, 0, prefix.length);
+        out.write(chunk.output, skipped, chunk.length - skipped);
+        chunk.length = prefix.length + chunk.length - skipped;
+        return chunk.endBit;
+    }
+
+    /**
+     * Decodes all codes starting before a limit.
+     *
+     * @param table          are the codes of the archive.
+     * @param window         is an array with the archive bytes of the current group of chunks.
+     * @param windowStartBit is the number of the first bit of the window in the bitstream.
+     * @param fromBit        is the bit where the first code starts.
+     * @param limitBit       is the bit before which the last code starts.
+     * @param chunk          is the chunk the decoded bytes are added to.
+     * @param rememberBorders says whether the borders of the first codes shall be remembered.
+     * @return the bit after the last decoded code.
+     */
+    private static long decodeCodes(CodeTable table, byte[] window, long windowStartBit, long fromBit,
+                                    long limitBit, Chunk chunk, boolean rememberBorders) {
+        int lookupShift = Long.SIZE - table.getLookupBits();
+        long bit = fromBit;
+        long buffer = 0;
+        int bufferBits = 0;
+        while (bit < limitBit) {
+            if (bufferBits < BlockDecoder.MAX_FAST_CODE_LENGTH) {
+                long relativeBit = bit - windowStartBit;
+                buffer = readLong(window, (int) (relativeBit / Byte.SIZE)) << (relativeBit % Byte.SIZE);
+                bufferBits = Long.SIZE - (int) (relativeBit % Byte.SIZE);
+            }
+            if (rememberBorders && chunk.borderCount < SYNC_WINDOW) {
+                chunk.borders[chunk.borderCount++] = bit;
+            }
+            long entry = BlockDecoder.decodeFromBuffer(table, buffer, lookupShift);
+            int length = (int) (entry >>> Byte.SIZE);
+            buffer <<= length;
+            bufferBits -= length;
+            bit += length;
+            chunk.add((byte) entry);
+        }
+        if (rememberBorders && chunk.borderCount < SYNC_WINDOW) {
+            chunk.borders[chunk.borderCount++] = bit;
+        }
+        return bit;
+    }
+
+    /**
+     * Reads 8 bytes of an array as a long, the first byte being the highest one.
+     * The bytes after the end of the array are zeros.
+     *
+     * @param array  is any array.
+     * @param offset is the index of the first byte.
+     * @return the long.
+     */
+    private static long readLong(byte[] array, int offset) {
+        long value = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            value = (value << Byte.SIZE) | (offset + i < array.length ? array[offset + i] & 0xFF : 0);
+        }
+        return value;
+    }
+
+    /**
+     * The bytes decoded from one chunk.
+     */
+    private static class Chunk {
+
+        /**
+         * The bit after the chunk.
+         */
+        private final long LIMIT_BIT;
+
+        /**
+         * The borders of the first codes (the bits where they start), in ascending order.
+         */
+        private final long[] borders = new long[SYNC_WINDOW];
+
+        /**
+         * The number of remembered borders.
+         */
+        private int borderCount = 0;
+
+        /**
+         * The decoded bytes.
+         */
+        private byte[] output;
+
+        /**
+         * The number of decoded bytes.
+         */
+        private int length = 0;
+
+        /**
+         * The bit after the last decoded code.
+         */
+        private long endBit;
+
+        /**
+         * Creates an empty chunk.
+         *
+         * @param limitBit is the bit after the chunk.
+         * @param capacity is the expected number of decoded bytes. The array grows if needed.
+         */
+        Chunk(long limitBit, int capacity) {
+            this.LIMIT_BIT = limitBit;
+            this.output = new byte[Math.max(16, capacity)];
+        }
+
+        /**
+         * Adds a decoded byte.
+         *
+         * @param value is the byte.
+         */
+        void add(byte value) {
+            if (length == output.length) {
+                output = Arrays.copyOf(output, output.length * 2);
+            }
+            output[length++] = value;
+        }
+    }
+}
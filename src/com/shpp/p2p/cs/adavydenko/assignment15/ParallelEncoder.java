@@ -0,0 +1,253 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Encodes a file in several threads and writes exactly the same bitstream the
+ * Archiver writes in one thread, so the archive stays in the original format.
+ * <p>
+ * The file is read in groups of chunks. First every thread counts the number
+ * of bits its chunk takes: the sum of the code lengths of its bytes. Adding these
+ * numbers one after another gives the bit every chunk starts at. Then every thread
+ * encodes its chunk right to its place in one output array for the whole group.
+ * All bytes of a chunk belong to it alone except the first one and the last one,
+ * which it may share with the neighbouring chunks. Those two bytes are kept aside
+ * and added to the array with "or" after all threads finished.
+ */
+public class ParallelEncoder {
+
+    /**
+     * The number of original bytes in one chunk if no other length is chosen.
+     */
+    protected static final int DEFAULT_CHUNK_LENGTH = 1024 * 1024;
+
+    /**
+     * The maximum number of bits added to the accumulator at once.
+     */
+    private static final int MAX_BITS_AT_ONCE = 32;
+
+    /**
+     * The number of threads encoding chunks.
+     */
+    private final int THREADS;
+
+    /**
+     * The number of original bytes in one chunk.
+     */
+    private final int CHUNK_LENGTH;
+
+    /**
+     * The codes of the archive.
+     */
+    private final CodeTable TABLE;
+
+    /**
+     * The last byte of the previous group if not all its bits are filled yet.
+     */
+    private int carryByte = 0;
+
+    /**
+     * The number of filled bits of the carryByte (0 - 7).
+     */
+    private int carryBits = 0;
+
+    /**
+     * Creates an encoder.
+     *
+     * @param threads is the number of threads encoding chunks.
+     * @param table   are the codes of the archive.
+     */
+    public ParallelEncoder(int threads, CodeTable table) {
+        this(threads, table, DEFAULT_CHUNK_LENGTH);
+    }
+
+    /**
+     * Creates an encoder with chunks of a chosen length. Tiny chunks make many
+     * chunks share their first and last bytes, so tests use them to check the
+     * joining of chunks.
+     *
+     * @param threads     is the number of threads encoding chunks.
+     * @param table       are the codes of the archive.
+     * @param chunkLength is the number of original bytes in one chunk.
+     */
+    ParallelEncoder(int threads, CodeTable table, int chunkLength) {
+        this.THREADS = Math.max(1, threads);
+        this.CHUNK_LENGTH = Math.max(1, chunkLength);
+        this.TABLE = table;
+    }
+
+    /**
+     * Says whether an archive with these codes can be written by this class. A tree
+     * of one leaf is left to the Archiver, since it encodes such files in its own way.
+     *
+     * @param table are the codes of the archive.
+     * @return true if the file can be encoded in parallel.
+     */
+    protected static boolean canEncode(CodeTable table) {
+        return table.getSymbolCount() > 1;
+    }
+
+    /**
+     * Encodes the whole input and writes the bitstream.
+     *
+     * @param in  is the stream reading the original file.
+     * @param out is the stream writing the archive right after its header.
+     * @return the number of bits written (without the zero bits of the last byte).
+     */
+    protected long encode(InputStream in, OutputStream out) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "parallel-encoder");
+            thread.setDaemon(true);
+            return thread;
+        });
+        int chunksInGroup = THREADS * 2;
+        byte[] group = new byte[chunksInGroup * CHUNK_LENGTH];
+        long totalBits = 0;
+        try {
+            int groupLength;
+            while ((groupLength = in.readNBytes(group, 0, group.length)) > 0) {
+                totalBits += encodeGroup(pool, group, groupLength, out);
+            }
+            if (carryBits > 0) {
+                out.write(carryByte);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ArchiveException("Parallel encoding was interrupted", e);
+        } catch (ExecutionException e) {
+            throw new ArchiveException("Parallel encoding failed: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return totalBits;
+    }
+
+    /**
+     * Encodes one group of chunks and writes all its whole bytes. The last byte
+     * is kept in carryByte if not all its bits are filled.
+     *
+     * @param pool        are the threads encoding chunks.
+     * @param group       is an array with the original bytes of the group.
+     * @param groupLength is the number of bytes in the group.
+     * @param out         is the stream writing the archive.
+     * @return the number of bits of the group.
+     */
+    private long encodeGroup(ExecutorService pool, byte[] group, int groupLength, OutputStream out)
+            throws IOException, InterruptedException, ExecutionException {
+        int chunks = (groupLength + CHUNK_LENGTH - 1) / CHUNK_LENGTH;
+        ArrayList<Future<Long>> lengths = new ArrayList<>();
+        for (int c = 0; c < chunks; c++) {
+            int from = c * CHUNK_LENGTH;
+            int to = Math.min(groupLength, from + CHUNK_LENGTH);
+            lengths.add(pool.submit(() -> countBits(group, from, to)));
+        }
+        long[] startBits = new long[chunks + 1]; // The bit every chunk starts at in the output array
+        startBits[0] = carryBits;
+        for (int c = 0; c < chunks; c++) {
+            startBits[c + 1] = startBits[c] + lengths.get(c).get();
+        }
+        long outputLength = (startBits[chunks] + Byte.SIZE - 1) / Byte.SIZE;
+        if (outputLength > Integer.MAX_VALUE - Byte.SIZE) {
+            throw new ArchiveException("The codes are too long to be encoded in parallel");
+        }
+        byte[] output = new byte[(int) outputLength];
+
+        ArrayList<Future<int[]>> borders = new ArrayList<>();
+        for (int c = 0; c < chunks; c++) {
+            int from = c * CHUNK_LENGTH;
+            int to = Math.min(groupLength, from + CHUNK_LENGTH);
+            long startBit = startBits[c];
+            borders.add(pool.submit((Callable<int[]>) () -> encodeChunk(group, from, to, startBit, output)));
+        }
+        if (output.length > 0) {
+            output[0] |= (byte) carryByte;
+        }
+        for (Future<int[]> future : borders) {
+            int[] sharedBytes = future.get(); // {index, value} of the first and of the last byte
+            output[sharedBytes[0]] |= (byte) sharedBytes[1];
+            if (sharedBytes[2] < output.length) {
+                output[sharedBytes[2]] |= (byte) sharedBytes[3];
+            }
+        }
+        long groupEndBit = startBits[chunks];
+        carryBits = (int) (groupEndBit % Byte.SIZE);
+        int wholeBytes = (int) (groupEndBit / Byte.SIZE);
+        out.write(output, 0, wholeBytes);
+        carryByte = carryBits > 0 ? output[wholeBytes] & 0xFF : 0;
+        return groupEndBit - startBits[0];
+    }
+
+    /**
+     * Counts the bits the codes of a part of an array take.
+     *
+     * @param data is an array with original bytes.
+     * @param from is the index of the first byte of the part.
+     * @param to   is the index after the last byte of the part.
+     * @return the number of bits.
+     */
+    private long countBits(byte[] data, int from, int to) {
+        long bits = 0;
+        for (int i = from; i < to; i++) {
+            bits += TABLE.getLength(data[i] & 0xFF);
+        }
+        return bits;
+    }
+
+    /**
+     * Encodes a chunk to its place in the output array. The first and the last
+     * byte of the chunk are not written to the array, since a neighbouring chunk
+     * may write to the same byte at the same time.
+     *
+     * @param data     is an array with original bytes.
+     * @param from     is the index of the first byte of the chunk.
+     * @param to       is the index after the last byte of the chunk.
+     * @param startBit is the bit of the output array the chunk starts at.
+     * @param output   is the output array of the whole group.
+     * @return the index and the value of the first byte (items 0 and 1) and
+     * of the last byte (items 2 and 3) of the chunk.
+     */
+    private int[] encodeChunk(byte[] data, int from, int to, long startBit, byte[] output) {
+        int firstIndex = (int) (startBit / Byte.SIZE);
+        int firstValue = 0;
+        int index = firstIndex;
+        long accumulator = 0;
+        int accumulatorBits = (int) (startBit % Byte.SIZE); // Zero bits standing for the bits of the previous chunk
+        for (int i = from; i < to; i++) {
+            int value = data[i] & 0xFF;
+            long code = TABLE.getCode(value);
+            int length = TABLE.getLength(value);
+            while (length > 0) {
+                int part = Math.min(length, MAX_BITS_AT_ONCE);
+                length -= part;
+                accumulator = (accumulator << part) | ((code >>> length) & ((1L << part) - 1));
+                accumulatorBits += part;
+                while (accumulatorBits >= Byte.SIZE) {
+                    accumulatorBits -= Byte.SIZE;
+                    byte encoded = (byte) (accumulator >>> accumulatorBits);
+                    if (index == firstIndex) {
+                        firstValue = encoded & 0xFF;
+                    } else {
+                        output[index] = encoded;
+                    }
+                    index++;
+                }
+            }
+        }
+        if (accumulatorBits > 0) {
+            int lastValue = (int) (accumulator << (Byte.SIZE - accumulatorBits)) & 0xFF;
+            if (index == firstIndex) { // The whole chunk fits in its first byte
+                return new int[]{firstIndex, firstValue | lastValue, output.length, 0};
+            }
+            return new int[]{firstIndex, firstValue, index, lastValue};
+        }
+        return new int[]{firstIndex, firstValue, output.length, 0};
+    }
+}
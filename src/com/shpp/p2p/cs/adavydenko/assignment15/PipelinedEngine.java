@@ -0,0 +1,357 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Runs reading, coding and writing of a file in three threads at the same time,
+ * so that the disk is busy while the CPU encodes / decodes bits and vice versa.
+ * <p>
+ * The reader thread fills buffers from the input stream, the coder (the thread
+ * that called the run method) encodes / decodes them and the writer thread writes
+ * the results to the output stream. The stages pass buffers to each other through
+ * lock-free single-producer single-consumer queues. Buffers are never created while
+ * the file is processed: empty buffers travel back to the reader and the coder
+ * through two more queues, so the same few buffers are used again and again.
+ * <p>
+ * Every time a stage has to wait for another one, its stall counter is increased.
+ * Many reader stalls mean the coder is the bottleneck, many coder input stalls mean
+ * the disk can not feed the coder fast enough and so on. Every buffer read, coded
+ * and written and every stall are also spans of the CodecTrace, so the moments the
+ * stages waited are seen on a timeline.
+ */
+public class PipelinedEngine {
+
+    /**
+     * Encodes / decodes one buffer with bytes from the input stream.
+     */
+    protected interface ChunkCoder {
+
+        /**
+         * Encodes / decodes bytes and writes the results to the output.
+         *
+         * @param buffer is an array of bytes from the input stream.
+         * @param len    is the number of bytes in the buffer.
+         * @param out    is the stream the results shall be written to.
+         */
+        void code(byte[] buffer, int len, OutputStream out) throws IOException;
+    }
+
+    /**
+     * Writes the results that are left in the coder after the last buffer.
+     */
+    protected interface CoderFinisher {
+
+        /**
+         * Writes all results that are left in the coder.
+         *
+         * @param out is the stream the results shall be written to.
+         */
+        void finish(OutputStream out) throws IOException;
+    }
+
+    /**
+     * A buffer traveling between the stages.
+     */
+    private static class Chunk {
+
+        /**
+         * The bytes of this buffer.
+         */
+        private final byte[] DATA;
+
+        /**
+         * The number of meaningful bytes in DATA. -1 marks the end of the stream.
+         */
+        private int length = 0;
+
+        /**
+         * Creates a buffer.
+         *
+         * @param size is the size of the buffer in bytes.
+         */
+        private Chunk(int size) {
+            this.DATA = new byte[size];
+        }
+    }
+
+    /**
+     * The size of each buffer traveling between the stages.
+     */
+    protected static final int CHUNK_SIZE = 256 * 1024;
+
+    /**
+     * The number of buffers on each side of the coder.
+     */
+    protected static final int CHUNKS_PER_SIDE = 4;
+
+    /**
+     * The length of a buffer marking the end of the stream.
+     */
+    private static final int END_OF_STREAM = -1;
+
+    /**
+     * Empty buffers going back from the coder to the reader.
+     */
+    private final SpscRingBuffer<Chunk> FREE_IN = new SpscRingBuffer<>(CHUNKS_PER_SIDE);
+
+    /**
+     * Buffers filled by the reader going to the coder.
+     */
+    private final SpscRingBuffer<Chunk> FULL_IN = new SpscRingBuffer<>(CHUNKS_PER_SIDE);
+
+    /**
+     * Empty buffers going back from the writer to the coder.
+     */
+    private final SpscRingBuffer<Chunk> FREE_OUT = new SpscRingBuffer<>(CHUNKS_PER_SIDE);
+
+    /**
+     * Buffers filled by the coder going to the writer.
+     */
+    private final SpscRingBuffer<Chunk> FULL_OUT = new SpscRingBuffer<>(CHUNKS_PER_SIDE);
+
+    /**
+     * The first problem that happened in the reader or in the writer thread.
+     */
+    private volatile Throwable failure = null;
+
+    /**
+     * The trace getting the spans of all stages.
+     */
+    private final CodecTrace TRACE;
+
+    /**
+     * The file being processed, for the spans of the trace.
+     */
+    private final String FILE;
+
+    /**
+     * Creates an engine with all its buffers.
+     *
+     * @param trace is the trace getting the spans of all stages.
+     * @param file  is the file being processed.
+     */
+    public PipelinedEngine(CodecTrace trace, String file) {
+        this.TRACE = trace;
+        this.FILE = file;
+        for (int i = 0; i < CHUNKS_PER_SIDE; i++) {
+            FREE_IN.offer(new Chunk(CHUNK_SIZE));
+            FREE_OUT.offer(new Chunk(CHUNK_SIZE));
+        }
+    }
+
+    /**
+     * Reads the whole input stream, codes it and writes the results to the
+     * output stream. Returns when everything is written (but not flushed).
+     *
+     * @param in       is the stream with the bytes to be coded.
+     * @param out      is the stream the results shall be written to.
+     * @param coder    encodes / decodes one buffer.
+     * @param finisher writes the results left in the coder after the last buffer.
+     */
+    protected void run(InputStream in, OutputStream out, ChunkCoder coder, CoderFinisher finisher) throws IOException {
+        Thread reader = new Thread(() -> readChunks(in), "pipeline-reader");
+        Thread writer = new Thread(() -> writeChunks(out), "pipeline-writer");
+        reader.start();
+        writer.start();
+        try {
+            codeChunks(coder, finisher);
+        } catch (IOException | RuntimeException e) {
+            abort(e);
+        }
+        joinQuietly(reader);
+        joinQuietly(writer);
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure != null) {
+            throw new IOException("The pipeline failed", failure);
+        }
+    }
+
+    /**
+     * Provides the stall counters of all stages as a message for console.
+     *
+     * @return the number of times each stage had to wait for another one.
+     */
+    protected String getStallReport() {
+        return "- Pipeline stalls: reader " + FREE_IN.consumerStalls
+                + ", coder (input empty) " + FULL_IN.consumerStalls
+                + ", coder (output full) " + FREE_OUT.consumerStalls
+                + ", writer " + FULL_OUT.consumerStalls;
+    }
+
+    /**
+     * The body of the reader thread: fills empty buffers completely (only the
+     * last one may be filled partially) and passes them to the coder.
+     *
+     * @param in is the stream with the bytes to be coded.
+     */
+    private void readChunks(InputStream in) {
+        try {
+            while (true) {
+                Chunk chunk = take(FREE_IN, "reader waits for a free buffer");
+                CodecTrace.Span read = TRACE.beginIfTraced(CodecTrace.BUFFER, "read chunk", FILE);
+                chunk.length = in.readNBytes(chunk.DATA, 0, chunk.DATA.length);
+                TRACE.end(read, chunk.length);
+                if (chunk.length == 0) {
+                    chunk.length = END_OF_STREAM;
+                    FULL_IN.put(chunk);
+                    return;
+                }
+                FULL_IN.put(chunk);
+            }
+        } catch (IOException | RuntimeException e) {
+            abort(e);
+        }
+    }
+
+    /**
+     * The body of the coder: codes every buffer from the reader and gives the
+     * buffer back to the reader. The results are written to a stream that fills
+     * buffers of the writer.
+     *
+     * @param coder    encodes / decodes one buffer.
+     * @param finisher writes the results left in the coder after the last buffer.
+     */
+    private void codeChunks(ChunkCoder coder, CoderFinisher finisher) throws IOException {
+        ChunkOutputStream chunkOut = new ChunkOutputStream();
+        while (true) {
+            Chunk chunk = take(FULL_IN, "coder waits for input");
+            if (chunk.length == END_OF_STREAM) {
+                break;
+            }
+            CodecTrace.Span code = TRACE.beginIfTraced(CodecTrace.BUFFER, "code chunk", FILE);
+            coder.code(chunk.DATA, chunk.length, chunkOut);
+            TRACE.end(code, chunk.length);
+            FREE_IN.put(chunk);
+        }
+        finisher.finish(chunkOut);
+        chunkOut.close();
+    }
+
+    /**
+     * The body of the writer thread: writes every buffer from the coder to the
+     * output stream and gives the buffer back to the coder.
+     *
+     * @param out is the stream the results shall be written to.
+     */
+    private void writeChunks(OutputStream out) {
+        try {
+            while (true) {
+                Chunk chunk = take(FULL_OUT, "writer waits for output");
+                if (chunk.length == END_OF_STREAM) {
+                    return;
+                }
+                CodecTrace.Span write = TRACE.beginIfTraced(CodecTrace.BUFFER, "write chunk", FILE);
+                out.write(chunk.DATA, 0, chunk.length);
+                TRACE.end(write, chunk.length);
+                FREE_OUT.put(chunk);
+            }
+        } catch (IOException | RuntimeException e) {
+            abort(e);
+        }
+    }
+
+    /**
+     * Takes a buffer from a queue, waiting while the queue is empty. The wait
+     * becomes a stall span of the trace if the queue really was empty.
+     *
+     * @param queue is the queue to take the buffer from.
+     * @param stall is the name of the stall span.
+     * @return the buffer.
+     */
+    private Chunk take(SpscRingBuffer<Chunk> queue, String stall) {
+        CodecTrace.Span span = TRACE.beginIfTraced(CodecTrace.STALL, stall, FILE);
+        long stalls = queue.consumerStalls; // Only this thread changes the counter
+        Chunk chunk = queue.take();
+        if (queue.consumerStalls != stalls) {
+            TRACE.end(span, 0);
+        }
+        return chunk;
+    }
+
+    /**
+     * Remembers the first problem and stops all stages.
+     *
+     * @param e is the problem that happened in one of the stages.
+     */
+    private void abort(Throwable e) {
+        if (failure == null) {
+            failure = e;
+        }
+        FREE_IN.close();
+        FULL_IN.close();
+        FREE_OUT.close();
+        FULL_OUT.close();
+    }
+
+    /**
+     * Waits until a thread is finished.
+     *
+     * @param thread is the thread to wait for.
+     */
+    private void joinQuietly(Thread thread) {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abort(e);
+        }
+    }
+
+    /**
+     * A stream used by the coder: copies everything written to it to the buffers
+     * of the writer and passes every full buffer to the writer.
+     */
+    private class ChunkOutputStream extends OutputStream {
+
+        /**
+         * The buffer being filled now.
+         */
+        private Chunk current = FREE_OUT.take();
+
+        @Override
+        public void write(int b) {
+            if (current.length == current.DATA.length) {
+                passToWriter();
+            }
+            current.DATA[current.length++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] bytes, int off, int len) {
+            while (len > 0) {
+                if (current.length == current.DATA.length) {
+                    passToWriter();
+                }
+                int part = Math.min(len, current.DATA.length - current.length);
+                System.arraycopy(bytes, off, current.DATA, current.length, part);
+                current.length += part;
+                off += part;
+                len -= part;
+            }
+        }
+
+        /**
+         * Passes the last (maybe not full) buffer and the end of the stream to the writer.
+         */
+        @Override
+        public void close() {
+            if (current.length > 0) {
+                passToWriter();
+            }
+            current.length = END_OF_STREAM;
+            FULL_OUT.put(current);
+        }
+
+        /**
+         * Passes the current buffer to the writer and takes an empty one.
+         */
+        private void passToWriter() {
+            FULL_OUT.put(current);
+            current = take(FREE_OUT, "coder waits for the writer");
+            current.length = 0;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+/**
+ * Gets told from time to time how far a job got (see the ProgressMonitor
+ * class). The methods are called by the timer thread of the monitor, never
+ * by the thread that archives or unarchives the file, so a slow listener
+ * does not slow the job down.
+ */
+public interface ProgressListener {
+
+    /**
+     * Is called once per period while a job runs.
+     *
+     * @param progress is the monitor of the job with its latest sample.
+     */
+    void onProgress(ProgressMonitor progress);
+
+    /**
+     * Is called once when the job is finished or failed.
+     *
+     * @param progress is the monitor of the job with its last sample.
+     */
+    void onFinish(ProgressMonitor progress);
+}
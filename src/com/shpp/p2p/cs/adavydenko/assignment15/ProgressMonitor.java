@@ -0,0 +1,282 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches how many bytes a job has processed and tells it to a ProgressListener
+ * once per period, with the current speed and the time left.
+ * <p>
+ * A job is made of passes: archiving reads the inFile twice (counting bytes and
+ * encoding them), unarchiving reads the archive once. Every pass reads or writes
+ * its file through a stream given by the track methods, and that stream only
+ * adds the number of bytes of every read / write to a counter. Everything else
+ * (the speed, the time left, calling the listener) is done by a timer thread
+ * that samples the counter, so the loops of the coders pay nothing for it.
+ */
+public class ProgressMonitor {
+
+    /**
+     * The thread sampling all monitors. It is a daemon, so it does not keep
+     * the program running after the last job.
+     */
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "progress-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The number of nanoseconds in a second.
+     */
+    private static final double NANOS_IN_SEC = 1_000_000_000;
+
+    /**
+     * The file of the job.
+     */
+    private final String FILE;
+
+    /**
+     * The listener getting the samples.
+     */
+    private final ProgressListener LISTENER;
+
+    /**
+     * The bytes processed in the current pass. Only the thread doing the pass
+     * changes it, the timer thread only reads it.
+     */
+    private volatile long doneBytes = 0;
+
+    /**
+     * The name of the current pass, null before the first one.
+     */
+    private String phase = null;
+
+    /**
+     * The number of bytes the current pass will process, -1 if it is not known.
+     */
+    private long totalBytes = -1;
+
+    /**
+     * The moment the current pass started.
+     */
+    private long passStartNanos;
+
+    /**
+     * The processed bytes at the previous sample.
+     */
+    private long sampleBytes = 0;
+
+    /**
+     * The moment of the previous sample.
+     */
+    private long sampleNanos;
+
+    /**
+     * The speed between the two latest samples in bytes per second.
+     */
+    private double bytesPerSecond = 0;
+
+    /**
+     * The task of the timer calling the listener, null before the first pass.
+     */
+    private ScheduledFuture<?> task = null;
+
+    /**
+     * The period of the samples in milliseconds.
+     */
+    private final long PERIOD_MILLIS;
+
+    /**
+     * Creates a monitor of a job.
+     *
+     * @param file         is the file of the job.
+     * @param listener     is the listener getting the samples.
+     * @param periodMillis is the period of the samples in milliseconds.
+     */
+    public ProgressMonitor(String file, ProgressListener listener, long periodMillis) {
+        this.FILE = file;
+        this.LISTENER = listener;
+        this.PERIOD_MILLIS = periodMillis;
+    }
+
+    /**
+     * Starts a pass that reads a stream.
+     *
+     * @param in         is the stream the pass reads.
+     * @param phase      is the name of the pass.
+     * @param totalBytes is the number of bytes the pass will read, -1 if it is not known.
+     * @return the stream counting the bytes read.
+     */
+    protected InputStream track(InputStream in, String phase, long totalBytes) {
+        startPass(phase, totalBytes);
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    doneBytes++;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] bytes, int off, int len) throws IOException {
+                int read = super.read(bytes, off, len);
+                if (read > 0) {
+                    doneBytes += read;
+                }
+                return read;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = super.skip(n);
+                doneBytes += skipped;
+                return skipped;
+            }
+        };
+    }
+
+    /**
+     * Starts a pass that writes a stream. Is used when the pass reads its
+     * file in a way that can not be tracked.
+     *
+     * @param out        is the stream the pass writes.
+     * @param phase      is the name of the pass.
+     * @param totalBytes is the number of bytes the pass will write, -1 if it is not known.
+     * @return the stream counting the bytes written.
+     */
+    protected OutputStream track(OutputStream out, String phase, long totalBytes) {
+        startPass(phase, totalBytes);
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                doneBytes++;
+            }
+
+            @Override
+            public void write(byte[] bytes, int off, int len) throws IOException {
+                out.write(bytes, off, len);
+                doneBytes += len;
+            }
+        };
+    }
+
+    /**
+     * Stops sampling and tells the listener the job is over. Does nothing if no pass started.
+     */
+    protected void finish() {
+        synchronized (this) {
+            if (task == null) {
+                return;
+            }
+            task.cancel(false);
+            sample();
+        }
+        LISTENER.onFinish(this);
+    }
+
+    /**
+     * @return the file of the job.
+     */
+    public String getFile() {
+        return FILE;
+    }
+
+    /**
+     * @return the name of the current pass.
+     */
+    public synchronized String getPhase() {
+        return phase;
+    }
+
+    /**
+     * @return the bytes processed in the current pass at the latest sample.
+     */
+    public synchronized long getDoneBytes() {
+        return sampleBytes;
+    }
+
+    /**
+     * @return the number of bytes the current pass will process, -1 if it is not known.
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @return the speed between the two latest samples in bytes per second.
+     */
+    public synchronized double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Estimates the time left to the end of the current pass from the average
+     * speed of the pass (the speed between two samples jumps too much for it).
+     *
+     * @return the seconds left, -1 if they are not known.
+     */
+    public synchronized long getEtaSeconds() {
+        double seconds = (sampleNanos - passStartNanos) / NANOS_IN_SEC;
+        if (totalBytes < 0 || sampleBytes == 0 || seconds <= 0) {
+            return -1;
+        }
+        return Math.round(Math.max(0, totalBytes - sampleBytes) / (sampleBytes / seconds));
+    }
+
+    /**
+     * Resets the counter for a new pass and starts the timer if it is the first pass.
+     *
+     * @param phase      is the name of the pass.
+     * @param totalBytes is the number of bytes the pass will process, -1 if it is not known.
+     */
+    private synchronized void startPass(String phase, long totalBytes) {
+        this.phase = phase;
+        this.totalBytes = totalBytes;
+        this.doneBytes = 0;
+        this.sampleBytes = 0;
+        this.bytesPerSecond = 0;
+        this.passStartNanos = System.nanoTime();
+        this.sampleNanos = passStartNanos;
+        if (task == null) {
+            task = TIMER.scheduleAtFixedRate(this::report, PERIOD_MILLIS, PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Takes a sample and tells it to the listener. Runs in the timer thread.
+     */
+    private void report() {
+        synchronized (this) {
+            sample();
+        }
+        try {
+            LISTENER.onProgress(this);
+        } catch (RuntimeException e) { // A broken listener shall not stop the samples of other jobs
+            System.out.println("Progress listener failed: " + e);
+        }
+    }
+
+    /**
+     * Reads the counter and counts the speed since the previous sample.
+     */
+    private void sample() {
+        long now = System.nanoTime();
+        long bytes = doneBytes;
+        if (now > sampleNanos) {
+            bytesPerSecond = (bytes - sampleBytes) / ((now - sampleNanos) / NANOS_IN_SEC);
+        }
+        sampleBytes = bytes;
+        sampleNanos = now;
+    }
+}
@@ -0,0 +1,172 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded lock-free queue for exactly one producer thread and exactly one
+ * consumer thread. Items are stored in a ring: the producer only moves the
+ * tail, the consumer only moves the head, so neither of them ever takes a lock.
+ * <p>
+ * If the queue is full (or empty), the blocking methods spin for a while,
+ * then yield and finally park for short periods of time. Every time a thread
+ * has to wait, the corresponding stall counter is increased. The counters are
+ * written only by their own thread and shall be read after both threads stopped.
+ *
+ * @param <T> is the type of the items in the queue.
+ */
+public class SpscRingBuffer<T> {
+
+    /**
+     * The number of busy-spin iterations before a waiting thread starts yielding.
+     */
+    private static final int SPIN_ITERATIONS = 100;
+
+    /**
+     * The number of yields before a waiting thread starts parking.
+     */
+    private static final int YIELD_ITERATIONS = 100;
+
+    /**
+     * The number of nanoseconds a waiting thread parks for at a time.
+     */
+    private static final long PARK_NANOS = 20_000;
+
+    /**
+     * The ring with items. Its length is a power of two.
+     */
+    private final Object[] ITEMS;
+
+    /**
+     * Is used instead of the modulo operation to get the index in the ring.
+     */
+    private final int MASK;
+
+    /**
+     * The number of items the consumer already took. Moved only by the consumer.
+     */
+    private final AtomicLong HEAD = new AtomicLong();
+
+    /**
+     * The number of items the producer already put. Moved only by the producer.
+     */
+    private final AtomicLong TAIL = new AtomicLong();
+
+    /**
+     * Becomes true when the pipeline is aborted. Waiting threads stop waiting then.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * The number of times the producer had to wait because the queue was full.
+     */
+    protected long producerStalls = 0;
+
+    /**
+     * The number of times the consumer had to wait because the queue was empty.
+     */
+    protected long consumerStalls = 0;
+
+    /**
+     * Creates a queue.
+     *
+     * @param capacity is the minimum number of items the queue can hold. It is
+     *                 rounded up to the nearest power of two.
+     */
+    public SpscRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.ITEMS = new Object[size];
+        this.MASK = size - 1;
+    }
+
+    /**
+     * Puts an item to the queue if there is room for it.
+     *
+     * @param item is the item to be put.
+     * @return true if the item was put, false if the queue is full.
+     */
+    protected boolean offer(T item) {
+        long tail = TAIL.get();
+        if (tail - HEAD.get() == ITEMS.length) {
+            return false;
+        }
+        ITEMS[(int) tail & MASK] = item;
+        TAIL.lazySet(tail + 1); // publishes the item to the consumer
+        return true;
+    }
+
+    /**
+     * Takes an item from the queue if there is any.
+     *
+     * @return the oldest item in the queue or null if the queue is empty.
+     */
+    @SuppressWarnings("unchecked")
+    protected T poll() {
+        long head = HEAD.get();
+        if (head == TAIL.get()) {
+            return null;
+        }
+        int index = (int) head & MASK;
+        T item = (T) ITEMS[index];
+        ITEMS[index] = null;
+        HEAD.lazySet(head + 1); // gives the place back to the producer
+        return item;
+    }
+
+    /**
+     * Puts an item to the queue and waits while the queue is full.
+     *
+     * @param item is the item to be put.
+     */
+    protected void put(T item) {
+        if (offer(item)) {
+            return;
+        }
+        producerStalls++;
+        for (int attempt = 0; !offer(item); attempt++) {
+            idle(attempt);
+        }
+    }
+
+    /**
+     * Takes an item from the queue and waits while the queue is empty.
+     *
+     * @return the oldest item in the queue.
+     */
+    protected T take() {
+        T item = poll();
+        if (item != null) {
+            return item;
+        }
+        consumerStalls++;
+        for (int attempt = 0; (item = poll()) == null; attempt++) {
+            idle(attempt);
+        }
+        return item;
+    }
+
+    /**
+     * Aborts the pipeline: all threads waiting in this queue stop waiting.
+     */
+    protected void close() {
+        closed = true;
+    }
+
+    /**
+     * Waits a bit: spins first, yields after that and parks in the end.
+     *
+     * @param attempt is the number of unsuccessful attempts made so far.
+     */
+    private void idle(int attempt) {
+        if (closed) {
+            throw new IllegalStateException("The pipeline was aborted");
+        }
+        if (attempt < SPIN_ITERATIONS) {
+            Thread.onSpinWait();
+        } else if (attempt < SPIN_ITERATIONS + YIELD_ITERATIONS) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+    }
+}
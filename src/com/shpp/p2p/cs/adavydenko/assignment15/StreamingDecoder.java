@@ -0,0 +1,253 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A decoder of par-archives that does not read anything itself: the archive
+ * is pushed into it in chunks of any size (e.g. as they arrive from a socket),
+ * and the decoded bytes are written to buffers provided by the caller. Nothing
+ * ever blocks, so one thread of an event loop can serve many decoders.
+ * <p>
+ * The decoder is a state machine. First it collects the header (which may be
+ * split between any number of chunks), then it decodes bits and keeps its place
+ * in the tree between the chunks. Since the last byte of the archive has its own
+ * number of meaningful bits, the decoder always holds back the latest archive
+ * byte until either the next one arrives or the caller says the input is over.
+ * <p>
+ * Typical usage:
+ * --- call feed(src, dst) whenever new archive bytes arrive; bytes left in src
+ * (because dst got full) shall be provided again in the next call
+ * --- when the archive is over, call endOfInput() and then finish(dst) until
+ * isFinished() returns true
+ */
+public class StreamingDecoder {
+
+    /**
+     * The states of the decoder.
+     */
+    private enum State {
+        /**
+         * Collecting the header.
+         */
+        HEADER,
+        /**
+         * Decoding the encoded bytes.
+         */
+        BODY,
+        /**
+         * Everything is decoded.
+         */
+        FINISHED
+    }
+
+    /**
+     * The current state of the decoder.
+     */
+    private State state = State.HEADER;
+
+    /**
+     * The bytes of the header collected so far.
+     */
+    private final byte[] HEADER_BYTES = new byte[ArchiveHeader.MAX_LENGTH];
+
+    /**
+     * The number of header bytes collected so far.
+     */
+    private int headerBytesCollected = 0;
+
+    /**
+     * The codes of the archive. Known after the header is collected.
+     */
+    private CodeTable codeTable;
+
+    /**
+     * The number of meaningful bits in the last byte of the archive.
+     */
+    private int meaningfulBitsInLastByte;
+
+    /**
+     * The latest archive byte that is not decoded yet, since it may be the last one.
+     */
+    private byte pendingByte;
+
+    /**
+     * Says whether the pendingByte holds a byte.
+     */
+    private boolean hasPendingByte = false;
+
+    /**
+     * The byte being decoded now.
+     */
+    private byte currentByte;
+
+    /**
+     * The number of bits of the currentByte that are already decoded.
+     */
+    private int bitsDecodedInCurrentByte = 0;
+
+    /**
+     * The number of bits of the currentByte that shall be decoded.
+     */
+    private int bitsToDecodeInCurrentByte = 0;
+
+    /**
+     * The current node of the tree (0 is the root).
+     */
+    private int node = 0;
+
+    /**
+     * Says whether the caller said the archive is over.
+     */
+    private boolean inputEnded = false;
+
+    /**
+     * The number of decoded bytes written to the caller buffers so far.
+     */
+    private long bytesDecoded = 0;
+
+    /**
+     * Consumes archive bytes from src and writes decoded bytes to dst. Stops when
+     * src is empty or dst is full. Archive bytes that were not consumed stay in src.
+     *
+     * @param src is a buffer with the next archive bytes.
+     * @param dst is a buffer for the decoded bytes.
+     * @return the number of decoded bytes written to dst.
+     */
+    public int feed(ByteBuffer src, ByteBuffer dst) {
+        if (inputEnded) {
+            throw new IllegalStateException("The input is already over");
+        }
+        if (state == State.HEADER) {
+            collectHeader(src);
+        }
+        return state == State.BODY ? decodeBody(src, dst) : 0;
+    }
+
+    /**
+     * Says that the archive is over. After that only finish(dst) shall be called.
+     */
+    public void endOfInput() {
+        inputEnded = true;
+        if (state == State.HEADER) {
+            if (headerBytesCollected > 0) {
+                throw new ArchiveException("The archive ended inside its header");
+            }
+            state = State.FINISHED; // an empty archive stands for an empty file
+        }
+    }
+
+    /**
+     * Writes the decoded bytes that are left after the input is over.
+     *
+     * @param dst is a buffer for the decoded bytes.
+     * @return the number of decoded bytes written to dst.
+     */
+    public int finish(ByteBuffer dst) {
+        if (!inputEnded) {
+            throw new IllegalStateException("endOfInput() was not called yet");
+        }
+        return state == State.BODY ? decodeBody(ByteBuffer.allocate(0), dst) : 0;
+    }
+
+    /**
+     * Says whether all bytes of the archive are decoded and written.
+     *
+     * @return true if the decoder has nothing more to write.
+     */
+    public boolean isFinished() {
+        return state == State.FINISHED;
+    }
+
+    /**
+     * Provides the number of decoded bytes written to the caller buffers so far.
+     *
+     * @return the number of decoded bytes.
+     */
+    public long getBytesDecoded() {
+        return bytesDecoded;
+    }
+
+    /**
+     * Copies header bytes from src until the whole header is collected. After
+     * that builds the code table and switches to decoding the body.
+     *
+     * @param src is a buffer with the next archive bytes.
+     */
+    private void collectHeader(ByteBuffer src) {
+        while (src.hasRemaining()) {
+            int headerLength = ArchiveHeader.getLengthIfKnown(HEADER_BYTES, headerBytesCollected);
+            if (headerLength == headerBytesCollected) {
+                break;
+            }
+            int wanted = headerLength < 0 ? 1 : headerLength - headerBytesCollected;
+            int part = Math.min(wanted, src.remaining());
+            src.get(HEADER_BYTES, headerBytesCollected, part);
+            headerBytesCollected += part;
+        }
+        if (ArchiveHeader.getLengthIfKnown(HEADER_BYTES, headerBytesCollected) == headerBytesCollected) {
+            ArchiveHeader header = new ArchiveHeader(HEADER_BYTES);
+            codeTable = header.toCodeTable();
+            meaningfulBitsInLastByte = header.MEANINGFUL_BITS_IN_LAST_BYTE;
+            state = State.BODY;
+        }
+    }
+
+    /**
+     * Decodes bits until dst is full or there are no more bits that may be decoded.
+     *
+     * @param src is a buffer with the next archive bytes.
+     * @param dst is a buffer for the decoded bytes.
+     * @return the number of decoded bytes written to dst.
+     */
+    private int decodeBody(ByteBuffer src, ByteBuffer dst) {
+        int written = 0;
+        while (dst.hasRemaining()) {
+            if (bitsDecodedInCurrentByte == bitsToDecodeInCurrentByte && !takeNextByte(src)) {
+                break;
+            }
+            int bit = (currentByte >> (Byte.SIZE - 1 - bitsDecodedInCurrentByte)) & 1;
+            bitsDecodedInCurrentByte++;
+            node = codeTable.getChild(node, bit);
+            if (node < 0) { // a leaf is reached
+                dst.put((byte) (-node - 1));
+                written++;
+                node = 0;
+            }
+        }
+        bytesDecoded += written;
+        return written;
+    }
+
+    /**
+     * Makes the pending byte the current one if it is known not to be the last
+     * byte of the archive (or if the input is over and it is the last byte).
+     *
+     * @param src is a buffer with the next archive bytes.
+     * @return true if there is a new current byte to decode.
+     */
+    private boolean takeNextByte(ByteBuffer src) {
+        if (!hasPendingByte) {
+            if (!src.hasRemaining()) {
+                if (inputEnded) {
+                    state = State.FINISHED;
+                }
+                return false;
+            }
+            pendingByte = src.get();
+            hasPendingByte = true;
+        }
+        if (src.hasRemaining()) {
+            currentByte = pendingByte;
+            bitsToDecodeInCurrentByte = Byte.SIZE;
+            pendingByte = src.get();
+        } else if (inputEnded) {
+            currentByte = pendingByte;
+            bitsToDecodeInCurrentByte = meaningfulBitsInLastByte;
+            hasPendingByte = false;
+        } else {
+            return false;
+        }
+        bitsDecodedInCurrentByte = 0;
+        return true;
+    }
+}
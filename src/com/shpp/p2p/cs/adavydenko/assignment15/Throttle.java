@@ -0,0 +1,324 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Keeps archiving within a fixed envelope of resources, so it can run in the
+ * background next to latency-sensitive services (the "--max-rate",
+ * "--max-threads" and "--control" options).
+ * <p>
+ * The disk bandwidth is limited by a token bucket: every byte read from the
+ * inFile or written to the outFile takes a token, and tokens come back at the
+ * chosen rate. A thread that takes more tokens than there are goes into debt
+ * and sleeps until the debt is paid, so big reads are allowed, but the average
+ * rate never exceeds the limit. The bucket holds at most a tenth of a second
+ * of tokens, so an idle moment does not allow a long burst later. One throttle
+ * is shared by all jobs of a run, so the limit is for the whole program.
+ * <p>
+ * Tokens are counted as two totals: the bytes taken by all threads and the
+ * bytes paid for by the time passed. A thread may go on when the paid bytes
+ * reach the taken ones it saw after taking its own, so the threads go in the
+ * order they took their tokens. It sleeps in slices of at most PARK_SLICE_NANOS
+ * and checks again, so a new rate from the control file applies to the threads
+ * that sleep already.
+ * <p>
+ * The CPU is limited by the number of worker threads: the jobs of the batch
+ * mode running at the same time and the threads of the parallel coders.
+ * <p>
+ * Both limits may be changed while the program runs: the control file is read
+ * every second when it changes. It has the same keys as the options, e.g.
+ * "max-rate=20" (megabytes per second, 0 for no limit) and "max-threads=2".
+ * A new rate cancels the debt made at the old one, so no thread keeps sleeping
+ * for bytes priced at the old rate.
+ * A new thread limit is applied to the batch jobs that have not started yet
+ * and to the parallel coders of the next files.
+ */
+public class Throttle {
+
+    /**
+     * The thread reading the control files. It is a daemon, so it does not
+     * keep the program running after the last job.
+     */
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "throttle-control");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The key of the rate limit in the control file.
+     */
+    protected static final String MAX_RATE_KEY = "max-rate";
+
+    /**
+     * The key of the thread limit in the control file.
+     */
+    protected static final String MAX_THREADS_KEY = "max-threads";
+
+    /**
+     * The period of reading the control file in milliseconds.
+     */
+    private static final long CONTROL_PERIOD_MILLIS = 1000;
+
+    /**
+     * The number of nanoseconds in a second.
+     */
+    private static final double NANOS_IN_SEC = 1_000_000_000;
+
+    /**
+     * The part of a second of tokens the bucket holds at most.
+     */
+    private static final double BURST_SECONDS = 0.1;
+
+    /**
+     * The longest time a thread sleeps before it checks the rate again in nanoseconds.
+     */
+    private static final long PARK_SLICE_NANOS = 50_000_000;
+
+    /**
+     * The number of bytes in a megabyte.
+     */
+    private static final long BYTES_IN_MB = 1024 * 1024;
+
+    /**
+     * The control file, null if the limits never change.
+     */
+    private final File CONTROL_FILE;
+
+    /**
+     * The number of bytes per second that may be read and written, 0 for no limit.
+     */
+    private long bytesPerSecond;
+
+    /**
+     * The number of bytes all threads took tokens for.
+     */
+    private long takenBytes = 0;
+
+    /**
+     * The number of bytes paid for by the time passed. It is bigger than the
+     * takenBytes by the tokens in the bucket or smaller by the debt of the
+     * threads sleeping now.
+     */
+    private double paidBytes = 0;
+
+    /**
+     * The moment tokens were added to the bucket the last time.
+     */
+    private long refillNanos = System.nanoTime();
+
+    /**
+     * The maximum number of worker threads.
+     */
+    private int maxThreads;
+
+    /**
+     * The number of batch jobs running now.
+     */
+    private int runningJobs = 0;
+
+    /**
+     * The time the control file was changed when it was read the last time.
+     */
+    private long controlModified = 0;
+
+    /**
+     * Creates a throttle and starts reading the control file if there is one.
+     *
+     * @param megabytesPerSecond is the number of megabytes per second that may be read and written, 0 for no limit.
+     * @param maxThreads         is the maximum number of worker threads, Integer.MAX_VALUE for no limit.
+     * @param controlFile        is the file with new limits, null if the limits never change.
+     */
+    public Throttle(int megabytesPerSecond, int maxThreads, String controlFile) {
+        this.bytesPerSecond = megabytesPerSecond * BYTES_IN_MB;
+        this.maxThreads = maxThreads;
+        this.CONTROL_FILE = controlFile == null ? null : new File(controlFile);
+        if (CONTROL_FILE != null) {
+            readControlFile(false);
+            TIMER.scheduleWithFixedDelay(() -> readControlFile(true), CONTROL_PERIOD_MILLIS, CONTROL_PERIOD_MILLIS,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Makes a stream take a token for every byte read.
+     *
+     * @param in is the stream reading a file.
+     * @return the throttled stream.
+     */
+    protected InputStream limit(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    acquire(1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] bytes, int off, int len) throws IOException {
+                int read = super.read(bytes, off, len);
+                if (read > 0) {
+                    acquire(read);
+                }
+                return read;
+            }
+        };
+    }
+
+    /**
+     * Makes a stream take a token for every byte written.
+     *
+     * @param out is the stream writing a file.
+     * @return the throttled stream.
+     */
+    protected OutputStream limit(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                acquire(1);
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] bytes, int off, int len) throws IOException {
+                acquire(len);
+                out.write(bytes, off, len);
+            }
+        };
+    }
+
+    /**
+     * Takes tokens for bytes and sleeps until the bytes taken so far are paid
+     * for or the rate limit is removed.
+     *
+     * @param bytes is the number of bytes.
+     */
+    protected void acquire(long bytes) {
+        long ticket;
+        synchronized (this) {
+            if (bytesPerSecond <= 0) {
+                return;
+            }
+            refill();
+            takenBytes += bytes;
+            ticket = takenBytes;
+        }
+        while (true) {
+            long sleepNanos;
+            synchronized (this) {
+                refill();
+                if (bytesPerSecond <= 0 || paidBytes >= ticket) {
+                    return;
+                }
+                sleepNanos = (long) ((ticket - paidBytes) / bytesPerSecond * NANOS_IN_SEC);
+            }
+            LockSupport.parkNanos(Math.min(Math.max(sleepNanos, 1), PARK_SLICE_NANOS));
+        }
+    }
+
+    /**
+     * Pays for the bytes of the time passed since the last refill at the
+     * current rate. The bucket keeps at most BURST_SECONDS of tokens.
+     */
+    private synchronized void refill() {
+        long now = System.nanoTime();
+        if (bytesPerSecond > 0) {
+            paidBytes = Math.min(takenBytes + bytesPerSecond * BURST_SECONDS,
+                    paidBytes + (now - refillNanos) / NANOS_IN_SEC * bytesPerSecond);
+        }
+        refillNanos = now;
+    }
+
+    /**
+     * Waits until one more batch job may run.
+     */
+    protected synchronized void startJob() {
+        while (runningJobs >= maxThreads) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        runningJobs++;
+    }
+
+    /**
+     * Tells that a batch job is finished, so another one may start.
+     */
+    protected synchronized void finishJob() {
+        runningJobs--;
+        notifyAll();
+    }
+
+    /**
+     * Limits a number of threads a parallel coder wants to the current limit.
+     *
+     * @param threads is the number of threads wanted.
+     * @return the number of threads allowed.
+     */
+    protected synchronized int limitThreads(int threads) {
+        return Math.min(threads, maxThreads);
+    }
+
+    /**
+     * Reads the control file if it changed since the last time. A file that
+     * can not be read or has wrong values changes nothing.
+     *
+     * @param report says whether the new limits shall be printed.
+     */
+    private void readControlFile(boolean report) {
+        long modified = CONTROL_FILE.lastModified();
+        if (modified == 0 || modified == controlModified) { // No file or no changes
+            return;
+        }
+        controlModified = modified;
+        Properties control = new Properties();
+        try (InputStream in = new FileInputStream(CONTROL_FILE)) {
+            control.load(in);
+            long rate = Long.parseLong(control.getProperty(MAX_RATE_KEY, "-1").trim());
+            int threads = Integer.parseInt(control.getProperty(MAX_THREADS_KEY, "-1").trim());
+            synchronized (this) {
+                if (rate >= 0 && rate * BYTES_IN_MB != bytesPerSecond) {
+                    refill();
+                    bytesPerSecond = rate * BYTES_IN_MB;
+                    paidBytes = Math.max(paidBytes, takenBytes); // The debt made at the old rate is cancelled
+                }
+                if (threads >= 1) {
+                    maxThreads = threads;
+                    notifyAll();
+                }
+                if (report) {
+                    System.out.println("- Throttle: " + describe());
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.out.println("Can not read the control file " + CONTROL_FILE + ": " + e);
+        }
+    }
+
+    /**
+     * Describes the current limits in one line.
+     *
+     * @return the description.
+     */
+    protected synchronized String describe() {
+        return (bytesPerSecond > 0 ? bytesPerSecond / BYTES_IN_MB + " Mb/s" : "no rate limit") + ", "
+                + (maxThreads < Integer.MAX_VALUE ? "at most " + maxThreads + " thread(s)" : "no thread limit");
+    }
+}
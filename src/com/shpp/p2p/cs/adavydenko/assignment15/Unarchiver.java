@@ -3,6 +3,7 @@ package com.shpp.p2p.cs.adavydenko.assignment15;
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.zip.GZIPInputStream;
 
 /**
  * The program extracts the first two bytes from the archive and determines the
@@ -16,6 +17,13 @@ import java.util.*;
  */
 public class Unarchiver {
 
+    /**
+     * The trees and the codes built for the last archives in the original
+     * format, shared by all unarchivers.
+     */
+    protected static final DecodeTableCache<DecodeTables> DECODE_TABLES =
+            new DecodeTableCache<>("Decode table cache", DecodeTableCache.DEFAULT_CAPACITY);
+
     /**
      * The name and the location of the archived file
      * the program shall to unarchive.
@@ -35,6 +43,17 @@ public class Unarchiver {
      */
     private final AuxiliaryMethods AUX_METHODS;
 
+    /**
+     * Settings of the unarchiving chosen by user.
+     */
+    private final CodecOptions OPTIONS;
+
+    /**
+     * The number of archive bytes already provided to the decoder. Is used
+     * to detect the last buffer when the archive is read by a pipeline.
+     */
+    private long bytesProvidedToDecoder = 0;
+
     /**
      * Size of the file to be unarchived in bytes.
      */
@@ -160,6 +179,27 @@ public class Unarchiver {
      */
     private int minNumOfBitsToEncodeByte = 0;
 
+    /**
+     * The times of the phases of unarchiving, null if user did not ask for them.
+     */
+    private final CodecStats STATS;
+
+    /**
+     * The spans of the phases and buffers of unarchiving (see the CodecTrace class).
+     */
+    private final CodecTrace TRACE;
+
+    /**
+     * The monitor of the progress of unarchiving, null if nobody wants it.
+     */
+    private final ProgressMonitor PROGRESS;
+
+    /**
+     * Reads the inFile and writes the outFile past the page cache if user
+     * asked for it (see the DirectIo class), null otherwise.
+     */
+    private final DirectIo DIRECT_IO;
+
     /**
      * Gets the name and the location of an archive and the archive that shall
      * be unarchived as well as the link to the AuxiliaryMethods that provides
@@ -173,16 +213,56 @@ public class Unarchiver {
      *                   to both archiver and unarchiver.
      */
     public Unarchiver(String[] files, AuxiliaryMethods auxMethods) {
+        this(files, auxMethods, new CodecOptions());
+    }
+
+    /**
+     * Creates an unarchiver with settings chosen by user.
+     *
+     * @param files      an array with archived file name and location
+     *                   with index 0 and the future unarchived file
+     *                   name and location with index 1.
+     * @param auxMethods an auxiliary class that performs functions common
+     *                   to both archiver and unarchiver.
+     * @param options    settings of the unarchiving chosen by user.
+     */
+    public Unarchiver(String[] files, AuxiliaryMethods auxMethods, CodecOptions options) {
         this.IN_FILE = files[0];
         this.OUT_FILE = files[1];
         this.AUX_METHODS = auxMethods;
+        this.OPTIONS = options;
+        this.STATS = options.createStats();
+        this.TRACE = options.trace;
+        this.PROGRESS = options.createProgress(IN_FILE);
+        this.DIRECT_IO = options.directIo ? new DirectIo(auxMethods) : null;
     }
 
     /**
      * Gets the archived file, checks it for being an empty file,
-     * defines its size and unarchives its content.
+     * defines its size and unarchives its content. The operation is
+     * counted in the CodecMetrics.
      */
     protected void unarchiveFile() {
+        CodecTrace.Span job = TRACE.begin(CodecTrace.JOB, "unarchive", IN_FILE);
+        try {
+            unarchive();
+            CodecMetrics.INSTANCE.UNARCHIVE.recordSuccess(job.START_NANOS, new File(IN_FILE).length(),
+                    new File(OUT_FILE).length());
+        } catch (RuntimeException e) {
+            CodecMetrics.INSTANCE.UNARCHIVE.recordError();
+            throw e;
+        } finally {
+            TRACE.end(job, new File(IN_FILE).length());
+            if (PROGRESS != null) {
+                PROGRESS.finish();
+            }
+        }
+    }
+
+    /**
+     * Does the work of unarchiveFile.
+     */
+    private void unarchive() {
         File inFile = new File(IN_FILE);
 
         if (AUX_METHODS.processEmptyFileIfApplicable(inFile, OUT_FILE, inFileSize, false)) {
@@ -190,8 +270,130 @@ public class Unarchiver {
         }
 
         defineArchivedFileSize(inFile);
-        processFile(inFile);
+        if (DeflateEncoder.isGzipFile(inFile)) {
+            if (OPTIONS.checkpointBytes > 0) {
+                throw new ArchiveException("Options --checkpoint and --resume work with archives in the original format only");
+            }
+            processGzipFile();
+        } else if (ParFormat.isBlockArchive(inFile)) {
+            if (OPTIONS.checkpointBytes > 0) {
+                throw new ArchiveException("Options --checkpoint and --resume work with archives in the original format only");
+            }
+            processBlockArchive();
+        } else if (OPTIONS.checkpointBytes > 0) {
+            processFileWithCheckpoints(inFile);
+        } else {
+            processFile(inFile);
+        }
         AUX_METHODS.displayOutFileSizeAndEffectiveness(OUT_FILE, inFileSize, false);
+        if (DIRECT_IO != null) {
+            AUX_METHODS.printMessage("- " + DIRECT_IO.describe());
+        }
+        if (STATS != null) {
+            STATS.print("unarchive", IN_FILE, OUT_FILE, inFileSize, new File(OUT_FILE).length());
+        }
+    }
+
+    /**
+     * Opens the inFile for reading, past the page cache and within the rate
+     * limit if user asked for them.
+     *
+     * @return the stream reading the inFile.
+     */
+    private InputStream openInFile() throws IOException {
+        return limitRate(DIRECT_IO == null ? new FileInputStream(IN_FILE) : DIRECT_IO.openInput(IN_FILE));
+    }
+
+    /**
+     * Creates the outFile for writing, past the page cache and within the rate
+     * limit if user asked for them.
+     *
+     * @return the stream writing the outFile.
+     */
+    private OutputStream openOutFile() throws IOException {
+        return limitRate(DIRECT_IO == null ? new FileOutputStream(OUT_FILE) : DIRECT_IO.openOutput(OUT_FILE));
+    }
+
+    /**
+     * Makes a stream reading the inFile take its bytes within the rate limit
+     * if user asked for one.
+     *
+     * @param in is the stream reading the inFile.
+     * @return the throttled stream or the same stream if there is no limit.
+     */
+    private InputStream limitRate(InputStream in) {
+        return OPTIONS.throttle == null ? in : OPTIONS.throttle.limit(in);
+    }
+
+    /**
+     * Makes a stream writing the outFile take its bytes within the rate limit
+     * if user asked for one.
+     *
+     * @param out is the stream writing the outFile.
+     * @return the throttled stream or the same stream if there is no limit.
+     */
+    private OutputStream limitRate(OutputStream out) {
+        return OPTIONS.throttle == null ? out : OPTIONS.throttle.limit(out);
+    }
+
+    /**
+     * Starts a phase of unarchiving: a span of the trace and, if user asked
+     * for the stats, a timed phase of the stats.
+     *
+     * @param phase is the name of the phase.
+     * @return the started phase.
+     */
+    private CodecTrace.Span startPhase(String phase) {
+        return TRACE.begin(CodecTrace.PHASE, phase, IN_FILE);
+    }
+
+    /**
+     * Finishes a phase: adds its time to the stats if user asked for them
+     * and passes it to the trace.
+     *
+     * @param phase is the phase started by startPhase.
+     * @param bytes is the number of bytes the phase processed.
+     */
+    private void endPhase(CodecTrace.Span phase, long bytes) {
+        if (STATS != null) {
+            STATS.record(phase.NAME, phase.START_NANOS, bytes);
+        }
+        TRACE.end(phase, bytes);
+    }
+
+    /**
+     * Makes the pass over the archive tell its progress if anybody wants it.
+     *
+     * @param in is the stream reading the archive.
+     * @return the stream counting the bytes read or the same stream if nobody wants the progress.
+     */
+    private InputStream trackProgress(InputStream in) {
+        return PROGRESS == null ? in : PROGRESS.track(in, "decoding", inFileSize);
+    }
+
+    /**
+     * Finishes the phase of the decoding loop. The tables are built while the
+     * loop runs, but they are timed on their own, so their time is taken away
+     * from the time of the loop in the stats (the trace shows them inside the loop).
+     *
+     * @param phase is the phase started by startPhase.
+     */
+    private void endDecodePhase(CodecTrace.Span phase) {
+        if (STATS != null) {
+            STATS.record(phase.NAME, phase.START_NANOS + STATS.getNanos("tables"), inFileSize);
+        }
+        TRACE.end(phase, inFileSize);
+    }
+
+    /**
+     * Writes the buffered bytes of the unarchived file to the disk, timing it as the "flush" phase.
+     *
+     * @param out is the stream writing the unarchived file.
+     */
+    private void flushOutFile(OutputStream out) throws IOException {
+        CodecTrace.Span phase = startPhase("flush");
+        out.flush();
+        endPhase(phase, 0);
     }
 
     /**
@@ -201,14 +403,199 @@ public class Unarchiver {
      * @param inFile is the file provided by user that shall unarchived.
      */
     private void processFile(File inFile) {
-        try {
-            BufferedInputStream bis = new BufferedInputStream(new FileInputStream(inFile));
-            BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(OUT_FILE));
+        if (OPTIONS.parallelThreads > 0 && processFileInParallel()) {
+            return;
+        }
+        if (OPTIONS.pipelined) {
+            processFilePipelined();
+            return;
+        }
+        try (BufferedInputStream bis = new BufferedInputStream(trackProgress(openInFile()));
+             BufferedOutputStream bos = new BufferedOutputStream(openOutFile())) {
+            CodecTrace.Span phase = startPhase("decode");
             readBytes(inFile, bis, bos);
-            bis.close();
-            bos.close();
-        } catch (Exception e) {
-            System.exit(-1);
+            endDecodePhase(phase);
+            flushOutFile(bos);
+        } catch (IOException e) {
+            throw new ArchiveException("Can not unarchive " + IN_FILE + " to " + OUT_FILE, e);
+        }
+    }
+
+    /**
+     * Does the same as processFile, but takes a checkpoint (see the Checkpoint
+     * class) after every OPTIONS.checkpointBytes bytes of the archive, or goes
+     * on from a checkpoint taken before. The tables are always built from the
+     * first buffer, since the header of the archive is there.
+     *
+     * @param inFile is the file provided by user that shall unarchived.
+     */
+    private void processFileWithCheckpoints(File inFile) {
+        Checkpoint resumed = OPTIONS.resume ? Checkpoint.resume(false, IN_FILE, OUT_FILE, AUX_METHODS) : null;
+        if (resumed != null) {
+            resumed.prepareOutput(OUT_FILE, null);
+        }
+        try (FileOutputStream fos = new FileOutputStream(OUT_FILE, resumed != null);
+             BufferedOutputStream bos = new BufferedOutputStream(limitRate(fos));
+             BufferedInputStream bis = new BufferedInputStream(trackProgress(openInFile()))) {
+            CodecTrace.Span phase = startPhase("decode");
+            byte[] inBuffer = new byte[BUFFER_SIZE];
+            int len = bis.readNBytes(inBuffer, 0, inBuffer.length);
+            long inputOffset = len; // The number of the archive bytes decoded so far
+            prepareForArchiveDecoding(inBuffer, len);
+            if (resumed == null) {
+                isLastExtractedBuffer = inputOffset == inFileSize;
+                decodeBytes(inBuffer, len, bos);
+            } else {
+                for (byte bit : resumed.PARTIAL_BITS) { // Puts back the bits that did not make a whole code
+                    EXTRACTED_BITS.add(bit);
+                }
+                bis.skipNBytes(resumed.INPUT_OFFSET - inputOffset);
+                inputOffset = resumed.INPUT_OFFSET;
+                indexOfFirstByteWithEncodedBits = 0; // The header was in the first buffer that is already decoded
+            }
+            long nextCheckpoint = inputOffset + OPTIONS.checkpointBytes;
+            while (inputOffset < inFileSize && (len = bis.readNBytes(inBuffer, 0, inBuffer.length)) > 0) {
+                inputOffset += len;
+                isLastExtractedBuffer = inputOffset == inFileSize;
+                decodeBytes(inBuffer, len, bos);
+                if (inputOffset >= nextCheckpoint && !isLastExtractedBuffer) {
+                    saveCheckpoint(fos, bos, inputOffset);
+                    nextCheckpoint = inputOffset + OPTIONS.checkpointBytes;
+                }
+            }
+            writeRestOfOutBuffer(bos);
+            endDecodePhase(phase);
+            flushOutFile(bos);
+        } catch (IOException e) {
+            throw new ArchiveException("Can not unarchive " + IN_FILE + " to " + OUT_FILE, e);
+        }
+        Checkpoint.delete(OUT_FILE, AUX_METHODS);
+    }
+
+    /**
+     * Writes all decoded bytes to the unarchived file and takes a checkpoint.
+     *
+     * @param fos         is the stream writing the unarchived file.
+     * @param bos         is the buffered stream on top of the fos.
+     * @param inputOffset is the number of the archive bytes decoded so far.
+     */
+    private void saveCheckpoint(FileOutputStream fos, BufferedOutputStream bos, long inputOffset) throws IOException {
+        writeRestOfOutBuffer(bos); // The buffer is written earlier than usual
+        bytesAlreadyInOutBuffer = 0;
+        bos.flush();
+        byte[] partialBits = new byte[EXTRACTED_BITS.size()];
+        for (int i = 0; i < partialBits.length; i++) {
+            partialBits[i] = EXTRACTED_BITS.get(i);
+        }
+        Checkpoint.save(false, IN_FILE, OUT_FILE, inputOffset, fos, partialBits, new byte[0], new long[0]);
+    }
+
+    /**
+     * Unarchives an archive in the block format (see the ParFormat class).
+     */
+    private void processBlockArchive() {
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(trackProgress(openInFile())));
+             BufferedOutputStream bos = new BufferedOutputStream(openOutFile())) {
+            CodecTrace.Span phase = startPhase("decode");
+            new BlockDecoder().decode(dis, bos);
+            endPhase(phase, inFileSize);
+            flushOutFile(bos);
+        } catch (IOException e) {
+            throw new ArchiveException("Can not unarchive " + IN_FILE + " to " + OUT_FILE, e);
+        }
+    }
+
+    /**
+     * Unpacks a gzip file (see the DeflateEncoder class) with the inflater of the JDK.
+     */
+    private void processGzipFile() {
+        try (InputStream in = new GZIPInputStream(trackProgress(openInFile()), BUFFER_SIZE);
+             BufferedOutputStream bos = new BufferedOutputStream(openOutFile())) {
+            CodecTrace.Span phase = startPhase("decode");
+            in.transferTo(bos);
+            endPhase(phase, inFileSize);
+            flushOutFile(bos);
+        } catch (IOException e) {
+            throw new ArchiveException("Can not unarchive " + IN_FILE + " to " + OUT_FILE, e);
+        }
+    }
+
+    /**
+     * Decodes the archive in several threads (see the ParallelDecoder class).
+     *
+     * @return false if the codes of the archive do not suit the parallel decoding
+     * and nothing was done.
+     */
+    private boolean processFileInParallel() {
+        try (RandomAccessFile archive = new RandomAccessFile(IN_FILE, "r")) {
+            CodecTrace.Span phase = startPhase("tables");
+            ArchiveHeader header;
+            try (DataInputStream dis = new DataInputStream(new BufferedInputStream(limitRate(new FileInputStream(IN_FILE))))) {
+                header = ParFormat.readTableHeader(dis);
+            }
+            CodeTable table = header.toCodeTable();
+            endPhase(phase, 0);
+            if (archive.length() <= header.LENGTH || !ParallelDecoder.canDecode(table)) {
+                return false;
+            }
+            try (BufferedOutputStream bos = new BufferedOutputStream(openOutFile())) {
+                phase = startPhase("decode");
+                OutputStream out = PROGRESS == null ? bos : PROGRESS.track(bos, "decoding", -1); // The archive is read by parts in many threads, so the written bytes are counted instead
+                new ParallelDecoder(OPTIONS.getParallelThreads(), OPTIONS.throttle).decode(archive, header.LENGTH,
+                        header.MEANINGFUL_BITS_IN_LAST_BYTE, table, out);
+                endPhase(phase, inFileSize);
+                flushOutFile(bos);
+            }
+            return true;
+        } catch (IOException e) {
+            throw new ArchiveException("Can not unarchive " + IN_FILE + " to " + OUT_FILE, e);
+        }
+    }
+
+    /**
+     * Does the same as processFile, but reads the archive and writes the
+     * unarchived file in separate threads while this thread decodes bytes.
+     */
+    private void processFilePipelined() {
+        try (InputStream fis = trackProgress(openInFile());
+             BufferedOutputStream bos = new BufferedOutputStream(openOutFile())) {
+            PipelinedEngine engine = new PipelinedEngine(TRACE, IN_FILE);
+            CodecTrace.Span phase = startPhase("decode");
+            engine.run(fis, bos, this::decodeBufferFromPipeline, this::writeRestOfOutBuffer);
+            endDecodePhase(phase);
+            flushOutFile(bos);
+            AUX_METHODS.printMessage(engine.getStallReport());
+        } catch (IOException e) {
+            throw new ArchiveException("Can not unarchive " + IN_FILE + " to " + OUT_FILE, e);
+        }
+    }
+
+    /**
+     * Decodes a buffer provided by the pipeline. The pipeline fills every buffer
+     * completely, so the first one contains the whole header of the archive, and
+     * the last one is the buffer that reaches the end of the archive.
+     *
+     * @param inBuffer is an array of bytes extracted from the archived file.
+     * @param len      is the number of bytes written to the buffer (inBuffer)
+     * @param bos      is an object writing bytes to an output File.
+     */
+    private void decodeBufferFromPipeline(byte[] inBuffer, int len, OutputStream bos) {
+        if (bytesProvidedToDecoder == 0) { // If it is the first extracted buffer from the archive
+            prepareForArchiveDecoding(inBuffer, len);
+        }
+        bytesProvidedToDecoder += len;
+        isLastExtractedBuffer = bytesProvidedToDecoder == inFileSize;
+        decodeBytes(inBuffer, len, bos);
+    }
+
+    /**
+     * Writes the decoded bytes that are left in the OUT_BUFFER (if there are any).
+     *
+     * @param bos is an object writing bytes to an output File.
+     */
+    private void writeRestOfOutBuffer(OutputStream bos) throws IOException {
+        if (bytesAlreadyInOutBuffer > 0) { // If there are some bytes in the OUT_BUFFER left that are not written to the archive yet
+            bos.write(OUT_BUFFER, 0, bytesAlreadyInOutBuffer);
         }
     }
 
@@ -220,31 +607,27 @@ public class Unarchiver {
      * @param bis    is an object reading bytes from an archive.
      * @param bos    is an object writing bytes to an output File.
      */
-    private void readBytes(File inFile, BufferedInputStream bis, BufferedOutputStream bos) {
-        try {
-            int numOfBuffersNeededToExtract = (int) Math.ceil(inFile.length() / (double) BUFFER_SIZE);
-            byte[] inBuffer = new byte[BUFFER_SIZE]; // Buffer with bytes from the source file that shall be archived
-            int len;
-            int timesBufferExtracted = 0; // The number of times the program filled buffer and provided those data further
-            while ((len = bis.read(inBuffer)) > 0) {
-                timesBufferExtracted++;
-                if (timesBufferExtracted == numOfBuffersNeededToExtract) { // If it is the last buffer to be extracted
-                    isLastExtractedBuffer = true;
-                }
-                if (timesBufferExtracted == 1) { // If it is the first extracted buffer from the archive
-                    prepareForArchiveDecoding(inBuffer);
-                }
-                decodeBytes(inBuffer, len, bos);
+    private void readBytes(File inFile, BufferedInputStream bis, OutputStream bos) throws IOException {
+        int numOfBuffersNeededToExtract = (int) Math.ceil(inFile.length() / (double) BUFFER_SIZE);
+        byte[] inBuffer = new byte[BUFFER_SIZE]; // Buffer with bytes from the source file that shall be archived
+        int len;
+        int timesBufferExtracted = 0; // The number of times the program filled buffer and provided those data further
+        CodecTrace.Span fill = TRACE.beginIfTraced(CodecTrace.BUFFER, "fill buffer", IN_FILE);
+        while ((len = bis.read(inBuffer)) > 0) {
+            TRACE.end(fill, len);
+            timesBufferExtracted++;
+            if (timesBufferExtracted == numOfBuffersNeededToExtract) { // If it is the last buffer to be extracted
+                isLastExtractedBuffer = true;
             }
-
-            if (bytesAlreadyInOutBuffer > 0) { // If there are some bytes in the OUT_BUFFER left that are not written to the archive yet
-                bos.write(OUT_BUFFER, 0, bytesAlreadyInOutBuffer);
+            if (timesBufferExtracted == 1) { // If it is the first extracted buffer from the archive
+                prepareForArchiveDecoding(inBuffer, len);
             }
-            bis.close();
-            bos.close();
-        } catch (Exception e) {
-            e.printStackTrace();
+            CodecTrace.Span decode = TRACE.beginIfTraced(CodecTrace.BUFFER, "decode buffer", IN_FILE);
+            decodeBytes(inBuffer, len, bos);
+            TRACE.end(decode, len);
+            fill = TRACE.beginIfTraced(CodecTrace.BUFFER, "fill buffer", IN_FILE);
         }
+        writeRestOfOutBuffer(bos);
     }
 
     /**
@@ -252,18 +635,59 @@ public class Unarchiver {
      * Namely gets the number of bits describing tree structure, the number
      * of meaningful bits in the last archive`s byte, the tree structure itself
      * and all unique bytes.
+     * <p>
+     * The tree and the codes are taken from the DECODE_TABLES cache if an
+     * earlier archive had the same tree, and are built only otherwise.
+     *
+     * @param inBuffer is a buffer with bytes from the source file that shall be archived.
+     * @param len      is the number of bytes written to the buffer (inBuffer)
+     */
+    private void prepareForArchiveDecoding(byte[] inBuffer, int len) {
+        CodecTrace.Span phase = startPhase("tables");
+        prepareTables(inBuffer, len);
+        endPhase(phase, 0);
+    }
+
+    /**
+     * Does the work of prepareForArchiveDecoding.
      *
      * @param inBuffer is a buffer with bytes from the source file that shall be archived.
+     * @param len      is the number of bytes written to the buffer (inBuffer)
      */
-    private void prepareForArchiveDecoding(byte[] inBuffer) {
+    private void prepareTables(byte[] inBuffer, int len) {
         getTreeSizeInBits(inBuffer);
         getNumOfMeaningfulBitsInLastByte(inBuffer);
+        int headerLength = ArchiveHeader.getLengthIfKnown(inBuffer, len);
+        if (headerLength < 0) { // A broken archive shorter than its header is left to the usual way of decoding
+            buildDecodeTables(inBuffer);
+            return;
+        }
+        byte[] treeBytes = Arrays.copyOf(inBuffer, headerLength);
+        treeBytes[2] = 0; // The number of meaningful bits in the last byte does not belong to the tree
+        DecodeTables tables = DECODE_TABLES.get(treeBytes, () -> buildDecodeTables(inBuffer));
+        if (tables.TREE != tree) { // The tables were built for another archive
+            tree = tables.TREE;
+            BYTE_CODES.putAll(tables.BYTE_CODES);
+            minNumOfBitsToEncodeByte = tables.MIN_CODE_LENGTH;
+            indexOfFirstByteWithEncodedBits = headerLength;
+        }
+    }
+
+    /**
+     * Reads the tree structure and the unique bytes from the first buffer,
+     * builds the tree and collects the codes of all unique bytes.
+     *
+     * @param inBuffer is a buffer with bytes from the source file that shall be archived.
+     * @return the built tree and codes.
+     */
+    private DecodeTables buildDecodeTables(byte[] inBuffer) {
         getTreeStructure(inBuffer);
         countUniqueBytesInArchive();
         getUniqueBytesFromArchive(inBuffer);
         buildTree();
         fillHashMapWithCodes();
         getMinNumOfBitsToEncodeByte();
+        return new DecodeTables(tree, new HashMap<>(BYTE_CODES), minNumOfBitsToEncodeByte);
     }
 
     /**
@@ -293,7 +717,7 @@ public class Unarchiver {
      * @param len      is the number of bytes written to the buffer (inBuffer)
      * @param bos      is an object writing bytes to an output File.
      */
-    private void decodeBytes(byte[] inBuffer, int len, BufferedOutputStream bos) {
+    private void decodeBytes(byte[] inBuffer, int len, OutputStream bos) {
         int offset;
 
         for (int i = indexOfFirstByteWithEncodedBits; i < len; i++) { // Iterates through the inBuffer
@@ -321,7 +745,7 @@ public class Unarchiver {
      *               equals null. If decoded, it equals to some byte value.
      * @param bos    is an object writing bytes to an output File.
      */
-    private void writeByteToBufferIfDecoded(Byte result, BufferedOutputStream bos) {
+    private void writeByteToBufferIfDecoded(Byte result, OutputStream bos) {
         if (result != null) { // if returns not null - saves the value returned to OUT_BUFFER
             OUT_BUFFER[bytesAlreadyInOutBuffer] = result;
             bytesAlreadyInOutBuffer++;
@@ -355,13 +779,15 @@ public class Unarchiver {
      *
      * @param bos is an object writing bytes to an output File.
      */
-    private void writeBytesArrayToUnarchivedIfApplicable(BufferedOutputStream bos) {
+    private void writeBytesArrayToUnarchivedIfApplicable(OutputStream bos) {
         if (bytesAlreadyInOutBuffer == OUT_BUFFER.length) {
             try {
+                CodecTrace.Span flush = TRACE.beginIfTraced(CodecTrace.BUFFER, "flush buffer", IN_FILE);
                 bos.write(OUT_BUFFER, 0, bytesAlreadyInOutBuffer);
+                TRACE.end(flush, bytesAlreadyInOutBuffer);
                 bytesAlreadyInOutBuffer = 0; // resets to zero the number of bytes written to OUT_BUFFER
-            } catch (Exception e) {
-                e.printStackTrace();
+            } catch (IOException e) {
+                throw new ArchiveException("Can not write the unarchived file " + OUT_FILE, e);
             }
         }
     }
@@ -610,7 +1036,7 @@ public class Unarchiver {
      */
     private void defineArchivedFileSize(File file) {
         inFileSize = file.length();
-        System.out.println("- File size before unarchiving: " + AUX_METHODS.getFileSize(inFileSize));
+        AUX_METHODS.printMessage("- File size before unarchiving: " + AUX_METHODS.getFileSize(inFileSize));
     }
 
     /**
@@ -721,4 +1147,40 @@ public class Unarchiver {
         NODE_STACK.clear();
         VISITED_NODES.clear();
     }
+
+    /**
+     * The tree of an archive in the original format with the codes of all its
+     * unique bytes. They are never changed once built, so many unarchivers can
+     * use them at the same time.
+     */
+    protected static class DecodeTables {
+
+        /**
+         * The tree built from the header.
+         */
+        private final Node TREE;
+
+        /**
+         * All unique bytes and their codes presented as arrays of bits.
+         */
+        private final Map<Byte, ArrayList<Byte>> BYTE_CODES;
+
+        /**
+         * The length of the shortest code.
+         */
+        private final int MIN_CODE_LENGTH;
+
+        /**
+         * Keeps the tables.
+         *
+         * @param tree          is the tree built from the header.
+         * @param byteCodes     are all unique bytes and their codes.
+         * @param minCodeLength is the length of the shortest code.
+         */
+        DecodeTables(Node tree, Map<Byte, ArrayList<Byte>> byteCodes, int minCodeLength) {
+            this.TREE = tree;
+            this.BYTE_CODES = byteCodes;
+            this.MIN_CODE_LENGTH = minCodeLength;
+        }
+    }
 }
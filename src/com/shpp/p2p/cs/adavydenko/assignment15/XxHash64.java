@@ -0,0 +1,171 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * Computes the 64-bit xxHash of bytes given in parts of any size. It is much
+ * faster than CRC32C or any cryptographic hash, so it is computed in the same
+ * loop that counts the frequencies of bytes and adds almost nothing to it.
+ * The result is the same as the one of the reference implementation (seed 0).
+ * <p>
+ * The hash is used to recognize files that did not change (see the ArchiveCache
+ * class). It is not meant to resist someone crafting collisions on purpose.
+ */
+public class XxHash64 {
+
+    /**
+     * The five primes of the algorithm.
+     */
+    private static final long PRIME_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME_3 = 0x165667B19E3779F9L;
+    private static final long PRIME_4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME_5 = 0x27D4EB2F165667C5L;
+
+    /**
+     * The number of bytes consumed by one round of the four accumulators.
+     */
+    private static final int STRIPE_LENGTH = 32;
+
+    /**
+     * Reads 8 bytes of an array as a little-endian long.
+     */
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * Reads 4 bytes of an array as a little-endian int.
+     */
+    private static final VarHandle INTS = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * The four accumulators, each one taking every fourth 8 bytes of a stripe.
+     */
+    private long acc1 = PRIME_1 + PRIME_2;
+    private long acc2 = PRIME_2;
+    private long acc3 = 0;
+    private long acc4 = -PRIME_1;
+
+    /**
+     * The bytes of a stripe that is not complete yet.
+     */
+    private final byte[] STRIPE = new byte[STRIPE_LENGTH];
+
+    /**
+     * The number of bytes in STRIPE.
+     */
+    private int stripeLength = 0;
+
+    /**
+     * The number of bytes given so far.
+     */
+    private long totalLength = 0;
+
+    /**
+     * Adds bytes to the hash.
+     *
+     * @param data   is an array with the bytes.
+     * @param offset is the position of the first byte in the array.
+     * @param length is the number of bytes.
+     */
+    protected void update(byte[] data, int offset, int length) {
+        totalLength += length;
+        if (stripeLength > 0) {
+            int part = Math.min(length, STRIPE_LENGTH - stripeLength);
+            System.arraycopy(data, offset, STRIPE, stripeLength, part);
+            stripeLength += part;
+            offset += part;
+            length -= part;
+            if (stripeLength < STRIPE_LENGTH) {
+                return;
+            }
+            consumeStripe(STRIPE, 0);
+            stripeLength = 0;
+        }
+        int end = offset + length;
+        for (; offset <= end - STRIPE_LENGTH; offset += STRIPE_LENGTH) {
+            consumeStripe(data, offset);
+        }
+        stripeLength = end - offset;
+        System.arraycopy(data, offset, STRIPE, 0, stripeLength);
+    }
+
+    /**
+     * Computes the hash of all bytes given so far. More bytes may be added after that.
+     *
+     * @return the hash.
+     */
+    protected long getValue() {
+        long hash;
+        if (totalLength >= STRIPE_LENGTH) {
+            hash = Long.rotateLeft(acc1, 1) + Long.rotateLeft(acc2, 7)
+                    + Long.rotateLeft(acc3, 12) + Long.rotateLeft(acc4, 18);
+            hash = merge(hash, acc1);
+            hash = merge(hash, acc2);
+            hash = merge(hash, acc3);
+            hash = merge(hash, acc4);
+        } else {
+            hash = PRIME_5;
+        }
+        hash += totalLength;
+        int i = 0;
+        for (; i + Long.BYTES <= stripeLength; i += Long.BYTES) {
+            hash ^= round(0, (long) LONGS.get(STRIPE, i));
+            hash = Long.rotateLeft(hash, 27) * PRIME_1 + PRIME_4;
+        }
+        if (i + Integer.BYTES <= stripeLength) {
+            hash ^= ((int) INTS.get(STRIPE, i) & 0xFFFFFFFFL) * PRIME_1;
+            hash = Long.rotateLeft(hash, 23) * PRIME_2 + PRIME_3;
+            i += Integer.BYTES;
+        }
+        for (; i < stripeLength; i++) {
+            hash ^= (STRIPE[i] & 0xFF) * PRIME_5;
+            hash = Long.rotateLeft(hash, 11) * PRIME_1;
+        }
+        hash ^= hash >>> 33;
+        hash *= PRIME_2;
+        hash ^= hash >>> 29;
+        hash *= PRIME_3;
+        hash ^= hash >>> 32;
+        return hash;
+    }
+
+    /**
+     * Mixes 32 bytes into the four accumulators.
+     *
+     * @param data   is an array with the bytes.
+     * @param offset is the position of the first byte in the array.
+     */
+    private void consumeStripe(byte[] data, int offset) {
+        acc1 = round(acc1, (long) LONGS.get(data, offset));
+        acc2 = round(acc2, (long) LONGS.get(data, offset + 8));
+        acc3 = round(acc3, (long) LONGS.get(data, offset + 16));
+        acc4 = round(acc4, (long) LONGS.get(data, offset + 24));
+    }
+
+    /**
+     * Mixes 8 bytes into an accumulator.
+     *
+     * @param acc   is the accumulator.
+     * @param input are the 8 bytes.
+     * @return the new value of the accumulator.
+     */
+    private static long round(long acc, long input) {
+        acc += input * PRIME_2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * PRIME_1;
+    }
+
+    /**
+     * Mixes an accumulator into the final hash.
+     *
+     * @param hash is the hash.
+     * @param acc  is the accumulator.
+     * @return the new hash.
+     */
+    private static long merge(long hash, long acc) {
+        hash ^= round(0, acc);
+        return hash * PRIME_1 + PRIME_4;
+    }
+}
@@ -0,0 +1,162 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static com.shpp.p2p.cs.adavydenko.assignment15.TestData.check;
+
+/**
+ * Checks that BufferCodec decompresses every payload it compressed to the same
+ * bytes, for heap and direct buffers in every combination and for buffers whose
+ * position is not 0. It also checks the positions the methods leave, the bound
+ * of maxCompressedLength and getDecompressedLength.
+ */
+public class BufferCodecTest {
+
+    /**
+     * The number of random payloads.
+     */
+    private static final int PAYLOADS = 4000;
+
+    /**
+     * The maximum length of a payload.
+     */
+    private static final int MAX_PAYLOAD_LENGTH = 200_000;
+
+    /**
+     * The maximum length of a payload of the short ones (half of all payloads).
+     */
+    private static final int MAX_SHORT_PAYLOAD_LENGTH = 300;
+
+    /**
+     * The maximum number of bytes before the position of a buffer.
+     */
+    private static final int MAX_OFFSET = 16;
+
+    /**
+     * Runs all checks.
+     *
+     * @param args are not used.
+     */
+    public static void main(String[] args) {
+        Random random = new Random(PAYLOADS);
+        int stored = 0;
+        for (int i = 0; i < PAYLOADS; i++) {
+            int length = random.nextInt(random.nextBoolean() ? MAX_SHORT_PAYLOAD_LENGTH + 1 : MAX_PAYLOAD_LENGTH + 1);
+            byte[] original = createPayload(random, length, i % 4);
+            boolean directSource = (i & 4) != 0; // The lowest two bits choose the kind of the bytes
+            boolean directPayload = (i & 8) != 0;
+            boolean directOutput = (i & 16) != 0;
+            if (checkRoundTrip(original, directSource, directPayload, directOutput, random) == BufferCodec.STORED) {
+                stored++;
+            }
+        }
+        System.out.println("- " + PAYLOADS + " payload(s) of 0 - " + MAX_PAYLOAD_LENGTH + " bytes with all heap / direct"
+                + " buffer combinations decoded correctly, " + stored + " of them stored as they are");
+        checkPayloadsInARow(random);
+        System.out.println("BufferCodecTest: all checks passed");
+    }
+
+    /**
+     * Compresses and decompresses one payload and checks the result and the positions.
+     *
+     * @param original      are the bytes to be compressed.
+     * @param directSource  says whether the source buffer is a direct one.
+     * @param directPayload says whether the buffer with the compressed payload is a direct one.
+     * @param directOutput  says whether the buffer for the decompressed bytes is a direct one.
+     * @param random        chooses the positions of the buffers.
+     * @return the mode of the compressed payload.
+     */
+    private static int checkRoundTrip(byte[] original, boolean directSource, boolean directPayload,
+                                      boolean directOutput, Random random) {
+        ByteBuffer src = allocate(original.length, directSource, random);
+        int sourceStart = src.position();
+        src.put(original).position(sourceStart);
+
+        int maxLength = BufferCodec.maxCompressedLength(original.length);
+        ByteBuffer payload = allocate(maxLength, directPayload, random);
+        int payloadStart = payload.position();
+        int payloadLength = BufferCodec.compress(src, payload);
+        check(src.position() == src.limit(), "compress shall move the source to its limit");
+        check(payloadLength <= maxLength, "The payload is longer than maxCompressedLength");
+        check(payload.position() == payloadStart + payloadLength, "compress shall move the destination after the payload");
+
+        payload.flip().position(payloadStart);
+        check(BufferCodec.getDecompressedLength(payload) == original.length, "getDecompressedLength is wrong");
+        check(payload.position() == payloadStart, "getDecompressedLength shall not move the source");
+        ByteBuffer output = allocate(original.length, directOutput, random);
+        int outputStart = output.position();
+        check(BufferCodec.decompress(payload, output) == original.length, "decompress returned a wrong length");
+        check(payload.position() == payloadStart + payloadLength, "decompress shall move the source after the payload");
+        check(output.position() == outputStart + original.length, "decompress shall move the destination after the bytes");
+        check(output.slice(outputStart, original.length).equals(ByteBuffer.wrap(original)),
+                "A payload of " + original.length + " byte(s) was decoded wrongly");
+        return payload.get(payloadStart) & 0xFF;
+    }
+
+    /**
+     * Checks that payloads written one after another in one buffer are read
+     * back one after another, so no payload takes bytes of the next one.
+     *
+     * @param random chooses the payloads.
+     */
+    private static void checkPayloadsInARow(Random random) {
+        byte[][] originals = new byte[PAYLOADS / 10][];
+        int totalLength = 0;
+        for (int i = 0; i < originals.length; i++) {
+            originals[i] = createPayload(random, random.nextInt(MAX_SHORT_PAYLOAD_LENGTH + 1), i % 4);
+            totalLength += BufferCodec.maxCompressedLength(originals[i].length);
+        }
+        ByteBuffer payloads = ByteBuffer.allocateDirect(totalLength);
+        for (byte[] original : originals) {
+            BufferCodec.compress(ByteBuffer.wrap(original), payloads);
+        }
+        payloads.flip();
+        for (byte[] original : originals) {
+            ByteBuffer output = ByteBuffer.allocate(BufferCodec.getDecompressedLength(payloads));
+            BufferCodec.decompress(payloads, output);
+            check(output.flip().equals(ByteBuffer.wrap(original)), "A payload in a row was decoded wrongly");
+        }
+        check(!payloads.hasRemaining(), "Bytes are left after the last payload in a row");
+        System.out.println("- " + originals.length + " payload(s) in a row in one direct buffer decoded correctly");
+    }
+
+    /**
+     * Creates a buffer with some bytes before its position.
+     *
+     * @param length is the number of bytes needed after the position.
+     * @param direct says whether the buffer shall be a direct one.
+     * @param random chooses the position.
+     * @return the buffer with its limit right after the bytes needed.
+     */
+    private static ByteBuffer allocate(int length, boolean direct, Random random) {
+        int offset = random.nextInt(MAX_OFFSET + 1);
+        ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(offset + length) : ByteBuffer.allocate(offset + length);
+        return buffer.position(offset);
+    }
+
+    /**
+     * Creates the bytes of a payload of one of four kinds: text-like bytes
+     * (they get encoded), random bytes (they get stored), one repeated byte
+     * and two bytes in random order.
+     *
+     * @param random chooses the bytes.
+     * @param length is the number of bytes.
+     * @param kind   is the kind of the bytes (0 - 3).
+     * @return the bytes.
+     */
+    private static byte[] createPayload(Random random, int length, int kind) {
+        if (kind == 0) {
+            return TestData.createText(random, length);
+        }
+        byte[] payload = new byte[length];
+        if (kind == 1) {
+            random.nextBytes(payload);
+            return payload;
+        }
+        for (int i = 0; i < length; i++) {
+            payload[i] = (byte) (kind == 2 ? 'x' : random.nextInt(2));
+        }
+        return payload;
+    }
+}
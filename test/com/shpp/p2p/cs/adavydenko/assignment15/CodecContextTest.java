@@ -0,0 +1,221 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Checks the EncoderContext and the DecoderContext the way a service uses
+ * them: one table built by CodeTable.fromSample, one pair of contexts per
+ * thread and many short messages. It also measures the throughput of round
+ * trips and the memory allocated per message after the warm-up.
+ */
+public class CodecContextTest {
+
+    /**
+     * The number of messages of every measured run.
+     */
+    private static final int MESSAGES = 200_000;
+
+    /**
+     * The maximum length of a message.
+     */
+    private static final int MAX_MESSAGE_LENGTH = 300;
+
+    /**
+     * The number of distinct messages every thread cycles through.
+     */
+    private static final int DISTINCT_MESSAGES = 1000;
+
+    /**
+     * The number of threads sharing one table.
+     */
+    private static final int THREADS = 4;
+
+    /**
+     * The number of bytes a run may allocate per message and still count as not
+     * allocating anything (the measurement itself allocates a little).
+     */
+    private static final double MAX_ALLOCATED_BYTES_PER_MESSAGE = 1;
+
+    /**
+     * The number of nanoseconds in a second.
+     */
+    private static final double NANOS_IN_SEC = 1_000_000_000;
+
+    /**
+     * Runs all checks.
+     *
+     * @param args are not used.
+     */
+    public static void main(String[] args) throws Exception {
+        Random random = new Random(MESSAGES);
+        byte[] sample = TestData.createText(random, 64 * 1024);
+        CodeTable table = CodeTable.fromSample(sample, 0, sample.length);
+        byte[][] messages = createMessages(random, DISTINCT_MESSAGES);
+
+        checkEveryByteValue(table);
+        checkTableChange(table, messages);
+        measureOneThread(table, messages);
+        checkSharedTable(table, messages);
+        System.out.println("CodecContextTest: all checks passed");
+    }
+
+    /**
+     * Checks that bytes the sample never had still get codes.
+     *
+     * @param table is the table built from text.
+     */
+    private static void checkEveryByteValue(CodeTable table) {
+        byte[] message = new byte[CodeTable.BYTE_ENCODE_CAPACITY];
+        for (int value = 0; value < message.length; value++) {
+            message[value] = (byte) value;
+        }
+        checkRoundTrip(new EncoderContext(table), new DecoderContext(table), message);
+        System.out.println("- all 256 byte values are encoded, even the ones missing in the sample");
+    }
+
+    /**
+     * Checks that contexts switched to another table by reset(table) use it.
+     *
+     * @param table    is the table built from text.
+     * @param messages are the messages to be encoded.
+     */
+    private static void checkTableChange(CodeTable table, byte[][] messages) {
+        byte[] otherSample = new byte[CodeTable.BYTE_ENCODE_CAPACITY];
+        Arrays.fill(otherSample, (byte) 0);
+        CodeTable otherTable = CodeTable.fromSample(otherSample, 0, otherSample.length);
+        EncoderContext encoder = new EncoderContext(table);
+        DecoderContext decoder = new DecoderContext(table);
+        checkRoundTrip(encoder, decoder, messages[0]);
+        encoder.reset(otherTable);
+        decoder.reset(otherTable);
+        checkRoundTrip(encoder, decoder, messages[1]);
+        encoder.reset(table);
+        decoder.reset(table);
+        checkRoundTrip(encoder, decoder, messages[2]);
+        System.out.println("- reset(table) makes both contexts use the other codes");
+    }
+
+    /**
+     * Measures round trips in one thread: their rate and the bytes allocated per message.
+     *
+     * @param table    is the shared table.
+     * @param messages are the messages to be encoded.
+     */
+    private static void measureOneThread(CodeTable table, byte[][] messages) {
+        EncoderContext encoder = new EncoderContext(table);
+        DecoderContext decoder = new DecoderContext(table);
+        runRoundTrips(encoder, decoder, messages); // The warm-up: the code is compiled and the arrays have grown
+        com.sun.management.ThreadMXBean threads = getThreadBean();
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = threads == null ? 0 : threads.getThreadAllocatedBytes(threadId);
+        long startTime = System.nanoTime();
+        runRoundTrips(encoder, decoder, messages);
+        long nanos = System.nanoTime() - startTime;
+        long allocated = threads == null ? 0 : threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        System.out.println(String.format(Locale.ROOT, "- one thread: %d round trips of 0 - %d bytes, %.0f per second",
+                MESSAGES, MAX_MESSAGE_LENGTH, MESSAGES / (nanos / NANOS_IN_SEC)));
+        if (threads == null) {
+            System.out.println("- the JVM can not count allocated bytes, the allocation check is skipped");
+            return;
+        }
+        double bytesPerMessage = (double) allocated / MESSAGES;
+        System.out.println(String.format(Locale.ROOT, "- allocated %.3f byte(s) per message after the warm-up",
+                bytesPerMessage));
+        if (bytesPerMessage > MAX_ALLOCATED_BYTES_PER_MESSAGE) {
+            throw new AssertionError("The contexts allocate memory for every message");
+        }
+    }
+
+    /**
+     * Checks that one table serves several threads with their own contexts at once.
+     *
+     * @param table    is the shared table.
+     * @param messages are the messages to be encoded.
+     */
+    private static void checkSharedTable(CodeTable table, byte[][] messages) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            long startTime = System.nanoTime();
+            for (int i = 0; i < THREADS; i++) {
+                results.add(pool.submit(() -> runRoundTrips(new EncoderContext(table), new DecoderContext(table),
+                        messages)));
+            }
+            for (Future<?> result : results) {
+                result.get(); // Throws the AssertionError of a thread if there was one
+            }
+            long nanos = System.nanoTime() - startTime;
+            System.out.println(String.format(Locale.ROOT, "- %d threads sharing one table: %.0f round trips per second",
+                    THREADS, THREADS * MESSAGES / (nanos / NANOS_IN_SEC)));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Encodes and decodes MESSAGES messages with one pair of contexts.
+     *
+     * @param encoder  is the encoder context.
+     * @param decoder  is the decoder context.
+     * @param messages are the messages to be encoded.
+     */
+    private static void runRoundTrips(EncoderContext encoder, DecoderContext decoder, byte[][] messages) {
+        for (int i = 0; i < MESSAGES; i++) {
+            checkRoundTrip(encoder, decoder, messages[i % messages.length]);
+        }
+    }
+
+    /**
+     * Encodes and decodes one message and compares the result with it.
+     *
+     * @param encoder is the encoder context.
+     * @param decoder is the decoder context.
+     * @param message is the message.
+     */
+    private static void checkRoundTrip(EncoderContext encoder, DecoderContext decoder, byte[] message) {
+        int encodedLength = encoder.encode(message, 0, message.length);
+        int decodedLength = decoder.decode(encoder.getOutput(), 0, encodedLength, message.length);
+        if (decodedLength != message.length
+                || !Arrays.equals(message, 0, message.length, decoder.getOutput(), 0, decodedLength)) {
+            throw new AssertionError("A message of " + message.length + " byte(s) was decoded wrongly");
+        }
+    }
+
+    /**
+     * Provides the bean counting the bytes allocated by a thread.
+     *
+     * @return the bean or null if the JVM can not count them.
+     */
+    private static com.sun.management.ThreadMXBean getThreadBean() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+                return threads;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Creates messages of random length, each one a part of text-like bytes.
+     *
+     * @param random chooses the bytes and the lengths.
+     * @param count  is the number of messages.
+     * @return the messages.
+     */
+    private static byte[][] createMessages(Random random, int count) {
+        byte[][] messages = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            messages[i] = TestData.createText(random, random.nextInt(MAX_MESSAGE_LENGTH + 1));
+        }
+        return messages;
+    }
+}
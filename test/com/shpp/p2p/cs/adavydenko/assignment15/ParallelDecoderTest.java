@@ -0,0 +1,133 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import static com.shpp.p2p.cs.adavydenko.assignment15.TestData.check;
+
+/**
+ * Checks that the ParallelDecoder decodes exactly the bytes the Unarchiver decodes
+ * in one thread. Every archive is decoded with several numbers of threads and with
+ * tiny chunks (down to one byte of the archive), so almost every chunk starts in
+ * the middle of a code, long codes cover whole chunks, and the guessed code borders
+ * often do not meet the real ones before the chunk ends. Whole files unarchived
+ * with "--parallel" are compared with the ones unarchived without it too.
+ */
+public class ParallelDecoderTest {
+
+    /**
+     * The numbers of threads every archive is decoded with.
+     */
+    private static final int[] THREADS = {1, 2, 3, 8};
+
+    /**
+     * The lengths of chunks (in archive bytes) every archive is decoded with.
+     */
+    private static final int[] CHUNK_LENGTHS = {1, 2, 3, 7, 64, 4099, ParallelDecoder.DEFAULT_CHUNK_LENGTH};
+
+    /**
+     * The number of threads of the whole files unarchived with "--parallel".
+     */
+    private static final int UNARCHIVE_THREADS = 3;
+
+    /**
+     * Runs all checks.
+     *
+     * @param args are not used.
+     */
+    public static void main(String[] args) throws IOException {
+        Random random = new Random(UNARCHIVE_THREADS);
+        checkArchive("text", TestData.createText(random, 100_000));
+        checkArchive("two bytes", TestData.createTwoBytes(random, 20_001));
+        checkArchive("long codes", TestData.createLongCodes(random));
+        checkArchive("all byte values", TestData.createAllBytes(random, 50_000));
+        checkWholeFile(TestData.createText(random, 3 * ParallelDecoder.DEFAULT_CHUNK_LENGTH + 12_345));
+        System.out.println("ParallelDecoderTest: all checks passed");
+    }
+
+    /**
+     * Archives an input with the Archiver, unarchives it with the Unarchiver and
+     * decodes the archive again with the ParallelDecoder for every number of
+     * threads and every length of chunks.
+     *
+     * @param name     describes the input.
+     * @param original are the bytes to be archived.
+     */
+    private static void checkArchive(String name, byte[] original) throws IOException {
+        File archive = File.createTempFile("parallel", ".par");
+        try {
+            Files.write(archive.toPath(), TestData.archive(original, null));
+            byte[] serial = unarchive(archive, null);
+            check(Arrays.equals(serial, original), "The Unarchiver decoded \"" + name + "\" wrongly");
+            ArchiveHeader header;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(archive)))) {
+                header = ParFormat.readTableHeader(in);
+            }
+            try (RandomAccessFile file = new RandomAccessFile(archive, "r")) {
+                CodeTable table = header.toCodeTable();
+                check(ParallelDecoder.canDecode(table), "The archive of \"" + name + "\" can not be decoded in parallel");
+                for (int threads : THREADS) {
+                    for (int chunkLength : CHUNK_LENGTHS) {
+                        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+                        long length = new ParallelDecoder(threads, null, chunkLength).decode(file, header.LENGTH,
+                                header.MEANINGFUL_BITS_IN_LAST_BYTE, table, decoded);
+                        String run = "\"" + name + "\" with " + threads + " thread(s) and chunks of "
+                                + chunkLength + " byte(s)";
+                        check(length == serial.length, run + ": " + length + " bytes instead of " + serial.length);
+                        check(Arrays.equals(decoded.toByteArray(), serial), run + ": the decoded bytes differ");
+                    }
+                }
+                System.out.println("- \"" + name + "\" (" + original.length + " bytes, codes of 1 - "
+                        + table.getMaxLength() + " bits): " + THREADS.length * CHUNK_LENGTHS.length
+                        + " thread and chunk combinations match the Unarchiver");
+            }
+        } finally {
+            Files.deleteIfExists(archive.toPath());
+        }
+    }
+
+    /**
+     * Checks that a whole file unarchived with "--parallel" equals the one
+     * unarchived without it. The archive takes several chunks of the default length.
+     *
+     * @param original are the bytes to be archived.
+     */
+    private static void checkWholeFile(byte[] original) throws IOException {
+        File archive = File.createTempFile("parallel", ".par");
+        try {
+            Files.write(archive.toPath(), TestData.archive(original, null));
+            CodecOptions options = new CodecOptions();
+            options.parallelThreads = UNARCHIVE_THREADS;
+            check(Arrays.equals(unarchive(archive, null), unarchive(archive, options)),
+                    "The file unarchived with --parallel differs from the one unarchived without it");
+            System.out.println("- " + original.length + " bytes in an archive of " + archive.length()
+                    + " bytes: the file unarchived with --parallel=" + UNARCHIVE_THREADS
+                    + " equals the one unarchived in one thread");
+        } finally {
+            Files.deleteIfExists(archive.toPath());
+        }
+    }
+
+    /**
+     * Unarchives an archive with the Unarchiver.
+     *
+     * @param archive is the archive.
+     * @param options are the settings of the Unarchiver, null for the default ones.
+     * @return the unarchived bytes.
+     */
+    private static byte[] unarchive(File archive, CodecOptions options) throws IOException {
+        File outFile = new File(archive.getPath() + ".uar");
+        try {
+            String[] files = {archive.getPath(), outFile.getPath()};
+            AuxiliaryMethods auxMethods = new AuxiliaryMethods(false);
+            Unarchiver unarchiver = options == null ? new Unarchiver(files, auxMethods)
+                    : new Unarchiver(files, auxMethods, options);
+            unarchiver.unarchiveFile();
+            return Files.readAllBytes(outFile.toPath());
+        } finally {
+            Files.deleteIfExists(outFile.toPath());
+        }
+    }
+}
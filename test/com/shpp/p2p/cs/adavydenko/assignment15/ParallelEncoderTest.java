@@ -0,0 +1,96 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static com.shpp.p2p.cs.adavydenko.assignment15.TestData.check;
+
+/**
+ * Checks that the ParallelEncoder writes byte for byte the bitstream the Archiver
+ * writes in one thread. Every input is encoded with several numbers of threads and
+ * with tiny chunks (down to one byte), so most chunks share their first and last
+ * bytes with their neighbours and groups end in the middle of a byte. Whole archives
+ * written with "--parallel" are compared with the ones written without it too.
+ */
+public class ParallelEncoderTest {
+
+    /**
+     * The numbers of threads every input is encoded with.
+     */
+    private static final int[] THREADS = {1, 2, 3, 8};
+
+    /**
+     * The lengths of chunks every input is encoded with.
+     */
+    private static final int[] CHUNK_LENGTHS = {1, 2, 3, 7, 64, 4099, ParallelEncoder.DEFAULT_CHUNK_LENGTH};
+
+    /**
+     * The number of threads of the whole archives written with "--parallel".
+     */
+    private static final int ARCHIVE_THREADS = 3;
+
+    /**
+     * Runs all checks.
+     *
+     * @param args are not used.
+     */
+    public static void main(String[] args) throws IOException {
+        Random random = new Random(ARCHIVE_THREADS);
+        checkInput("text", TestData.createText(random, 100_000));
+        checkInput("two bytes", TestData.createTwoBytes(random, 20_001));
+        checkInput("long codes", TestData.createLongCodes(random));
+        checkInput("all byte values", TestData.createAllBytes(random, 50_000));
+        checkWholeArchive(TestData.createText(random, 2 * ParallelEncoder.DEFAULT_CHUNK_LENGTH + 12_345));
+        System.out.println("ParallelEncoderTest: all checks passed");
+    }
+
+    /**
+     * Archives an input with the Archiver and encodes it again with the ParallelEncoder
+     * for every number of threads and every length of chunks.
+     *
+     * @param name     describes the input.
+     * @param original are the bytes to be archived.
+     */
+    private static void checkInput(String name, byte[] original) throws IOException {
+        byte[] archive = TestData.archive(original, null);
+        ArchiveHeader header = ParFormat.readTableHeader(new DataInputStream(new ByteArrayInputStream(archive)));
+        CodeTable table = header.toCodeTable();
+        check(ParallelEncoder.canEncode(table), "The input \"" + name + "\" can not be encoded in parallel");
+        byte[] serialStream = Arrays.copyOfRange(archive, header.LENGTH, archive.length);
+        long expectedBits = 0;
+        for (byte value : original) {
+            expectedBits += table.getLength(value & 0xFF);
+        }
+        for (int threads : THREADS) {
+            for (int chunkLength : CHUNK_LENGTHS) {
+                ByteArrayOutputStream stream = new ByteArrayOutputStream();
+                long bits = new ParallelEncoder(threads, table, chunkLength)
+                        .encode(new ByteArrayInputStream(original), stream);
+                String run = "\"" + name + "\" with " + threads + " thread(s) and chunks of " + chunkLength + " byte(s)";
+                check(bits == expectedBits, run + ": " + bits + " bits instead of " + expectedBits);
+                check(Arrays.equals(stream.toByteArray(), serialStream), run + ": the bitstream differs");
+            }
+        }
+        System.out.println("- \"" + name + "\" (" + original.length + " bytes, codes of 1 - " + table.getMaxLength()
+                + " bits): " + THREADS.length * CHUNK_LENGTHS.length + " thread and chunk combinations match the Archiver");
+    }
+
+    /**
+     * Checks that a whole archive written with "--parallel" equals the one written
+     * without it. The input takes several chunks of the default length.
+     *
+     * @param original are the bytes to be archived.
+     */
+    private static void checkWholeArchive(byte[] original) throws IOException {
+        CodecOptions options = new CodecOptions();
+        options.parallelThreads = ARCHIVE_THREADS;
+        check(Arrays.equals(TestData.archive(original, null), TestData.archive(original, options)),
+                "The archive written with --parallel differs from the one written without it");
+        System.out.println("- " + original.length + " bytes: the archive written with --parallel=" + ARCHIVE_THREADS
+                + " equals the one written in one thread");
+    }
+}
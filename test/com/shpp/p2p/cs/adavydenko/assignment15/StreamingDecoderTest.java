@@ -0,0 +1,138 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks that the StreamingDecoder decodes an archive pushed into it in chunks
+ * of random sizes (as they would arrive from a socket) to exactly the bytes the
+ * archive was made of, with output buffers that get full in the middle of a chunk.
+ */
+public class StreamingDecoderTest {
+
+    /**
+     * The number of rounds, each one with its own random chunks.
+     */
+    private static final int ROUNDS = 50;
+
+    /**
+     * The maximum size of a chunk of the archive fed at once.
+     */
+    private static final int MAX_CHUNK = 700;
+
+    /**
+     * The maximum size of a buffer for the decoded bytes.
+     */
+    private static final int MAX_OUTPUT_BUFFER = 300;
+
+    /**
+     * Runs all checks.
+     *
+     * @param args are not used.
+     */
+    public static void main(String[] args) throws IOException {
+        Random random = new Random(ROUNDS);
+        checkRoundTrip(TestData.createText(random, 200_000), random);
+        checkRoundTrip("hello, world\n".getBytes(), random);
+        checkRoundTrip("ab".getBytes(), random);
+        checkEmptyArchive();
+        System.out.println("StreamingDecoderTest: all checks passed");
+    }
+
+    /**
+     * Archives bytes with the Archiver and decodes the archive chunk by chunk
+     * in every round.
+     *
+     * @param original are the bytes to be archived.
+     * @param random   chooses the sizes of chunks and buffers.
+     */
+    private static void checkRoundTrip(byte[] original, Random random) throws IOException {
+        byte[] archive = TestData.archive(original, null);
+        for (int round = 0; round < ROUNDS; round++) {
+            byte[] decoded = decodeInChunks(archive, original.length, random);
+            if (!Arrays.equals(original, decoded)) {
+                throw new AssertionError("Round " + round + " of " + original.length + " byte(s) decoded wrongly");
+            }
+        }
+        System.out.println("- " + original.length + " byte(s): " + ROUNDS + " chunked round(s) decoded correctly");
+    }
+
+    /**
+     * Checks that no input at all stands for an empty file.
+     */
+    private static void checkEmptyArchive() {
+        StreamingDecoder decoder = new StreamingDecoder();
+        decoder.endOfInput();
+        if (!decoder.isFinished() || decoder.finish(ByteBuffer.allocate(1)) != 0) {
+            throw new AssertionError("An empty archive shall decode to nothing");
+        }
+        System.out.println("- an empty archive decodes to an empty file");
+    }
+
+    /**
+     * Pushes an archive into a decoder in random chunks and collects the decoded bytes.
+     *
+     * @param archive      are the bytes of the archive.
+     * @param originalSize is the number of bytes the archive was made of.
+     * @param random       chooses the sizes of chunks and buffers.
+     * @return the decoded bytes.
+     */
+    private static byte[] decodeInChunks(byte[] archive, int originalSize, Random random) {
+        StreamingDecoder decoder = new StreamingDecoder();
+        ByteBuffer decoded = ByteBuffer.allocate(originalSize);
+        int position = 0;
+        while (position < archive.length) {
+            int chunk = Math.min(archive.length - position, 1 + random.nextInt(MAX_CHUNK));
+            ByteBuffer src = ByteBuffer.wrap(archive, position, chunk);
+            do { // The caller gives the bytes left in src again until the decoder takes them all
+                ByteBuffer window = nextOutputBuffer(decoded, random);
+                takeDecoded(decoded, window, decoder.feed(src, window));
+            } while (src.hasRemaining());
+            position += chunk;
+        }
+        decoder.endOfInput();
+        while (!decoder.isFinished()) {
+            ByteBuffer window = nextOutputBuffer(decoded, random);
+            takeDecoded(decoded, window, decoder.finish(window));
+        }
+        if (decoder.getBytesDecoded() != originalSize || decoded.hasRemaining()) {
+            throw new AssertionError("Decoded " + decoder.getBytesDecoded() + " byte(s) instead of " + originalSize);
+        }
+        return decoded.array();
+    }
+
+    /**
+     * Provides a small window of the buffer with all decoded bytes, so decoded
+     * bytes go right to their place in that buffer. The decoder takes archive
+     * bytes only while it has room for decoded ones, so after the last decoded
+     * byte it gets a spare buffer that shall stay empty.
+     *
+     * @param decoded is the buffer with all decoded bytes.
+     * @param random  chooses the size of the window.
+     * @return the window or the spare buffer if all bytes are already decoded.
+     */
+    private static ByteBuffer nextOutputBuffer(ByteBuffer decoded, Random random) {
+        if (!decoded.hasRemaining()) {
+            return ByteBuffer.allocate(1);
+        }
+        int size = Math.min(decoded.remaining(), 1 + random.nextInt(MAX_OUTPUT_BUFFER));
+        return decoded.slice(decoded.position(), size);
+    }
+
+    /**
+     * Moves the position of the buffer with all decoded bytes past the bytes
+     * the decoder wrote to the window.
+     *
+     * @param decoded is the buffer with all decoded bytes.
+     * @param window  is the window given to the decoder.
+     * @param written is the number of bytes the decoder says it wrote.
+     */
+    private static void takeDecoded(ByteBuffer decoded, ByteBuffer window, int written) {
+        if (written != window.position() || written > decoded.remaining()) {
+            throw new AssertionError("The decoder wrote " + window.position() + " byte(s) but said " + written);
+        }
+        decoded.position(decoded.position() + written);
+    }
+}
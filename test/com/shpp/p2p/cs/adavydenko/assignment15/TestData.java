@@ -0,0 +1,135 @@
+package com.shpp.p2p.cs.adavydenko.assignment15;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Helpers shared by the test programs. The repository has no test framework,
+ * so every test is a class with a main method: it prints what it checked and
+ * ends with an AssertionError if a check failed.
+ */
+public class TestData {
+
+    /**
+     * The bytes text-like data is made of. Some of them are repeated, so their
+     * frequencies differ and codes of different lengths are used.
+     */
+    private static final String ALPHABET = "eeeeeeettttaaaooinnsshrdlu ,.\n0123456789";
+
+    /**
+     * Creates text-like bytes with a skewed distribution.
+     *
+     * @param random chooses the bytes.
+     * @param length is the number of bytes.
+     * @return the bytes.
+     */
+    public static byte[] createText(Random random, int length) {
+        byte[] text = new byte[length];
+        for (int i = 0; i < length; i++) {
+            text[i] = (byte) ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+        }
+        return text;
+    }
+
+    /**
+     * Creates two bytes in random order, so every code is one bit long and
+     * eight codes share every byte of the archive.
+     *
+     * @param random chooses the bytes.
+     * @param length is the number of bytes.
+     * @return the bytes.
+     */
+    public static byte[] createTwoBytes(Random random, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) ('a' + random.nextInt(2));
+        }
+        return data;
+    }
+
+    /**
+     * Creates bytes whose counts grow like the Fibonacci numbers, so the codes
+     * are as long as a Huffman tree of so few bytes allows.
+     *
+     * @param random shuffles the bytes.
+     * @return the bytes.
+     */
+    public static byte[] createLongCodes(Random random) {
+        final int SYMBOLS = 24;
+        int[] counts = new int[SYMBOLS];
+        counts[0] = 1;
+        counts[1] = 1;
+        int length = 2;
+        for (int i = 2; i < SYMBOLS; i++) {
+            counts[i] = counts[i - 1] + counts[i - 2];
+            length += counts[i];
+        }
+        byte[] data = new byte[length];
+        int index = 0;
+        for (int i = 0; i < SYMBOLS; i++) {
+            Arrays.fill(data, index, index + counts[i], (byte) i);
+            index += counts[i];
+        }
+        for (int i = data.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            byte swap = data[i];
+            data[i] = data[j];
+            data[j] = swap;
+        }
+        return data;
+    }
+
+    /**
+     * Creates bytes of every value with a skewed distribution.
+     *
+     * @param random chooses the bytes.
+     * @param length is the number of bytes.
+     * @return the bytes.
+     */
+    public static byte[] createAllBytes(Random random, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            int value = random.nextInt(CodeTable.BYTE_ENCODE_CAPACITY) & random.nextInt(CodeTable.BYTE_ENCODE_CAPACITY);
+            data[i] = (byte) value;
+        }
+        return data;
+    }
+
+    /**
+     * Makes an archive in the original format with the Archiver.
+     *
+     * @param original are the bytes to be archived.
+     * @param options  are the settings of the Archiver, null for the default ones.
+     * @return the bytes of the archive.
+     */
+    public static byte[] archive(byte[] original, CodecOptions options) throws IOException {
+        File inFile = File.createTempFile("test", ".txt");
+        File outFile = new File(inFile.getPath() + ".par");
+        try {
+            Files.write(inFile.toPath(), original);
+            String[] files = {inFile.getPath(), outFile.getPath()};
+            AuxiliaryMethods auxMethods = new AuxiliaryMethods(false);
+            Archiver archiver = options == null ? new Archiver(files, auxMethods) : new Archiver(files, auxMethods, options);
+            archiver.archiveFile();
+            return Files.readAllBytes(outFile.toPath());
+        } finally {
+            Files.deleteIfExists(inFile.toPath());
+            Files.deleteIfExists(outFile.toPath());
+        }
+    }
+
+    /**
+     * Fails the test if a condition is false.
+     *
+     * @param condition is the condition that shall be true.
+     * @param message   explains what went wrong.
+     */
+    public static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}